@@ -0,0 +1,74 @@
+package com.example.api;
+
+import com.example.service.InsertBenchmarkService;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Map;
+
+/**
+ * In-process encoder/transport benchmarks. These run on a bounded-elastic thread since
+ * they are CPU bound and may block on ClickHouse when sending.
+ */
+@RestController
+@RequestMapping("/api/benchmark")
+public class BenchmarkController {
+
+    private final InsertBenchmarkService benchmarkService;
+
+    public BenchmarkController(InsertBenchmarkService benchmarkService) {
+        this.benchmarkService = benchmarkService;
+    }
+
+    /**
+     * GET /api/benchmark/insert-formats?rows=6000&iterations=5&send=false
+     *
+     * Bytes on the wire and rows/sec for JSONEachRow vs RowBinary.
+     * With send=true both payloads are also inserted into the configured table.
+     */
+    @GetMapping("/insert-formats")
+    public Mono<Map<String, Object>> insertFormats(@RequestParam(defaultValue = "6000") int rows,
+                                                   @RequestParam(defaultValue = "5") int iterations,
+                                                   @RequestParam(defaultValue = "false") boolean send) {
+        return Mono.fromCallable(() -> benchmarkService.compareInsertFormats(rows, Math.max(1, iterations), send))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * GET /api/benchmark/record-serializers?records=200000
+     *
+     * ns, bytes and heap allocation per record for the Map+Jackson path versus the
+     * precompiled Kavach template serializer.
+     */
+    @GetMapping("/record-serializers")
+    public Mono<Map<String, Object>> recordSerializers(@RequestParam(defaultValue = "200000") int records) {
+        return Mono.fromCallable(() -> benchmarkService.compareRecordSerializers(Math.max(1, records)))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * GET /api/benchmark/kafka-codecs?records=200000
+     *
+     * Bytes per message and encode/decode ns per message for JSON versus the compact
+     * binary Kavach packet codec.
+     */
+    @GetMapping("/kafka-codecs")
+    public Mono<Map<String, Object>> kafkaCodecs(@RequestParam(defaultValue = "200000") int records) {
+        return Mono.fromCallable(() -> benchmarkService.compareKafkaPayloadCodecs(Math.max(1, records)))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * GET /api/benchmark/query-read-formats?rows=100000&iterations=5
+     *
+     * MB/s, ns and heap allocation per row for decoding a query result: FORMAT JSON into
+     * maps, streamed JSONEachRow, and RowBinaryWithNamesAndTypes into column batches.
+     */
+    @GetMapping("/query-read-formats")
+    public Mono<Map<String, Object>> queryReadFormats(@RequestParam(defaultValue = "100000") int rows,
+                                                      @RequestParam(defaultValue = "5") int iterations) {
+        return Mono.fromCallable(() -> benchmarkService.compareQueryReadFormats(Math.max(1, rows), Math.max(1, iterations)))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+}
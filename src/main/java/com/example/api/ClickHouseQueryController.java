@@ -1,7 +1,11 @@
 package com.example.api;
 
 import com.example.service.ClickHouseQueryService;
+import com.example.service.PacketPageCursor;
+import com.example.service.QueryResultCache;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
@@ -10,6 +14,7 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.Map;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 import com.example.service.NativeClickHouseExcelExportService;
@@ -23,11 +28,14 @@ public class ClickHouseQueryController {
     private final ClickHouseQueryService queryService;
     private final NativeClickHouseExcelExportService excelExportService;
     private final JdbcClickHouseQueryService jdbcService;
+    private final QueryResultCache resultCache;
 
-    public ClickHouseQueryController(ClickHouseQueryService queryService, NativeClickHouseExcelExportService excelExportService, JdbcClickHouseQueryService jdbcService) {
+    public ClickHouseQueryController(ClickHouseQueryService queryService, NativeClickHouseExcelExportService excelExportService, JdbcClickHouseQueryService jdbcService,
+                                     QueryResultCache resultCache) {
         this.queryService = queryService;
         this.excelExportService = excelExportService;
         this.jdbcService = jdbcService;
+        this.resultCache = resultCache;
     }
 
 
@@ -50,7 +58,8 @@ public class ClickHouseQueryController {
 		boolean noDataMode = (limit == null && offset == null);
 		Mono<?> exec = noDataMode
 			? queryService.fetchPacketsStreamTiming(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType, 100000, 0)
-			: queryService.fetchPackets(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType, limit, offset);
+			: resultCache.window("packets", from, to, subPktType, "limit=" + limit + ";offset=" + offset,
+				() -> queryService.fetchPackets(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType, limit, offset));
 
 		return exec.map(res -> {
 			long duration = System.currentTimeMillis() - start;
@@ -89,6 +98,52 @@ public class ClickHouseQueryController {
 		});
 	}
 
+	// Same query as /packets, streamed to the client as NDJSON straight from ClickHouse's
+	// JSONEachRow output: nothing is parsed or collected, so heap use does not grow with the range
+	@PostMapping(value = "/packets/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public Flux<DataBuffer> streamPackets(@RequestBody Map<String, Object> payload) {
+		String fromStr = payload.getOrDefault("from", "").toString();
+		String toStr = payload.getOrDefault("to", "").toString();
+		String subPktType = payload.getOrDefault("type", "").toString();
+		Integer limit = payload.containsKey("limit") ? ((Number) payload.get("limit")).intValue() : null;
+		Integer offset = payload.containsKey("offset") ? ((Number) payload.get("offset")).intValue() : null;
+
+		LocalDateTime from = parseDateTimeFlexible("from", fromStr);
+		LocalDateTime to = parseDateTimeFlexible("to", toStr);
+		if (!to.isAfter(from)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Parameter 'to' must be after 'from'");
+		}
+		if (subPktType != null && !subPktType.isBlank() && !subPktType.trim().matches("\\d{4}")) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Parameter 'type' must be 4 digits");
+		}
+
+		return queryService.streamPacketsNdjson(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType, limit, offset);
+	}
+
+	// Keyset pagination: pass back "nextCursor" as "cursor" for the following page. Unlike
+	// limit/offset on /packets, a deep page costs about the same as the first one
+	@PostMapping("/packets/page")
+	public Mono<ResponseEntity<Map<String, Object>>> fetchPacketsPage(@RequestBody Map<String, Object> payload) {
+		String fromStr = payload.getOrDefault("from", "").toString();
+		String toStr = payload.getOrDefault("to", "").toString();
+		String subPktType = payload.getOrDefault("type", "").toString();
+		int limit = payload.containsKey("limit") ? ((Number) payload.get("limit")).intValue() : 1000;
+
+		LocalDateTime from = parseDateTimeFlexible("from", fromStr);
+		LocalDateTime to = parseDateTimeFlexible("to", toStr);
+		if (!to.isAfter(from)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Parameter 'to' must be after 'from'");
+		}
+		if (limit <= 0) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Parameter 'limit' must be positive");
+		}
+		PacketPageCursor after = parseCursor(payload.get("cursor"));
+
+		long start = System.currentTimeMillis();
+		return queryService.fetchPacketsPage(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType, limit, after)
+			.map(page -> ResponseEntity.ok(pageBody(from, to, subPktType, limit, page, start)));
+	}
+
 	@PostMapping("/packets/count")
 	public Mono<ResponseEntity<Map<String, Object>>> fetchPacketsCount(@RequestBody Map<String, Object> payload) {
 		String fromStr = payload.getOrDefault("from", "").toString();
@@ -102,7 +157,8 @@ public class ClickHouseQueryController {
 		}
 
 		long start = System.currentTimeMillis();
-		return queryService.fetchPacketsCount(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType)
+		String type = subPktType == null || subPktType.isBlank() ? null : subPktType;
+		return resultCache.count(from, to, type, (f, t) -> queryService.fetchPacketsCount(f, t, type))
 			.map(cnt -> {
 				long duration = System.currentTimeMillis() - start;
 				Map<String, Object> body = new java.util.LinkedHashMap<>();
@@ -135,7 +191,8 @@ public class ClickHouseQueryController {
 		boolean noDataMode = (limit == null && offset == null);
 		Mono<?> exec = noDataMode
 			? queryService.fetchPacketsDistinctStreamTiming(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType, 100000, 0)
-			: queryService.fetchPacketsDistinct(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType, limit, offset);
+			: resultCache.window("distinct", from, to, subPktType, "limit=" + limit + ";offset=" + offset,
+				() -> queryService.fetchPacketsDistinct(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType, limit, offset));
 
 		return exec.map(res -> {
 			long duration = System.currentTimeMillis() - start;
@@ -397,6 +454,24 @@ public class ClickHouseQueryController {
             });
     }
 
+    @PostMapping("/native/packets/page")
+    public Mono<ResponseEntity<Map<String, Object>>> nativeFetchPacketsPage(@RequestBody Map<String, Object> payload) {
+        String fromStr = payload.getOrDefault("from", "").toString();
+        String toStr = payload.getOrDefault("to", "").toString();
+        String subPktType = payload.getOrDefault("type", "").toString();
+        int limit = payload.containsKey("limit") ? ((Number) payload.get("limit")).intValue() : 1000;
+        LocalDateTime from = parseDateTimeFlexible("from", fromStr);
+        LocalDateTime to = parseDateTimeFlexible("to", toStr);
+        if (limit <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Parameter 'limit' must be positive");
+        }
+        PacketPageCursor after = parseCursor(payload.get("cursor"));
+        long start = System.currentTimeMillis();
+        return Mono.fromCallable(() -> jdbcService.fetchPacketsPage(from, to, subPktType == null || subPktType.isBlank() ? null : subPktType, limit, after))
+            .subscribeOn(Schedulers.boundedElastic())
+            .map(page -> ResponseEntity.ok(pageBody(from, to, subPktType, limit, page, start)));
+    }
+
     @PostMapping("/native/packets/count")
     public Mono<ResponseEntity<Map<String, Object>>> nativeFetchCount(@RequestBody Map<String, Object> payload) {
         String fromStr = payload.getOrDefault("from", "").toString();
@@ -533,6 +608,30 @@ public class ClickHouseQueryController {
             });
     }
 
+	private static PacketPageCursor parseCursor(Object token) {
+		try {
+			return PacketPageCursor.decode(token == null ? null : token.toString());
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Parameter 'cursor' is not a valid page cursor");
+		}
+	}
+
+	private static Map<String, Object> pageBody(LocalDateTime from, LocalDateTime to, String subPktType, int limit,
+	                                            PacketPageCursor.Page page, long start) {
+		Map<String, Object> body = new java.util.LinkedHashMap<>();
+		body.put("from", from.toString());
+		body.put("to", to.toString());
+		if (subPktType != null && !subPktType.isBlank()) {
+			body.put("type", subPktType);
+		}
+		body.put("limit", limit);
+		body.put("durationMs", System.currentTimeMillis() - start);
+		body.put("rows", page.rows);
+		body.put("nextCursor", page.nextCursor);
+		body.put("hasMore", page.nextCursor != null);
+		return body;
+	}
+
 	private static LocalDateTime parseDateTimeFlexible(String paramName, String value) {
 		if (value == null || value.trim().isEmpty()) {
 			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing required parameter '" + paramName + "'");
@@ -1,8 +1,11 @@
 package com.example.api;
 
 import com.example.service.KafkaProducerService;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.util.List;
 import java.util.Map;
@@ -31,6 +34,15 @@ public class KafkaController {
 		return ResponseEntity.ok("queued:" + records.size());
 	}
 
+	/**
+	 * POST /api/kafka/publish-stream with an NDJSON body (one JSON object per line).
+	 * The body is streamed to Kafka; the response carries per-batch throughput and error counts.
+	 */
+	@PostMapping("/publish-stream")
+	public Mono<KafkaProducerService.PublishResult> publishStream(@RequestBody Flux<DataBuffer> body) {
+		return producerService.publishNdjson(body);
+	}
+
 	@PostMapping("/publish-6000")
 	public ResponseEntity<String> publish6000() {
 		producerService.send6000FromFactory();
@@ -0,0 +1,157 @@
+package com.example.api;
+
+import com.example.service.AccumulatingKafkaConsumerService;
+import com.example.service.ClickHouseBulkInsertService;
+import com.example.service.ClickHouseRequestLimiter;
+import com.example.service.InsertCompressionService;
+import com.example.service.InsertSpool;
+import com.example.service.KafkaBackpressureController;
+import com.example.service.KafkaConsumerAutoscaler;
+import com.example.service.KafkaRedeliveryFilter;
+import com.example.service.PartitionParallelKafkaConsumerService;
+import com.example.service.QueryResultCache;
+import com.example.service.RingBufferKafkaConsumerService;
+import com.example.service.TableRoutingInsertEngine;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runtime counters for the ClickHouse insert pipeline.
+ */
+@RestController
+@RequestMapping("/api/metrics")
+public class MetricsController {
+
+    private final InsertCompressionService compressionService;
+    private final TableRoutingInsertEngine routingEngine;
+    private final ClickHouseRequestLimiter requestLimiter;
+    private final InsertSpool spool;
+    private final KafkaConsumerAutoscaler autoscaler;
+    private final KafkaBackpressureController backpressure;
+    private final KafkaRedeliveryFilter redeliveryFilter;
+    private final ClickHouseBulkInsertService bulkInsertService;
+    private final QueryResultCache queryResultCache;
+    // Kafka consumers exist only in their kafka.consumer.mode
+    private final ObjectProvider<AccumulatingKafkaConsumerService> accumulatingConsumer;
+    private final ObjectProvider<PartitionParallelKafkaConsumerService> partitionParallelConsumer;
+    private final ObjectProvider<RingBufferKafkaConsumerService> ringConsumer;
+
+    @Value("${kafka.consumer.mode:blocking}")
+    private String consumerMode;
+
+    public MetricsController(InsertCompressionService compressionService,
+                             TableRoutingInsertEngine routingEngine,
+                             ClickHouseRequestLimiter requestLimiter,
+                             InsertSpool spool,
+                             KafkaConsumerAutoscaler autoscaler,
+                             KafkaBackpressureController backpressure,
+                             KafkaRedeliveryFilter redeliveryFilter,
+                             ClickHouseBulkInsertService bulkInsertService,
+                             QueryResultCache queryResultCache,
+                             ObjectProvider<AccumulatingKafkaConsumerService> accumulatingConsumer,
+                             ObjectProvider<PartitionParallelKafkaConsumerService> partitionParallelConsumer,
+                             ObjectProvider<RingBufferKafkaConsumerService> ringConsumer) {
+        this.compressionService = compressionService;
+        this.routingEngine = routingEngine;
+        this.requestLimiter = requestLimiter;
+        this.spool = spool;
+        this.autoscaler = autoscaler;
+        this.backpressure = backpressure;
+        this.redeliveryFilter = redeliveryFilter;
+        this.bulkInsertService = bulkInsertService;
+        this.queryResultCache = queryResultCache;
+        this.accumulatingConsumer = accumulatingConsumer;
+        this.partitionParallelConsumer = partitionParallelConsumer;
+        this.ringConsumer = ringConsumer;
+    }
+
+    /**
+     * Per-route compression ratio and compressor CPU time (cumulative and last batch).
+     */
+    @GetMapping("/insert-compression")
+    public Map<String, Object> insertCompression() {
+        return compressionService.stats();
+    }
+
+    /**
+     * Routing rules and per destination table buffer counters.
+     */
+    @GetMapping("/insert-routing")
+    public Map<String, Object> insertRouting() {
+        return routingEngine.stats();
+    }
+
+    /**
+     * Current adaptive concurrency limit, in-flight and queued requests for inserts and queries.
+     */
+    @GetMapping("/concurrency-limits")
+    public Map<String, Object> concurrencyLimits() {
+        return requestLimiter.stats();
+    }
+
+    /**
+     * Write-ahead spool: pending batches and bytes, read/write positions, replay counters.
+     */
+    @GetMapping("/insert-spool")
+    public Map<String, Object> insertSpool() {
+        return spool.stats();
+    }
+
+    /**
+     * Active Kafka consumer mode and its counters (accumulator queue and flush sizes, per-partition lanes, ring buffers).
+     */
+    @GetMapping("/kafka-consumer")
+    public Map<String, Object> kafkaConsumer() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("mode", consumerMode);
+        accumulatingConsumer.ifAvailable(c -> m.put("accumulator", c.stats()));
+        partitionParallelConsumer.ifAvailable(c -> m.put("partitionLanes", c.stats()));
+        ringConsumer.ifAvailable(c -> m.put("ringBuffers", c.stats()));
+        return m;
+    }
+
+    /**
+     * Current listener concurrency and max.poll.records, with the autoscaler's recent decisions.
+     */
+    @GetMapping("/kafka-autoscaler")
+    public Map<String, Object> kafkaAutoscaler() {
+        return autoscaler.stats();
+    }
+
+    /**
+     * Whether Kafka consumption is paused for ClickHouse backpressure, why, and the current signal levels.
+     */
+    @GetMapping("/kafka-backpressure")
+    public Map<String, Object> kafkaBackpressure() {
+        return backpressure.stats();
+    }
+
+    /**
+     * Redelivered Kafka records dropped before insert, and the Bloom filter's size and fill.
+     */
+    @GetMapping("/kafka-dedup")
+    public Map<String, Object> kafkaDedup() {
+        return redeliveryFilter.stats();
+    }
+
+    /**
+     * Parts created per bulk insert (distinct partitions of the table per batch). Coalescing
+     * buffers report their single-partition batches in their own stats.
+     */
+    @GetMapping("/insert-parts")
+    public Map<String, Object> insertParts() {
+        return bulkInsertService.partsStats();
+    }
+
+    /**
+     * Query result cache: entries, weighed bytes, hit rate, and loads of sealed versus open-tail windows.
+     */
+    @GetMapping("/query-cache")
+    public Map<String, Object> queryCache() {
+        return queryResultCache.stats();
+    }
+}
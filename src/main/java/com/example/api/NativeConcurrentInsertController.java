@@ -5,6 +5,8 @@ import com.example.service.NativeConcurrentInsertService.NativeConcurrentResult;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Mono;
 
+import java.util.Map;
+
 /**
  * Controller for 6000 individual concurrent insertions using ClickHouse native HTTP API
  * Each insert is a separate HTTP request to ClickHouse
@@ -45,6 +47,47 @@ public class NativeConcurrentInsertController {
                 });
     }
     
+    /**
+     * 6000 individual records submitted one by one through the client-side coalescing buffer
+     *
+     * POST /api/insert-6000-native-coalesced
+     *
+     * Each record still gets its own completion, but records are merged into batches
+     * (coalescing.insert.max-rows / max-bytes / linger-ms) before being sent to ClickHouse.
+     */
+    @PostMapping("/insert-6000-native-coalesced")
+    public Mono<NativeConcurrentResult> insert6000NativeCoalesced() {
+        return nativeService.insert6000Coalesced()
+                .doOnError(error -> {
+                    System.err.println("Coalesced Insert failed: " + error.getMessage());
+                });
+    }
+
+    @GetMapping("/insert-6000-native-coalesced/stats")
+    public Map<String, Object> coalescingStats() {
+        return nativeService.coalescingStats();
+    }
+
+    /**
+     * Open-loop individual inserts with latency percentiles
+     *
+     * POST /api/insert-native-open-loop?rate=6000&startRate=1000&rampSeconds=5&durationSeconds=30
+     *
+     * Requests are paced by a single timer at the given rate (ramping linearly from startRate),
+     * independent of response times. p50/p99/p99.9 are measured from each request's intended
+     * send time. Omitted parameters fall back to the loadgen.* properties.
+     */
+    @PostMapping("/insert-native-open-loop")
+    public Mono<NativeConcurrentResult> insertNativeOpenLoop(@RequestParam(required = false) Double rate,
+                                                             @RequestParam(required = false) Double startRate,
+                                                             @RequestParam(required = false) Integer rampSeconds,
+                                                             @RequestParam(required = false) Integer durationSeconds) {
+        return nativeService.insertOpenLoopOrDefaults(rate, startRate, rampSeconds, durationSeconds)
+                .doOnError(error -> {
+                    System.err.println("Open-loop Insert failed: " + error.getMessage());
+                });
+    }
+
     /**
      * GET endpoint for testing
      * GET /api/insert-6000-native-concurrent
@@ -3,6 +3,8 @@ package com.example.config;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.OffsetResetStrategy;
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.springframework.beans.factory.annotation.Value;
@@ -28,12 +30,76 @@ public class KafkaConfig {
 	@Value("${kafka.consumer.group-id:clickhouse-batch-consumer}")
 	private String groupId;
 
+	// Starting values; the autoscaler (kafka.autoscaler.enabled) changes both at runtime
+	@Value("${kafka.consumer.concurrency:2}")
+	private int concurrency;
+
+	@Value("${kafka.consumer.max-poll-records:6000}")
+	private int maxPollRecords;
+
+	// Idle events let consumers that commit offsets themselves do so while the topic is quiet
+	@Value("${kafka.consumer.idle-event-interval-ms:1000}")
+	private long idleEventIntervalMs;
+
+	@Value("${kafka.producer.stream.linger-ms:20}")
+	private int streamLingerMs;
+
+	@Value("${kafka.producer.stream.batch-size:262144}")
+	private int streamBatchSize;
+
+	@Value("${kafka.producer.stream.buffer-memory:134217728}")
+	private long streamBufferMemory;
+
 	@Bean
 	public ProducerFactory<String, String> producerFactory() {
+		Map<String, Object> props = producerProps();
+		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+		DefaultKafkaProducerFactory<String, String> factory = new DefaultKafkaProducerFactory<>(props);
+		factory.setTransactionIdPrefix("tx-clickhouse-");
+		return factory;
+	}
+
+	@Bean
+	public KafkaTemplate<String, String> kafkaTemplate() {
+		return new KafkaTemplate<>(producerFactory());
+	}
+
+	// Binary Kavach packets (kafka.producer.format=binary)
+	@Bean
+	public ProducerFactory<String, byte[]> bytesProducerFactory() {
+		Map<String, Object> props = producerProps();
+		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+		DefaultKafkaProducerFactory<String, byte[]> factory = new DefaultKafkaProducerFactory<>(props);
+		factory.setTransactionIdPrefix("tx-clickhouse-bin-");
+		return factory;
+	}
+
+	@Bean
+	public KafkaTemplate<String, byte[]> bytesKafkaTemplate() {
+		return new KafkaTemplate<>(bytesProducerFactory());
+	}
+
+	// Streamed NDJSON publishing: idempotent (no duplicates or reordering on retry) but not
+	// transactional, so every send goes straight into a shared producer's batches
+	@Bean
+	public ProducerFactory<String, byte[]> streamingProducerFactory() {
+		Map<String, Object> props = producerProps();
+		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+		props.put(ProducerConfig.LINGER_MS_CONFIG, streamLingerMs);
+		props.put(ProducerConfig.BATCH_SIZE_CONFIG, streamBatchSize);
+		props.put(ProducerConfig.BUFFER_MEMORY_CONFIG, streamBufferMemory);
+		return new DefaultKafkaProducerFactory<>(props);
+	}
+
+	@Bean
+	public KafkaTemplate<String, byte[]> streamingKafkaTemplate() {
+		return new KafkaTemplate<>(streamingProducerFactory());
+	}
+
+	private Map<String, Object> producerProps() {
 		Map<String, Object> props = new HashMap<>();
 		props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
 		props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
 		props.put(ProducerConfig.ACKS_CONFIG, "all");
 		props.put(ProducerConfig.LINGER_MS_CONFIG, 10);
 		props.put(ProducerConfig.BATCH_SIZE_CONFIG, 128 * 1024);
@@ -41,29 +107,35 @@ public class KafkaConfig {
 		props.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
 		props.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, 5);
 		props.put(ProducerConfig.RETRIES_CONFIG, Integer.MAX_VALUE);
-		DefaultKafkaProducerFactory<String, String> factory = new DefaultKafkaProducerFactory<>(props);
-		factory.setTransactionIdPrefix("tx-clickhouse-");
-		return factory;
+		return props;
 	}
 
 	@Bean
-	public KafkaTemplate<String, String> kafkaTemplate() {
-		return new KafkaTemplate<>(producerFactory());
+	public ConsumerFactory<String, String> consumerFactory() {
+		Map<String, Object> props = consumerProps();
+		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+		return new DefaultKafkaConsumerFactory<>(props);
 	}
 
+	// Raw record values: consumers decode JSON or binary Kavach packets themselves (KavachPacketCodec)
 	@Bean
-	public ConsumerFactory<String, String> consumerFactory() {
+	public ConsumerFactory<String, byte[]> bytesConsumerFactory() {
+		Map<String, Object> props = consumerProps();
+		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+		return new DefaultKafkaConsumerFactory<>(props);
+	}
+
+	private Map<String, Object> consumerProps() {
 		Map<String, Object> props = new HashMap<>();
 		props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
 		props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
 		props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
 		props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
 		props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, OffsetResetStrategy.EARLIEST.toString().toLowerCase());
-		props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 6000);
+		props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
 		props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, 1024 * 1024);
 		props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, 500);
-		return new DefaultKafkaConsumerFactory<>(props);
+		return props;
 	}
 
 	@Bean
@@ -72,7 +144,19 @@ public class KafkaConfig {
 		factory.setConsumerFactory(consumerFactory());
 		factory.setBatchListener(true);
 		factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
-		factory.setConcurrency(2);
+		factory.getContainerProperties().setIdleEventInterval(idleEventIntervalMs);
+		factory.setConcurrency(concurrency);
+		return factory;
+	}
+
+	@Bean
+	public ConcurrentKafkaListenerContainerFactory<String, byte[]> bytesKafkaListenerContainerFactory() {
+		ConcurrentKafkaListenerContainerFactory<String, byte[]> factory = new ConcurrentKafkaListenerContainerFactory<>();
+		factory.setConsumerFactory(bytesConsumerFactory());
+		factory.setBatchListener(true);
+		factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+		factory.getContainerProperties().setIdleEventInterval(idleEventIntervalMs);
+		factory.setConcurrency(concurrency);
 		return factory;
 	}
 }
@@ -1,11 +1,15 @@
 package com.example.config;
 
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelOption;
 import io.netty.handler.timeout.ReadTimeoutHandler;
 import io.netty.handler.timeout.WriteTimeoutHandler;
+import com.example.service.ClickHouseRequestLimiter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.netty.http.client.HttpClient;
@@ -19,13 +23,28 @@ public class OptimizedWebClientConfig {
     
     @Value("${clickhouse.url}")
     private String clickhouseUrl;
+
+    @Value("${clickhouse.http.max-connections:8}")
+    private int maxConnections;
+
+    @Value("${clickhouse.http.pending-acquire-max-count:256}")
+    private int pendingAcquireMaxCount;
     
+    /**
+     * Pooled Netty buffers for request bodies; the reactor-netty connector writes them to the
+     * channel without copying and releases them once flushed.
+     */
+    @Bean
+    public DataBufferFactory pooledDataBufferFactory() {
+        return new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+    }
+
     @Bean
-    public WebClient optimizedClickHouseClient() {
+    public WebClient optimizedClickHouseClient(ClickHouseRequestLimiter requestLimiter) {
         // Balanced connection pool for streaming and inserts
         ConnectionProvider connectionProvider = ConnectionProvider.builder("clickhouse-pool")
-            .maxConnections(8)  // Conservative for stability
-            .pendingAcquireMaxCount(256) // Reasonable queue
+            .maxConnections(maxConnections)  // Conservative for stability
+            .pendingAcquireMaxCount(pendingAcquireMaxCount) // Reasonable queue
             .maxIdleTime(Duration.ofMinutes(5)) // 5 minute idle timeout
             .maxLifeTime(Duration.ofMinutes(10)) // 10 minute connection lifetime
             .pendingAcquireTimeout(Duration.ofSeconds(30)) // Longer acquire timeout
@@ -53,6 +72,7 @@ public class OptimizedWebClientConfig {
         return WebClient.builder()
                 .baseUrl(clickhouseUrl)
                 .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .filter(requestLimiter) // adaptive in-flight limit per insert/query
                 .codecs(configurer -> {
                     configurer.defaultCodecs().maxInMemorySize(1024 * 1024); // 1MB buffer to prevent memory issues
                     configurer.defaultCodecs().enableLoggingRequestDetails(false);
@@ -0,0 +1,132 @@
+package com.example.service;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kafka consumer that accumulates rows across polls (kafka.consumer.mode=accumulating).
+ *
+ * Rows from every poll go into one {@link CoalescingInsertBuffer}, which sends an INSERT when
+ * kafka.consumer.accumulator.max-rows or max-bytes is reached, or when the oldest row has waited
+ * linger-ms. A quiet topic therefore still produces inserts of a useful size (bounded by the linger
+ * time) and a busy one is no longer cut at a single poll, so the number of parts ClickHouse has to
+ * merge stays low whatever the producer's rate. Rows are encoded in the table's insert format and
+ * accumulated per partition of the table, so each INSERT writes a single part. Values are read as
+ * bytes and decoded with {@link KavachPacketCodec} (JSON or binary packets).
+ *
+ * A poll's offsets are acknowledged, in poll order, only after every block holding its rows has
+ * been flushed; insert failures rewind to the committed offsets as in the pipelined consumer,
+ * from the next batch or, on a quiet topic, from the container's idle event.
+ *
+ * A full accumulator makes the listener wait, but at most kafka.consumer.max-listener-wait-ms for
+ * the whole poll: the rows submitted by then are tracked without acknowledging the poll, and the
+ * partitions are sought back to the first record not submitted, which the next poll returns. A
+ * rewind waits for outstanding flushes for the same bounded time before it seeks back.
+ */
+@Service
+@ConditionalOnProperty(name = "kafka.consumer.mode", havingValue = "accumulating")
+public class AccumulatingKafkaConsumerService implements KafkaInsertBacklog {
+
+	private final ClickHouseBulkInsertService clickHouseBulkInsertService;
+	private final CoalescingInsertBuffer accumulator;
+	private final InsertFormat format;
+	private final int queueCapacity;
+	private final KavachPacketCodec codec;
+	private final long maxListenerWaitMs;
+	private final ThreadLocal<OrderedAcknowledgments> acks = ThreadLocal.withInitial(OrderedAcknowledgments::new);
+
+	public AccumulatingKafkaConsumerService(ClickHouseBulkInsertService clickHouseBulkInsertService,
+	                                        KavachPacketCodec codec,
+	                                        @Value("${kafka.consumer.accumulator.max-rows:100000}") int maxRows,
+	                                        @Value("${kafka.consumer.accumulator.max-bytes:33554432}") long maxBytes,
+	                                        @Value("${kafka.consumer.accumulator.linger-ms:1000}") long lingerMs,
+	                                        @Value("${kafka.consumer.accumulator.queue-capacity:200000}") int queueCapacity,
+	                                        @Value("${kafka.consumer.accumulator.max-in-flight:2}") int maxInFlight,
+	                                        @Value("${kafka.consumer.max-listener-wait-ms:60000}") long maxListenerWaitMs) {
+		this.clickHouseBulkInsertService = clickHouseBulkInsertService;
+		this.codec = codec;
+		this.maxListenerWaitMs = maxListenerWaitMs;
+		this.format = clickHouseBulkInsertService.formatFor(clickHouseBulkInsertService.table());
+		this.queueCapacity = queueCapacity;
+		CoalescingInsertBuffer.Policy policy = new CoalescingInsertBuffer.Policy(
+			maxRows, maxBytes, Duration.ofMillis(lingerMs), queueCapacity, maxInFlight);
+		this.accumulator = new CoalescingInsertBuffer("kafka-accumulator", policy,
+			(rows, bytes) -> clickHouseBulkInsertService.insertEncodedAsync(format, rows));
+	}
+
+	@KafkaListener(topics = "${kafka.topic:clickhouse-input}", containerFactory = "bytesKafkaListenerContainerFactory")
+	public void onBatch(List<ConsumerRecord<String, byte[]>> records, Acknowledgment ack, Consumer<?, ?> consumer)
+			throws InterruptedException {
+		OrderedAcknowledgments pending = acks.get();
+		if (pending.failed()) {
+			pending.rewind(consumer, Duration.ofMillis(maxListenerWaitMs));
+			return;
+		}
+		if (records == null || records.isEmpty()) {
+			return;
+		}
+
+		String table = clickHouseBulkInsertService.table();
+		PartitionKeyExtractor partitionKey = clickHouseBulkInsertService.partitionKeyFor(table);
+		List<CompletableFuture<Void>> flushed = new ArrayList<>(records.size());
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxListenerWaitMs);
+		for (int i = 0; i < records.size(); i++) {
+			Map<String, Object> row;
+			try {
+				row = codec.toMap(records.get(i).value());
+			} catch (Exception ignored) {
+				continue;
+			}
+			// Waits while the accumulator is full, which stops polling
+			CompletableFuture<Void> submitted = accumulator.offer(clickHouseBulkInsertService.encodeRow(table, row),
+				partitionKey.keyOf(row), Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+			if (submitted == null) {
+				System.err.println("Accumulator still full after " + maxListenerWaitMs + " ms; polling "
+					+ (records.size() - i) + " records again");
+				// The submitted rows still count for the ordering of later acknowledgments
+				pending.add(CompletableFuture.allOf(flushed.toArray(new CompletableFuture[0])), () -> { });
+				OrderedAcknowledgments.redeliver(consumer, records.subList(i, records.size()));
+				return;
+			}
+			flushed.add(submitted);
+		}
+		pending.add(CompletableFuture.allOf(flushed.toArray(new CompletableFuture[0])), ack);
+	}
+
+	@EventListener
+	public void onIdle(ListenerContainerIdleEvent event) throws InterruptedException {
+		OrderedAcknowledgments pending = acks.get();
+		if (pending.failed()) {
+			pending.rewind(event.getConsumer(), Duration.ofMillis(maxListenerWaitMs));
+		}
+	}
+
+	@Override
+	public double insertQueueFill() {
+		return accumulator.queuedRows() / (double) queueCapacity;
+	}
+
+	public Map<String, Object> stats() {
+		return accumulator.stats();
+	}
+
+	@PreDestroy
+	public void close() {
+		accumulator.close();
+	}
+}
@@ -0,0 +1,257 @@
+package com.example.service;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AIMD concurrency limiter driven by ClickHouse response latency and overload errors.
+ *
+ * The limit grows by about one per limit's worth of successful requests while the pipe is
+ * actually used (in-flight at least half the limit), and is cut by backoffRatio when ClickHouse
+ * signals overload: a 5xx, TOO_MANY_PARTS / MEMORY_LIMIT_EXCEEDED style exception codes, a
+ * connection failure, or a short-term latency average above latencyTolerance times the long-term
+ * one. Decreases happen at most once per smoothed RTT, so one burst of errors from requests
+ * that were already in flight counts as a single congestion event.
+ *
+ * Callers that find no free permit wait in FIFO order; acquiring never blocks a thread.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    public static class Settings {
+        public final int initialLimit;
+        public final int minLimit;
+        public final int maxLimit;
+        public final double backoffRatio;
+        public final double latencyTolerance;
+        public final int maxWaiting;
+
+        public Settings(int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+                        double latencyTolerance, int maxWaiting) {
+            if (minLimit <= 0 || maxLimit < minLimit || backoffRatio <= 0 || backoffRatio >= 1 || latencyTolerance < 1) {
+                throw new IllegalArgumentException("Invalid concurrency limiter settings");
+            }
+            this.initialLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.backoffRatio = backoffRatio;
+            this.latencyTolerance = latencyTolerance;
+            this.maxWaiting = maxWaiting;
+        }
+    }
+
+    /**
+     * One acquired slot. The outcome is recorded once (normally when response headers arrive)
+     * and the slot is released once (when the response body has been consumed); repeated calls
+     * are ignored.
+     */
+    public final class Permit {
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean recorded = new AtomicBoolean();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        public void success() {
+            if (recorded.compareAndSet(false, true)) {
+                onSample(System.nanoTime() - startNanos, null);
+            }
+        }
+
+        public void overload(String reason) {
+            if (recorded.compareAndSet(false, true)) {
+                onSample(System.nanoTime() - startNanos, reason);
+            }
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                AdaptiveConcurrencyLimiter.this.release();
+            }
+        }
+    }
+
+    // EWMA weights for the short-term and long-term latency averages
+    private static final double SHORT_ALPHA = 0.2;
+    private static final double LONG_ALPHA = 0.01;
+
+    private final String name;
+    private final Settings settings;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private volatile double limit;
+    private double shortRttNanos;
+    private double longRttNanos;
+    private long lastDecreaseNanos;
+
+    private final AtomicLong increases = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+    private final AtomicLong overloadSignals = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile String lastOverloadReason = "";
+
+    public AdaptiveConcurrencyLimiter(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        this.limit = settings.initialLimit;
+        this.lastDecreaseNanos = System.nanoTime();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int currentLimit() {
+        return (int) limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int waiting() {
+        return waiting.get();
+    }
+
+    /**
+     * Short-term average latency of successful requests, in milliseconds (0 before the first sample).
+     */
+    public synchronized double shortRttMillis() {
+        return shortRttNanos / 1_000_000.0;
+    }
+
+    /**
+     * Emits a permit once the request may proceed. Fails with {@link RejectedExecutionException}
+     * if maxWaiting callers are already queued.
+     */
+    public Mono<Permit> acquire() {
+        return Mono.create(sink -> {
+            if (tryAcquire()) {
+                sink.success(new Permit());
+                return;
+            }
+            if (waiting.incrementAndGet() > settings.maxWaiting) {
+                waiting.decrementAndGet();
+                rejected.incrementAndGet();
+                sink.error(new RejectedExecutionException("Concurrency limiter " + name + " queue is full"));
+                return;
+            }
+            Waiter waiter = new Waiter(sink);
+            waiters.add(waiter);
+            sink.onCancel(() -> {
+                // Whoever flips the flag first owns the waiter: cancel here, or the grant in drain()
+                if (waiter.done.compareAndSet(false, true)) {
+                    waiters.remove(waiter);
+                    waiting.decrementAndGet();
+                }
+            });
+            drain();
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("name", name);
+        m.put("limit", currentLimit());
+        m.put("inFlight", inFlight.get());
+        m.put("waiting", waiting.get());
+        synchronized (this) {
+            m.put("shortRttMs", shortRttNanos / 1_000_000.0);
+            m.put("longRttMs", longRttNanos / 1_000_000.0);
+        }
+        m.put("minLimit", settings.minLimit);
+        m.put("maxLimit", settings.maxLimit);
+        m.put("increases", increases.get());
+        m.put("decreases", decreases.get());
+        m.put("overloadSignals", overloadSignals.get());
+        m.put("rejected", rejected.get());
+        m.put("lastOverloadReason", lastOverloadReason);
+        return m;
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    // Hand free slots to queued callers; re-checks after each hand-off so no waiter is stranded
+    private void drain() {
+        while (!waiters.isEmpty() && tryAcquire()) {
+            Waiter waiter = waiters.poll();
+            if (waiter == null || !waiter.done.compareAndSet(false, true)) {
+                // Queue emptied or the waiter was cancelled: give the slot back and look again
+                inFlight.decrementAndGet();
+                continue;
+            }
+            waiting.decrementAndGet();
+            waiter.sink.success(new Permit());
+        }
+    }
+
+    private static final class Waiter {
+        final MonoSink<Permit> sink;
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Waiter(MonoSink<Permit> sink) {
+            this.sink = sink;
+        }
+    }
+
+    private synchronized void onSample(long rttNanos, String overloadReason) {
+        long now = System.nanoTime();
+        boolean overload = overloadReason != null;
+        if (!overload) {
+            if (longRttNanos == 0) {
+                shortRttNanos = rttNanos;
+                longRttNanos = rttNanos;
+            } else {
+                shortRttNanos += SHORT_ALPHA * (rttNanos - shortRttNanos);
+                longRttNanos += LONG_ALPHA * (rttNanos - longRttNanos);
+            }
+            if (shortRttNanos > settings.latencyTolerance * longRttNanos) {
+                overload = true;
+                overloadReason = "latency";
+            }
+        }
+
+        if (overload) {
+            overloadSignals.incrementAndGet();
+            lastOverloadReason = overloadReason;
+            // One decrease per congestion event: ignore further signals within one smoothed RTT
+            if (now - lastDecreaseNanos >= Math.max(shortRttNanos, 1_000_000L)) {
+                double reduced = Math.max(settings.minLimit, limit * settings.backoffRatio);
+                if (reduced < limit) {
+                    limit = reduced;
+                    decreases.incrementAndGet();
+                }
+                lastDecreaseNanos = now;
+            }
+        } else if (inFlight.get() * 2 >= (int) limit && limit < settings.maxLimit) {
+            int before = (int) limit;
+            limit = Math.min(settings.maxLimit, limit + 1.0 / limit);
+            if ((int) limit > before) {
+                increases.incrementAndGet();
+            }
+        }
+        // Newly allowed slots are handed out by release(), outside this lock
+    }
+}
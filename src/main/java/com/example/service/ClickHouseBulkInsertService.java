@@ -1,22 +1,62 @@
 package com.example.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class ClickHouseBulkInsertService {
 
+	private static final NettyDataBufferFactory SCRATCH_FACTORY = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+
 	private final WebClient webClient;
+	private final ClickHouseTableSchemaService schemaService;
+	private final InsertBodyWriter bodyWriter;
+	private final InsertCompressionService compressionService;
+	private final Environment environment;
+	private final InsertSpool spool;
+	private final Map<String, RowBinaryEncoder> encoders = new ConcurrentHashMap<>();
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ThreadLocal<DataBuffer> scratch = ThreadLocal.withInitial(() -> SCRATCH_FACTORY.allocateBuffer(4096));
+	private final Map<String, PartitionKeyExtractor> partitionKeys = new ConcurrentHashMap<>();
+	private final Map<String, Long> partitionKeyRetryAt = new ConcurrentHashMap<>();
+	private final AtomicLong partitionedInserts = new AtomicLong();
+	private final AtomicLong partsCreated = new AtomicLong();
+	private final AtomicLong maxPartsPerInsert = new AtomicLong();
+	private final AtomicLong unknownPartsInserts = new AtomicLong();
 
-	public ClickHouseBulkInsertService(WebClient optimizedClickHouseClient) {
+	public ClickHouseBulkInsertService(WebClient optimizedClickHouseClient,
+	                                   ClickHouseTableSchemaService schemaService,
+	                                   InsertBodyWriter bodyWriter,
+	                                   InsertCompressionService compressionService,
+	                                   Environment environment,
+	                                   InsertSpool spool) {
 		this.webClient = optimizedClickHouseClient;
+		this.schemaService = schemaService;
+		this.bodyWriter = bodyWriter;
+		this.compressionService = compressionService;
+		this.environment = environment;
+		this.spool = spool;
 	}
 
 	@Value("${clickhouse.username}")
@@ -31,35 +71,260 @@ public class ClickHouseBulkInsertService {
 	@Value("${clickhouse.table}")
 	private String table;
 
-	public void insertJsonEachRow(List<Map<String, Object>> rows) throws Exception {
-		if (rows == null || rows.isEmpty()) {
+	// Default wire format; override per table with clickhouse.insert.format.<table>=RowBinary
+	@Value("${clickhouse.insert.format:JSONEachRow}")
+	private String defaultFormat;
+
+	public InsertFormat formatFor(String targetTable) {
+		return InsertFormat.parse(environment.getProperty("clickhouse.insert.format." + targetTable, defaultFormat));
+	}
+
+	/**
+	 * Encoder compiled from the live table schema; cached for the lifetime of the service.
+	 * Blocks the first time it is called for a table, so reactive code uses {@link #encoder(String)}.
+	 */
+	public RowBinaryEncoder encoderFor(String targetTable) {
+		RowBinaryEncoder encoder = encoders.get(targetTable);
+		return encoder != null ? encoder : encoder(targetTable).block();
+	}
+
+	/**
+	 * Non-blocking {@link #encoderFor(String)}.
+	 */
+	public Mono<RowBinaryEncoder> encoder(String targetTable) {
+		RowBinaryEncoder encoder = encoders.get(targetTable);
+		if (encoder != null) {
+			return Mono.just(encoder);
+		}
+		return schemaService.schema(targetTable)
+			.map(schema -> encoders.computeIfAbsent(targetTable, t -> RowBinaryEncoder.forSchema(schema)));
+	}
+
+	// The partition key is read with the schema when the application starts
+	@PostConstruct
+	public void loadPartitionKey() {
+		partitionKeyFor(table);
+	}
+
+	// So is the RowBinary encoder; a failure here is retried by the first insert
+	@PostConstruct
+	public void loadEncoder() {
+		if (formatFor(table) == InsertFormat.ROW_BINARY) {
+			encoder(table).subscribe(
+				encoder -> { },
+				e -> System.err.println("RowBinary encoder of " + table + " not loaded, retrying on first insert: " + e.getMessage()));
+		}
+	}
+
+	/**
+	 * Evaluator of the table's PARTITION BY expression. Never blocks: until the schema has been
+	 * loaded (in the background, retried every 30 s after a failure) rows are treated as unpartitioned.
+	 */
+	public PartitionKeyExtractor partitionKeyFor(String targetTable) {
+		PartitionKeyExtractor extractor = partitionKeys.get(targetTable);
+		if (extractor != null) {
+			return extractor;
+		}
+		long now = System.currentTimeMillis();
+		long retryAt = now + 30_000;
+		if (partitionKeyRetryAt.merge(targetTable, retryAt, (at, next) -> now >= at ? next : at) == retryAt) {
+			schemaService.schema(targetTable).subscribe(
+				schema -> partitionKeys.put(targetTable, PartitionKeyExtractor.forSchema(schema)),
+				e -> System.err.println("Partition key of " + targetTable + " not loaded, retrying later: " + e.getMessage()));
+		}
+		return PartitionKeyExtractor.unpartitioned();
+	}
+
+	/**
+	 * The rows reordered so each partition of the table is contiguous; chunks cut from the result
+	 * then touch as few partitions as possible.
+	 */
+	public List<Map<String, Object>> groupByPartition(String targetTable, List<Map<String, Object>> rows) {
+		return partitionKeyFor(targetTable).groupRows(rows);
+	}
+
+	/**
+	 * Parts created per insert on the configured table: one per distinct partition in the batch.
+	 */
+	public Map<String, Object> partsStats() {
+		Map<String, Object> m = new LinkedHashMap<>();
+		PartitionKeyExtractor extractor = partitionKeys.get(table);
+		m.put("table", table);
+		m.put("partitionKey", extractor == null ? "(not loaded)" : extractor.expression());
+		m.put("evaluated", extractor != null && extractor.partitioned());
+		long inserts = partitionedInserts.get();
+		m.put("inserts", inserts);
+		m.put("partsCreated", partsCreated.get());
+		m.put("avgPartsPerInsert", inserts == 0 ? 0.0 : (double) partsCreated.get() / inserts);
+		m.put("maxPartsPerInsert", maxPartsPerInsert.get());
+		m.put("insertsWithUnknownPartitions", unknownPartsInserts.get());
+		return m;
+	}
+
+	private void recordParts(List<Map<String, Object>> rows) {
+		int parts = partitionKeyFor(table).partitionCount(rows);
+		if (parts < 0) {
+			unknownPartsInserts.incrementAndGet();
 			return;
 		}
+		partitionedInserts.incrementAndGet();
+		partsCreated.addAndGet(parts);
+		maxPartsPerInsert.accumulateAndGet(parts, Math::max);
+	}
+
+	/**
+	 * Insert rows into the configured table using the format selected for that table.
+	 * With spool.enabled the batch is written to the local spool instead when ClickHouse is
+	 * unavailable, or when earlier batches are still waiting there (to keep their order).
+	 */
+	public void insert(List<Map<String, Object>> rows) throws Exception {
+		insertAsync(rows).block();
+	}
 
-		StringBuilder payload = new StringBuilder();
-		for (Map<String, Object> row : rows) {
-			// Each line must be a JSON object; rely on ClickHouse server to parse
-			String json = new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(row);
-			payload.append(json).append("\n");
+	/**
+	 * Non-blocking {@link #insert(List)}: completes once ClickHouse has acknowledged the batch
+	 * (or it has been spooled).
+	 */
+	public Mono<Void> insertAsync(List<Map<String, Object>> rows) {
+		if (rows == null || rows.isEmpty()) {
+			return Mono.empty();
 		}
+		recordParts(rows);
+		InsertFormat format = formatFor(table);
+		MediaType contentType = format == InsertFormat.ROW_BINARY ? MediaType.APPLICATION_OCTET_STREAM : MediaType.APPLICATION_JSON;
+		return targetPath(format).flatMap(targetPath -> spool.sendOrSpool(targetPath, contentType,
+			() -> bodyWriter.toBytes(body(rows, format)),
+			() -> post(targetPath, contentType, body(rows, format))));
+	}
+
+	/**
+	 * JSONEachRow insert of rows that are already serialized; the byte arrays are sent as they are
+	 * (wrapped, not copied), so the caller supplies the newline separators.
+	 */
+	public Mono<Void> insertJsonLinesAsync(List<byte[]> lines) {
+		return insertEncodedAsync(InsertFormat.JSON_EACH_ROW, lines);
+	}
 
-		String targetPath = UriComponentsBuilder.fromPath("/")
-			.queryParam("query", "INSERT INTO " + database + "." + table + " FORMAT JSONEachRow")
+	/**
+	 * Insert rows produced by {@link #encodeRow(String, Map)} (or anything else already in the given
+	 * format) into the configured table; the arrays are concatenated as they are.
+	 */
+	public Mono<Void> insertEncodedAsync(InsertFormat format, List<byte[]> rows) {
+		if (rows == null || rows.isEmpty()) {
+			return Mono.empty();
+		}
+		MediaType contentType = format == InsertFormat.ROW_BINARY ? MediaType.APPLICATION_OCTET_STREAM : MediaType.APPLICATION_JSON;
+		return targetPath(format).flatMap(targetPath -> spool.sendOrSpool(targetPath, contentType,
+			() -> InsertSpool.concat(rows),
+			() -> post(targetPath, contentType, bodyWriter.encodedRows(rows))));
+	}
+
+	/**
+	 * Insert the first length bytes of a block of rows already in the given format, e.g. rows
+	 * concatenated by {@link InsertRingBuffer}. The array is only read until the Mono completes.
+	 */
+	public Mono<Void> insertBlockAsync(InsertFormat format, byte[] block, int length) {
+		if (length == 0) {
+			return Mono.empty();
+		}
+		MediaType contentType = format == InsertFormat.ROW_BINARY ? MediaType.APPLICATION_OCTET_STREAM : MediaType.APPLICATION_JSON;
+		return targetPath(format).flatMap(targetPath -> spool.sendOrSpool(targetPath, contentType,
+			() -> Arrays.copyOf(block, length),
+			() -> post(targetPath, contentType,
+				Flux.defer(() -> Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(ByteBuffer.wrap(block, 0, length)))))));
+	}
+
+	/**
+	 * One row in the wire format of the given table: a newline-terminated JSON object or a RowBinary row.
+	 */
+	public byte[] encodeRow(String targetTable, Map<String, Object> row) {
+		DataBuffer buf = scratch.get();
+		buf.readPosition(0);
+		buf.writePosition(0);
+		encodeRowTo(targetTable, row, buf);
+		byte[] encoded = new byte[buf.readableByteCount()];
+		buf.read(encoded);
+		return encoded;
+	}
+
+	/**
+	 * {@link #encodeRow(String, Map)} written into the given buffer instead of a new array.
+	 */
+	public void encodeRowTo(String targetTable, Map<String, Object> row, DataBuffer out) {
+		try {
+			if (formatFor(targetTable) == InsertFormat.ROW_BINARY) {
+				encoderFor(targetTable).encode(row, out);
+				return;
+			}
+			objectMapper.writeValue(out.asOutputStream(), row);
+			out.write((byte) '\n');
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to encode record for table " + targetTable, e);
+		}
+	}
+
+	public String table() {
+		return table;
+	}
+
+	// Only called once targetPath(format) has loaded the encoder, so encoderFor does not block
+	private Flux<DataBuffer> body(List<Map<String, Object>> rows, InsertFormat format) {
+		return format == InsertFormat.ROW_BINARY
+			? bodyWriter.rowBinary(Flux.fromIterable(rows), encoderFor(table))
+			: bodyWriter.jsonEachRow(Flux.fromIterable(rows));
+	}
+
+	// Loads the RowBinary encoder without blocking: inserts are also started from reactor-netty threads
+	private Mono<String> targetPath(InsertFormat format) {
+		if (format != InsertFormat.ROW_BINARY) {
+			return Mono.just(targetPath(format, null));
+		}
+		return encoder(table).map(encoder -> targetPath(format, encoder));
+	}
+
+	private String targetPath(InsertFormat format, RowBinaryEncoder encoder) {
+		String columns = encoder != null ? encoder.columnList() + " " : "";
+		String formatName = encoder != null ? encoder.formatName() : format.clickHouseName;
+		return UriComponentsBuilder.fromPath("/")
+			.queryParam("query", "INSERT INTO " + database + "." + table + " " + columns + "FORMAT " + formatName)
 			.queryParam("async_insert", "0")
 			.build(false)
 			.toUriString();
+	}
 
-		Mono<Void> call = webClient.post()
-			.uri(targetPath)
-			.headers(h -> h.setBasicAuth(username, password))
-			.contentType(MediaType.APPLICATION_JSON)
-			.bodyValue(payload.toString())
-			.retrieve()
-			.toBodilessEntity()
-			.then();
-
-		call.block();
+	private Mono<Void> post(String targetPath, MediaType contentType, Flux<DataBuffer> rows) {
+		return Mono.defer(() -> {
+			// Rows are serialized into pooled buffers chunk by chunk while the request is written
+			InsertCompressionService.CompressedBody body = compressionService.compress("bulk", rows);
+			return webClient.post()
+				.uri(targetPath)
+				.attribute(ClickHouseRequestLimiter.INSERT_PATH, "bulk")
+				.headers(h -> {
+					h.setBasicAuth(username, password);
+					body.applyTo(h);
+				})
+				.contentType(contentType)
+				.body(BodyInserters.fromDataBuffers(body.body))
+				.retrieve()
+				.toBodilessEntity()
+				.then();
+		});
 	}
-}
 
+	public void insertJsonEachRow(List<Map<String, Object>> rows) throws Exception {
+		if (rows == null || rows.isEmpty()) {
+			return;
+		}
+		post(targetPath(InsertFormat.JSON_EACH_ROW, null), MediaType.APPLICATION_JSON,
+			bodyWriter.jsonEachRow(Flux.fromIterable(rows))).block();
+	}
 
+	public void insertRowBinary(List<Map<String, Object>> rows) {
+		if (rows == null || rows.isEmpty()) {
+			return;
+		}
+		RowBinaryEncoder encoder = encoderFor(table);
+		post(targetPath(InsertFormat.ROW_BINARY, encoder), MediaType.APPLICATION_OCTET_STREAM,
+			bodyWriter.rowBinary(Flux.fromIterable(rows), encoder)).block();
+	}
+}
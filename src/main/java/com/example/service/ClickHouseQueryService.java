@@ -115,6 +115,64 @@ public class ClickHouseQueryService {
                 });
 	}
 
+    /**
+     * Keyset-paginated packets: the page after the given cursor (the first page when null),
+     * read with a range predicate instead of OFFSET. See {@link PacketPageCursor}.
+     */
+    public Mono<PacketPageCursor.Page> fetchPacketsPage(LocalDateTime from,
+                                                        LocalDateTime to,
+                                                        String subPktType,
+                                                        int limit,
+                                                        PacketPageCursor after) {
+        String type = (subPktType == null || subPktType.isBlank()) ? null : subPktType.trim();
+        if (type != null && !type.matches("\\d{4}")) {
+            return Mono.error(new IllegalArgumentException("sub_pkt_type must be 4 digits"));
+        }
+
+        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ")
+            .append("t.message_date, t.message_time, t.stationary_kavach_id, t.message_sequence, ")
+            .append("t.nms_system_id, t.system_version, t.packet_name, t.sender_identifier, ")
+            .append("t.receiver_identifier, t.packet_message_length, t.frame_number, t.packet_message_sequence, ")
+            .append("t.border_rfid_tag, t.onboard_kavach_identity, t.sub_pkt_type, t.sub_pkt_len_ma, ")
+            .append("t.frame_offset, t.dst_loco_sos, t.train_section_type, t.line_number, t.line_name, ")
+            .append("t.type_of_signal, t.signal_ov, t.stop_signal, t.current_sig_aspect, t.next_sig_aspect, ")
+            .append("t.authority_type, t.approaching_signal_distance, t.authorized_speed, t.ma_wrt_sig, ")
+            .append("t.req_shorten_ma, t.new_ma, t.train_length_info_sts, t.trn_len_info_type, ")
+            .append("t.ref_frame_num_tlm, t.ref_offset_int_tlm, t.next_stn_comm, t.appr_stn_ilc_ibs_id, ")
+            .append("t.mac_code, t.crc, ").append(PacketPageCursor.SELECT_COLUMNS).append(' ')
+            .append("FROM ").append(database).append(".").append(table).append(" AS t ")
+            .append("PREWHERE t.message_datetime >= '").append(from.format(fmt)).append("' ")
+            .append("AND t.message_datetime < '").append(to.format(fmt)).append("' ");
+        if (type != null) {
+            sql.append("AND t.sub_pkt_type = '").append(type).append("' ");
+        }
+        if (after != null) {
+            String dt = quote(after.messageDatetime);
+            String id = quote(after.stationaryKavachId);
+            // The plain bound lets the primary key skip everything above the cursor
+            sql.append("AND t.message_datetime <= ").append(dt).append(' ')
+                .append("WHERE t.message_datetime < ").append(dt)
+                .append(" OR (t.message_datetime = ").append(dt)
+                .append(" AND (t.stationary_kavach_id < ").append(id)
+                .append(" OR (t.stationary_kavach_id = ").append(id)
+                .append(" AND t.message_sequence < ").append(quote(after.messageSequence)).append("))) ");
+        }
+        sql.append("ORDER BY ").append(PacketPageCursor.ORDER_BY).append(' ')
+            .append("LIMIT ").append(limit + 1).append(' ')
+            .append("FORMAT JSONEachRow");
+
+        return JsonRowDecoder.eachRow(streamSelect(sql.toString()))
+            .collectList()
+            .map(rows -> PacketPageCursor.page(rows, limit));
+    }
+
+    // ClickHouse string literal
+    private static String quote(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
     public Mono<Boolean> fetchPacketsNoData(LocalDateTime from,
                                             LocalDateTime to,
                                             String subPktType,
@@ -217,6 +275,84 @@ public class ClickHouseQueryService {
                 .reduce(0L, Long::sum);
     }
 
+    /**
+     * The packets as ClickHouse's JSONEachRow body, one JSON object per line, passed through
+     * buffer by buffer without being parsed or collected. The caller owns (and must write or
+     * release) each buffer; request demand is what reads the next one from the ClickHouse
+     * connection, so a slow consumer throttles the query instead of filling the heap.
+     * Cancelling the subscription closes the connection, which cancels the query.
+     */
+    public reactor.core.publisher.Flux<DataBuffer> streamPacketsNdjson(LocalDateTime from,
+                                                                      LocalDateTime to,
+                                                                      String subPktType,
+                                                                      Integer limit,
+                                                                      Integer offset) {
+        String type = (subPktType == null || subPktType.isBlank()) ? null : subPktType.trim();
+        if (type != null && !type.matches("\\d{4}")) {
+            return reactor.core.publisher.Flux.error(new IllegalArgumentException("sub_pkt_type must be 4 digits"));
+        }
+
+        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        return streamSelect(buildSelectSqlJsonEachRow(from.format(fmt), to.format(fmt), type, limit, offset));
+    }
+
+    /**
+     * The packets as RowBinaryWithNamesAndTypes, decoded into primitive column batches of up to
+     * batchRows rows while the response streams in. Numbers and dates travel as binary, so
+     * ClickHouse formats no text and nothing is parsed back.
+     */
+    public reactor.core.publisher.Flux<RowBinaryColumnReader.Batch> streamPacketColumns(LocalDateTime from,
+                                                                                       LocalDateTime to,
+                                                                                       String subPktType,
+                                                                                       Integer limit,
+                                                                                       Integer offset,
+                                                                                       int batchRows) {
+        String type = (subPktType == null || subPktType.isBlank()) ? null : subPktType.trim();
+        if (type != null && !type.matches("\\d{4}")) {
+            return reactor.core.publisher.Flux.error(new IllegalArgumentException("sub_pkt_type must be 4 digits"));
+        }
+
+        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        String sql = buildSelectSqlFormat(from.format(fmt), to.format(fmt), type, limit, offset, "RowBinaryWithNamesAndTypes");
+        return RowBinaryColumnReader.read(streamSelect(sql), batchRows);
+    }
+
+    // Response body of a SELECT, buffer by buffer as it arrives; demand drives the reads
+    private reactor.core.publisher.Flux<DataBuffer> streamSelect(String sql) {
+        return webClient.post()
+                .uri(uriBuilder -> uriBuilder
+                    .path("/")
+                    .queryParam("max_execution_time", String.valueOf(MAX_EXECUTION_TIME))
+                    .queryParam("max_result_rows", "0")
+                    .queryParam("max_result_bytes", "0")
+                    .queryParam("cancel_http_readonly_queries_on_client_close", "1")
+                    .build())
+                .headers(h -> h.setBasicAuth(username, password))
+                .contentType(MediaType.TEXT_PLAIN)
+                .bodyValue(sql)
+                .exchangeToFlux(resp -> {
+                    if (resp.statusCode().is2xxSuccessful()) {
+                        return resp.bodyToFlux(DataBuffer.class);
+                    }
+                    return resp.bodyToMono(String.class)
+                        .flatMapMany(body -> reactor.core.publisher.Flux.error(new RuntimeException(
+                            "ClickHouse HTTP " + resp.statusCode().value() + ": " + body
+                        )));
+                });
+    }
+
+    /**
+     * The packets decoded row by row while the response streams in, for callers that filter or
+     * aggregate without holding the whole result.
+     */
+    public reactor.core.publisher.Flux<Map<String, Object>> streamPacketRows(LocalDateTime from,
+                                                                            LocalDateTime to,
+                                                                            String subPktType,
+                                                                            Integer limit,
+                                                                            Integer offset) {
+        return JsonRowDecoder.eachRow(streamPacketsNdjson(from, to, subPktType, limit, offset));
+    }
+
     public static class StreamStats {
         public final long bytesTransferred;
         public final long rowCount;
@@ -449,6 +585,10 @@ public class ClickHouseQueryService {
 	}
 
     private String buildSelectSqlJsonEachRow(String fromStr, String toStr, String type, Integer limit, Integer offset) {
+        return buildSelectSqlFormat(fromStr, toStr, type, limit, offset, "JSONEachRow");
+    }
+
+    private String buildSelectSqlFormat(String fromStr, String toStr, String type, Integer limit, Integer offset, String format) {
         StringBuilder sql = new StringBuilder();
         sql.append("SELECT ")
             .append("t.message_date, t.message_time, t.stationary_kavach_id, t.message_sequence, ")
@@ -475,7 +615,7 @@ public class ClickHouseQueryService {
             }
             sql.append(" ");
         }
-        sql.append("FORMAT JSONEachRow");
+        sql.append("FORMAT ").append(format);
         return sql.toString();
     }
 
@@ -736,41 +876,20 @@ public class ClickHouseQueryService {
         if (limit != null && limit > 0) {
             sql.append("LIMIT ").append(limit).append(' ');
         }
-        sql.append("FORMAT JSON");
+        sql.append("FORMAT JSONCompactEachRow");
 
-        return webClient.post()
-            .uri("/")
-            .headers(h -> h.setBasicAuth(username, password))
-            .contentType(MediaType.TEXT_PLAIN)
-            .bodyValue(sql.toString())
-            .retrieve()
-            .bodyToMono(String.class)
-            .map(json -> {
-                try {
-                    JsonNode root = mapper.readTree(json);
-                    JsonNode data = root.get("data");
-                    java.util.List<Object> values = new java.util.ArrayList<>();
-                    if (data != null && data.isArray()) {
-                        for (JsonNode row : data) {
-                            JsonNode v = row.get(column);
-                            if (v == null || v.isNull()) {
-                                values.add(null);
-                            } else if (v.isInt() || v.isLong()) {
-                                values.add(v.asLong());
-                            } else if (v.isFloat() || v.isDouble() || v.isBigDecimal()) {
-                                values.add(v.asDouble());
-                            } else if (v.isBoolean()) {
-                                values.add(v.asBoolean());
-                            } else {
-                                values.add(v.asText());
-                            }
-                        }
-                    }
-                    return values;
-                } catch (Exception e) {
-                    throw new RuntimeException("Failed to parse DISTINCT column response for " + column, e);
-                }
-            });
+        // Values are decoded as the rows arrive; only the distinct values themselves are kept
+        return JsonRowDecoder.compactEachRow(webClient.post()
+                .uri("/")
+                .headers(h -> h.setBasicAuth(username, password))
+                .contentType(MediaType.TEXT_PLAIN)
+                .bodyValue(sql.toString())
+                .retrieve()
+                .bodyToFlux(DataBuffer.class))
+            .collect(java.util.ArrayList<Object>::new, (values, row) -> values.add(row.get(0)))
+            .map(values -> (List<Object>) values)
+            .onErrorMap(e -> e instanceof java.io.UncheckedIOException || e instanceof IllegalStateException,
+                e -> new RuntimeException("Failed to parse DISTINCT column response for " + column, e));
     }
 
     private String buildSelectSqlFull(String fromStr, String toStr, String type) {
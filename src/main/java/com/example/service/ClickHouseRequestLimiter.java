@@ -0,0 +1,175 @@
+package com.example.service;
+
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WebClient filter that puts every ClickHouse HTTP call behind an {@link AdaptiveConcurrencyLimiter}.
+ *
+ * INSERT statements (query parameter starting with INSERT) and everything else use separate
+ * limiters, so a burst of inserts cannot starve reads and vice versa. The latency sample is
+ * taken when response headers arrive; the slot is held until the response body has been
+ * consumed, which keeps long streaming queries counted as in flight.
+ *
+ * Inserts are further split by the path that sends them, taken from the {@link #INSERT_PATH}
+ * request attribute (the same names as the compression routes: bulk, batch, individual,
+ * coalesced, routing, spool; "other" when unset). A single-row insert and a 100k-row batch have
+ * latencies orders of magnitude apart, so with one shared latency average the overload signal
+ * would follow the mix of batch sizes rather than the server's load; per path, each average
+ * compares like with like.
+ *
+ * Settings: clickhouse.limiter.enabled and clickhouse.limiter.&lt;insert|query&gt;.{initial-limit,
+ * min-limit, max-limit, backoff-ratio, latency-tolerance, max-waiting}, overridable per insert
+ * path as clickhouse.limiter.insert.&lt;path&gt;.*.
+ */
+@Component
+public class ClickHouseRequestLimiter implements ExchangeFilterFunction {
+
+    // ClickHouse error codes that mean "server is overloaded", not "request is wrong"
+    private static final Set<String> OVERLOAD_CODES = Set.of(
+            "252", // TOO_MANY_PARTS
+            "241", // MEMORY_LIMIT_EXCEEDED
+            "202", // TOO_MANY_SIMULTANEOUS_QUERIES
+            "159", // TIMEOUT_EXCEEDED
+            "209", // SOCKET_TIMEOUT
+            "236"  // ABORTED
+    );
+
+    /** Request attribute naming the insert path, e.g. {@code .attribute(INSERT_PATH, "bulk")}. */
+    public static final String INSERT_PATH = ClickHouseRequestLimiter.class.getName() + ".insertPath";
+
+    private static final String OTHER_PATH = "other";
+
+    private final boolean enabled;
+    private final Environment environment;
+    private final int connections;
+    private final Map<String, AdaptiveConcurrencyLimiter> insertLimiters = new ConcurrentHashMap<>();
+    private final AdaptiveConcurrencyLimiter queryLimiter;
+
+    public ClickHouseRequestLimiter(Environment environment) {
+        this.enabled = environment.getProperty("clickhouse.limiter.enabled", Boolean.class, true);
+        this.environment = environment;
+        this.connections = environment.getProperty("clickhouse.http.max-connections", Integer.class, 8);
+        this.queryLimiter = new AdaptiveConcurrencyLimiter("query", settings(environment, "query", null, connections));
+    }
+
+    private static AdaptiveConcurrencyLimiter.Settings settings(Environment env, String kind, String path, int connections) {
+        String prefix = "clickhouse.limiter." + kind + ".";
+        String override = path == null ? prefix : prefix + path + ".";
+        return new AdaptiveConcurrencyLimiter.Settings(
+                property(env, override, prefix, "initial-limit", Integer.class, connections),
+                property(env, override, prefix, "min-limit", Integer.class, 1),
+                property(env, override, prefix, "max-limit", Integer.class, connections * 4),
+                property(env, override, prefix, "backoff-ratio", Double.class, 0.9),
+                property(env, override, prefix, "latency-tolerance", Double.class, 2.0),
+                property(env, override, prefix, "max-waiting", Integer.class, 100000));
+    }
+
+    private static <T> T property(Environment env, String override, String prefix, String key, Class<T> type, T defaultValue) {
+        return env.getProperty(override + key, type, env.getProperty(prefix + key, type, defaultValue));
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+        if (!enabled) {
+            return next.exchange(request);
+        }
+        AdaptiveConcurrencyLimiter limiter = isInsert(request)
+                ? insertLimiter(request.attribute(INSERT_PATH).map(Object::toString).orElse(OTHER_PATH))
+                : queryLimiter;
+        return limiter.acquire().flatMap(permit -> next.exchange(request)
+                .map(response -> {
+                    String reason = overloadReason(response);
+                    if (reason != null) {
+                        permit.overload(reason);
+                    } else if (!response.statusCode().isError()) {
+                        permit.success();
+                    }
+                    // 4xx responses say nothing about server load: release without a sample
+                    return response.mutate()
+                            .body(body -> body.doFinally(signal -> permit.release()))
+                            .build();
+                })
+                .doOnError(err -> {
+                    permit.overload(err.getClass().getSimpleName());
+                    permit.release();
+                })
+                .doOnCancel(permit::release));
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", enabled);
+        Map<String, Object> inserts = new TreeMap<>();
+        insertLimiters.forEach((path, limiter) -> inserts.put(path, limiter.stats()));
+        m.put("insert", inserts);
+        m.put("query", queryLimiter.stats());
+        return m;
+    }
+
+    /**
+     * Limiter of one insert path, created on first use.
+     */
+    public AdaptiveConcurrencyLimiter insertLimiter(String path) {
+        return insertLimiters.computeIfAbsent(path,
+                p -> new AdaptiveConcurrencyLimiter("insert-" + p, settings(environment, "insert", p, connections)));
+    }
+
+    /**
+     * The insert limiters created so far, one per path that has sent an insert.
+     */
+    public Collection<AdaptiveConcurrencyLimiter> insertLimiters() {
+        return insertLimiters.values();
+    }
+
+    public AdaptiveConcurrencyLimiter queryLimiter() {
+        return queryLimiter;
+    }
+
+    /**
+     * True for ClickHouse exception codes that signal overload rather than a bad request.
+     */
+    public static boolean isOverloadCode(String code) {
+        return code != null && OVERLOAD_CODES.contains(code.trim());
+    }
+
+    private static String overloadReason(ClientResponse response) {
+        String code = response.headers().asHttpHeaders().getFirst("X-ClickHouse-Exception-Code");
+        if (code != null) {
+            // ClickHouse answers most errors with 500; only the codes above mean overload
+            return isOverloadCode(code) ? "clickhouse-" + code.trim() : null;
+        }
+        if (response.statusCode().is5xxServerError()) {
+            return "http-" + response.statusCode().value();
+        }
+        return null;
+    }
+
+    static boolean isInsert(ClientRequest request) {
+        String raw = request.url().getRawQuery();
+        if (raw == null) {
+            return false;
+        }
+        for (String param : raw.split("&")) {
+            if (param.startsWith("query=")) {
+                String sql = URLDecoder.decode(param.substring("query=".length()), StandardCharsets.UTF_8).stripLeading();
+                return sql.regionMatches(true, 0, "INSERT", 0, 6);
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads and caches table column definitions from ClickHouse (DESCRIBE TABLE) so that
+ * binary insert encoders can be compiled once per table instead of per batch, together with
+ * the table's partition key for grouping rows by partition.
+ */
+@Service
+public class ClickHouseTableSchemaService {
+
+	private final WebClient webClient;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final Map<String, Mono<TableSchema>> schemas = new ConcurrentHashMap<>();
+
+	@Value("${clickhouse.username}")
+	private String username;
+
+	@Value("${clickhouse.password}")
+	private String password;
+
+	@Value("${clickhouse.database}")
+	private String database;
+
+	public ClickHouseTableSchemaService(WebClient optimizedClickHouseClient) {
+		this.webClient = optimizedClickHouseClient;
+	}
+
+	public static class Column {
+		public final String name;
+		public final String type;
+		public final String defaultType; // DEFAULT, EPHEMERAL or "" (MATERIALIZED/ALIAS columns are not kept)
+
+		public Column(String name, String type) {
+			this(name, type, "");
+		}
+
+		public Column(String name, String type, String defaultType) {
+			this.name = name;
+			this.type = type;
+			this.defaultType = defaultType;
+		}
+
+		/**
+		 * Whether an omitted value is computed by an expression rather than being the type default.
+		 */
+		public boolean hasDefaultExpression() {
+			return !defaultType.isEmpty();
+		}
+	}
+
+	public static class TableSchema {
+		public final String table;
+		public final List<Column> columns; // insertable columns only, in table order
+		public final ZoneId serverTimeZone;
+		public final String partitionKey; // PARTITION BY expression from system.tables, "" if none
+
+		public TableSchema(String table, List<Column> columns, ZoneId serverTimeZone, String partitionKey) {
+			this.table = table;
+			this.columns = Collections.unmodifiableList(columns);
+			this.serverTimeZone = serverTimeZone;
+			this.partitionKey = partitionKey;
+		}
+	}
+
+	/**
+	 * Cached schema for a table in the configured database. A failed lookup is not cached.
+	 */
+	public Mono<TableSchema> schema(String table) {
+		return schemas.computeIfAbsent(table, t -> loadSchema(t)
+			.doOnError(e -> schemas.remove(t))
+			.cache());
+	}
+
+	public TableSchema getSchema(String table) {
+		return schema(table).block();
+	}
+
+	public void invalidate(String table) {
+		schemas.remove(table);
+	}
+
+	private Mono<TableSchema> loadSchema(String table) {
+		Mono<ZoneId> zone = query("SELECT timezone() FORMAT TabSeparated")
+			.map(s -> ZoneId.of(s.trim()));
+		Mono<List<Column>> columns = query("DESCRIBE TABLE " + database + "." + table + " FORMAT JSONEachRow")
+			.map(body -> {
+				List<Column> out = new ArrayList<>();
+				try {
+					for (String line : body.split("\n")) {
+						if (line.isBlank()) continue;
+						JsonNode node = mapper.readTree(line);
+						String defaultType = node.path("default_type").asText("");
+						// MATERIALIZED and ALIAS columns cannot be written by INSERT
+						if ("MATERIALIZED".equals(defaultType) || "ALIAS".equals(defaultType)) continue;
+						out.add(new Column(node.get("name").asText(), node.get("type").asText(), defaultType));
+					}
+				} catch (Exception e) {
+					throw new RuntimeException("Failed to parse DESCRIBE response for " + table, e);
+				}
+				if (out.isEmpty()) {
+					throw new IllegalStateException("Table " + database + "." + table + " has no insertable columns");
+				}
+				return out;
+			});
+		Mono<String> partitionKey = query("SELECT partition_key FROM system.tables WHERE database = '" + database
+				+ "' AND name = '" + table + "' FORMAT TabSeparated")
+			.map(String::trim)
+			.defaultIfEmpty("");
+		return Mono.zip(columns, zone, partitionKey).map(t -> new TableSchema(table, t.getT1(), t.getT2(), t.getT3()));
+	}
+
+	private Mono<String> query(String sql) {
+		return webClient.post()
+			.uri("/")
+			.headers(h -> h.setBasicAuth(username, password))
+			.contentType(MediaType.TEXT_PLAIN)
+			.bodyValue(sql)
+			.retrieve()
+			.bodyToMono(String.class);
+	}
+}
@@ -0,0 +1,291 @@
+package com.example.service;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side coalescing buffer for single-record inserts.
+ *
+ * Callers submit one pre-encoded row (a JSONEachRow line or a RowBinary row) and get a
+ * future that completes when the batch containing that row has been accepted by ClickHouse.
+ * A single flusher thread collects rows until maxRows, maxBytes or the linger time since the
+ * batch was opened is reached, whichever comes first, and hands the batch to the {@link BatchSink}.
+ *
+ * Rows submitted with a partition key are batched per partition under the same limits, so a
+ * flush writes one part instead of one per partition present in the buffer. At most maxRows rows
+ * are held across all partitions; beyond that the largest partition is flushed early.
+ *
+ * Backpressure: the submit queue is bounded and at most maxInFlight batches are outstanding.
+ * When ClickHouse is slow the flusher waits for an in-flight slot, the queue fills up and
+ * {@link #submit(byte[])} blocks the caller; {@link #offer(byte[], Object, Duration)} bounds that wait.
+ */
+public class CoalescingInsertBuffer implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface BatchSink {
+        /**
+         * Send the rows as one INSERT. Rows are already encoded and can be concatenated as-is.
+         */
+        Mono<Void> flush(List<byte[]> rows, long totalBytes);
+    }
+
+    public static class Policy {
+        public final int maxRows;
+        public final long maxBytes;
+        public final Duration linger;
+        public final int queueCapacity;
+        public final int maxInFlight;
+
+        public Policy(int maxRows, long maxBytes, Duration linger, int queueCapacity, int maxInFlight) {
+            if (maxRows <= 0 || maxBytes <= 0 || queueCapacity <= 0 || maxInFlight <= 0) {
+                throw new IllegalArgumentException("Coalescing policy limits must be positive");
+            }
+            this.maxRows = maxRows;
+            this.maxBytes = maxBytes;
+            this.linger = linger;
+            this.queueCapacity = queueCapacity;
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    private static final class Pending {
+        final byte[] row;
+        final Object partition;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(byte[] row, Object partition) {
+            this.row = row;
+            this.partition = partition;
+        }
+    }
+
+    private static final class Group {
+        final Object partition;
+        final List<Pending> rows = new ArrayList<>();
+        // Linger counts from when the group was opened, so rows taken from a backlog still batch
+        final long openedNanos = System.nanoTime();
+        long bytes;
+
+        Group(Object partition) {
+            this.partition = partition;
+        }
+    }
+
+    // Rows without a partition key share one group
+    private static final Object NO_PARTITION = new Object();
+
+    private final String name;
+    private final Policy policy;
+    private final BatchSink sink;
+    private final BlockingQueue<Pending> queue;
+    private final Semaphore inFlight;
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    private final AtomicLong submittedRows = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong flushedBatches = new AtomicLong();
+    private final AtomicLong failedRows = new AtomicLong();
+    private final AtomicLong flushedOnRows = new AtomicLong();
+    private final AtomicLong flushedOnBytes = new AtomicLong();
+    private final AtomicLong flushedOnLinger = new AtomicLong();
+    private final AtomicLong partitionBatches = new AtomicLong();
+
+    // Flusher thread only: open groups in order of their oldest row
+    private final Map<Object, Group> open = new LinkedHashMap<>();
+    private int openRows;
+
+    public CoalescingInsertBuffer(String name, Policy policy, BatchSink sink) {
+        this.name = name;
+        this.policy = policy;
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(policy.queueCapacity);
+        this.inFlight = new Semaphore(policy.maxInFlight);
+        this.flusher = new Thread(this::runFlusher, "coalesce-" + name);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Enqueue one encoded row, blocking while the queue is full.
+     */
+    public CompletableFuture<Void> submit(byte[] row) throws InterruptedException {
+        return submit(row, (Object) null);
+    }
+
+    /**
+     * Enqueue one encoded row of the given partition (null: unknown), blocking while the queue is full.
+     */
+    public CompletableFuture<Void> submit(byte[] row, Object partition) throws InterruptedException {
+        if (closed) {
+            throw new RejectedExecutionException("Coalescing buffer " + name + " is closed");
+        }
+        Pending p = new Pending(row, partition);
+        queue.put(p);
+        submittedRows.incrementAndGet();
+        return p.future;
+    }
+
+    /**
+     * Enqueue one encoded row, waiting at most the given time for queue space.
+     * The returned future fails with {@link RejectedExecutionException} if the queue stayed full.
+     */
+    public CompletableFuture<Void> submit(byte[] row, Duration timeout) throws InterruptedException {
+        if (closed) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Coalescing buffer " + name + " is closed"));
+        }
+        CompletableFuture<Void> future = offer(row, null, timeout);
+        return future != null ? future
+                : CompletableFuture.failedFuture(new RejectedExecutionException("Coalescing buffer " + name + " is full"));
+    }
+
+    /**
+     * Enqueue one encoded row of the given partition, waiting at most the given time for queue space.
+     * Returns null, without enqueueing, if the queue stayed full.
+     */
+    public CompletableFuture<Void> offer(byte[] row, Object partition, Duration timeout) throws InterruptedException {
+        if (closed) {
+            throw new RejectedExecutionException("Coalescing buffer " + name + " is closed");
+        }
+        Pending p = new Pending(row, partition);
+        if (!queue.offer(p, timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            return null;
+        }
+        submittedRows.incrementAndGet();
+        return p.future;
+    }
+
+    public int queuedRows() {
+        return queue.size();
+    }
+
+    public int inFlightBatches() {
+        return policy.maxInFlight - inFlight.availablePermits();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("name", name);
+        m.put("submittedRows", submittedRows.get());
+        m.put("flushedRows", flushedRows.get());
+        m.put("flushedBatches", flushedBatches.get());
+        m.put("failedRows", failedRows.get());
+        m.put("queuedRows", queue.size());
+        m.put("inFlightBatches", inFlightBatches());
+        m.put("flushedOnRows", flushedOnRows.get());
+        m.put("flushedOnBytes", flushedOnBytes.get());
+        m.put("flushedOnLinger", flushedOnLinger.get());
+        long batches = flushedBatches.get();
+        m.put("avgRowsPerBatch", batches == 0 ? 0.0 : (double) flushedRows.get() / batches);
+        // A batch of one known partition creates exactly one part
+        m.put("singlePartitionBatches", partitionBatches.get());
+        return m;
+    }
+
+    /**
+     * Stop accepting rows, flush what is queued and wait for in-flight batches.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+            inFlight.tryAcquire(policy.maxInFlight, 30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runFlusher() {
+        long lingerNanos = policy.linger.toNanos();
+        while (!closed || !queue.isEmpty() || !open.isEmpty()) {
+            try {
+                Group oldest = open.isEmpty() ? null : open.values().iterator().next();
+                long wait = oldest == null ? TimeUnit.MILLISECONDS.toNanos(100)
+                        : oldest.openedNanos + lingerNanos - System.nanoTime();
+                if (oldest != null && (wait <= 0 || (closed && queue.isEmpty()))) {
+                    flush(oldest, flushedOnLinger);
+                    continue;
+                }
+                Pending next = closed ? queue.poll() : queue.poll(wait, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    continue;
+                }
+                Object key = next.partition == null ? NO_PARTITION : next.partition;
+                Group group = open.computeIfAbsent(key, k -> new Group(next.partition));
+                group.rows.add(next);
+                group.bytes += next.row.length;
+                openRows++;
+                if (group.rows.size() >= policy.maxRows) {
+                    flush(group, flushedOnRows);
+                } else if (group.bytes >= policy.maxBytes) {
+                    flush(group, flushedOnBytes);
+                } else if (openRows >= policy.maxRows) {
+                    Group largest = group;
+                    for (Group g : open.values()) {
+                        if (g.rows.size() > largest.rows.size()) largest = g;
+                    }
+                    flush(largest, flushedOnRows);
+                }
+            } catch (InterruptedException e) {
+                // close() interrupts to stop waiting; queued and open rows are still drained by the loop
+                if (!closed) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    private void flush(Group group, AtomicLong reason) throws InterruptedException {
+        if (!closed) {
+            inFlight.acquire();
+        } else {
+            inFlight.acquireUninterruptibly();
+        }
+        open.remove(group.partition == null ? NO_PARTITION : group.partition);
+        openRows -= group.rows.size();
+        reason.incrementAndGet();
+        if (group.partition != null) {
+            partitionBatches.incrementAndGet();
+        }
+        dispatch(group.rows, group.bytes);
+    }
+
+    private void dispatch(List<Pending> batch, long bytes) {
+        List<byte[]> rows = new ArrayList<>(batch.size());
+        for (Pending p : batch) rows.add(p.row);
+        Mono<Void> call;
+        try {
+            call = sink.flush(rows, bytes);
+        } catch (RuntimeException e) {
+            call = Mono.error(e);
+        }
+        call.subscribe(
+                ignored -> { },
+                err -> {
+                    inFlight.release();
+                    failedRows.addAndGet(batch.size());
+                    for (Pending p : batch) p.future.completeExceptionally(err);
+                },
+                () -> {
+                    inFlight.release();
+                    flushedBatches.incrementAndGet();
+                    flushedRows.addAndGet(batch.size());
+                    for (Pending p : batch) p.future.complete(null);
+                });
+    }
+}
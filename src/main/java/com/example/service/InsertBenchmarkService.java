@@ -0,0 +1,396 @@
+package com.example.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-process benchmarks for the insert encoders, run against the 80-column
+ * nms_event_adjacent_kavach_train_rri record produced by {@link NativeConcurrentInsertService}.
+ */
+@Service
+public class InsertBenchmarkService {
+
+    private static final TypeReference<Map<String, Object>> ROW_TYPE = new TypeReference<>() { };
+
+    private final NativeConcurrentInsertService recordFactory;
+    private final ClickHouseBulkInsertService bulkInsertService;
+    private final KavachRriSerializer serializer;
+    private final InsertBodyWriter bodyWriter;
+    private final KavachPacketCodec packetCodec;
+    private final ClickHouseTableSchemaService schemaService;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${clickhouse.table}")
+    private String table;
+
+    public InsertBenchmarkService(NativeConcurrentInsertService recordFactory,
+                                  ClickHouseBulkInsertService bulkInsertService,
+                                  KavachRriSerializer serializer,
+                                  InsertBodyWriter bodyWriter,
+                                  KavachPacketCodec packetCodec,
+                                  ClickHouseTableSchemaService schemaService) {
+        this.recordFactory = recordFactory;
+        this.bulkInsertService = bulkInsertService;
+        this.serializer = serializer;
+        this.bodyWriter = bodyWriter;
+        this.packetCodec = packetCodec;
+        this.schemaService = schemaService;
+    }
+
+    /**
+     * Compare JSONEachRow and RowBinary for the same rows: payload bytes and encode throughput,
+     * and optionally end-to-end insert throughput (this writes 2 x rows into the table).
+     */
+    public Map<String, Object> compareInsertFormats(int rows, int iterations, boolean send) throws Exception {
+        List<Map<String, Object>> batch = new ArrayList<>(rows);
+        for (int i = 1; i <= rows; i++) {
+            batch.add(recordFactory.createRecordData(i));
+        }
+        RowBinaryEncoder encoder = bulkInsertService.encoderFor(table);
+
+        // Warm up both encoders before timing
+        encodeJson(batch);
+        encodeRowBinary(batch, encoder);
+
+        long jsonBytes = 0;
+        long jsonNanos = 0;
+        long binaryBytes = 0;
+        long binaryNanos = 0;
+        for (int i = 0; i < iterations; i++) {
+            long t0 = System.nanoTime();
+            jsonBytes = encodeJson(batch);
+            jsonNanos += System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            binaryBytes = encodeRowBinary(batch, encoder);
+            binaryNanos += System.nanoTime() - t0;
+        }
+
+        FormatStats json = new FormatStats(InsertFormat.JSON_EACH_ROW, rows, jsonBytes, jsonNanos / iterations);
+        FormatStats binary = new FormatStats(InsertFormat.ROW_BINARY, rows, binaryBytes, binaryNanos / iterations);
+
+        if (send) {
+            long t0 = System.nanoTime();
+            bulkInsertService.insertJsonEachRow(batch);
+            json.insertNanos = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            bulkInsertService.insertRowBinary(batch);
+            binary.insertNanos = System.nanoTime() - t0;
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("table", table);
+        result.put("rows", rows);
+        result.put("columns", encoder.columnCount());
+        result.put("iterations", iterations);
+        result.put("sent", send);
+        result.put("jsonEachRow", json.toMap());
+        result.put("rowBinary", binary.toMap());
+        result.put("byteReduction", String.format("%.1f%%", 100.0 * (jsonBytes - binaryBytes) / jsonBytes));
+        return result;
+    }
+
+    /**
+     * Per-record cost of producing one encoded row: the Map factory plus Jackson versus the
+     * template serializer (JSON, and RowBinary when the table schema is reachable).
+     * Allocation is read from the JVM's per-thread allocation counter around each loop.
+     */
+    public Map<String, Object> compareRecordSerializers(int records) throws Exception {
+        long base = KavachRriRecord.wallClockSecondsNow();
+        KavachRriRecord record = new KavachRriRecord();
+        // Same pooled buffers the insert paths write into
+        DataBuffer out = bodyWriter.bufferFactory().allocateBuffer(8192);
+        ByteArrayOutputStream mapOut = new ByteArrayOutputStream(8192);
+        try {
+            SerializerRun mapJson = new SerializerRun("map+jackson", records, i -> {
+                mapOut.reset();
+                objectMapper.writeValue(mapOut, recordFactory.createRecordData(i));
+                mapOut.write('\n');
+                return mapOut.size();
+            });
+            SerializerRun templateJson = new SerializerRun("template-json", records, i -> {
+                out.readPosition(0);
+                out.writePosition(0);
+                serializer.writeJsonLine(record.set(i, base), out);
+                return out.readableByteCount();
+            });
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("records", records);
+            result.put("mapJackson", mapJson.run().toMap());
+            result.put("templateJson", templateJson.run().toMap());
+            try {
+                KavachRriSerializer.RowBinaryTemplate template = serializer.rowBinaryTemplate(table);
+                SerializerRun templateBinary = new SerializerRun("template-rowbinary", records, i -> {
+                    out.readPosition(0);
+                    out.writePosition(0);
+                    template.write(record.set(i, base), out);
+                    return out.readableByteCount();
+                });
+                result.put("templateRowBinary", templateBinary.run().toMap());
+            } catch (RuntimeException e) {
+                result.put("templateRowBinary", Map.of("error", String.valueOf(e.getMessage())));
+            }
+            return result;
+        } finally {
+            DataBufferUtils.release(out);
+        }
+    }
+
+    /**
+     * Kafka message payloads: bytes per message and encode / decode cost of a JSON document versus
+     * a {@link KavachPacketCodec} packet. Decoders read from a ring of pre-encoded messages, so only
+     * the parse into a row Map is timed.
+     */
+    public Map<String, Object> compareKafkaPayloadCodecs(int records) throws Exception {
+        long base = KavachRriRecord.wallClockSecondsNow();
+        KavachRriRecord record = new KavachRriRecord();
+        int ring = 1024;
+        byte[][] jsonSamples = new byte[ring][];
+        byte[][] binarySamples = new byte[ring][];
+        for (int i = 0; i < ring; i++) {
+            jsonSamples[i] = serializer.jsonLine(record.set(i + 1, base));
+            binarySamples[i] = packetCodec.encode(record);
+        }
+
+        SerializerRun jsonEncode = new SerializerRun("json-encode", records,
+                i -> serializer.jsonLine(record.set(i, base)).length);
+        SerializerRun jsonDecode = new SerializerRun("json-decode", records, i -> {
+            byte[] value = jsonSamples[i % ring];
+            objectMapper.readValue(value, HashMap.class);
+            return value.length;
+        });
+        SerializerRun binaryEncode = new SerializerRun("binary-encode", records,
+                i -> packetCodec.encode(record.set(i, base)).length);
+        SerializerRun binaryMapEncode = new SerializerRun("binary-encode-map", records,
+                i -> packetCodec.encode(recordFactory.createRecordData(i)).length);
+        SerializerRun binaryDecode = new SerializerRun("binary-decode", records, i -> {
+            byte[] value = binarySamples[i % ring];
+            packetCodec.toMap(value);
+            return value.length;
+        });
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("records", records);
+        result.put("jsonEncode", jsonEncode.run().toMap());
+        result.put("jsonDecode", jsonDecode.run().toMap());
+        result.put("binaryEncode", binaryEncode.run().toMap());
+        result.put("binaryEncodeFromMap", binaryMapEncode.run().toMap());
+        result.put("binaryDecode", binaryDecode.run().toMap());
+        return result;
+    }
+
+    /**
+     * Query result decoding: the current FORMAT JSON path (whole body to a String, a JsonNode
+     * tree, a HashMap per row), streamed JSONEachRow through {@link JsonRowDecoder}, and
+     * RowBinaryWithNamesAndTypes into primitive column batches through {@link RowBinaryColumnReader}.
+     * Bodies are built locally from the same rows and fed in 64 KiB buffers, as the HTTP client
+     * delivers them, so only decoding is timed.
+     */
+    public Map<String, Object> compareQueryReadFormats(int rows, int iterations) throws Exception {
+        List<Map<String, Object>> batch = new ArrayList<>(rows);
+        for (int i = 1; i <= rows; i++) {
+            batch.add(recordFactory.createRecordData(i));
+        }
+        ClickHouseTableSchemaService.TableSchema schema = schemaService.getSchema(table);
+        RowBinaryEncoder encoder = bulkInsertService.encoderFor(table);
+
+        byte[] jsonBody = objectMapper.writeValueAsBytes(Map.of("data", batch, "rows", rows));
+        ByteArrayOutputStream lines = new ByteArrayOutputStream(batch.size() * 2048);
+        for (Map<String, Object> row : batch) {
+            objectMapper.writeValue(lines, row);
+            lines.write('\n');
+        }
+        byte[] jsonEachRowBody = lines.toByteArray();
+        byte[] rowBinaryBody = rowBinaryWithNamesAndTypes(batch, schema, encoder);
+
+        SerializerRun jsonTree = new SerializerRun("json-tree", iterations, i -> {
+            com.fasterxml.jackson.databind.JsonNode data = objectMapper.readTree(new String(jsonBody, java.nio.charset.StandardCharsets.UTF_8)).get("data");
+            List<Map<String, Object>> out = new ArrayList<>();
+            for (com.fasterxml.jackson.databind.JsonNode row : data) {
+                out.add(objectMapper.convertValue(row, ROW_TYPE));
+            }
+            return out.size() == rows ? jsonBody.length : -1;
+        });
+        SerializerRun jsonEachRow = new SerializerRun("json-each-row-streaming", iterations, i -> {
+            long decoded = JsonRowDecoder.eachRow(chunks(jsonEachRowBody)).count().block();
+            return decoded == rows ? jsonEachRowBody.length : -1;
+        });
+        SerializerRun rowBinary = new SerializerRun("row-binary-columnar", iterations, i -> {
+            int decoded = RowBinaryColumnReader.read(chunks(rowBinaryBody), 8192)
+                    .reduce(0, (n, b) -> n + b.rowCount).block();
+            return decoded == rows ? rowBinaryBody.length : -1;
+        });
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("table", table);
+        result.put("rows", rows);
+        result.put("columns", encoder.columnCount());
+        result.put("iterations", iterations);
+        result.put("jsonTree", readStats(jsonTree.run(), rows));
+        result.put("jsonEachRowStreaming", readStats(jsonEachRow.run(), rows));
+        result.put("rowBinaryColumnar", readStats(rowBinary.run(), rows));
+        return result;
+    }
+
+    private static Map<String, Object> readStats(SerializerRun run, int rows) {
+        long totalRows = (long) rows * run.records;
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("reader", run.name);
+        m.put("bodyBytes", run.bytes / run.records);
+        m.put("bytesPerRow", (double) run.bytes / totalRows);
+        m.put("megabytesPerSecond", run.bytes * 1000.0 / Math.max(1, run.nanos));
+        m.put("nsPerRow", (double) run.nanos / totalRows);
+        m.put("rowsPerSecond", totalRows * 1_000_000_000.0 / Math.max(1, run.nanos));
+        m.put("allocatedBytesPerRow", run.allocatedBytes < 0 ? "unsupported" : (Object) ((double) run.allocatedBytes / totalRows));
+        return m;
+    }
+
+    private static reactor.core.publisher.Flux<DataBuffer> chunks(byte[] body) {
+        int chunk = 64 * 1024;
+        return reactor.core.publisher.Flux.range(0, (body.length + chunk - 1) / chunk)
+                .map(i -> DefaultDataBufferFactory.sharedInstance.wrap(
+                        java.nio.ByteBuffer.wrap(body, i * chunk, Math.min(chunk, body.length - i * chunk)).slice()));
+    }
+
+    // What ClickHouse sends for SELECT ... FORMAT RowBinaryWithNamesAndTypes
+    private static byte[] rowBinaryWithNamesAndTypes(List<Map<String, Object>> batch,
+                                                     ClickHouseTableSchemaService.TableSchema schema,
+                                                     RowBinaryEncoder encoder) {
+        DataBuffer out = DefaultDataBufferFactory.sharedInstance.allocateBuffer(batch.size() * 512);
+        try {
+            RowBinaryEncoder.writeVarUInt(out, encoder.columnCount());
+            for (int c = 0; c < encoder.columnCount(); c++) {
+                RowBinaryEncoder.writeString(out, encoder.columnName(c));
+            }
+            for (int c = 0; c < encoder.columnCount(); c++) {
+                RowBinaryEncoder.writeString(out, schema.columns.get(c).type);
+            }
+            for (Map<String, Object> row : batch) {
+                encoder.encodeValues(row, out);
+            }
+            byte[] body = new byte[out.readableByteCount()];
+            out.read(body);
+            return body;
+        } finally {
+            DataBufferUtils.release(out);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordEncoder {
+        int encode(int sequence) throws Exception;
+    }
+
+    private static final class SerializerRun {
+        private static final com.sun.management.ThreadMXBean THREADS =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+
+        final String name;
+        final int records;
+        final RecordEncoder encoder;
+        long bytes;
+        long nanos;
+        long allocatedBytes = -1;
+
+        SerializerRun(String name, int records, RecordEncoder encoder) {
+            this.name = name;
+            this.records = records;
+            this.encoder = encoder;
+        }
+
+        SerializerRun run() throws Exception {
+            // Warm-up pass so JIT compilation and buffer growth are not counted
+            for (int i = 1; i <= Math.min(records, 20_000); i++) {
+                encoder.encode(i);
+            }
+            long thread = Thread.currentThread().getId();
+            boolean allocationCounter = THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled();
+            long alloc0 = allocationCounter ? THREADS.getThreadAllocatedBytes(thread) : 0;
+            long t0 = System.nanoTime();
+            long total = 0;
+            for (int i = 1; i <= records; i++) {
+                total += encoder.encode(i);
+            }
+            nanos = System.nanoTime() - t0;
+            if (allocationCounter) {
+                allocatedBytes = THREADS.getThreadAllocatedBytes(thread) - alloc0;
+            }
+            bytes = total;
+            return this;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("serializer", name);
+            m.put("bytesPerRecord", (double) bytes / records);
+            m.put("nsPerRecord", (double) nanos / records);
+            m.put("recordsPerSecond", records * 1_000_000_000.0 / Math.max(1, nanos));
+            m.put("allocatedBytesPerRecord", allocatedBytes < 0 ? "unsupported" : (Object) ((double) allocatedBytes / records));
+            return m;
+        }
+    }
+
+    private long encodeJson(List<Map<String, Object>> batch) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(batch.size() * 2048);
+        for (Map<String, Object> row : batch) {
+            objectMapper.writeValue(out, row);
+            out.write('\n');
+        }
+        return out.size();
+    }
+
+    private long encodeRowBinary(List<Map<String, Object>> batch, RowBinaryEncoder encoder) {
+        DataBuffer out = DefaultDataBufferFactory.sharedInstance.allocateBuffer(batch.size() * 512);
+        try {
+            for (Map<String, Object> row : batch) {
+                encoder.encode(row, out);
+            }
+            return out.readableByteCount();
+        } finally {
+            DataBufferUtils.release(out);
+        }
+    }
+
+    public static class FormatStats {
+        public final InsertFormat format;
+        public final int rows;
+        public final long bytes;
+        public final long encodeNanos;
+        public long insertNanos = -1;
+
+        FormatStats(InsertFormat format, int rows, long bytes, long encodeNanos) {
+            this.format = format;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.encodeNanos = encodeNanos;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("format", format.clickHouseName);
+            m.put("bytes", bytes);
+            m.put("bytesPerRow", (double) bytes / rows);
+            m.put("encodeMs", encodeNanos / 1_000_000.0);
+            m.put("encodeRowsPerSecond", rows * 1_000_000_000.0 / Math.max(1, encodeNanos));
+            if (insertNanos >= 0) {
+                m.put("insertMs", insertNanos / 1_000_000.0);
+                m.put("insertRowsPerSecond", rows * 1_000_000_000.0 / Math.max(1, insertNanos));
+            }
+            return m;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes insert rows directly into pooled Netty buffers as they are produced.
+ *
+ * Rows are encoded in chunks of clickhouse.insert.stream-chunk-rows, and each chunk is emitted
+ * as its own DataBuffer. The HTTP connector writes and releases chunks as the socket drains, so
+ * the memory held per in-flight insert stays around one or two chunks whatever the batch size.
+ */
+@Component
+public class InsertBodyWriter {
+
+    private final DataBufferFactory bufferFactory;
+    private final ObjectMapper objectMapper;
+
+    @Value("${clickhouse.insert.stream-chunk-rows:256}")
+    private int chunkRows;
+
+    public InsertBodyWriter(DataBufferFactory pooledDataBufferFactory) {
+        this.bufferFactory = pooledDataBufferFactory;
+        this.objectMapper = new ObjectMapper();
+        // The chunk's output stream is reused across rows; Jackson must not close it
+        this.objectMapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    }
+
+    public DataBufferFactory bufferFactory() {
+        return bufferFactory;
+    }
+
+    /**
+     * JSONEachRow body: one JSON object per line.
+     */
+    public Flux<DataBuffer> jsonEachRow(Flux<?> rows) {
+        return rows.buffer(chunkRows)
+                .map(this::encodeJsonChunk)
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+
+    /**
+     * RowBinary body using the table's compiled encoder.
+     */
+    public Flux<DataBuffer> rowBinary(Flux<Map<String, Object>> rows, RowBinaryEncoder encoder) {
+        return rows.buffer(chunkRows)
+                .map(chunk -> encodeRowBinaryChunk(chunk, encoder))
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+
+    /**
+     * Body made of rows that are already encoded; wrapped without copying.
+     */
+    public Flux<DataBuffer> encodedRows(List<byte[]> rows) {
+        return Flux.fromIterable(rows).map(bufferFactory::wrap);
+    }
+
+    /**
+     * Materialize a body into one array (used when a batch has to be kept, e.g. spooled).
+     */
+    public byte[] toBytes(Flux<DataBuffer> body) {
+        return DataBufferUtils.join(body)
+                .map(buffer -> {
+                    try {
+                        byte[] bytes = new byte[buffer.readableByteCount()];
+                        buffer.read(bytes);
+                        return bytes;
+                    } finally {
+                        DataBufferUtils.release(buffer);
+                    }
+                })
+                .defaultIfEmpty(new byte[0])
+                .block();
+    }
+
+    private DataBuffer encodeJsonChunk(List<?> chunk) {
+        DataBuffer buffer = bufferFactory.allocateBuffer(chunk.size() * 2048);
+        try {
+            OutputStream out = buffer.asOutputStream();
+            for (Object row : chunk) {
+                objectMapper.writeValue(out, row);
+                out.write('\n');
+            }
+            return buffer;
+        } catch (Exception e) {
+            DataBufferUtils.release(buffer);
+            throw new RuntimeException("Failed to serialize JSONEachRow chunk", e);
+        }
+    }
+
+    private DataBuffer encodeRowBinaryChunk(List<Map<String, Object>> chunk, RowBinaryEncoder encoder) {
+        DataBuffer buffer = bufferFactory.allocateBuffer(chunk.size() * encoder.columnCount() * 8);
+        try {
+            for (Map<String, Object> row : chunk) {
+                encoder.encode(row, buffer);
+            }
+            return buffer;
+        } catch (RuntimeException e) {
+            DataBufferUtils.release(buffer);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.example.service;
+
+import com.github.luben.zstd.EndDirective;
+import com.github.luben.zstd.ZstdCompressCtx;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Opt-in Content-Encoding compression for insert request bodies.
+ *
+ * The codec is chosen per route with clickhouse.http.compression.&lt;route&gt; (falling back to
+ * clickhouse.http.compression): none/false, gzip/true, zstd or lz4. Each request body is compressed
+ * as one continuous stream, chunk by chunk as the DataBuffers are produced, and the native
+ * compressor state (Deflater, ZstdCompressCtx plus its direct buffers) is borrowed from a pool and
+ * returned when the request terminates. A thread-local would not work here: the same event-loop
+ * thread interleaves many request bodies. LZ4 uses the shared, stateless LZ4 compressor.
+ *
+ * Raw and compressed bytes and compressor CPU time are recorded for every batch.
+ */
+@Service
+public class InsertCompressionService {
+
+    public enum Codec {
+        NONE(null),
+        GZIP("gzip"),
+        ZSTD("zstd"),
+        LZ4("lz4");
+
+        public final String contentEncoding;
+
+        Codec(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        public static Codec parse(String value) {
+            if (value == null) return NONE;
+            switch (value.trim().toLowerCase()) {
+                case "":
+                case "false":
+                case "none":
+                    return NONE;
+                case "true":
+                case "gzip":
+                    return GZIP;
+                case "zstd":
+                    return ZSTD;
+                case "lz4":
+                    return LZ4;
+                default:
+                    throw new IllegalArgumentException("Unsupported insert compression: " + value);
+            }
+        }
+    }
+
+    /**
+     * Request body plus the Content-Encoding header to send with it.
+     */
+    public static class CompressedBody {
+        public final Flux<DataBuffer> body;
+        public final Codec codec;
+
+        CompressedBody(Flux<DataBuffer> body, Codec codec) {
+            this.body = body;
+            this.codec = codec;
+        }
+
+        public void applyTo(HttpHeaders headers) {
+            if (codec.contentEncoding != null) {
+                headers.set(HttpHeaders.CONTENT_ENCODING, codec.contentEncoding);
+            }
+        }
+    }
+
+    public static class RouteStats {
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong rawBytes = new AtomicLong();
+        final AtomicLong compressedBytes = new AtomicLong();
+        final AtomicLong cpuNanos = new AtomicLong();
+        volatile double lastRatio;
+        volatile long lastCpuMicros;
+
+        Map<String, Object> toMap(Codec codec) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            long raw = rawBytes.get();
+            long compressed = compressedBytes.get();
+            m.put("codec", codec.name().toLowerCase());
+            m.put("batches", batches.get());
+            m.put("rawBytes", raw);
+            m.put("compressedBytes", compressed);
+            m.put("ratio", compressed == 0 ? 0.0 : (double) raw / compressed);
+            m.put("cpuMs", cpuNanos.get() / 1_000_000.0);
+            m.put("lastBatchRatio", lastRatio);
+            m.put("lastBatchCpuMicros", lastCpuMicros);
+            return m;
+        }
+    }
+
+    private static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final XXHash32 LZ4_CHECKSUM = XXHashFactory.fastestInstance().hash32();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Environment environment;
+    private final DataBufferFactory bufferFactory;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<ZstdWorker> zstdWorkers = new ConcurrentLinkedQueue<>();
+    private final Map<String, RouteStats> stats = new ConcurrentHashMap<>();
+    private final Map<String, Codec> routeCodecs = new ConcurrentHashMap<>();
+
+    @Value("${clickhouse.http.compression:false}")
+    private String defaultCompression;
+
+    @Value("${clickhouse.http.compression.gzip-level:1}")
+    private int gzipLevel;
+
+    @Value("${clickhouse.http.compression.zstd-level:3}")
+    private int zstdLevel;
+
+    @Value("${clickhouse.http.compression.log-batches:false}")
+    private boolean logBatches;
+
+    public InsertCompressionService(Environment environment, DataBufferFactory pooledDataBufferFactory) {
+        this.environment = environment;
+        this.bufferFactory = pooledDataBufferFactory;
+    }
+
+    public Codec codecFor(String route) {
+        return routeCodecs.computeIfAbsent(route, r ->
+                Codec.parse(environment.getProperty("clickhouse.http.compression." + r, defaultCompression)));
+    }
+
+    /**
+     * Compress the body with the codec configured for the route (pass-through for NONE).
+     */
+    public CompressedBody compress(String route, Flux<DataBuffer> body) {
+        Codec codec = codecFor(route);
+        if (codec == Codec.NONE) {
+            return new CompressedBody(body, codec);
+        }
+        RouteStats routeStats = stats.computeIfAbsent(route, r -> new RouteStats());
+        Flux<DataBuffer> compressed = Flux.using(
+                () -> openSession(codec),
+                session -> body
+                        .map(session::compress)
+                        .concatWith(Mono.fromCallable(session::finish))
+                        .filter(buf -> {
+                            if (buf.readableByteCount() > 0) return true;
+                            DataBufferUtils.release(buf);
+                            return false;
+                        })
+                        .doOnComplete(() -> record(route, codec, routeStats, session)),
+                Session::close);
+        return new CompressedBody(compressed, codec);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        stats.forEach((route, s) -> out.put(route, s.toMap(codecFor(route))));
+        return out;
+    }
+
+    private void record(String route, Codec codec, RouteStats s, Session session) {
+        s.batches.incrementAndGet();
+        s.rawBytes.addAndGet(session.rawBytes);
+        s.compressedBytes.addAndGet(session.compressedBytes);
+        s.cpuNanos.addAndGet(session.cpuNanos);
+        s.lastRatio = session.compressedBytes == 0 ? 0.0 : (double) session.rawBytes / session.compressedBytes;
+        s.lastCpuMicros = session.cpuNanos / 1000;
+        if (logBatches) {
+            System.out.printf("Insert compression [%s/%s]: %d -> %d bytes (ratio %.2f), cpu %d us%n",
+                    route, codec.contentEncoding, session.rawBytes, session.compressedBytes, s.lastRatio, s.lastCpuMicros);
+        }
+    }
+
+    private Session openSession(Codec codec) {
+        switch (codec) {
+            case GZIP:
+                return new GzipSession();
+            case ZSTD:
+                return new ZstdSession();
+            case LZ4:
+                return new Lz4Session();
+            default:
+                throw new IllegalStateException("No session for " + codec);
+        }
+    }
+
+    // ---------------------------------------------------------------- sessions
+
+    private abstract class Session {
+        long rawBytes;
+        long compressedBytes;
+        long cpuNanos;
+
+        final DataBuffer compress(DataBuffer input) {
+            long cpu0 = THREADS.getCurrentThreadCpuTime();
+            try {
+                byte[] bytes = new byte[input.readableByteCount()];
+                input.read(bytes);
+                rawBytes += bytes.length;
+                DataBuffer out = doCompress(bytes);
+                compressedBytes += out.readableByteCount();
+                return out;
+            } catch (IOException e) {
+                throw new RuntimeException("Insert body compression failed", e);
+            } finally {
+                DataBufferUtils.release(input);
+                cpuNanos += THREADS.getCurrentThreadCpuTime() - cpu0;
+            }
+        }
+
+        final DataBuffer finish() throws IOException {
+            long cpu0 = THREADS.getCurrentThreadCpuTime();
+            try {
+                DataBuffer out = doFinish();
+                compressedBytes += out.readableByteCount();
+                return out;
+            } finally {
+                cpuNanos += THREADS.getCurrentThreadCpuTime() - cpu0;
+            }
+        }
+
+        abstract DataBuffer doCompress(byte[] input) throws IOException;
+
+        abstract DataBuffer doFinish() throws IOException;
+
+        abstract void close();
+    }
+
+    /**
+     * gzip member written by hand so the Deflater can come from the pool (GZIPOutputStream
+     * always allocates its own).
+     */
+    private final class GzipSession extends Session {
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] scratch = new byte[64 * 1024];
+        private boolean headerWritten;
+
+        GzipSession() {
+            Deflater d = deflaters.poll();
+            if (d == null) {
+                d = new Deflater(gzipLevel, true);
+            }
+            this.deflater = d;
+        }
+
+        @Override
+        DataBuffer doCompress(byte[] input) {
+            DataBuffer out = bufferFactory.allocateBuffer(input.length / 4 + 64);
+            writeHeader(out);
+            crc.update(input);
+            deflater.setInput(input);
+            drain(out, Deflater.SYNC_FLUSH);
+            return out;
+        }
+
+        @Override
+        DataBuffer doFinish() {
+            DataBuffer out = bufferFactory.allocateBuffer(256);
+            writeHeader(out);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(scratch);
+                out.write(scratch, 0, n);
+            }
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, (int) deflater.getBytesRead()); // ISIZE is the input size mod 2^32
+            return out;
+        }
+
+        private void drain(DataBuffer out, int flush) {
+            int n;
+            do {
+                // A full scratch buffer means the flush may not be complete yet
+                n = deflater.deflate(scratch, 0, scratch.length, flush);
+                out.write(scratch, 0, n);
+            } while (n == scratch.length);
+        }
+
+        private void writeHeader(DataBuffer out) {
+            if (!headerWritten) {
+                out.write(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+                headerWritten = true;
+            }
+        }
+
+        @Override
+        void close() {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    private static final class ZstdWorker {
+        final ZstdCompressCtx ctx = new ZstdCompressCtx();
+        ByteBuffer src = ByteBuffer.allocateDirect(128 * 1024);
+        final ByteBuffer dst = ByteBuffer.allocateDirect(128 * 1024);
+    }
+
+    private final class ZstdSession extends Session {
+        private final ZstdWorker worker;
+
+        ZstdSession() {
+            ZstdWorker w = zstdWorkers.poll();
+            if (w == null) {
+                w = new ZstdWorker();
+            }
+            w.ctx.setLevel(zstdLevel);
+            this.worker = w;
+        }
+
+        @Override
+        DataBuffer doCompress(byte[] input) {
+            if (worker.src.capacity() < input.length) {
+                worker.src = ByteBuffer.allocateDirect(input.length);
+            }
+            worker.src.clear();
+            worker.src.put(input).flip();
+            return stream(EndDirective.FLUSH, input.length / 4 + 64);
+        }
+
+        @Override
+        DataBuffer doFinish() {
+            worker.src.clear().flip();
+            return stream(EndDirective.END, 64);
+        }
+
+        private DataBuffer stream(EndDirective directive, int sizeHint) {
+            DataBuffer out = bufferFactory.allocateBuffer(sizeHint);
+            boolean done;
+            do {
+                worker.dst.clear();
+                done = worker.ctx.compressDirectByteBufferStream(worker.dst, worker.src, directive);
+                worker.dst.flip();
+                byte[] chunk = new byte[worker.dst.remaining()];
+                worker.dst.get(chunk);
+                out.write(chunk);
+            } while (!done);
+            return out;
+        }
+
+        @Override
+        void close() {
+            worker.ctx.reset();
+            zstdWorkers.offer(worker);
+        }
+    }
+
+    private final class Lz4Session extends Session {
+        private final ByteArrayOutputStream sink = new ByteArrayOutputStream(64 * 1024);
+        private final LZ4FrameOutputStream lz4;
+
+        Lz4Session() {
+            try {
+                this.lz4 = new LZ4FrameOutputStream(sink, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB, -1L,
+                        LZ4_COMPRESSOR, LZ4_CHECKSUM, LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open LZ4 frame", e);
+            }
+        }
+
+        @Override
+        DataBuffer doCompress(byte[] input) throws IOException {
+            lz4.write(input);
+            lz4.flush();
+            return takeSink();
+        }
+
+        @Override
+        DataBuffer doFinish() throws IOException {
+            lz4.close();
+            return takeSink();
+        }
+
+        private DataBuffer takeSink() {
+            DataBuffer out = bufferFactory.allocateBuffer(Math.max(sink.size(), 1));
+            out.write(sink.toByteArray());
+            sink.reset();
+            return out;
+        }
+
+        @Override
+        void close() {
+            // Shared compressor and checksum are stateless; nothing to return
+        }
+    }
+
+    private static void writeIntLE(DataBuffer out, int v) {
+        out.write((byte) v);
+        out.write((byte) (v >>> 8));
+        out.write((byte) (v >>> 16));
+        out.write((byte) (v >>> 24));
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.service;
+
+/**
+ * Wire format used for INSERT bodies sent to ClickHouse over HTTP.
+ */
+public enum InsertFormat {
+
+    JSON_EACH_ROW("JSONEachRow"),
+    ROW_BINARY("RowBinary");
+
+    public final String clickHouseName;
+
+    InsertFormat(String clickHouseName) {
+        this.clickHouseName = clickHouseName;
+    }
+
+    /**
+     * Accepts either the ClickHouse format name ("RowBinary") or the enum name ("row_binary").
+     */
+    public static InsertFormat parse(String value) {
+        if (value == null || value.isBlank()) {
+            return JSON_EACH_ROW;
+        }
+        String v = value.trim();
+        for (InsertFormat f : values()) {
+            if (f.clickHouseName.equalsIgnoreCase(v) || f.name().equalsIgnoreCase(v.replace('-', '_'))) {
+                return f;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported insert format: " + value);
+    }
+}
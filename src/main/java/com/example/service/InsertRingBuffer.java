@@ -0,0 +1,400 @@
+package com.example.service;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated single-writer ring of encoded rows between one Kafka listener thread and a
+ * batching insert worker, in the style of the LMAX Disruptor.
+ *
+ * Every slot owns a reusable row buffer. The writer claims the next sequence, encodes a row
+ * straight into that slot's buffer and publishes the sequence; nothing is allocated per row by the
+ * ring itself. The worker reads up to the published cursor (its sequence barrier), copies slots
+ * into one of maxInFlight reusable insert blocks until maxRows, maxBytes or the linger time of the
+ * block's first row is reached, and releases the copied slots; the writer waits before wrapping
+ * onto a slot that has not been released yet. Both sides spin briefly, then yield, then park
+ * (longer once the ring has been idle for a while).
+ *
+ * {@link #whenInserted()} returns a future for everything published so far, completed once every
+ * block up to that sequence has been inserted (blocks may complete out of order, the watermark
+ * only moves over contiguous ones). After a failed insert all pending and new futures fail and
+ * the worker discards rows until the writer calls {@link #recover(Duration)}.
+ */
+public class InsertRingBuffer implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface RowWriter {
+        /**
+         * Encode one row into the slot buffer, which is empty and positioned at 0.
+         */
+        void write(DataBuffer slot) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface BlockSink {
+        /**
+         * Insert the first length bytes of the block; the array is reused once the Mono completes.
+         */
+        Mono<Void> insert(byte[] block, int length, int rows);
+    }
+
+    public static class Policy {
+        public final int ringSize;
+        public final int maxRows;
+        public final long maxBytes;
+        public final Duration linger;
+        public final int maxInFlight;
+
+        public Policy(int ringSize, int maxRows, long maxBytes, Duration linger, int maxInFlight) {
+            if (ringSize <= 0 || Integer.bitCount(ringSize) != 1) {
+                throw new IllegalArgumentException("Ring size must be a power of two");
+            }
+            if (maxRows <= 0 || maxBytes <= 0 || maxInFlight <= 0) {
+                throw new IllegalArgumentException("Ring batching limits must be positive");
+            }
+            this.ringSize = ringSize;
+            this.maxRows = maxRows;
+            this.maxBytes = maxBytes;
+            this.linger = linger;
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    private static final class Block {
+        byte[] data;
+        int length;
+
+        Block(int capacity) {
+            this.data = new byte[capacity];
+        }
+
+        void append(DataBuffer row) {
+            int n = row.readableByteCount();
+            if (length + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + n));
+            }
+            row.read(data, length, n);
+            length += n;
+        }
+    }
+
+    private static final class Batch {
+        final long lastSequence;
+        boolean done;
+
+        Batch(long lastSequence) {
+            this.lastSequence = lastSequence;
+        }
+    }
+
+    private static final class Waiter {
+        final long sequence;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private final String name;
+    private final Policy policy;
+    private final BlockSink sink;
+    private final DataBuffer[] slots;
+    private final int mask;
+    private final BlockingQueue<Block> freeBlocks;
+    private final Thread worker;
+    private volatile boolean closed;
+
+    // Last published sequence: written by the writer only, read by the worker
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // Last sequence copied out of its slot: written by the worker only, gates the writer
+    private final AtomicLong released = new AtomicLong(-1);
+    // Writer-owned: next sequence to claim
+    private long nextSequence;
+
+    // Guarded by batches
+    private final Deque<Batch> batches = new ArrayDeque<>();
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private long insertedSequence = -1;
+    private volatile Throwable failure;
+
+    private final AtomicLong insertedRows = new AtomicLong();
+    private final AtomicLong insertedBlocks = new AtomicLong();
+    private final AtomicLong discardedRows = new AtomicLong();
+    private final AtomicLong writerWaits = new AtomicLong();
+    private final AtomicLong flushedOnRows = new AtomicLong();
+    private final AtomicLong flushedOnBytes = new AtomicLong();
+    private final AtomicLong flushedOnLinger = new AtomicLong();
+
+    public InsertRingBuffer(String name, Policy policy, int slotBytes, BlockSink sink) {
+        this.name = name;
+        this.policy = policy;
+        this.sink = sink;
+        this.slots = new DataBuffer[policy.ringSize];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = DefaultDataBufferFactory.sharedInstance.allocateBuffer(slotBytes);
+        }
+        this.mask = policy.ringSize - 1;
+        this.freeBlocks = new ArrayBlockingQueue<>(policy.maxInFlight);
+        // Blocks grow to the largest batch once and are then reused at that size
+        int blockBytes = (int) Math.min(Math.min(policy.maxBytes, (long) policy.maxRows * slotBytes), 1 << 20);
+        for (int i = 0; i < policy.maxInFlight; i++) {
+            freeBlocks.add(new Block(Math.max(slotBytes, blockBytes)));
+        }
+        this.worker = new Thread(this::runWorker, "ring-" + name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Claim a slot, let the writer fill it and publish it. Waits at most timeout while the ring is
+     * full, then throws {@link TimeoutException} without publishing. Must only be called from one
+     * thread. Returns false, without publishing, when the writer throws.
+     */
+    public boolean publish(RowWriter writer, Duration timeout) throws InterruptedException, TimeoutException {
+        long sequence = nextSequence;
+        int spins = 0;
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (sequence - policy.ringSize > released.get()) {
+            if (spins == 0) {
+                writerWaits.incrementAndGet();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                throw new TimeoutException("Ring " + name + " stayed full for " + timeout);
+            }
+            idle(spins++);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        DataBuffer slot = slots[(int) sequence & mask];
+        slot.readPosition(0);
+        slot.writePosition(0);
+        try {
+            writer.write(slot);
+        } catch (Exception e) {
+            return false;
+        }
+        nextSequence = sequence + 1;
+        cursor.lazySet(sequence);
+        return true;
+    }
+
+    /**
+     * Completes once every row published so far has been inserted; fails if an insert failed.
+     */
+    public CompletableFuture<Void> whenInserted() {
+        long sequence = cursor.get();
+        synchronized (batches) {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            if (sequence <= insertedSequence) {
+                return CompletableFuture.completedFuture(null);
+            }
+            Waiter waiter = new Waiter(sequence);
+            waiters.addLast(waiter);
+            return waiter.future;
+        }
+    }
+
+    /**
+     * Called by the writer after a failure, once it has rewound its source: waits until the worker
+     * has discarded what was published and in-flight blocks have settled, then accepts rows again.
+     */
+    public void recover(Duration timeout) throws InterruptedException, TimeoutException {
+        long target = cursor.get();
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            synchronized (batches) {
+                if (released.get() >= target && batches.isEmpty()) {
+                    insertedSequence = target;
+                    failure = null;
+                    return;
+                }
+            }
+            if (System.nanoTime() > deadline) {
+                throw new TimeoutException("Ring " + name + " did not drain within " + timeout);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    public boolean failed() {
+        return failure != null;
+    }
+
+    /**
+     * Published rows not yet copied into an insert block, as a fraction of the ring size.
+     */
+    public double fill() {
+        return (cursor.get() - released.get()) / (double) policy.ringSize;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("name", name);
+        m.put("ringSize", policy.ringSize);
+        m.put("publishedRows", cursor.get() + 1);
+        m.put("queuedRows", cursor.get() - released.get());
+        m.put("inFlightBlocks", policy.maxInFlight - freeBlocks.size());
+        m.put("insertedRows", insertedRows.get());
+        m.put("insertedBlocks", insertedBlocks.get());
+        m.put("discardedRows", discardedRows.get());
+        m.put("writerWaits", writerWaits.get());
+        m.put("failed", failure != null);
+        m.put("flushedOnRows", flushedOnRows.get());
+        m.put("flushedOnBytes", flushedOnBytes.get());
+        m.put("flushedOnLinger", flushedOnLinger.get());
+        long blocks = insertedBlocks.get();
+        m.put("avgRowsPerBlock", blocks == 0 ? 0.0 : (double) insertedRows.get() / blocks);
+        return m;
+    }
+
+    /**
+     * Stop the worker after it has flushed what was published, and wait for in-flight blocks.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(30));
+            for (int i = 0; i < policy.maxInFlight; i++) {
+                if (freeBlocks.poll(30, TimeUnit.SECONDS) == null) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWorker() {
+        long lingerNanos = policy.linger.toNanos();
+        long next = 0;
+        int spins = 0;
+        while (!closed || next <= cursor.get()) {
+            long available = cursor.get();
+            if (available < next) {
+                idle(spins++);
+                continue;
+            }
+            spins = 0;
+            if (failure != null) {
+                discardedRows.addAndGet(available - next + 1);
+                released.lazySet(available);
+                next = available + 1;
+                continue;
+            }
+
+            Block block;
+            try {
+                block = freeBlocks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            block.length = 0;
+            int rows = 0;
+            long deadline = System.nanoTime() + lingerNanos;
+            while (rows < policy.maxRows && block.length < policy.maxBytes) {
+                if (next > available) {
+                    available = cursor.get();
+                    if (next > available) {
+                        if (closed || System.nanoTime() >= deadline) {
+                            break;
+                        }
+                        idle(spins++);
+                        continue;
+                    }
+                    spins = 0;
+                }
+                block.append(slots[(int) next & mask]);
+                released.lazySet(next);
+                next++;
+                rows++;
+            }
+            if (rows >= policy.maxRows) flushedOnRows.incrementAndGet();
+            else if (block.length >= policy.maxBytes) flushedOnBytes.incrementAndGet();
+            else flushedOnLinger.incrementAndGet();
+            dispatch(block, rows, next - 1);
+        }
+    }
+
+    private void dispatch(Block block, int rows, long lastSequence) {
+        Batch batch = new Batch(lastSequence);
+        synchronized (batches) {
+            batches.addLast(batch);
+        }
+        Mono<Void> call;
+        try {
+            call = sink.insert(block.data, block.length, rows);
+        } catch (RuntimeException e) {
+            call = Mono.error(e);
+        }
+        call.subscribe(
+                ignored -> { },
+                err -> settle(block, batch, rows, err),
+                () -> settle(block, batch, rows, null));
+    }
+
+    private void settle(Block block, Batch batch, int rows, Throwable error) {
+        List<Waiter> completed = new ArrayList<>();
+        List<Waiter> failedWaiters = new ArrayList<>();
+        Throwable cause;
+        synchronized (batches) {
+            batch.done = true;
+            if (error != null) {
+                if (failure == null) {
+                    failure = error;
+                }
+            } else {
+                insertedRows.addAndGet(rows);
+                insertedBlocks.incrementAndGet();
+            }
+            while (!batches.isEmpty() && batches.peekFirst().done) {
+                insertedSequence = Math.max(insertedSequence, batches.removeFirst().lastSequence);
+            }
+            cause = failure;
+            if (cause != null) {
+                failedWaiters.addAll(waiters);
+                waiters.clear();
+            } else {
+                while (!waiters.isEmpty() && waiters.peekFirst().sequence <= insertedSequence) {
+                    completed.add(waiters.removeFirst());
+                }
+            }
+        }
+        freeBlocks.add(block);
+        for (Waiter w : completed) w.future.complete(null);
+        for (Waiter w : failedWaiters) w.future.completeExceptionally(cause);
+    }
+
+    private static void idle(int spins) {
+        if (spins < 100) {
+            Thread.onSpinWait();
+        } else if (spins < 200) {
+            Thread.yield();
+        } else if (spins < 10_000) {
+            LockSupport.parkNanos(50_000);
+        } else {
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+}
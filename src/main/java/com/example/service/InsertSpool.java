@@ -0,0 +1,570 @@
+package com.example.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead spool for insert batches that cannot reach ClickHouse.
+ *
+ * Batches are appended to memory-mapped segment files (spool.dir/spool-NNNNNNNNNNNNNNNNNNNN.seg,
+ * spool.segment-bytes each) as [length][crc32][target path][content type][body] entries, so a
+ * batch costs a memory copy instead of a round trip. A single replay thread sends entries back in
+ * order, back to back, backing off while ClickHouse keeps failing. spool.replay.max-batches-per-second
+ * (0 = no limit) only paces the replay of a backlog nobody is adding to: while new batches are
+ * spooled behind it, the replay must outrun them or the backlog would never drain.
+ *
+ * The replay position is checkpointed to spool.dir/checkpoint (written atomically) after every
+ * entry; segments entirely behind the checkpoint are deleted. While anything is spooled, callers
+ * should spool new batches too ({@link #hasBacklog()}) so the original order is preserved.
+ * Entries rejected by ClickHouse as bad data are moved to spool.dir/dead-letter instead of
+ * blocking the replay.
+ *
+ * Pending entries are capped at spool.max-bytes; beyond that {@link #append} fails with
+ * {@link SpoolFullException}, so the caller sees the batch as not inserted and does not
+ * acknowledge it. Segments are preallocated, so the directory can hold up to two segments more.
+ *
+ * Durability: without spool.fsync the data survives a process crash (page cache) but not a
+ * power loss.
+ */
+@Service
+public class InsertSpool {
+
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int ENTRY_HEADER = 8; // length + crc
+
+    private final WebClient webClient;
+    private final InsertBodyWriter bodyWriter;
+    private final InsertCompressionService compressionService;
+
+    @Value("${clickhouse.username}")
+    private String username;
+
+    @Value("${clickhouse.password}")
+    private String password;
+
+    @Value("${spool.enabled:false}")
+    private boolean enabled;
+
+    @Value("${spool.dir:./spool}")
+    private String dir;
+
+    @Value("${spool.segment-bytes:67108864}")
+    private int segmentBytes;
+
+    @Value("${spool.fsync:false}")
+    private boolean fsync;
+
+    @Value("${spool.max-bytes:10737418240}")
+    private long maxBytes;
+
+    @Value("${spool.replay.max-batches-per-second:0}")
+    private double replayRate;
+
+    @Value("${spool.replay.retry-initial-ms:1000}")
+    private long retryInitialMs;
+
+    @Value("${spool.replay.retry-max-ms:30000}")
+    private long retryMaxMs;
+
+    @Value("${spool.replay.timeout-seconds:120}")
+    private long replayTimeoutSeconds;
+
+    private Path root;
+    private Thread replayThread;
+    private volatile boolean running;
+
+    // Guarded by this
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private long writeSeq = -1;
+    private MappedByteBuffer writeMap;
+    private int writeOffset;
+    private long readSeq;
+    private int readOffset;
+    private MappedByteBuffer readMap;
+    private long readMapSeq = -1;
+    private long pendingEntries;
+    private long pendingBytes;
+
+    private final AtomicLong spooledBatches = new AtomicLong();
+    private final AtomicLong replayedBatches = new AtomicLong();
+    private final AtomicLong replayFailures = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong rejectedBatches = new AtomicLong();
+    private volatile String lastReplayError = "";
+
+    public InsertSpool(WebClient optimizedClickHouseClient,
+                       InsertBodyWriter bodyWriter,
+                       InsertCompressionService compressionService) {
+        this.webClient = optimizedClickHouseClient;
+        this.bodyWriter = bodyWriter;
+        this.compressionService = compressionService;
+    }
+
+    public static final class Entry {
+        public final String targetPath;
+        public final String contentType;
+        public final byte[] body;
+        final long seq;
+        final int offset;
+        final int nextOffset;
+
+        Entry(String targetPath, String contentType, byte[] body, long seq, int offset, int nextOffset) {
+            this.targetPath = targetPath;
+            this.contentType = contentType;
+            this.body = body;
+            this.seq = seq;
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+        }
+    }
+
+    /**
+     * The spool has reached spool.max-bytes; the batch was neither sent nor stored.
+     */
+    public static class SpoolFullException extends IllegalStateException {
+        public SpoolFullException(String message) {
+            super(message);
+        }
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        root = Paths.get(dir).toAbsolutePath();
+        Files.createDirectories(root.resolve("dead-letter"));
+        recover();
+        running = true;
+        replayThread = new Thread(this::replayLoop, "insert-spool-replay");
+        replayThread.setDaemon(true);
+        replayThread.start();
+        if (pendingEntries > 0) {
+            System.out.println("Insert spool " + root + ": " + pendingEntries + " batches pending replay");
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (replayThread != null) {
+            replayThread.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * True while spooled batches are waiting for replay; new batches must be spooled behind them.
+     */
+    public synchronized boolean hasBacklog() {
+        return enabled && pendingEntries > 0;
+    }
+
+    /**
+     * Failures worth spooling: ClickHouse unreachable, overloaded or timing out.
+     * Data errors (4xx, or a ClickHouse exception code that is not an overload) are not.
+     */
+    public static boolean isRetriable(Throwable error) {
+        Throwable e = error;
+        while (e != null) {
+            if (e instanceof WebClientRequestException || e instanceof TimeoutException
+                    || e instanceof RejectedExecutionException || e instanceof IOException) {
+                return true;
+            }
+            if (e instanceof WebClientResponseException r) {
+                String code = r.getHeaders().getFirst("X-ClickHouse-Exception-Code");
+                if (code != null) {
+                    return ClickHouseRequestLimiter.isOverloadCode(code);
+                }
+                return r.getStatusCode().is5xxServerError() || r.getStatusCode().value() == 429;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Send a batch, or spool it when there is a backlog or the send fails with a retriable error.
+     */
+    public Mono<Void> sendOrSpool(String targetPath, MediaType contentType, Supplier<byte[]> body, Supplier<Mono<Void>> send) {
+        if (!enabled) {
+            return send.get();
+        }
+        if (hasBacklog()) {
+            return appendAsync(targetPath, contentType, body);
+        }
+        return send.get().onErrorResume(InsertSpool::isRetriable, e -> appendAsync(targetPath, contentType, body)
+                .doOnError(SpoolFullException.class, full -> full.addSuppressed(e)));
+    }
+
+    /**
+     * Body for a batch of pre-encoded rows, as it would have been sent.
+     */
+    public static byte[] concat(List<byte[]> rows) {
+        int size = 0;
+        for (byte[] row : rows) size += row.length;
+        byte[] body = new byte[size];
+        int p = 0;
+        for (byte[] row : rows) {
+            System.arraycopy(row, 0, body, p, row.length);
+            p += row.length;
+        }
+        return body;
+    }
+
+    private Mono<Void> appendAsync(String targetPath, MediaType contentType, Supplier<byte[]> body) {
+        return Mono.<Void>fromRunnable(() -> append(targetPath, contentType.toString(), body.get()))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Append one batch. Thread-safe; rolls to a new segment when the current one is full.
+     *
+     * @throws SpoolFullException when the batch would take the pending bytes past spool.max-bytes
+     */
+    public synchronized void append(String targetPath, String contentType, byte[] body) {
+        if (!enabled) {
+            throw new IllegalStateException("Insert spool is disabled");
+        }
+        byte[] path = targetPath.getBytes(StandardCharsets.UTF_8);
+        byte[] type = contentType.getBytes(StandardCharsets.UTF_8);
+        int payload = 2 + path.length + 2 + type.length + body.length;
+        int size = ENTRY_HEADER + payload;
+        if (maxBytes > 0 && pendingBytes + size > maxBytes) {
+            rejectedBatches.incrementAndGet();
+            throw new SpoolFullException("Insert spool " + root + " is full: " + pendingBytes + " bytes pending, limit " + maxBytes);
+        }
+        try {
+            // Keep room for the 4-byte end marker after the entry
+            if (writeMap == null || writeOffset + size + 4 > writeMap.capacity()) {
+                rollSegment(size + 4);
+            }
+            CRC32 crc = new CRC32();
+            int p = writeOffset + ENTRY_HEADER;
+            writeMap.putShort(p, (short) path.length);
+            writeMap.put(p + 2, path);
+            p += 2 + path.length;
+            writeMap.putShort(p, (short) type.length);
+            writeMap.put(p + 2, type);
+            p += 2 + type.length;
+            writeMap.put(p, body);
+            crc.update(writeMap.slice(writeOffset + ENTRY_HEADER, payload));
+            writeMap.putInt(writeOffset + 4, (int) crc.getValue());
+            writeMap.putInt(writeOffset + size, 0);
+            // Length last: a torn write leaves a zero length, which reads as end of segment
+            writeMap.putInt(writeOffset, payload);
+            writeOffset += size;
+            if (fsync) {
+                writeMap.force();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to append to insert spool " + root, e);
+        }
+        pendingEntries++;
+        pendingBytes += size;
+        spooledBatches.incrementAndGet();
+        notifyAll();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", enabled);
+        if (!enabled) {
+            return m;
+        }
+        synchronized (this) {
+            m.put("dir", root.toString());
+            m.put("segments", segments.size());
+            m.put("pendingBatches", pendingEntries);
+            m.put("pendingBytes", pendingBytes);
+            m.put("maxBytes", maxBytes);
+            m.put("readPosition", readSeq + ":" + readOffset);
+            m.put("writePosition", writeSeq + ":" + writeOffset);
+        }
+        m.put("spooledBatches", spooledBatches.get());
+        m.put("replayedBatches", replayedBatches.get());
+        m.put("replayFailures", replayFailures.get());
+        m.put("deadLettered", deadLettered.get());
+        m.put("rejectedBatches", rejectedBatches.get());
+        m.put("lastReplayError", lastReplayError);
+        return m;
+    }
+
+    // ---------------------------------------------------------------- replay
+
+    private void replayLoop() {
+        long minIntervalNanos = replayRate > 0 ? (long) (1_000_000_000L / replayRate) : 0;
+        long nextSend = System.nanoTime();
+        long spooledSeen = spooledBatches.get();
+        long backoffMs = retryInitialMs;
+        while (running) {
+            try {
+                Entry entry = awaitNext();
+                // Pace only a backlog that is not growing; new batches behind it mean replay is behind
+                long spooled = spooledBatches.get();
+                long wait = nextSend - System.nanoTime();
+                if (wait > 0 && spooled == spooledSeen) {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+                spooledSeen = spooled;
+                nextSend = System.nanoTime() + minIntervalNanos;
+                try {
+                    send(entry).timeout(Duration.ofSeconds(replayTimeoutSeconds)).block();
+                    commit(entry);
+                    replayedBatches.incrementAndGet();
+                    backoffMs = retryInitialMs;
+                } catch (RuntimeException e) {
+                    if (!running) {
+                        return; // interrupted by shutdown; the entry stays spooled
+                    }
+                    lastReplayError = String.valueOf(e.getMessage());
+                    if (isRetriable(e)) {
+                        replayFailures.incrementAndGet();
+                        Thread.sleep(backoffMs);
+                        backoffMs = Math.min(retryMaxMs, backoffMs * 2);
+                    } else {
+                        deadLetter(entry, e);
+                        commit(entry);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                System.err.println("Insert spool replay error: " + e.getMessage());
+                try {
+                    Thread.sleep(retryMaxMs);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Mono<Void> send(Entry entry) {
+        InsertCompressionService.CompressedBody body =
+                compressionService.compress("spool", bodyWriter.encodedRows(List.of(entry.body)));
+        return webClient.post()
+                .uri(entry.targetPath)
+                .attribute(ClickHouseRequestLimiter.INSERT_PATH, "spool")
+                .headers(h -> {
+                    h.setBasicAuth(username, password);
+                    body.applyTo(h);
+                })
+                .contentType(MediaType.parseMediaType(entry.contentType))
+                .body(BodyInserters.fromDataBuffers(body.body))
+                .retrieve()
+                .toBodilessEntity()
+                .then();
+    }
+
+    private synchronized Entry awaitNext() throws InterruptedException, IOException {
+        while (true) {
+            Entry entry = readAt(readSeq, readOffset);
+            if (entry != null) {
+                return entry;
+            }
+            if (readSeq < writeSeq) {
+                // Reached the end of a finished segment: move on and drop the consumed one
+                Long next = segments.higherKey(readSeq);
+                advance(next != null ? next : writeSeq, 0);
+                continue;
+            }
+            wait(1000);
+        }
+    }
+
+    private Entry readAt(long seq, int offset) throws IOException {
+        if (seq == writeSeq && offset >= writeOffset) {
+            return null;
+        }
+        MappedByteBuffer map = seq == writeSeq ? writeMap : readMap(seq);
+        if (map == null || offset + ENTRY_HEADER > map.capacity()) {
+            return null;
+        }
+        int payload = map.getInt(offset);
+        if (payload <= 0 || offset + ENTRY_HEADER + payload > map.capacity()) {
+            return null;
+        }
+        int crc = map.getInt(offset + 4);
+        CRC32 check = new CRC32();
+        check.update(map.slice(offset + ENTRY_HEADER, payload));
+        if ((int) check.getValue() != crc) {
+            System.err.println("Insert spool: checksum mismatch in segment " + seq + " at " + offset + ", skipping rest of segment");
+            return null;
+        }
+        int p = offset + ENTRY_HEADER;
+        byte[] path = new byte[map.getShort(p)];
+        map.get(p + 2, path);
+        p += 2 + path.length;
+        byte[] type = new byte[map.getShort(p)];
+        map.get(p + 2, type);
+        p += 2 + type.length;
+        byte[] body = new byte[offset + ENTRY_HEADER + payload - p];
+        map.get(p, body);
+        return new Entry(new String(path, StandardCharsets.UTF_8), new String(type, StandardCharsets.UTF_8),
+                body, seq, offset, offset + ENTRY_HEADER + payload);
+    }
+
+    private MappedByteBuffer readMap(long seq) throws IOException {
+        if (readMapSeq != seq) {
+            Path file = segments.get(seq);
+            if (file == null) {
+                return null;
+            }
+            try (FileChannel ch = FileChannel.open(file)) {
+                readMap = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            readMapSeq = seq;
+        }
+        return readMap;
+    }
+
+    private synchronized void commit(Entry entry) throws IOException {
+        pendingEntries--;
+        pendingBytes -= entry.nextOffset - entry.offset;
+        advance(entry.seq, entry.nextOffset);
+    }
+
+    private void advance(long seq, int offset) throws IOException {
+        long previous = readSeq;
+        readSeq = seq;
+        readOffset = offset;
+        writeCheckpoint();
+        // Compaction: segments wholly before the checkpoint are never read again
+        while (!segments.isEmpty() && segments.firstKey() < readSeq) {
+            Path consumed = segments.pollFirstEntry().getValue();
+            Files.deleteIfExists(consumed);
+        }
+        if (previous != seq && readMapSeq == previous) {
+            readMap = null;
+            readMapSeq = -1;
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        Path tmp = root.resolve("checkpoint.tmp");
+        Files.writeString(tmp, readSeq + ":" + readOffset);
+        Files.move(tmp, root.resolve("checkpoint"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deadLetter(Entry entry, Exception error) {
+        deadLettered.incrementAndGet();
+        Path file = root.resolve("dead-letter").resolve(entry.seq + "-" + entry.offset + ".body");
+        try {
+            Files.write(file, entry.body);
+            Files.writeString(root.resolve("dead-letter").resolve(entry.seq + "-" + entry.offset + ".meta"),
+                    entry.targetPath + "\n" + entry.contentType + "\n" + error.getMessage() + "\n");
+        } catch (IOException e) {
+            System.err.println("Insert spool: failed to write dead letter " + file + ": " + e.getMessage());
+        }
+        System.err.println("Insert spool: batch rejected by ClickHouse, moved to " + file + ": " + error.getMessage());
+    }
+
+    // ---------------------------------------------------------------- segments
+
+    private void rollSegment(int minBytes) throws IOException {
+        if (writeMap != null && fsync) {
+            writeMap.force();
+        }
+        writeSeq++;
+        Path file = root.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, writeSeq, SEGMENT_SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long size = Math.max(segmentBytes, minBytes);
+            raf.setLength(size);
+            writeMap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        writeOffset = 0;
+        segments.put(writeSeq, file);
+    }
+
+    private synchronized void recover() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            files.filter(f -> f.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && f.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .forEach(f -> {
+                        String name = f.getFileName().toString();
+                        segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), f);
+                    });
+        }
+        Path checkpoint = root.resolve("checkpoint");
+        if (Files.exists(checkpoint)) {
+            String[] parts = Files.readString(checkpoint).trim().split(":");
+            readSeq = Long.parseLong(parts[0]);
+            readOffset = Integer.parseInt(parts[1]);
+        } else {
+            readSeq = segments.isEmpty() ? 0 : segments.firstKey();
+            readOffset = 0;
+        }
+        if (segments.isEmpty()) {
+            writeSeq = readSeq - 1;
+            return;
+        }
+
+        // Re-open the newest segment for appending after its last valid entry
+        writeSeq = segments.lastKey();
+        try (RandomAccessFile raf = new RandomAccessFile(segments.get(writeSeq).toFile(), "rw")) {
+            writeMap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        writeOffset = writeMap.capacity();
+
+        // Count what is left to replay, walking every entry from the checkpoint on
+        List<Long> seqs = new ArrayList<>(segments.tailMap(readSeq, true).keySet());
+        for (long seq : seqs) {
+            int offset = seq == readSeq ? readOffset : 0;
+            Entry e;
+            while ((e = readAt(seq, offset)) != null) {
+                pendingEntries++;
+                pendingBytes += e.nextOffset - e.offset;
+                offset = e.nextOffset;
+            }
+            if (seq == writeSeq) {
+                writeOffset = offset;
+                if (offset + 4 <= writeMap.capacity()) {
+                    writeMap.putInt(offset, 0);
+                }
+            }
+        }
+        readMap = null;
+        readMapSeq = -1;
+        // Drop segments that were fully replayed before the restart
+        while (!segments.isEmpty() && segments.firstKey() < readSeq) {
+            Files.deleteIfExists(segments.pollFirstEntry().getValue());
+        }
+    }
+}
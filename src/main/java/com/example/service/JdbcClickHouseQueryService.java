@@ -84,6 +84,70 @@ public class JdbcClickHouseQueryService {
 		}
 	}
 
+	/**
+	 * Keyset-paginated packets: the page after the given cursor (the first page when null),
+	 * read with a range predicate instead of OFFSET. See {@link PacketPageCursor}.
+	 */
+	public PacketPageCursor.Page fetchPacketsPage(LocalDateTime from,
+	                                              LocalDateTime to,
+	                                              String subPktType,
+	                                              int limit,
+	                                              PacketPageCursor after) throws Exception {
+		String type = (subPktType == null || subPktType.isBlank()) ? null : subPktType.trim();
+		if (type != null && !type.matches("\\d{4}")) {
+			throw new IllegalArgumentException("sub_pkt_type must be 4 digits");
+		}
+		DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+		String fromStr = from.format(fmt);
+		String toStr = to.format(fmt);
+
+		StringBuilder sql = new StringBuilder();
+		sql.append("SELECT ")
+			.append("t.message_date, t.message_time, t.stationary_kavach_id, t.message_sequence, ")
+			.append("t.nms_system_id, t.system_version, t.packet_name, t.sender_identifier, ")
+			.append("t.receiver_identifier, t.packet_message_length, t.frame_number, t.packet_message_sequence, ")
+			.append("t.border_rfid_tag, t.onboard_kavach_identity, t.sub_pkt_type, t.sub_pkt_len_ma, ")
+			.append("t.frame_offset, t.dst_loco_sos, t.train_section_type, t.line_number, t.line_name, ")
+			.append("t.type_of_signal, t.signal_ov, t.stop_signal, t.current_sig_aspect, t.next_sig_aspect, ")
+			.append("t.authority_type, t.approaching_signal_distance, t.authorized_speed, t.ma_wrt_sig, ")
+			.append("t.req_shorten_ma, t.new_ma, t.train_length_info_sts, t.trn_len_info_type, ")
+			.append("t.ref_frame_num_tlm, t.ref_offset_int_tlm, t.next_stn_comm, t.appr_stn_ilc_ibs_id, ")
+			.append("t.mac_code, t.crc, ").append(PacketPageCursor.SELECT_COLUMNS).append(' ')
+			.append("FROM ").append(database).append('.').append(table).append(" AS t ")
+			.append("PREWHERE t.message_datetime >= ? AND t.message_datetime < ? ");
+		if (type != null) {
+			sql.append("AND t.sub_pkt_type = ? ");
+		}
+		if (after != null) {
+			// The plain bound lets the primary key skip everything above the cursor
+			sql.append("AND t.message_datetime <= ? ")
+				.append("WHERE t.message_datetime < ? OR (t.message_datetime = ? AND (t.stationary_kavach_id < ? ")
+				.append("OR (t.stationary_kavach_id = ? AND t.message_sequence < ?))) ");
+		}
+		sql.append("ORDER BY ").append(PacketPageCursor.ORDER_BY).append(' ')
+			.append("LIMIT ? ");
+
+		try (PreparedStatement ps = connection.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			int idx = 1;
+			ps.setString(idx++, fromStr);
+			ps.setString(idx++, toStr);
+			if (type != null) ps.setString(idx++, type);
+			if (after != null) {
+				ps.setString(idx++, after.messageDatetime);
+				ps.setString(idx++, after.messageDatetime);
+				ps.setString(idx++, after.messageDatetime);
+				ps.setString(idx++, after.stationaryKavachId);
+				ps.setString(idx++, after.stationaryKavachId);
+				ps.setString(idx++, after.messageSequence);
+			}
+			ps.setInt(idx++, limit + 1);
+			ps.setFetchSize(Math.min(limit + 1, 10_000));
+			try (ResultSet rs = ps.executeQuery()) {
+				return PacketPageCursor.page(readRows(rs), limit);
+			}
+		}
+	}
+
 	public long fetchPacketsCount(LocalDateTime from, LocalDateTime to, String subPktType) throws Exception {
 		String type = (subPktType == null || subPktType.isBlank()) ? null : subPktType.trim();
 		if (type != null && !type.matches("\\d{4}")) {
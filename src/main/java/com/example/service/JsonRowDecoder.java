@@ -0,0 +1,291 @@
+package com.example.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Incremental decoder for ClickHouse's row-per-line JSON formats, on Jackson's non-blocking parser.
+ *
+ * Response buffers are fed to the parser as they arrive and released straight away; a row is
+ * emitted as soon as its closing bracket has been read, whichever buffer it ends in. Only the rows
+ * not yet requested downstream and the row being parsed are held, so callers can filter, transform
+ * and aggregate a result of any size while it is still streaming.
+ *
+ * Values are decoded as ClickHouse writes them: integers as Long (BigInteger beyond 64 bits),
+ * floats as Double, booleans, null, and everything else (including quoted 64-bit integers, dates
+ * and Decimals) as String. Nested arrays and objects become List and Map.
+ */
+public final class JsonRowDecoder {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    /**
+     * Columns of up to batchSize consecutive rows.
+     */
+    public static class ColumnBatch {
+        public final List<String> names;
+        public final List<List<Object>> columns;
+        public final int rowCount;
+
+        public ColumnBatch(List<String> names, List<List<Object>> columns, int rowCount) {
+            this.names = names;
+            this.columns = columns;
+            this.rowCount = rowCount;
+        }
+
+        public List<Object> column(String name) {
+            int i = names.indexOf(name);
+            return i < 0 ? null : columns.get(i);
+        }
+    }
+
+    private JsonRowDecoder() {
+    }
+
+    /**
+     * Rows of a FORMAT JSONEachRow body, keyed by column name in select order.
+     */
+    @SuppressWarnings("unchecked")
+    public static Flux<Map<String, Object>> eachRow(Flux<DataBuffer> body) {
+        return values(body).map(v -> {
+            if (!(v instanceof Map)) {
+                throw new IllegalStateException("JSONEachRow row is not an object: " + v);
+            }
+            return (Map<String, Object>) v;
+        });
+    }
+
+    /**
+     * Rows of a FORMAT JSONCompactEachRow body, values in select order.
+     */
+    @SuppressWarnings("unchecked")
+    public static Flux<List<Object>> compactEachRow(Flux<DataBuffer> body) {
+        return values(body).map(v -> {
+            if (!(v instanceof List)) {
+                throw new IllegalStateException("JSONCompactEachRow row is not an array: " + v);
+            }
+            return (List<Object>) v;
+        });
+    }
+
+    /**
+     * JSONEachRow rows regrouped by column. With names null the columns of the first row are used.
+     */
+    public static Flux<ColumnBatch> eachRowColumns(Flux<DataBuffer> body, List<String> names, int batchSize) {
+        return Flux.defer(() -> {
+            AtomicReference<List<String>> resolved = new AtomicReference<>(names);
+            return eachRow(body).buffer(batchSize).map(rows -> {
+                if (resolved.get() == null) {
+                    resolved.set(List.copyOf(rows.get(0).keySet()));
+                }
+                List<String> cols = resolved.get();
+                List<List<Object>> columns = newColumns(cols.size(), rows.size());
+                for (Map<String, Object> row : rows) {
+                    for (int c = 0; c < cols.size(); c++) {
+                        columns.get(c).add(row.get(cols.get(c)));
+                    }
+                }
+                return new ColumnBatch(cols, columns, rows.size());
+            });
+        });
+    }
+
+    /**
+     * JSONCompactEachRow rows regrouped by column; names are the selected columns, in order.
+     */
+    public static Flux<ColumnBatch> compactEachRowColumns(Flux<DataBuffer> body, List<String> names, int batchSize) {
+        return compactEachRow(body).buffer(batchSize).map(rows -> {
+            List<List<Object>> columns = newColumns(names.size(), rows.size());
+            for (List<Object> row : rows) {
+                if (row.size() != names.size()) {
+                    throw new IllegalStateException("Row has " + row.size() + " values, expected " + names.size());
+                }
+                for (int c = 0; c < names.size(); c++) {
+                    columns.get(c).add(row.get(c));
+                }
+            }
+            return new ColumnBatch(names, columns, rows.size());
+        });
+    }
+
+    /**
+     * Every top-level JSON value of the body, in order.
+     */
+    public static Flux<Object> values(Flux<DataBuffer> body) {
+        return Flux.defer(() -> {
+            Feed feed = new Feed();
+            return body.concatMapIterable(feed::feed)
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(feed.finish())))
+                    .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                    .doFinally(signal -> feed.close());
+        });
+    }
+
+    private static List<List<Object>> newColumns(int count, int rows) {
+        List<List<Object>> columns = new ArrayList<>(count);
+        for (int c = 0; c < count; c++) {
+            columns.add(new ArrayList<>(rows));
+        }
+        return columns;
+    }
+
+    // Parser state of one subscription; fed from one buffer at a time
+    private static final class Feed {
+
+        private static final class Frame {
+            final Object container;
+            final String name;
+
+            Frame(Object container, String name) {
+                this.container = container;
+                this.name = name;
+            }
+        }
+
+        private final JsonParser parser;
+        private final ByteArrayFeeder feeder;
+        private final Deque<Frame> open = new ArrayDeque<>();
+        private String field;
+        // The parser has consumed a chunk completely once it reports NOT_AVAILABLE, so one array is reused
+        private byte[] chunk = new byte[8192];
+
+        Feed() {
+            try {
+                this.parser = FACTORY.createNonBlockingByteArrayParser();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        }
+
+        List<Object> feed(DataBuffer buffer) {
+            int length;
+            try {
+                length = buffer.readableByteCount();
+                if (length == 0) {
+                    return Collections.emptyList();
+                }
+                if (chunk.length < length) {
+                    chunk = new byte[Math.max(length, chunk.length * 2)];
+                }
+                buffer.read(chunk, 0, length);
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+            try {
+                feeder.feedInput(chunk, 0, length);
+                return drain();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Malformed JSON row stream", e);
+            }
+        }
+
+        List<Object> finish() {
+            try {
+                feeder.endOfInput();
+                List<Object> rows = drain();
+                if (!open.isEmpty()) {
+                    throw new IllegalStateException("JSON row stream ended inside a row");
+                }
+                return rows;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Malformed JSON row stream", e);
+            }
+        }
+
+        void close() {
+            try {
+                parser.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private List<Object> drain() throws IOException {
+            List<Object> rows = null;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                Object completed;
+                switch (token) {
+                    case FIELD_NAME:
+                        field = parser.currentName();
+                        continue;
+                    case START_OBJECT:
+                        open.push(new Frame(new LinkedHashMap<String, Object>(), field));
+                        field = null;
+                        continue;
+                    case START_ARRAY:
+                        open.push(new Frame(new ArrayList<>(), field));
+                        field = null;
+                        continue;
+                    case END_OBJECT:
+                    case END_ARRAY: {
+                        Frame frame = open.pop();
+                        field = frame.name;
+                        completed = frame.container;
+                        break;
+                    }
+                    default:
+                        completed = scalar(token);
+                }
+                if (open.isEmpty()) {
+                    if (completed == null) {
+                        continue;
+                    }
+                    if (rows == null) {
+                        rows = new ArrayList<>();
+                    }
+                    rows.add(completed);
+                } else {
+                    add(open.peek().container, completed);
+                }
+                field = null;
+            }
+            return rows == null ? Collections.emptyList() : rows;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(Object container, Object value) {
+            if (container instanceof Map) {
+                ((Map<String, Object>) container).put(field, value);
+            } else {
+                ((List<Object>) container).add(value);
+            }
+        }
+
+        private Object scalar(JsonToken token) throws IOException {
+            switch (token) {
+                case VALUE_STRING:
+                    return parser.getText();
+                case VALUE_NUMBER_INT:
+                    return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER
+                            ? parser.getBigIntegerValue() : (Object) parser.getLongValue();
+                case VALUE_NUMBER_FLOAT:
+                    return parser.getDoubleValue();
+                case VALUE_TRUE:
+                    return Boolean.TRUE;
+                case VALUE_FALSE:
+                    return Boolean.FALSE;
+                case VALUE_NULL:
+                    return null;
+                default:
+                    throw new IllegalStateException("Unexpected JSON token " + token);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pauses the Kafka listener containers while ClickHouse cannot keep up, and resumes them once it has caught up.
+ *
+ * Three signals are checked against high- and low-water marks (kafka.backpressure.*):
+ * <ul>
+ *   <li>insert queue fill: the fullest of the active consumer's bounded insert queue
+ *       ({@link KafkaInsertBacklog}) and the insert limiters' wait queues relative to their limits;</li>
+ *   <li>active parts in the busiest partition of clickhouse.table (system.parts);</li>
+ *   <li>pending asynchronous inserts on the server (system.asynchronous_inserts).</li>
+ * </ul>
+ * The containers are paused when any signal is above its high-water mark and resumed once all of
+ * them are below their low-water marks. A paused container keeps polling without fetching, so the
+ * group sees no missed polls and nothing more is buffered in memory, instead of a listener
+ * blocking in an insert until max.poll.interval.ms expires and the group rebalances.
+ *
+ * A pause only takes effect once the listener returns to poll. The blocking consumer therefore
+ * bounds its wait for an insert (kafka.consumer.blocking.max-insert-wait-ms) and reports a stalled
+ * insert as a full queue, so it is paused rather than re-polling while the insert finishes. The
+ * other consumers bound their wait for queue space by kafka.consumer.max-listener-wait-ms and seek
+ * back what they could not hand over.
+ */
+@Service
+public class KafkaBackpressureController {
+
+	private final KafkaListenerEndpointRegistry registry;
+	private final ClickHouseRequestLimiter requestLimiter;
+	private final ObjectProvider<KafkaInsertBacklog> backlogs;
+	private final WebClient webClient;
+	private ScheduledExecutorService scheduler;
+
+	@Value("${kafka.backpressure.enabled:false}")
+	private boolean enabled;
+
+	@Value("${kafka.backpressure.check-interval-ms:200}")
+	private long checkIntervalMs;
+
+	@Value("${kafka.backpressure.server-check-interval-ms:10000}")
+	private long serverCheckIntervalMs;
+
+	@Value("${kafka.backpressure.queue-high:0.8}")
+	private double queueHigh;
+
+	@Value("${kafka.backpressure.queue-low:0.3}")
+	private double queueLow;
+
+	@Value("${kafka.backpressure.parts-high:300}")
+	private long partsHigh;
+
+	@Value("${kafka.backpressure.parts-low:150}")
+	private long partsLow;
+
+	@Value("${kafka.backpressure.async-inserts-high:1000}")
+	private long asyncInsertsHigh;
+
+	@Value("${kafka.backpressure.async-inserts-low:200}")
+	private long asyncInsertsLow;
+
+	@Value("${clickhouse.username}")
+	private String username;
+
+	@Value("${clickhouse.password}")
+	private String password;
+
+	@Value("${clickhouse.database}")
+	private String database;
+
+	@Value("${clickhouse.table}")
+	private String table;
+
+	private volatile boolean paused;
+	private volatile String pauseReason = "";
+	private volatile double queueFill;
+	private volatile long activeParts;
+	private volatile long asyncInserts;
+	private long lastServerCheckMillis;
+	private final AtomicLong pauses = new AtomicLong();
+	private final AtomicLong pausedMillis = new AtomicLong();
+	private volatile long pausedSinceMillis;
+
+	public KafkaBackpressureController(KafkaListenerEndpointRegistry registry,
+	                                   ClickHouseRequestLimiter requestLimiter,
+	                                   ObjectProvider<KafkaInsertBacklog> backlogs,
+	                                   WebClient optimizedClickHouseClient) {
+		this.registry = registry;
+		this.requestLimiter = requestLimiter;
+		this.backlogs = backlogs;
+		this.webClient = optimizedClickHouseClient;
+	}
+
+	@PostConstruct
+	public void start() {
+		if (!enabled) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "kafka-backpressure");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::check, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> m = new LinkedHashMap<>();
+		m.put("enabled", enabled);
+		m.put("paused", paused);
+		m.put("pauseReason", pauseReason);
+		m.put("queueFill", queueFill);
+		m.put("activeParts", activeParts);
+		m.put("asyncInserts", asyncInserts);
+		m.put("pauses", pauses.get());
+		m.put("pausedMillis", pausedMillis.get() + (paused ? System.currentTimeMillis() - pausedSinceMillis : 0));
+		return m;
+	}
+
+	private void check() {
+		try {
+			if (System.currentTimeMillis() - lastServerCheckMillis >= serverCheckIntervalMs) {
+				lastServerCheckMillis = System.currentTimeMillis();
+				readServerPressure();
+			}
+			queueFill = readQueueFill();
+
+			if (!paused) {
+				String reason = queueFill >= queueHigh ? "insert queue " + String.format("%.0f%%", queueFill * 100)
+					: activeParts >= partsHigh ? activeParts + " active parts"
+					: asyncInserts >= asyncInsertsHigh ? asyncInserts + " pending async inserts"
+					: null;
+				if (reason != null) {
+					setPaused(true, reason);
+				}
+			} else if (queueFill <= queueLow && activeParts <= partsLow && asyncInserts <= asyncInsertsLow) {
+				setPaused(false, "");
+			}
+		} catch (Exception e) {
+			System.err.println("Kafka backpressure check failed: " + e.getMessage());
+		}
+	}
+
+	private double readQueueFill() {
+		double fill = 0;
+		for (AdaptiveConcurrencyLimiter limiter : requestLimiter.insertLimiters()) {
+			fill = Math.max(fill, limiter.waiting() / (double) Math.max(1, limiter.currentLimit()));
+		}
+		for (KafkaInsertBacklog backlog : backlogs) {
+			fill = Math.max(fill, backlog.insertQueueFill());
+		}
+		return fill;
+	}
+
+	private void readServerPressure() {
+		String sql = "SELECT"
+			+ " (SELECT max(c) FROM (SELECT count() AS c FROM system.parts WHERE active AND database = '" + database
+			+ "' AND table = '" + table + "' GROUP BY partition)),"
+			+ " (SELECT count() FROM system.asynchronous_inserts)"
+			+ " FORMAT TabSeparated";
+		try {
+			String row = webClient.post()
+				.uri("/")
+				.headers(h -> h.setBasicAuth(username, password))
+				.contentType(MediaType.TEXT_PLAIN)
+				.bodyValue(sql)
+				.retrieve()
+				.bodyToMono(String.class)
+				.block(Duration.ofSeconds(5));
+			String[] cols = row == null ? new String[0] : row.trim().split("\t");
+			activeParts = cols.length > 0 ? parseCount(cols[0]) : 0;
+			asyncInserts = cols.length > 1 ? parseCount(cols[1]) : 0;
+		} catch (Exception e) {
+			// An unreachable server is handled by the insert path (spool / limiter); keep the last values
+			System.err.println("Kafka backpressure could not read ClickHouse parts: " + e.getMessage());
+		}
+	}
+
+	private static long parseCount(String value) {
+		String v = value.trim();
+		return v.isEmpty() || "\\N".equals(v) ? 0 : Long.parseLong(v);
+	}
+
+	private void setPaused(boolean pause, String reason) {
+		List<MessageListenerContainer> containers = List.copyOf(registry.getListenerContainers());
+		for (MessageListenerContainer container : containers) {
+			if (pause) {
+				container.pause();
+			} else {
+				container.resume();
+			}
+		}
+		long now = System.currentTimeMillis();
+		if (pause) {
+			pauses.incrementAndGet();
+			pausedSinceMillis = now;
+			System.out.println("Pausing Kafka consumption: " + reason);
+		} else {
+			pausedMillis.addAndGet(now - pausedSinceMillis);
+			System.out.println("Resuming Kafka consumption after " + (now - pausedSinceMillis) + " ms");
+		}
+		pauseReason = reason;
+		paused = pause;
+	}
+}
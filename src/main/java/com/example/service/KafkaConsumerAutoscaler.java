@@ -0,0 +1,296 @@
+package com.example.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.ListOffsetsResult;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resizes the Kafka listener containers from consumer lag and ClickHouse insert latency.
+ *
+ * Every kafka.autoscaler.interval-ms the group's lag on kafka.topic is read through the admin
+ * client and the insert latency from the insert concurrency limiter. Then:
+ * <ul>
+ *   <li>insert latency above latency-high-ms: ClickHouse is the bottleneck, one consumer less;</li>
+ *   <li>lag above lag-high and not shrinking: one consumer more (at most one per partition) and
+ *       max.poll.records doubled;</li>
+ *   <li>lag below lag-low: one consumer less and max.poll.records halved.</li>
+ * </ul>
+ * Concurrency stays within min-concurrency..max-concurrency and max.poll.records within
+ * min-poll-records..max-poll-records. Containers pick up new settings only when restarted, which
+ * rebalances the group, so at most one change is applied per cooldown-ms.
+ *
+ * Every decision is counted by action and the latest one is shown in {@link #stats()}. Scale-ups,
+ * scale-downs and holds for a reason (cooling down, already at a bound) are also logged and kept
+ * in the history of the last 50; steady "within bounds" holds are only counted, so they neither
+ * flood the log nor push the changes out of the history.
+ */
+@Service
+public class KafkaConsumerAutoscaler {
+
+	public static class Decision {
+		public final String time;
+		public final long lag;
+		public final double insertLatencyMs;
+		public final String action;
+		public final int concurrency;
+		public final int maxPollRecords;
+		public final String reason;
+
+		public Decision(long lag, double insertLatencyMs, String action, int concurrency, int maxPollRecords, String reason) {
+			this.time = Instant.now().toString();
+			this.lag = lag;
+			this.insertLatencyMs = insertLatencyMs;
+			this.action = action;
+			this.concurrency = concurrency;
+			this.maxPollRecords = maxPollRecords;
+			this.reason = reason;
+		}
+
+		@Override
+		public String toString() {
+			return "Kafka autoscaler " + action + ": concurrency=" + concurrency + ", max.poll.records=" + maxPollRecords
+				+ ", lag=" + lag + ", insertLatencyMs=" + String.format("%.1f", insertLatencyMs) + " (" + reason + ")";
+		}
+	}
+
+	private static final int HISTORY = 50;
+
+	private final KafkaListenerEndpointRegistry registry;
+	private final ClickHouseRequestLimiter requestLimiter;
+	// Guarded by decisions
+	private final Deque<Decision> decisions = new ArrayDeque<>();
+	private final Map<String, Long> decisionCounts = new LinkedHashMap<>();
+	private Decision lastDecision;
+	private ScheduledExecutorService scheduler;
+	private Admin admin;
+
+	@Value("${kafka.autoscaler.enabled:false}")
+	private boolean enabled;
+
+	@Value("${kafka.bootstrap-servers}")
+	private String bootstrapServers;
+
+	@Value("${kafka.topic:clickhouse-input}")
+	private String topic;
+
+	@Value("${kafka.consumer.group-id:clickhouse-batch-consumer}")
+	private String groupId;
+
+	@Value("${kafka.autoscaler.interval-ms:30000}")
+	private long intervalMs;
+
+	@Value("${kafka.autoscaler.cooldown-ms:120000}")
+	private long cooldownMs;
+
+	@Value("${kafka.autoscaler.min-concurrency:1}")
+	private int minConcurrency;
+
+	@Value("${kafka.autoscaler.max-concurrency:8}")
+	private int maxConcurrency;
+
+	@Value("${kafka.autoscaler.min-poll-records:1000}")
+	private int minPollRecords;
+
+	@Value("${kafka.autoscaler.max-poll-records:50000}")
+	private int maxPollRecords;
+
+	@Value("${kafka.autoscaler.lag-high:100000}")
+	private long lagHigh;
+
+	@Value("${kafka.autoscaler.lag-low:5000}")
+	private long lagLow;
+
+	@Value("${kafka.autoscaler.latency-high-ms:2000}")
+	private double latencyHighMs;
+
+	@Value("${kafka.consumer.concurrency:2}")
+	private volatile int concurrency;
+
+	@Value("${kafka.consumer.max-poll-records:6000}")
+	private volatile int pollRecords;
+
+	private long previousLag = -1;
+	private long lastChangeMillis;
+
+	public KafkaConsumerAutoscaler(KafkaListenerEndpointRegistry registry, ClickHouseRequestLimiter requestLimiter) {
+		this.registry = registry;
+		this.requestLimiter = requestLimiter;
+	}
+
+	@PostConstruct
+	public void start() {
+		if (!enabled) {
+			return;
+		}
+		Properties props = new Properties();
+		props.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+		admin = Admin.create(props);
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "kafka-autoscaler");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::evaluate, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (admin != null) {
+			admin.close();
+		}
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> m = new LinkedHashMap<>();
+		m.put("enabled", enabled);
+		m.put("concurrency", concurrency);
+		m.put("maxPollRecords", pollRecords);
+		synchronized (decisions) {
+			m.put("decisionCounts", new LinkedHashMap<>(decisionCounts));
+			m.put("lastDecision", lastDecision);
+			m.put("decisions", new ArrayList<>(decisions));
+		}
+		return m;
+	}
+
+	private void evaluate() {
+		try {
+			Lag lag = readLag();
+			// The consumers insert through the bulk path, or the routing path with routing.insert.enabled
+			double latencyMs = Math.max(requestLimiter.insertLimiter("bulk").shortRttMillis(),
+				requestLimiter.insertLimiter("routing").shortRttMillis());
+			boolean coolingDown = System.currentTimeMillis() - lastChangeMillis < cooldownMs;
+			int maxForTopic = Math.min(maxConcurrency, Math.max(1, lag.partitions));
+
+			int newConcurrency = concurrency;
+			int newPollRecords = pollRecords;
+			String reason;
+			if (latencyMs > latencyHighMs) {
+				newConcurrency = Math.max(minConcurrency, concurrency - 1);
+				reason = "insert latency above " + latencyHighMs + " ms";
+			} else if (lag.total > lagHigh && previousLag >= 0 && lag.total >= previousLag) {
+				newConcurrency = Math.min(maxForTopic, concurrency + 1);
+				newPollRecords = Math.min(maxPollRecords, pollRecords * 2);
+				reason = "lag above " + lagHigh + " and not shrinking";
+			} else if (lag.total < lagLow) {
+				newConcurrency = Math.max(minConcurrency, concurrency - 1);
+				newPollRecords = Math.max(minPollRecords, pollRecords / 2);
+				reason = "lag below " + lagLow;
+			} else {
+				reason = "within bounds";
+			}
+			previousLag = lag.total;
+
+			boolean change = newConcurrency != concurrency || newPollRecords != pollRecords;
+			if (change && coolingDown) {
+				record(new Decision(lag.total, latencyMs, "hold", concurrency, pollRecords, reason + ", cooling down"));
+				return;
+			}
+			if (!change) {
+				record(new Decision(lag.total, latencyMs, "hold", concurrency, pollRecords, reason));
+				return;
+			}
+			String action = newConcurrency > concurrency || newPollRecords > pollRecords ? "scale-up" : "scale-down";
+			apply(newConcurrency, newPollRecords);
+			lastChangeMillis = System.currentTimeMillis();
+			record(new Decision(lag.total, latencyMs, action, newConcurrency, newPollRecords, reason));
+		} catch (Exception e) {
+			System.err.println("Kafka autoscaler evaluation failed: " + e.getMessage());
+		}
+	}
+
+	private void apply(int newConcurrency, int newPollRecords) {
+		for (MessageListenerContainer container : registry.getListenerContainers()) {
+			if (!(container instanceof ConcurrentMessageListenerContainer<?, ?> concurrent)) {
+				continue;
+			}
+			boolean running = concurrent.isRunning();
+			if (running) {
+				concurrent.stop();
+			}
+			concurrent.setConcurrency(newConcurrency);
+			concurrent.getContainerProperties().getKafkaConsumerProperties()
+				.setProperty(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(newPollRecords));
+			if (running) {
+				concurrent.start();
+			}
+		}
+		concurrency = newConcurrency;
+		pollRecords = newPollRecords;
+	}
+
+	private static final class Lag {
+		final long total;
+		final int partitions;
+
+		Lag(long total, int partitions) {
+			this.total = total;
+			this.partitions = partitions;
+		}
+	}
+
+	private Lag readLag() throws Exception {
+		List<TopicPartition> partitions = new ArrayList<>();
+		admin.describeTopics(List.of(topic)).allTopicNames().get(10, TimeUnit.SECONDS).get(topic).partitions()
+			.forEach(p -> partitions.add(new TopicPartition(topic, p.partition())));
+
+		Map<TopicPartition, OffsetSpec> latest = new HashMap<>();
+		partitions.forEach(tp -> latest.put(tp, OffsetSpec.latest()));
+		Map<TopicPartition, ListOffsetsResult.ListOffsetsResultInfo> ends =
+			admin.listOffsets(latest).all().get(10, TimeUnit.SECONDS);
+		Map<TopicPartition, OffsetAndMetadata> committed =
+			admin.listConsumerGroupOffsets(groupId).partitionsToOffsetAndMetadata().get(10, TimeUnit.SECONDS);
+
+		long total = 0;
+		for (TopicPartition tp : partitions) {
+			long end = ends.get(tp).offset();
+			OffsetAndMetadata offset = committed.get(tp);
+			total += Math.max(0, end - (offset != null ? offset.offset() : 0));
+		}
+		return new Lag(total, partitions.size());
+	}
+
+	private void record(Decision decision) {
+		boolean steady = "hold".equals(decision.action) && decision.reason.equals("within bounds");
+		if (!steady) {
+			System.out.println(decision);
+		}
+		synchronized (decisions) {
+			decisionCounts.merge(steady ? "hold-steady" : decision.action, 1L, Long::sum);
+			lastDecision = decision;
+			if (!steady) {
+				decisions.addLast(decision);
+				if (decisions.size() > HISTORY) {
+					decisions.removeFirst();
+				}
+			}
+		}
+	}
+}
@@ -1,55 +1,207 @@
 package com.example.service;
 
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Default consumer: decode and insert on the listener thread (kafka.consumer.mode=blocking).
+ *
+ * The listener waits for its inserts at most kafka.consumer.blocking.max-insert-wait-ms, which must
+ * stay below max.poll.interval.ms. An insert still running then is left to finish in the
+ * background: the partitions are sought back to the batch's first offsets and the listener returns
+ * without acknowledging, so the consumer keeps polling and the batch is delivered again. The next
+ * batch first waits for that insert, and while it is outstanding {@link #insertQueueFill()} reports
+ * a full queue, so the backpressure controller pauses the container instead of letting it re-poll.
+ * Once the abandoned insert has succeeded, redelivered records up to the last offset it covered
+ * in each partition are acknowledged without being inserted again; if it failed, they are.
+ */
 @Service
-public class KafkaConsumerService {
+@ConditionalOnProperty(name = "kafka.consumer.mode", havingValue = "blocking", matchIfMissing = true)
+public class KafkaConsumerService implements KafkaInsertBacklog {
 
 	private final ClickHouseBulkInsertService clickHouseBulkInsertService;
+	private final TableRoutingInsertEngine routingEngine;
+	private final KavachPacketCodec codec;
+	private final KafkaRedeliveryFilter redeliveryFilter;
+	private final long maxInsertWaitMs;
+	// Per listener thread: when its current or abandoned insert started (System.nanoTime)
+	private final Map<Thread, Long> insertsSince = new ConcurrentHashMap<>();
+	// Per listener thread: an insert the listener stopped waiting for
+	private final ThreadLocal<Abandoned> abandoned = new ThreadLocal<>();
 
-	public KafkaConsumerService(ClickHouseBulkInsertService clickHouseBulkInsertService) {
+	// Fan records out to per-table buffers using routing.insert.rules instead of one bulk insert
+	@Value("${routing.insert.enabled:false}")
+	private boolean routingEnabled;
+
+	public KafkaConsumerService(ClickHouseBulkInsertService clickHouseBulkInsertService,
+	                            TableRoutingInsertEngine routingEngine,
+	                            KavachPacketCodec codec,
+	                            KafkaRedeliveryFilter redeliveryFilter,
+	                            @Value("${kafka.consumer.blocking.max-insert-wait-ms:120000}") long maxInsertWaitMs) {
 		this.clickHouseBulkInsertService = clickHouseBulkInsertService;
+		this.routingEngine = routingEngine;
+		this.codec = codec;
+		this.redeliveryFilter = redeliveryFilter;
+		this.maxInsertWaitMs = maxInsertWaitMs;
 	}
 
-	@KafkaListener(topics = "${kafka.topic:clickhouse-input}", containerFactory = "kafkaListenerContainerFactory")
-	public void onBatch(List<ConsumerRecord<String, String>> records, Acknowledgment ack) {
+	// Raw values: each one is a binary Kavach packet or a JSON document, detected per message
+	@KafkaListener(topics = "${kafka.topic:clickhouse-input}", containerFactory = "bytesKafkaListenerContainerFactory")
+	public void onBatch(List<ConsumerRecord<String, byte[]>> records, Acknowledgment ack, Consumer<?, ?> consumer)
+			throws InterruptedException {
 		if (records == null || records.isEmpty()) {
 			ack.acknowledge();
 			return;
 		}
+		List<ConsumerRecord<String, byte[]>> fresh = records;
+		// A succeeded abandoned insert whose records this batch skipped
+		Abandoned covered = null;
+		Abandoned previous = abandoned.get();
+		if (previous != null) {
+			Boolean succeeded = settle(previous.insert);
+			if (succeeded == null) {
+				redeliver(records, consumer);
+				return;
+			}
+			abandoned.remove();
+			if (succeeded) {
+				covered = previous;
+				fresh = previous.notCovered(records);
+				if (fresh.isEmpty()) {
+					ack.acknowledge();
+					return;
+				}
+			}
+		}
 
-		List<Map<String, Object>> batch = new ArrayList<>(records.size());
-		for (ConsumerRecord<String, String> rec : records) {
+		List<Map<String, Object>> decoded = new ArrayList<>(fresh.size());
+		for (ConsumerRecord<String, byte[]> rec : fresh) {
 			try {
-				Map<String, Object> map = new com.fasterxml.jackson.databind.ObjectMapper().readValue(rec.value(), HashMap.class);
-				batch.add(map);
+				decoded.add(codec.toMap(rec.value()));
 			} catch (Exception ignored) {
 			}
 		}
+		// Redelivered rows that were already inserted (kafka.dedup.enabled)
+		List<Map<String, Object>> batch = redeliveryFilter.unseen(decoded);
+
+		CompletableFuture<Void> inserted;
+		if (routingEnabled) {
+			// Offsets are committed only after every destination table has inserted its rows
+			try {
+				inserted = routingEngine.routeAll(batch).thenRun(() -> redeliveryFilter.inserted(batch));
+			} catch (Exception e) {
+				throw new RuntimeException("Failed routed insert to ClickHouse", e);
+			}
+		} else {
+			// Rows of one partition are kept together so that each chunk creates as few parts as possible
+			List<Map<String, Object>> grouped = clickHouseBulkInsertService.groupByPartition(clickHouseBulkInsertService.table(), batch);
+			// Process in chunks of 6000 to guarantee large bulk inserts, but also handle smaller batches
+			final int CHUNK = 6000;
+			List<List<Map<String, Object>>> chunks = new ArrayList<>();
+			for (int from = 0; from < grouped.size(); from += CHUNK) {
+				chunks.add(grouped.subList(from, Math.min(from + CHUNK, grouped.size())));
+			}
+			inserted = Flux.fromIterable(chunks)
+				.concatMap(chunk -> clickHouseBulkInsertService.insertAsync(chunk)
+					.doOnSuccess(v -> redeliveryFilter.inserted(chunk)))
+				.then()
+				.toFuture();
+		}
 
-		// Process in chunks of 6000 to guarantee large bulk inserts, but also handle smaller batches
-		int from = 0;
-		final int CHUNK = 6000;
+		Thread listener = Thread.currentThread();
+		insertsSince.put(listener, System.nanoTime());
+		inserted.whenComplete((v, e) -> insertsSince.remove(listener));
 		try {
-			while (from < batch.size()) {
-				int to = Math.min(from + CHUNK, batch.size());
-				clickHouseBulkInsertService.insertJsonEachRow(batch.subList(from, to));
-				from = to;
+			inserted.get(maxInsertWaitMs, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			System.err.println("ClickHouse insert still running after " + maxInsertWaitMs + " ms; redelivering "
+				+ fresh.size() + " records once it has finished");
+			abandoned.set(new Abandoned(inserted, fresh));
+			redeliver(fresh, consumer);
+			return;
+		} catch (ExecutionException e) {
+			if (covered != null) {
+				// The redelivered batch starts with the skipped records again; keep skipping them
+				abandoned.set(covered);
 			}
-			ack.acknowledge();
-		} catch (Exception e) {
-			throw new RuntimeException("Failed bulk insert to ClickHouse", e);
+			throw new RuntimeException(routingEnabled ? "Failed routed insert to ClickHouse" : "Failed bulk insert to ClickHouse",
+				e.getCause());
 		}
+		ack.acknowledge();
+	}
+
+	// Stalled inserts fill the queue: 1 once the listener would stop waiting for them
+	@Override
+	public double insertQueueFill() {
+		long now = System.nanoTime();
+		double fill = 0;
+		for (long since : insertsSince.values()) {
+			fill = Math.max(fill, (now - since) / 1_000_000.0 / maxInsertWaitMs);
+		}
+		return Math.min(1.0, fill);
+	}
+
+	// Outcome of the abandoned insert: true if it succeeded, false if it failed, null if still running
+	private Boolean settle(CompletableFuture<Void> insert) throws InterruptedException {
+		try {
+			insert.get(maxInsertWaitMs, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return null;
+		} catch (ExecutionException e) {
+			System.err.println("Abandoned ClickHouse insert failed; inserting its records again: " + e.getCause());
+			return false;
+		}
+	}
+
+	// Seek back to the first offset of each partition in the batch so it is polled again
+	private static void redeliver(List<ConsumerRecord<String, byte[]>> records, Consumer<?, ?> consumer) {
+		Map<TopicPartition, Long> first = new HashMap<>();
+		for (ConsumerRecord<String, byte[]> rec : records) {
+			first.merge(new TopicPartition(rec.topic(), rec.partition()), rec.offset(), Math::min);
+		}
+		first.forEach(consumer::seek);
 	}
-}
 
+	// An insert the listener stopped waiting for and the last offset it covers in each partition
+	private static final class Abandoned {
+		final CompletableFuture<Void> insert;
+		final Map<TopicPartition, Long> lastOffsets = new HashMap<>();
 
+		Abandoned(CompletableFuture<Void> insert, List<ConsumerRecord<String, byte[]>> records) {
+			this.insert = insert;
+			for (ConsumerRecord<String, byte[]> rec : records) {
+				lastOffsets.merge(new TopicPartition(rec.topic(), rec.partition()), rec.offset(), Math::max);
+			}
+		}
 
+		// The records past what the insert covered (a re-poll can also bring newer records)
+		List<ConsumerRecord<String, byte[]>> notCovered(List<ConsumerRecord<String, byte[]>> records) {
+			List<ConsumerRecord<String, byte[]>> rest = new ArrayList<>(records.size());
+			for (ConsumerRecord<String, byte[]> rec : records) {
+				Long last = lastOffsets.get(new TopicPartition(rec.topic(), rec.partition()));
+				if (last == null || rec.offset() > last) {
+					rest.add(rec);
+				}
+			}
+			return rest;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package com.example.service;
+
+/**
+ * Implemented by Kafka consumers that keep inserts outstanding after the listener returns.
+ */
+public interface KafkaInsertBacklog {
+
+	/**
+	 * How full the consumer's bounded insert queue is, from 0 (empty) to 1 (callers would block).
+	 */
+	double insertQueueFill();
+}
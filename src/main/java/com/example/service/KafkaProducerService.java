@@ -1,25 +1,67 @@
 package com.example.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Service
 public class KafkaProducerService {
 
 	private final KafkaTemplate<String, String> kafkaTemplate;
-	private final NativeConcurrentInsertService recordFactory;
+	private final KafkaTemplate<String, byte[]> bytesKafkaTemplate;
+	private final KafkaTemplate<String, byte[]> streamingKafkaTemplate;
+	private final KavachRriSerializer serializer;
+	private final KavachPacketCodec codec;
+	private final ObjectMapper objectMapper = new ObjectMapper();
 
 	@Value("${kafka.topic:clickhouse-input}")
 	private String topic;
 
+	// json: one JSON document per message; binary: KavachPacketCodec packets (consumers read both)
+	@Value("${kafka.producer.format:json}")
+	private String format;
+
+	// Sends awaiting their broker ack at any time during a streamed publish
+	@Value("${kafka.producer.stream.max-in-flight:10000}")
+	private int streamMaxInFlight;
+
+	// Records per reported batch of a streamed publish
+	@Value("${kafka.producer.stream.report-batch-size:10000}")
+	private int streamReportBatchSize;
+
 	public KafkaProducerService(KafkaTemplate<String, String> kafkaTemplate,
-	                           NativeConcurrentInsertService recordFactory) {
+	                           KafkaTemplate<String, byte[]> bytesKafkaTemplate,
+	                           KafkaTemplate<String, byte[]> streamingKafkaTemplate,
+	                           KavachRriSerializer serializer,
+	                           KavachPacketCodec codec) {
 		this.kafkaTemplate = kafkaTemplate;
-		this.recordFactory = recordFactory;
+		this.bytesKafkaTemplate = bytesKafkaTemplate;
+		this.streamingKafkaTemplate = streamingKafkaTemplate;
+		this.serializer = serializer;
+		this.codec = codec;
+	}
+
+	private boolean binary() {
+		return "binary".equalsIgnoreCase(format);
 	}
 
 	public void send(String key, String value) {
@@ -27,8 +69,12 @@ public class KafkaProducerService {
 	}
 
 	public void sendJson(Map<String, Object> record) {
+		if (binary()) {
+			bytesKafkaTemplate.send(topic, codec.encode(record));
+			return;
+		}
 		try {
-			String json = new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(record);
+			String json = objectMapper.writeValueAsString(record);
 			kafkaTemplate.send(topic, json);
 		} catch (Exception e) {
 			throw new RuntimeException("Failed to serialize message", e);
@@ -36,21 +82,207 @@ public class KafkaProducerService {
 	}
 
 	public void send6000FromFactory() {
-		com.fasterxml.jackson.databind.ObjectMapper mapper = new com.fasterxml.jackson.databind.ObjectMapper();
+		long base = KavachRriRecord.wallClockSecondsNow();
+		KavachRriRecord record = new KavachRriRecord();
+		if (binary()) {
+			bytesKafkaTemplate.executeInTransaction(kt -> {
+				for (int i = 1; i <= 6000; i++) {
+					kt.send(topic, codec.encode(record.set(i, base)));
+				}
+				kt.flush();
+				return null;
+			});
+			return;
+		}
 		kafkaTemplate.executeInTransaction(kt -> {
 			for (int i = 1; i <= 6000; i++) {
-				Map<String, Object> record = recordFactory.createRecordData(i);
-				try {
-					String json = mapper.writeValueAsString(record);
-					kt.send(topic, json);
-				} catch (Exception e) {
-					throw new RuntimeException("Failed to serialize record #" + i, e);
-				}
+				byte[] line = serializer.jsonLine(record.set(i, base));
+				// Drop the JSONEachRow newline; each Kafka message carries one object
+				kt.send(topic, new String(line, 0, line.length - 1, StandardCharsets.UTF_8));
 			}
 			kt.flush();
 			return null;
 		});
 	}
-}
 
+	public static class BatchResult {
+		public final int batch;
+		public final int records;
+		public final long sent;
+		public final long failed;
+		public final long invalid;
+		public final double millis;
+		public final double recordsPerSecond;
+		public final String firstError;
+
+		public BatchResult(int batch, int records, long sent, long failed, long invalid, long nanos, String firstError) {
+			this.batch = batch;
+			this.records = records;
+			this.sent = sent;
+			this.failed = failed;
+			this.invalid = invalid;
+			this.millis = nanos / 1_000_000.0;
+			this.recordsPerSecond = sent * 1_000_000_000.0 / Math.max(1, nanos);
+			this.firstError = firstError;
+		}
+	}
+
+	public static class PublishResult {
+		public final String format;
+		public final long records;
+		public final long sent;
+		public final long failed;
+		public final long invalid;
+		public final double millis;
+		public final double recordsPerSecond;
+		public final List<BatchResult> batches;
+
+		public PublishResult(String format, List<BatchResult> batches, long nanos) {
+			long records = 0;
+			long sent = 0;
+			long failed = 0;
+			long invalid = 0;
+			for (BatchResult b : batches) {
+				records += b.records;
+				sent += b.sent;
+				failed += b.failed;
+				invalid += b.invalid;
+			}
+			this.format = format;
+			this.records = records;
+			this.sent = sent;
+			this.failed = failed;
+			this.invalid = invalid;
+			this.millis = nanos / 1_000_000.0;
+			this.recordsPerSecond = sent * 1_000_000_000.0 / Math.max(1, nanos);
+			this.batches = batches;
+		}
+	}
+
+	/**
+	 * Publish a streamed NDJSON body, one message per line, without materializing it.
+	 *
+	 * Lines are forwarded as they are (json) or re-encoded as Kavach packets (binary) and sent
+	 * through the idempotent, non-transactional streaming producer. At most
+	 * kafka.producer.stream.max-in-flight sends await their ack across the whole body; the body is
+	 * read no faster than the broker acknowledges. Every report-batch-size lines are reported with
+	 * their throughput (from their first line read to their last ack) and their failed and invalid
+	 * counts; the batches only group the results, sends of consecutive batches overlap.
+	 */
+	public Mono<PublishResult> publishNdjson(Flux<DataBuffer> body) {
+		long t0 = System.nanoTime();
+		Map<Integer, BatchTally> tallies = new ConcurrentHashMap<>();
+		return ndjsonLines(body)
+			.publishOn(Schedulers.boundedElastic())
+			.index()
+			.flatMap(indexed -> {
+				// The mapper runs in line order, so a batch's clock starts when its first line is read
+				BatchTally tally = tallies.computeIfAbsent((int) (indexed.getT1() / streamReportBatchSize) + 1, BatchTally::new);
+				tally.records.incrementAndGet();
+				byte[] value;
+				try {
+					value = messageValue(indexed.getT2());
+				} catch (Exception e) {
+					tally.invalid.incrementAndGet();
+					tally.firstError.compareAndSet(null, "invalid line: " + e.getMessage());
+					tally.done();
+					return Mono.empty();
+				}
+				return Mono.defer(() -> Mono.fromFuture(streamingKafkaTemplate.send(topic, value)))
+					.doOnSuccess(r -> tally.sent.incrementAndGet())
+					.onErrorResume(e -> {
+						tally.failed.incrementAndGet();
+						tally.firstError.compareAndSet(null, e.getMessage());
+						return Mono.empty();
+					})
+					.doFinally(signal -> tally.done());
+			}, streamMaxInFlight)
+			.then(Mono.fromSupplier(() -> {
+				List<BatchResult> batches = new ArrayList<>(tallies.size());
+				for (int batch = 1; batch <= tallies.size(); batch++) {
+					batches.add(tallies.get(batch).result());
+				}
+				return new PublishResult(binary() ? "binary" : "json", batches, System.nanoTime() - t0);
+			}));
+	}
+
+	// Counts of one report batch, updated by the acks of its lines
+	private static final class BatchTally {
+		final int batch;
+		final long startNanos = System.nanoTime();
+		final AtomicInteger records = new AtomicInteger();
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong invalid = new AtomicLong();
+		final AtomicReference<String> firstError = new AtomicReference<>();
+		final AtomicLong lastNanos = new AtomicLong(startNanos);
+
+		BatchTally(int batch) {
+			this.batch = batch;
+		}
+
+		void done() {
+			lastNanos.accumulateAndGet(System.nanoTime(), Math::max);
+		}
+
+		BatchResult result() {
+			return new BatchResult(batch, records.get(), sent.get(), failed.get(), invalid.get(),
+				lastNanos.get() - startNanos, firstError.get());
+		}
+	}
+
+	private byte[] messageValue(byte[] line) throws Exception {
+		if (binary()) {
+			return codec.encode(objectMapper.readValue(line, HashMap.class));
+		}
+		int i = 0;
+		while (i < line.length && Character.isWhitespace(line[i])) {
+			i++;
+		}
+		if (i == line.length || line[i] != '{') {
+			throw new IllegalArgumentException("not a JSON object");
+		}
+		return line;
+	}
+
+	// Splits the body on '\n' as it arrives; blank lines are dropped and a trailing '\r' is kept out
+	private static Flux<byte[]> ndjsonLines(Flux<DataBuffer> body) {
+		return Flux.defer(() -> {
+			ByteArrayOutputStream carry = new ByteArrayOutputStream();
+			return body.concatMapIterable(buffer -> {
+				byte[] chunk = new byte[buffer.readableByteCount()];
+				buffer.read(chunk);
+				DataBufferUtils.release(buffer);
+				List<byte[]> lines = new ArrayList<>();
+				int start = 0;
+				for (int i = 0; i < chunk.length; i++) {
+					if (chunk[i] == '\n') {
+						carry.write(chunk, start, i - start);
+						addLine(lines, carry.toByteArray());
+						carry.reset();
+						start = i + 1;
+					}
+				}
+				carry.write(chunk, start, chunk.length - start);
+				return lines;
+			}).concatWith(Flux.defer(() -> {
+				List<byte[]> last = new ArrayList<>(1);
+				addLine(last, carry.toByteArray());
+				return Flux.fromIterable(last);
+			}));
+		});
+	}
 
+	private static void addLine(List<byte[]> lines, byte[] line) {
+		int end = line.length;
+		if (end > 0 && line[end - 1] == '\r') {
+			end--;
+		}
+		for (int i = 0; i < end; i++) {
+			if (!Character.isWhitespace(line[i])) {
+				lines.add(end == line.length ? line : Arrays.copyOf(line, end));
+				return;
+			}
+		}
+	}
+}
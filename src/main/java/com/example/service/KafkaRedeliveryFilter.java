@@ -0,0 +1,122 @@
+package com.example.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops Kafka records that were already inserted, before they are serialized and sent again.
+ *
+ * A record is keyed on (stationary_kavach_id, message_sequence, message_datetime). Keys are added
+ * to a {@link RotatingBloomFilter} only after their insert has succeeded, so a batch that failed is
+ * never suppressed when it is redelivered; one that was inserted but whose offsets were not
+ * committed (a failed acknowledge, a rebalance) is. Records missing all three key fields always
+ * pass.
+ *
+ * A Bloom filter has no false negatives but does have false positives: with probability
+ * kafka.dedup.false-positive-rate a new record is taken for a duplicate and dropped. Memory is
+ * fixed by kafka.dedup.expected-keys (per window) and the false-positive rate; keys are remembered
+ * for at least kafka.dedup.window-ms.
+ */
+@Service
+public class KafkaRedeliveryFilter {
+
+	private static final String[] KEY_FIELDS = {"stationary_kavach_id", "message_sequence", "message_datetime"};
+
+	private final boolean enabled;
+	private final RotatingBloomFilter filter;
+	private final AtomicLong checked = new AtomicLong();
+	private final AtomicLong suppressed = new AtomicLong();
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong unkeyed = new AtomicLong();
+
+	public KafkaRedeliveryFilter(@Value("${kafka.dedup.enabled:false}") boolean enabled,
+	                             @Value("${kafka.dedup.expected-keys:5000000}") long expectedKeys,
+	                             @Value("${kafka.dedup.false-positive-rate:0.0001}") double falsePositiveRate,
+	                             @Value("${kafka.dedup.window-ms:600000}") long windowMs) {
+		this.enabled = enabled;
+		this.filter = enabled ? new RotatingBloomFilter(expectedKeys, falsePositiveRate, windowMs) : null;
+	}
+
+	public boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * The rows whose keys have not been inserted yet (all rows when disabled).
+	 */
+	public List<Map<String, Object>> unseen(List<Map<String, Object>> rows) {
+		if (!enabled) {
+			return rows;
+		}
+		List<Map<String, Object>> fresh = new ArrayList<>(rows.size());
+		for (Map<String, Object> row : rows) {
+			long key = key(row);
+			checked.incrementAndGet();
+			if (key == 0) {
+				unkeyed.incrementAndGet();
+			} else if (filter.mightContain(key)) {
+				suppressed.incrementAndGet();
+				continue;
+			}
+			fresh.add(row);
+		}
+		return fresh;
+	}
+
+	/**
+	 * Remember the keys of rows ClickHouse has accepted.
+	 */
+	public void inserted(List<Map<String, Object>> rows) {
+		if (!enabled) {
+			return;
+		}
+		for (Map<String, Object> row : rows) {
+			long key = key(row);
+			if (key != 0) {
+				filter.add(key);
+				recorded.incrementAndGet();
+			}
+		}
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> m = new LinkedHashMap<>();
+		m.put("enabled", enabled);
+		m.put("checkedRecords", checked.get());
+		m.put("suppressedRecords", suppressed.get());
+		m.put("recordedKeys", recorded.get());
+		m.put("unkeyedRecords", unkeyed.get());
+		if (filter != null) {
+			m.put("memoryBytes", filter.memoryBytes());
+			m.put("hashFunctions", filter.hashFunctions());
+			m.put("keysInCurrentWindow", filter.currentKeys());
+			m.put("rotations", filter.rotations());
+			m.put("configuredFalsePositiveRate", filter.configuredFalsePositiveRate());
+			m.put("estimatedFalsePositiveRate", filter.estimatedFalsePositiveRate());
+		}
+		return m;
+	}
+
+	// 0 means "no key": the record has none of the key fields (counted by unseen only)
+	private long key(Map<String, Object> row) {
+		long h = 0;
+		boolean any = false;
+		for (int i = 0; i < KEY_FIELDS.length; i++) {
+			Object value = row.get(KEY_FIELDS[i]);
+			if (value != null) {
+				any = true;
+			}
+			h = RotatingBloomFilter.hash(h * 31 + i, value == null ? "" : value.toString());
+		}
+		if (!any) {
+			return 0;
+		}
+		return h == 0 ? 1 : h;
+	}
+}
@@ -0,0 +1,478 @@
+package com.example.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, schema-versioned binary form of a Kavach RRI packet for Kafka message values.
+ *
+ * Layout: MAGIC, schema version (1 byte), then one entry per non-null field:
+ * varint tag = (field id &lt;&lt; 3 | wire type), followed by the value.
+ * <ul>
+ *   <li>VARINT: zig-zag varint (integers);</li>
+ *   <li>DICT: varint code of a known value of a low-cardinality text column;</li>
+ *   <li>TEXT: varint length + UTF-8;</li>
+ *   <li>DATETIME: "yyyy-MM-dd HH:mm:ss" as zig-zag varint wall-clock seconds;</li>
+ *   <li>DIGITS: all-digit text as varint length + varint value (keeps leading zeros);</li>
+ *   <li>FLOAT64, BOOL, and JSON (length-delimited JSON text for nested arrays/objects).</li>
+ * </ul>
+ * Field id 0 is a named field: the tag is followed by the field name, so producers can send
+ * columns the registry does not know yet.
+ *
+ * Evolution rules: {@link #FIELDS} and every {@link #DICTIONARIES} entry are append-only; a new
+ * field or dictionary value bumps {@link #SCHEMA_VERSION}. Decoders skip field ids they do not know
+ * (every wire type is self-delimiting), so older consumers read newer messages minus the new
+ * columns; a dictionary code newer than the decoder is rejected, because its text is unknown.
+ *
+ * A packet is about a tenth of its JSON size: constant text columns cost two bytes, numbers two
+ * to four, and field names are not repeated in every message.
+ */
+@Component
+public class KavachPacketCodec {
+
+    public static final byte MAGIC = (byte) 0xB7; // never the first byte of UTF-8 JSON
+    public static final int SCHEMA_VERSION = 1;
+
+    private static final int VARINT = 0;
+    private static final int DICT = 1;
+    private static final int TEXT = 2;
+    private static final int DATETIME = 3;
+    private static final int DIGITS = 4;
+    private static final int FLOAT64 = 5;
+    private static final int BOOL = 6;
+    private static final int JSON = 7;
+
+    /** Field registry, schema version 1: id = position + 1. Append only. */
+    static final List<String> FIELDS = List.of(
+            "message_length", "message_sequence", "stationary_kavach_id", "nms_system_id", "system_version",
+            "message_date", "message_time", "crc", "specific_protocol", "packet_name", "sender_identifier",
+            "receiver_identifier", "packet_message_length", "frame_number", "packet_message_sequence",
+            "border_rfid_tag", "ref_profile_id", "onboard_kavach_identity", "sub_pkt_type", "sub_pkt_len_ma",
+            "frame_offset", "dst_loco_sos", "train_section_type", "line_number", "line_name", "type_of_signal",
+            "signal_ov", "stop_signal", "current_sig_aspect", "next_sig_aspect", "approaching_signal_distance",
+            "authority_type", "authorized_speed", "ma_wrt_sig", "req_shorten_ma", "new_ma",
+            "train_length_info_sts", "trn_len_info_type", "ref_frame_num_tlm", "ref_offset_int_tlm",
+            "next_stn_comm", "appr_stn_ilc_ibs_id", "sub_pkt_type_ssp", "sub_pkt_len_ssp", "ssp_count_info",
+            "classified_speed_info", "sub_pkt_type_gp", "sub_pkt_len_gp", "gp_count_info", "gradient_info",
+            "sub_pkt_type_lc", "sub_pkt_len_lc", "lm_count_info", "lc_info", "sub_pkt_type_tsp",
+            "sub_pkt_len_tsp", "to_count_info", "speed_info", "sub_pkt_type_tag", "sub_pkt_len_tag",
+            "dist_dup_tag", "route_rfid_cnt", "rfid_info_list", "abs_loc_reset", "start_dist_to_loc_reset",
+            "adj_loc_dir", "abs_loc_correction", "adj_line_cnt", "self_tin", "self_tin_list",
+            "sub_pkt_type_tcp", "sub_pkt_len_tcp", "track_cond_cnt", "track_cond_info", "sub_packet_tsrp",
+            "sub_packet_length_tsrp", "tsr_status", "tsr_count", "tsr_info", "mac_code", "created_at",
+            "message_datetime");
+
+    /** Known values per low-cardinality text column, schema version 1: code = position + 1. Append only. */
+    static final Map<String, List<String>> DICTIONARIES = Map.ofEntries(
+            Map.entry("message_date", List.of("15/01/25")),
+            Map.entry("message_time", List.of("10:15:30")),
+            Map.entry("crc", List.of("AFCE0000")),
+            Map.entry("specific_protocol", List.of("F0")),
+            Map.entry("packet_name", List.of("0105")),
+            Map.entry("frame_offset", List.of("0000")),
+            Map.entry("dst_loco_sos", List.of("01")),
+            Map.entry("train_section_type", List.of("00000")),
+            Map.entry("line_number", List.of("0000")),
+            Map.entry("line_name", List.of("100100")),
+            Map.entry("type_of_signal", List.of("0")),
+            Map.entry("stop_signal", List.of("011110")),
+            Map.entry("current_sig_aspect", List.of("010101")),
+            Map.entry("next_sig_aspect", List.of("250")),
+            Map.entry("authority_type", List.of("160")),
+            Map.entry("req_shorten_ma", List.of("0")),
+            Map.entry("train_length_info_sts", List.of("0")),
+            Map.entry("trn_len_info_type", List.of("0")),
+            Map.entry("next_stn_comm", List.of("0")),
+            Map.entry("sub_pkt_type_ssp", List.of("0001")),
+            Map.entry("classified_speed_info", List.of("[{\"SpeedB\":0,\"SpeedA\":60}]")),
+            Map.entry("sub_pkt_type_gp", List.of("0010")),
+            Map.entry("gradient_info", List.of("[{\"GradientDistance\":1017}]")),
+            Map.entry("sub_pkt_type_lc", List.of("0011")),
+            Map.entry("lc_info", List.of("{}")),
+            Map.entry("sub_pkt_type_tsp", List.of("0100")),
+            Map.entry("speed_info", List.of("[]")),
+            Map.entry("sub_pkt_type_tag", List.of("0101")),
+            Map.entry("rfid_info_list", List.of("[{\"NxtRfidTagId\":303}]")),
+            Map.entry("abs_loc_reset", List.of("0")),
+            Map.entry("adj_loc_dir", List.of("0")),
+            Map.entry("self_tin_list", List.of("[{\"AdjTin\":341}]")),
+            Map.entry("sub_pkt_type_tcp", List.of("0110")),
+            Map.entry("track_cond_info", List.of("[]")),
+            Map.entry("sub_packet_tsrp", List.of("0111")),
+            Map.entry("tsr_status", List.of("01")),
+            Map.entry("tsr_info", List.of("[{\"TSR_ID\":0}]")),
+            Map.entry("mac_code", List.of("8C950EFD")));
+
+    private static final Map<String, Integer> FIELD_IDS = new HashMap<>();
+    private static final String[][] DICTIONARY_BY_ID = new String[FIELDS.size() + 1][];
+    private static final Map<String, Integer>[] CODES_BY_ID;
+
+    static {
+        @SuppressWarnings("unchecked")
+        Map<String, Integer>[] codes = new Map[FIELDS.size() + 1];
+        for (int i = 0; i < FIELDS.size(); i++) {
+            int id = i + 1;
+            String field = FIELDS.get(i);
+            FIELD_IDS.put(field, id);
+            List<String> values = DICTIONARIES.get(field);
+            if (values != null) {
+                DICTIONARY_BY_ID[id] = values.toArray(new String[0]);
+                codes[id] = new HashMap<>();
+                for (int c = 0; c < values.size(); c++) {
+                    codes[id].put(values.get(c), c + 1);
+                }
+            }
+        }
+        CODES_BY_ID = codes;
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ThreadLocal<Writer> writers = ThreadLocal.withInitial(Writer::new);
+
+    // Constant columns pre-encoded once; the typed encoder only writes the variable ones between them
+    private final byte[][] constantRuns;
+    private final String[] variableAfterRun;
+
+    public KavachPacketCodec() {
+        Writer w = new Writer();
+        List<byte[]> runs = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        w.reset();
+        for (Map.Entry<String, Object> e : KavachRriRecord.CONSTANTS.entrySet()) {
+            if (e.getValue() == null) {
+                runs.add(w.toBytes());
+                variables.add(e.getKey());
+                w.reset();
+            } else {
+                writeField(w, e.getKey(), e.getValue());
+            }
+        }
+        runs.add(w.toBytes());
+        this.constantRuns = runs.toArray(new byte[0][]);
+        this.variableAfterRun = variables.toArray(new String[0]);
+    }
+
+    public static boolean isBinary(byte[] value) {
+        return value != null && value.length > 1 && value[0] == MAGIC;
+    }
+
+    /**
+     * Typed fast path: constant columns are copied from pre-encoded runs.
+     */
+    public byte[] encode(KavachRriRecord record) {
+        Writer w = writers.get();
+        w.reset();
+        w.header();
+        for (int i = 0; i < variableAfterRun.length; i++) {
+            w.writeBytes(constantRuns[i]);
+            String field = variableAfterRun[i];
+            int id = FIELD_IDS.get(field);
+            switch (field) {
+                case KavachRriRecord.MESSAGE_SEQUENCE -> w.varintField(id, record.messageSequence);
+                case KavachRriRecord.STATIONARY_KAVACH_ID, KavachRriRecord.SENDER_IDENTIFIER -> w.varintField(id, record.stationaryKavachId);
+                case KavachRriRecord.RECEIVER_IDENTIFIER -> w.varintField(id, record.receiverIdentifier());
+                case KavachRriRecord.SUB_PKT_TYPE -> w.digitsField(id, 4, record.subPktType);
+                case KavachRriRecord.CREATED_AT, KavachRriRecord.MESSAGE_DATETIME -> {
+                    w.tag(id, DATETIME);
+                    w.zigzag(record.messageDateTimeSeconds);
+                }
+                default -> throw new IllegalStateException("Unhandled variable field " + field);
+            }
+        }
+        w.writeBytes(constantRuns[variableAfterRun.length]);
+        return w.toBytes();
+    }
+
+    /**
+     * Generic path for any field map (e.g. records posted as JSON).
+     */
+    public byte[] encode(Map<String, Object> record) {
+        Writer w = writers.get();
+        w.reset();
+        w.header();
+        for (Map.Entry<String, Object> e : record.entrySet()) {
+            if (e.getValue() != null) {
+                writeField(w, e.getKey(), e.getValue());
+            }
+        }
+        return w.toBytes();
+    }
+
+    /**
+     * Decode a Kafka value that is either a binary packet or a JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> toMap(byte[] value) throws Exception {
+        if (!isBinary(value)) {
+            return objectMapper.readValue(value, HashMap.class);
+        }
+        Reader r = new Reader(value);
+        r.pos = 2; // magic + version; newer versions only add ids and codes, handled below
+        Map<String, Object> out = new LinkedHashMap<>(128);
+        while (r.pos < value.length) {
+            long tag = r.varint();
+            int id = (int) (tag >>> 3);
+            int wire = (int) (tag & 7);
+            String field = id == 0 ? r.text() : id < DICTIONARY_BY_ID.length ? FIELDS.get(id - 1) : null;
+            Object v = readValue(r, wire, id);
+            if (field != null) {
+                out.put(field, v);
+            }
+        }
+        return out;
+    }
+
+    private Object readValue(Reader r, int wire, int id) throws Exception {
+        switch (wire) {
+            case VARINT: {
+                long v = r.zigzag();
+                return v == (int) v ? (Object) (int) v : (Object) v;
+            }
+            case DICT: {
+                int code = (int) r.varint();
+                String[] dict = id > 0 && id < DICTIONARY_BY_ID.length ? DICTIONARY_BY_ID[id] : null;
+                if (dict == null || code < 1 || code > dict.length) {
+                    // Unknown id: the value is skipped anyway; known id: the message is from a newer schema
+                    if (id >= DICTIONARY_BY_ID.length) return null;
+                    throw new IllegalArgumentException("Unknown dictionary code " + code + " for field id " + id
+                            + "; message uses a newer schema than " + SCHEMA_VERSION);
+                }
+                return dict[code - 1];
+            }
+            case TEXT:
+                return r.text();
+            case DATETIME:
+                return KavachRriRecord.formatDateTime(r.zigzag());
+            case DIGITS: {
+                int width = (int) r.varint();
+                String digits = Long.toString(r.varint());
+                return digits.length() >= width ? digits : "0".repeat(width - digits.length()) + digits;
+            }
+            case FLOAT64:
+                return Double.longBitsToDouble(r.fixed64());
+            case BOOL:
+                return r.data[r.pos++] != 0;
+            case JSON:
+                return objectMapper.readValue(r.text(), Object.class);
+            default:
+                throw new IllegalArgumentException("Unknown wire type " + wire);
+        }
+    }
+
+    private void writeField(Writer w, String field, Object value) {
+        Integer known = FIELD_IDS.get(field);
+        int id = known != null ? known : 0;
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            w.tag(id, VARINT);
+            w.name(id, field);
+            w.zigzag(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            w.tag(id, FLOAT64);
+            w.name(id, field);
+            w.fixed64(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Boolean b) {
+            w.tag(id, BOOL);
+            w.name(id, field);
+            w.writeByte(b ? 1 : 0);
+        } else if (value instanceof String s) {
+            Integer code = id > 0 && CODES_BY_ID[id] != null ? CODES_BY_ID[id].get(s) : null;
+            long dateTime;
+            if (code != null) {
+                w.tag(id, DICT);
+                w.varint(code);
+            } else if ((dateTime = parseDateTime(s)) != Long.MIN_VALUE) {
+                w.tag(id, DATETIME);
+                w.name(id, field);
+                w.zigzag(dateTime);
+            } else if (isDigits(s)) {
+                w.tag(id, DIGITS);
+                w.name(id, field);
+                w.varint(s.length());
+                w.varint(Long.parseLong(s));
+            } else {
+                w.tag(id, TEXT);
+                w.name(id, field);
+                w.text(s);
+            }
+        } else {
+            try {
+                w.tag(id, JSON);
+                w.name(id, field);
+                w.text(objectMapper.writeValueAsString(value));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Cannot encode field " + field, e);
+            }
+        }
+    }
+
+    private static boolean isDigits(String s) {
+        int n = s.length();
+        if (n == 0 || n > 18) return false;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    // "yyyy-MM-dd HH:mm:ss" to wall-clock seconds, or Long.MIN_VALUE if s is not exactly that form
+    private static long parseDateTime(String s) {
+        if (s.length() != 19 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != ' '
+                || s.charAt(13) != ':' || s.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(s, 0, 4), month = digits(s, 5, 2), day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2), minute = digits(s, 14, 2), second = digits(s, 17, 2);
+        if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute, second).toEpochSecond(ZoneOffset.UTC);
+        } catch (RuntimeException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static int digits(String s, int from, int count) {
+        int v = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private static final class Writer {
+        byte[] buf = new byte[512];
+        int pos;
+
+        void reset() {
+            pos = 0;
+        }
+
+        void header() {
+            writeByte(MAGIC);
+            writeByte(SCHEMA_VERSION);
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        void tag(int id, int wire) {
+            varint(((long) id << 3) | wire);
+        }
+
+        void name(int id, String field) {
+            if (id == 0) {
+                text(field);
+            }
+        }
+
+        void varint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void zigzag(long v) {
+            varint((v << 1) ^ (v >> 63));
+        }
+
+        void varintField(int id, long v) {
+            tag(id, VARINT);
+            zigzag(v);
+        }
+
+        void digitsField(int id, int width, long v) {
+            tag(id, DIGITS);
+            varint(width);
+            varint(v);
+        }
+
+        void fixed64(long v) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                buf[pos++] = (byte) (v >>> (8 * i));
+            }
+        }
+
+        void text(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            writeBytes(b);
+        }
+    }
+
+    private static final class Reader {
+        final byte[] data;
+        int pos;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        long varint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = data[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        long zigzag() {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long fixed64() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v |= (long) (data[pos++] & 0xFF) << (8 * i);
+            }
+            return v;
+        }
+
+        String text() {
+            int len = (int) varint();
+            String s = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
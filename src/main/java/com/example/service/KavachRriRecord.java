@@ -0,0 +1,214 @@
+package com.example.service;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Typed nms_event_adjacent_kavach_train_rri record.
+ *
+ * Only the fields that change from packet to packet are stored; every other column carries the
+ * fixed values in {@link #CONSTANTS}. Instances are mutable so a producer can reuse one per thread.
+ * message_datetime / created_at are kept as wall-clock seconds since 1970-01-01T00:00 (no zone),
+ * which is exactly what the "yyyy-MM-dd HH:mm:ss" text form of the column represents.
+ */
+public final class KavachRriRecord {
+
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    public static final String MESSAGE_SEQUENCE = "message_sequence";
+    public static final String STATIONARY_KAVACH_ID = "stationary_kavach_id";
+    public static final String SENDER_IDENTIFIER = "sender_identifier";
+    public static final String RECEIVER_IDENTIFIER = "receiver_identifier";
+    public static final String SUB_PKT_TYPE = "sub_pkt_type";
+    public static final String CREATED_AT = "created_at";
+    public static final String MESSAGE_DATETIME = "message_datetime";
+
+    /** Columns whose value is taken from the record rather than from {@link #CONSTANTS}. */
+    public static final Set<String> VARIABLE_FIELDS = Set.of(
+            MESSAGE_SEQUENCE, STATIONARY_KAVACH_ID, SENDER_IDENTIFIER, RECEIVER_IDENTIFIER,
+            SUB_PKT_TYPE, CREATED_AT, MESSAGE_DATETIME);
+
+    /** All 80 columns in insert order; variable columns map to null. */
+    public static final Map<String, Object> CONSTANTS;
+
+    static {
+        Map<String, Object> c = new LinkedHashMap<>(128);
+        c.put("message_length", 49);
+        c.put(MESSAGE_SEQUENCE, null);
+        c.put(STATIONARY_KAVACH_ID, null);
+        c.put("nms_system_id", 1);
+        c.put("system_version", 2);
+        c.put("message_date", "15/01/25");
+        c.put("message_time", "10:15:30");
+        c.put("crc", "AFCE0000");
+        c.put("specific_protocol", "F0");
+        c.put("packet_name", "0105");
+        c.put(SENDER_IDENTIFIER, null);
+        c.put(RECEIVER_IDENTIFIER, null);
+        c.put("packet_message_length", 28);
+        c.put("frame_number", 4444);
+        c.put("packet_message_sequence", 2689);
+        c.put("border_rfid_tag", 300);
+        c.put("ref_profile_id", 0);
+        c.put("onboard_kavach_identity", 20000);
+        c.put(SUB_PKT_TYPE, null);
+        c.put("sub_pkt_len_ma", 125);
+        c.put("frame_offset", "0000");
+        c.put("dst_loco_sos", "01");
+        c.put("train_section_type", "00000");
+        c.put("line_number", "0000");
+        c.put("line_name", "100100");
+        c.put("type_of_signal", "0");
+        c.put("signal_ov", 0);
+        c.put("stop_signal", "011110");
+        c.put("current_sig_aspect", "010101");
+        c.put("next_sig_aspect", "250");
+        c.put("approaching_signal_distance", 1);
+        c.put("authority_type", "160");
+        c.put("authorized_speed", 120);
+        c.put("ma_wrt_sig", 0);
+        c.put("req_shorten_ma", "0");
+        c.put("new_ma", 0);
+        c.put("train_length_info_sts", "0");
+        c.put("trn_len_info_type", "0");
+        c.put("ref_frame_num_tlm", 0);
+        c.put("ref_offset_int_tlm", 0);
+        c.put("next_stn_comm", "0");
+        c.put("appr_stn_ilc_ibs_id", 0);
+        c.put("sub_pkt_type_ssp", "0001");
+        c.put("sub_pkt_len_ssp", 28);
+        c.put("ssp_count_info", 1);
+        c.put("classified_speed_info", "[{\"SpeedB\":0,\"SpeedA\":60}]");
+        c.put("sub_pkt_type_gp", "0010");
+        c.put("sub_pkt_len_gp", 28);
+        c.put("gp_count_info", 1);
+        c.put("gradient_info", "[{\"GradientDistance\":1017}]");
+        c.put("sub_pkt_type_lc", "0011");
+        c.put("sub_pkt_len_lc", 118);
+        c.put("lm_count_info", 1);
+        c.put("lc_info", "{}");
+        c.put("sub_pkt_type_tsp", "0100");
+        c.put("sub_pkt_len_tsp", 25);
+        c.put("to_count_info", 0);
+        c.put("speed_info", "[]");
+        c.put("sub_pkt_type_tag", "0101");
+        c.put("sub_pkt_len_tag", 25);
+        c.put("dist_dup_tag", 0);
+        c.put("route_rfid_cnt", 1);
+        c.put("rfid_info_list", "[{\"NxtRfidTagId\":303}]");
+        c.put("abs_loc_reset", "0");
+        c.put("start_dist_to_loc_reset", 0);
+        c.put("adj_loc_dir", "0");
+        c.put("abs_loc_correction", 0);
+        c.put("adj_line_cnt", 0);
+        c.put("self_tin", 0);
+        c.put("self_tin_list", "[{\"AdjTin\":341}]");
+        c.put("sub_pkt_type_tcp", "0110");
+        c.put("sub_pkt_len_tcp", 25);
+        c.put("track_cond_cnt", 0);
+        c.put("track_cond_info", "[]");
+        c.put("sub_packet_tsrp", "0111");
+        c.put("sub_packet_length_tsrp", 28);
+        c.put("tsr_status", "01");
+        c.put("tsr_count", 1);
+        c.put("tsr_info", "[{\"TSR_ID\":0}]");
+        c.put("mac_code", "8C950EFD");
+        c.put(CREATED_AT, null);
+        c.put(MESSAGE_DATETIME, null);
+        CONSTANTS = Collections.unmodifiableMap(c);
+    }
+
+    public static final List<String> FIELD_NAMES = List.copyOf(CONSTANTS.keySet());
+
+    public int messageSequence;
+    public int stationaryKavachId;
+    /** sub_pkt_type as a number 0..9999; written as a zero-padded 4 digit string. */
+    public int subPktType;
+    /** Wall-clock seconds since 1970-01-01T00:00 for created_at and message_datetime. */
+    public long messageDateTimeSeconds;
+
+    /**
+     * Same values the old Map-based factory produced for a sequence number, relative to a wall-clock base.
+     */
+    public KavachRriRecord set(int sequence, long baseDateTimeSeconds) {
+        this.messageSequence = sequence;
+        this.stationaryKavachId = 50000 + (sequence % 1000);
+        this.subPktType = sequence % 10000;
+        this.messageDateTimeSeconds = baseDateTimeSeconds + sequence;
+        return this;
+    }
+
+    public static KavachRriRecord forSequence(int sequence, long baseDateTimeSeconds) {
+        return new KavachRriRecord().set(sequence, baseDateTimeSeconds);
+    }
+
+    public int senderIdentifier() {
+        return stationaryKavachId;
+    }
+
+    public int receiverIdentifier() {
+        return stationaryKavachId + 1;
+    }
+
+    /**
+     * Current wall-clock time in the JVM's default zone, as seconds since 1970-01-01T00:00.
+     */
+    public static long wallClockSecondsNow() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+    }
+
+    /**
+     * Value of a variable column in the same representation the Map form uses.
+     */
+    public Object variableValue(String field) {
+        switch (field) {
+            case MESSAGE_SEQUENCE:
+                return messageSequence;
+            case STATIONARY_KAVACH_ID:
+            case SENDER_IDENTIFIER:
+                return stationaryKavachId;
+            case RECEIVER_IDENTIFIER:
+                return receiverIdentifier();
+            case SUB_PKT_TYPE:
+                return String.format("%04d", subPktType);
+            case CREATED_AT:
+            case MESSAGE_DATETIME:
+                return formatDateTime(messageDateTimeSeconds);
+            default:
+                throw new IllegalArgumentException("Not a variable field: " + field);
+        }
+    }
+
+    /**
+     * Full 80-column map, for callers that still need the generic representation.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> m = new LinkedHashMap<>(128);
+        for (Map.Entry<String, Object> e : CONSTANTS.entrySet()) {
+            m.put(e.getKey(), e.getValue() != null ? e.getValue() : variableValue(e.getKey()));
+        }
+        return m;
+    }
+
+    /**
+     * Instant-based epoch seconds for the wall-clock value interpreted in the given zone.
+     */
+    public long epochSecond(ZoneId zone) {
+        if (zone.getRules().isFixedOffset()) {
+            return messageDateTimeSeconds - zone.getRules().getOffset(Instant.EPOCH).getTotalSeconds();
+        }
+        return LocalDateTime.ofEpochSecond(messageDateTimeSeconds, 0, ZoneOffset.UTC).atZone(zone).toEpochSecond();
+    }
+
+    static String formatDateTime(long wallClockSeconds) {
+        return LocalDateTime.ofEpochSecond(wallClockSeconds, 0, ZoneOffset.UTC).format(DATE_TIME);
+    }
+}
@@ -0,0 +1,501 @@
+package com.example.service;
+
+import com.example.service.ClickHouseTableSchemaService.Column;
+import com.example.service.ClickHouseTableSchemaService.TableSchema;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Template serializer for {@link KavachRriRecord}.
+ *
+ * The 73 constant columns never change, so their encoded form (JSON keys and values, or
+ * RowBinary column bytes) is rendered once into byte fragments. Serializing a record copies
+ * the fragments and writes only the variable fields in between: integers and timestamps are
+ * written digit by digit and no intermediate Map, String or boxed value is created.
+ *
+ * The JSONEachRow template is fixed; RowBinary templates are compiled per table from the
+ * live schema, because column order and types come from DESCRIBE TABLE.
+ */
+@Component
+public class KavachRriSerializer {
+
+    private static final int INT = 0;
+    private static final int RECEIVER = 1;
+    private static final int SUB_PKT_TYPE = 2;
+    private static final int DATE_TIME = 3;
+
+    private final ClickHouseTableSchemaService schemaService;
+    private final ClickHouseBulkInsertService bulkInsertService;
+    private final JsonTemplate jsonTemplate;
+    private final Map<String, RowBinaryTemplate> rowBinaryTemplates = new ConcurrentHashMap<>();
+
+    // Per-thread scratch buffer for the byte[] variants. Netty-backed because DefaultDataBuffer
+    // allocates a ByteBuffer view on every write(byte[]), which is most of what a template does.
+    private static final NettyDataBufferFactory SCRATCH_FACTORY = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+    private final ThreadLocal<DataBuffer> scratch = ThreadLocal.withInitial(() -> SCRATCH_FACTORY.allocateBuffer(4096));
+
+    public KavachRriSerializer(ClickHouseTableSchemaService schemaService,
+                               ClickHouseBulkInsertService bulkInsertService) {
+        this.schemaService = schemaService;
+        this.bulkInsertService = bulkInsertService;
+        this.jsonTemplate = new JsonTemplate();
+    }
+
+    /**
+     * Approximate encoded size of one JSONEachRow line, for sizing buffers.
+     */
+    public int jsonSizeHint() {
+        return jsonTemplate.sizeHint;
+    }
+
+    /**
+     * Append one JSONEachRow line (object plus trailing newline).
+     */
+    public void writeJsonLine(KavachRriRecord record, DataBuffer out) {
+        jsonTemplate.write(record, out);
+    }
+
+    public byte[] jsonLine(KavachRriRecord record) {
+        DataBuffer buf = resetScratch();
+        jsonTemplate.write(record, buf);
+        return copyOut(buf);
+    }
+
+    /**
+     * Append one RowBinary row laid out for the given table's insertable columns.
+     */
+    public void writeRowBinary(String table, KavachRriRecord record, DataBuffer out) {
+        rowBinaryTemplate(table).write(record, out);
+    }
+
+    public byte[] rowBinary(String table, KavachRriRecord record) {
+        DataBuffer buf = resetScratch();
+        rowBinaryTemplate(table).write(record, buf);
+        return copyOut(buf);
+    }
+
+    public InsertFormat formatFor(String table) {
+        return bulkInsertService.formatFor(table);
+    }
+
+    /**
+     * One encoded row in the format configured for the table (clickhouse.insert.format[.table]).
+     */
+    public byte[] encode(String table, KavachRriRecord record) {
+        return formatFor(table) == InsertFormat.ROW_BINARY
+                ? rowBinary(table, record)
+                : jsonLine(record);
+    }
+
+    /**
+     * Blocks while the table's schema is first loaded; callers encode on boundedElastic or
+     * listener threads, never on an event loop.
+     */
+    public RowBinaryTemplate rowBinaryTemplate(String table) {
+        RowBinaryTemplate template = rowBinaryTemplates.get(table);
+        if (template != null) {
+            return template;
+        }
+        return Mono.zip(schemaService.schema(table), bulkInsertService.encoder(table))
+                .map(t -> rowBinaryTemplates.computeIfAbsent(table, k -> new RowBinaryTemplate(t.getT1(), t.getT2())))
+                .block();
+    }
+
+    private DataBuffer resetScratch() {
+        DataBuffer buf = scratch.get();
+        buf.readPosition(0);
+        buf.writePosition(0);
+        return buf;
+    }
+
+    private static byte[] copyOut(DataBuffer buf) {
+        byte[] bytes = new byte[buf.readableByteCount()];
+        buf.read(bytes);
+        return bytes;
+    }
+
+    private static int slotKind(String field) {
+        switch (field) {
+            case KavachRriRecord.RECEIVER_IDENTIFIER:
+                return RECEIVER;
+            case KavachRriRecord.SUB_PKT_TYPE:
+                return SUB_PKT_TYPE;
+            case KavachRriRecord.CREATED_AT:
+            case KavachRriRecord.MESSAGE_DATETIME:
+                return DATE_TIME;
+            default:
+                return INT;
+        }
+    }
+
+    private static long intValue(KavachRriRecord r, String field) {
+        return KavachRriRecord.MESSAGE_SEQUENCE.equals(field) ? r.messageSequence : r.stationaryKavachId;
+    }
+
+    // ---------------------------------------------------------------- JSONEachRow
+
+    private static final class JsonTemplate {
+        final byte[][] fragments;
+        final int[] kinds;
+        final boolean[] sequence;
+        final int sizeHint;
+
+        JsonTemplate() {
+            ObjectMapper mapper = new ObjectMapper();
+            List<byte[]> frags = new ArrayList<>();
+            List<String> slots = new ArrayList<>();
+            ByteArrayOutputStream current = new ByteArrayOutputStream();
+            current.write('{');
+            boolean first = true;
+            try {
+                for (Map.Entry<String, Object> e : KavachRriRecord.CONSTANTS.entrySet()) {
+                    if (!first) current.write(',');
+                    first = false;
+                    current.writeBytes(mapper.writeValueAsBytes(e.getKey()));
+                    current.write(':');
+                    if (e.getValue() != null) {
+                        current.writeBytes(mapper.writeValueAsBytes(e.getValue()));
+                    } else {
+                        frags.add(current.toByteArray());
+                        current.reset();
+                        slots.add(e.getKey());
+                    }
+                }
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Cannot render Kavach JSON template", e);
+            }
+            current.write('}');
+            current.write('\n');
+            frags.add(current.toByteArray());
+
+            this.fragments = frags.toArray(new byte[0][]);
+            this.kinds = new int[slots.size()];
+            this.sequence = new boolean[slots.size()];
+            int size = 0;
+            for (byte[] f : fragments) size += f.length;
+            for (int i = 0; i < slots.size(); i++) {
+                kinds[i] = slotKind(slots.get(i));
+                sequence[i] = KavachRriRecord.MESSAGE_SEQUENCE.equals(slots.get(i));
+                size += kinds[i] == DATE_TIME ? 21 : 12;
+            }
+            this.sizeHint = size;
+        }
+
+        void write(KavachRriRecord r, DataBuffer out) {
+            for (int i = 0; i < kinds.length; i++) {
+                out.write(fragments[i]);
+                switch (kinds[i]) {
+                    case RECEIVER:
+                        writeDecimal(out, r.receiverIdentifier());
+                        break;
+                    case SUB_PKT_TYPE:
+                        out.write((byte) '"');
+                        writePadded(out, r.subPktType, 4);
+                        out.write((byte) '"');
+                        break;
+                    case DATE_TIME:
+                        out.write((byte) '"');
+                        writeDateTime(out, r.messageDateTimeSeconds);
+                        out.write((byte) '"');
+                        break;
+                    default:
+                        writeDecimal(out, sequence[i] ? r.messageSequence : r.stationaryKavachId);
+                }
+            }
+            out.write(fragments[kinds.length]);
+        }
+    }
+
+    // ---------------------------------------------------------------- RowBinary
+
+    /**
+     * RowBinary layout for one table. Columns the record does not carry are encoded once with
+     * the table encoder (constants, or type defaults for columns the record does not know about).
+     */
+    public static final class RowBinaryTemplate {
+        private static final int TEXT = 0;
+        private static final int NUMBER = 1;
+        private static final int EPOCH = 2;
+        private static final int GENERIC = 3;
+
+        private final RowBinaryEncoder encoder;
+        private final byte[][] fragments;
+        private final String[] fields;
+        private final int[] columnIndex;
+        private final int[] kinds;
+        private final int[] encodings;
+        private final int[] widths;
+        private final boolean[] nullable;
+        private final ZoneId[] zones;
+        private final int[] fixedOffsets;
+        private final HourOffset[] lastOffsets;
+
+        RowBinaryTemplate(TableSchema schema, RowBinaryEncoder encoder) {
+            this.encoder = encoder;
+            List<byte[]> frags = new ArrayList<>();
+            List<Integer> slotColumns = new ArrayList<>();
+            DataBuffer current = DefaultDataBufferFactory.sharedInstance.allocateBuffer(1024);
+            try {
+                for (int i = 0; i < encoder.columnCount(); i++) {
+                    String name = encoder.columnName(i);
+                    if (KavachRriRecord.VARIABLE_FIELDS.contains(name)) {
+                        frags.add(copyOut(current));
+                        current.readPosition(0);
+                        current.writePosition(0);
+                        slotColumns.add(i);
+                    } else {
+                        encoder.encodeColumn(i, KavachRriRecord.CONSTANTS.get(name), current);
+                    }
+                }
+                frags.add(copyOut(current));
+            } finally {
+                DataBufferUtils.release(current);
+            }
+
+            int n = slotColumns.size();
+            this.fragments = frags.toArray(new byte[0][]);
+            this.fields = new String[n];
+            this.columnIndex = new int[n];
+            this.kinds = new int[n];
+            this.encodings = new int[n];
+            this.widths = new int[n];
+            this.nullable = new boolean[n];
+            this.zones = new ZoneId[n];
+            this.fixedOffsets = new int[n];
+            this.lastOffsets = new HourOffset[n];
+            for (int s = 0; s < n; s++) {
+                int idx = slotColumns.get(s);
+                fields[s] = encoder.columnName(idx);
+                columnIndex[s] = idx;
+                kinds[s] = slotKind(fields[s]);
+                compileSlot(s, typeOf(schema, fields[s]), schema.serverTimeZone);
+            }
+        }
+
+        public String columnList() {
+            return encoder.columnList();
+        }
+
+        public String formatName() {
+            return encoder.formatName();
+        }
+
+        private void compileSlot(int s, String rawType, ZoneId serverZone) {
+            String type = rawType.trim();
+            if (type.startsWith("Nullable(")) {
+                nullable[s] = true;
+                type = type.substring("Nullable(".length(), type.length() - 1).trim();
+            }
+            if (type.startsWith("LowCardinality(")) {
+                type = type.substring("LowCardinality(".length(), type.length() - 1).trim();
+                if (type.startsWith("Nullable(")) {
+                    nullable[s] = true;
+                    type = type.substring("Nullable(".length(), type.length() - 1).trim();
+                }
+            }
+            int width = integerWidth(type);
+            if (type.equals("String")) {
+                encodings[s] = TEXT;
+            } else if (width > 0 && kinds[s] != DATE_TIME) {
+                encodings[s] = NUMBER;
+                widths[s] = width;
+            } else if ((type.equals("DateTime") || type.startsWith("DateTime(")) && kinds[s] == DATE_TIME) {
+                encodings[s] = EPOCH;
+                ZoneId zone = type.startsWith("DateTime(")
+                        ? ZoneId.of(type.substring("DateTime(".length(), type.length() - 1).replace("'", "").trim())
+                        : serverZone;
+                zones[s] = zone;
+                fixedOffsets[s] = zone.getRules().isFixedOffset()
+                        ? zone.getRules().getOffset(Instant.EPOCH).getTotalSeconds()
+                        : Integer.MIN_VALUE;
+            } else {
+                // Uncommon mapping (e.g. Decimal sequence): let the table encoder handle the boxed value
+                encodings[s] = GENERIC;
+                nullable[s] = false;
+            }
+        }
+
+        public void write(KavachRriRecord r, DataBuffer out) {
+            for (int s = 0; s < kinds.length; s++) {
+                out.write(fragments[s]);
+                // Record fields are always present; the generic path writes its own marker
+                if (encoder.withDefaults() && encodings[s] != GENERIC) {
+                    out.write((byte) 0);
+                }
+                if (nullable[s]) {
+                    out.write((byte) 0);
+                }
+                switch (encodings[s]) {
+                    case TEXT:
+                        writeText(s, r, out);
+                        break;
+                    case NUMBER:
+                        RowBinaryEncoder.writeLE(out, numericValue(s, r), widths[s]);
+                        break;
+                    case EPOCH:
+                        RowBinaryEncoder.writeLE(out, r.messageDateTimeSeconds - offsetSeconds(s, r), 4);
+                        break;
+                    default:
+                        encoder.encodeColumn(columnIndex[s], r.variableValue(fields[s]), out);
+                }
+            }
+            out.write(fragments[kinds.length]);
+        }
+
+        /**
+         * UTC offset for the record's wall-clock time. Zones with DST change offset on hour
+         * boundaries, so the last offset is reused for the rest of its hour.
+         */
+        private long offsetSeconds(int s, KavachRriRecord r) {
+            if (fixedOffsets[s] != Integer.MIN_VALUE) {
+                return fixedOffsets[s];
+            }
+            long hour = Math.floorDiv(r.messageDateTimeSeconds, 3600L);
+            HourOffset last = lastOffsets[s];
+            if (last == null || last.hour != hour) {
+                last = new HourOffset(hour, r.messageDateTimeSeconds - r.epochSecond(zones[s]));
+                lastOffsets[s] = last;
+            }
+            return last.offsetSeconds;
+        }
+
+        private long numericValue(int s, KavachRriRecord r) {
+            switch (kinds[s]) {
+                case RECEIVER:
+                    return r.receiverIdentifier();
+                case SUB_PKT_TYPE:
+                    return r.subPktType;
+                default:
+                    return intValue(r, fields[s]);
+            }
+        }
+
+        private void writeText(int s, KavachRriRecord r, DataBuffer out) {
+            switch (kinds[s]) {
+                case SUB_PKT_TYPE:
+                    RowBinaryEncoder.writeVarUInt(out, 4);
+                    writePadded(out, r.subPktType, 4);
+                    break;
+                case DATE_TIME:
+                    RowBinaryEncoder.writeVarUInt(out, 19);
+                    writeDateTime(out, r.messageDateTimeSeconds);
+                    break;
+                default:
+                    long v = numericValue(s, r);
+                    RowBinaryEncoder.writeVarUInt(out, decimalLength(v));
+                    writeDecimal(out, v);
+            }
+        }
+
+        // Immutable so it can be swapped between threads without locking
+        private static final class HourOffset {
+            final long hour;
+            final long offsetSeconds;
+
+            HourOffset(long hour, long offsetSeconds) {
+                this.hour = hour;
+                this.offsetSeconds = offsetSeconds;
+            }
+        }
+
+        private static String typeOf(TableSchema schema, String column) {
+            for (Column c : schema.columns) {
+                if (c.name.equals(column)) return c.type;
+            }
+            throw new IllegalArgumentException("Column " + column + " not in " + schema.table);
+        }
+
+        private static int integerWidth(String type) {
+            switch (type) {
+                case "Int8": case "UInt8": return 1;
+                case "Int16": case "UInt16": return 2;
+                case "Int32": case "UInt32": return 4;
+                case "Int64": case "UInt64": return 8;
+                default: return 0;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- allocation-free text
+
+    static int decimalLength(long v) {
+        int len = v < 0 ? 2 : 1;
+        long x = v < 0 ? -(v / 10) : v / 10;
+        while (x != 0) {
+            len++;
+            x /= 10;
+        }
+        return len;
+    }
+
+    static void writeDecimal(DataBuffer out, long v) {
+        if (v < 0) {
+            out.write((byte) '-');
+            if (v == Long.MIN_VALUE) {
+                out.write("9223372036854775808".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            v = -v;
+        }
+        long div = 1;
+        while (v / div >= 10) div *= 10;
+        while (div > 0) {
+            out.write((byte) ('0' + (v / div) % 10));
+            div /= 10;
+        }
+    }
+
+    static void writePadded(DataBuffer out, long v, int digits) {
+        long div = 1;
+        for (int i = 1; i < digits; i++) div *= 10;
+        while (div > 0) {
+            out.write((byte) ('0' + (v / div) % 10));
+            div /= 10;
+        }
+    }
+
+    /**
+     * "yyyy-MM-dd HH:mm:ss" from wall-clock seconds since 1970-01-01T00:00 (civil-from-days).
+     */
+    static void writeDateTime(DataBuffer out, long wallClockSeconds) {
+        long days = Math.floorDiv(wallClockSeconds, 86_400L);
+        long secs = Math.floorMod(wallClockSeconds, 86_400L);
+        long z = days + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long doe = z - era * 146_097;
+        long yoe = (doe - doe / 1460 + doe / 36_524 - doe / 146_096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        writePadded(out, year, 4);
+        out.write((byte) '-');
+        writePadded(out, month, 2);
+        out.write((byte) '-');
+        writePadded(out, day, 2);
+        out.write((byte) ' ');
+        writePadded(out, secs / 3600, 2);
+        out.write((byte) ':');
+        writePadded(out, (secs / 60) % 60, 2);
+        out.write((byte) ':');
+        writePadded(out, secs % 60, 2);
+    }
+}
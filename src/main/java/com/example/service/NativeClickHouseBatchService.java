@@ -3,8 +3,10 @@ package com.example.service;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -15,9 +17,16 @@ import java.util.Map;
 public class NativeClickHouseBatchService {
 
     private final WebClient webClient;
+    private final InsertBodyWriter bodyWriter;
+    private final InsertCompressionService compressionService;
+    private static final DateTimeFormatter CREATED_AT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-    public NativeClickHouseBatchService(WebClient optimizedClickHouseClient) {
+    public NativeClickHouseBatchService(WebClient optimizedClickHouseClient,
+                                        InsertBodyWriter bodyWriter,
+                                        InsertCompressionService compressionService) {
         this.webClient = optimizedClickHouseClient;
+        this.bodyWriter = bodyWriter;
+        this.compressionService = compressionService;
     }
 
     @Value("${clickhouse.username:default}")
@@ -34,25 +43,27 @@ public class NativeClickHouseBatchService {
 
     /**
      * Insert 6000 rows in a single HTTP batch using ClickHouse JSONEachRow.
+     * Rows are generated lazily and streamed into pooled buffers, never held as one payload.
      */
     public void insert6000Batch() throws Exception {
-        StringBuilder payload = new StringBuilder();
-        com.fasterxml.jackson.databind.ObjectMapper mapper = new com.fasterxml.jackson.databind.ObjectMapper();
-        for (int i = 1; i <= 6000; i++) {
-            Map<String, Object> row = createRow(i);
-            payload.append(mapper.writeValueAsString(row)).append("\n");
-        }
 
         String targetPath = UriComponentsBuilder.fromPath("/")
             .queryParam("query", "INSERT INTO " + clickhouseDb + "." + clickhouseTable + " FORMAT JSONEachRow")
             .build(false)
             .toUriString();
 
+        InsertCompressionService.CompressedBody body =
+            compressionService.compress("batch", bodyWriter.jsonEachRow(Flux.range(1, 6000).map(this::createRow)));
+
         webClient.post()
             .uri(targetPath)
-            .headers(h -> h.setBasicAuth(clickhouseUser, clickhousePassword))
+            .attribute(ClickHouseRequestLimiter.INSERT_PATH, "batch")
+            .headers(h -> {
+                h.setBasicAuth(clickhouseUser, clickhousePassword);
+                body.applyTo(h);
+            })
             .contentType(MediaType.APPLICATION_JSON)
-            .bodyValue(payload.toString())
+            .body(BodyInserters.fromDataBuffers(body.body))
             .retrieve()
             .toBodilessEntity()
             .block();
@@ -61,7 +72,7 @@ public class NativeClickHouseBatchService {
     private Map<String, Object> createRow(int sequence) {
         Map<String, Object> row = new LinkedHashMap<>();
         row.put("message_sequence", sequence);
-        row.put("created_at", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+        row.put("created_at", LocalDateTime.now().format(CREATED_AT));
         return row;
     }
 }
@@ -1,25 +1,26 @@
 package com.example.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.LinkedHashMap;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Native ClickHouse HTTP API service for highly concurrent individual insertions.
@@ -28,48 +29,46 @@ import java.util.concurrent.TimeUnit;
 @Service
 public class NativeConcurrentInsertService {
     /**
-     * Schedule 6000 individual ClickHouse inserts per second for a given duration, similar to IoTDB6000RPS.
-     * Each insert is a separate HTTP request, rate-limited to 6000/sec.
+     * 6000 individual ClickHouse inserts per second for a given duration, similar to IoTDB6000RPS.
+     * Each insert is a separate HTTP request paced by the open-loop generator.
      * This method blocks until all scheduled inserts are complete.
      */
-    public void insert6000RequestsPerSecond(int durationSeconds) throws InterruptedException {
-        final int TARGET_RPS = 6000;
-        final int THREAD_POOL_SIZE = 2000;
-        final long NANO_PER_SECOND = 1_000_000_000L;
-        final long REQUEST_INTERVAL_NANOS = NANO_PER_SECOND / TARGET_RPS;
-
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(THREAD_POOL_SIZE);
-        AtomicInteger requestCounter = new AtomicInteger(0);
-        AtomicInteger successCounter = new AtomicInteger(0);
-        AtomicInteger errorCounter = new AtomicInteger(0);
-        long startTime = System.nanoTime();
-
-        for (int second = 0; second < durationSeconds; second++) {
-            for (int requestInSecond = 0; requestInSecond < TARGET_RPS; requestInSecond++) {
-                final int recordIndex = (second * TARGET_RPS) + requestInSecond;
-                long delayNanos = (second * NANO_PER_SECOND) + (requestInSecond * REQUEST_INTERVAL_NANOS);
-
-                scheduler.schedule(() -> {
-                    insertIndividualRecord(recordIndex + 1, buildTargetPath())
-                        .doOnSuccess(res -> successCounter.incrementAndGet())
-                        .doOnError(err -> errorCounter.incrementAndGet())
-                        .subscribe();
-                    requestCounter.incrementAndGet();
-                }, delayNanos, TimeUnit.NANOSECONDS);
-            }
-        }
-
-        scheduler.shutdown();
-        boolean completed = scheduler.awaitTermination(durationSeconds + 10, TimeUnit.SECONDS);
+    public void insert6000RequestsPerSecond(int durationSeconds) {
+        NativeConcurrentResult result = insertOpenLoop(6000, 6000, 0, durationSeconds).block();
+        System.out.println(result);
+    }
 
-        long totalDuration = (System.nanoTime() - startTime) / 1_000_000;
-        int totalRequests = requestCounter.get();
-        double actualRPS = (double) totalRequests / (totalDuration / 1000.0);
+    /**
+     * Open-loop individual inserts: requests are sent at the profile's rate from a single timer
+     * whether or not earlier ones have completed. Latency percentiles are measured from each
+     * request's intended send time, so they include any queueing the schedule ran into.
+     */
+    public Mono<NativeConcurrentResult> insertOpenLoop(double targetRate, double startRate, int rampSeconds, int durationSeconds) {
+        OpenLoopLoadGenerator.Profile profile = new OpenLoopLoadGenerator.Profile(
+                startRate,
+                targetRate,
+                Duration.ofSeconds(rampSeconds),
+                Duration.ofSeconds(durationSeconds),
+                loadgenMaxOutstanding);
+        String targetPath = buildTargetPath();
+        return new OpenLoopLoadGenerator(table)
+                .run(profile, sequence -> insertIndividualRecord(sequence, targetPath), Duration.ofSeconds(30))
+                .map(report -> new NativeConcurrentResult(report, targetRate));
+    }
 
-        System.out.printf(
-            "Completed %d requests in %d ms. Success: %d, Errors: %d, Actual RPS: %.2f\n",
-            totalRequests, totalDuration, successCounter.get(), errorCounter.get(), actualRPS
-        );
+    /**
+     * Open-loop run where any null argument falls back to the loadgen.* properties.
+     * If only the target rate is given the run starts at that rate (no ramp).
+     */
+    public Mono<NativeConcurrentResult> insertOpenLoopOrDefaults(Double targetRate, Double startRate,
+                                                                 Integer rampSeconds, Integer durationSeconds) {
+        double rate = targetRate != null ? targetRate : loadgenTargetRate;
+        double from = startRate != null ? startRate : (targetRate != null ? targetRate : loadgenStartRate);
+        return insertOpenLoop(
+                rate,
+                from,
+                rampSeconds != null ? rampSeconds : loadgenRampSeconds,
+                durationSeconds != null ? durationSeconds : loadgenDurationSeconds);
     }
 
     // Helper to build the ClickHouse targetPath string (same as used in insert6000IndividualConcurrent)
@@ -93,7 +92,10 @@ public class NativeConcurrentInsertService {
     }
 
     private final WebClient webClient;
-    private final ObjectMapper objectMapper;
+    private final InsertBodyWriter bodyWriter;
+    private final InsertCompressionService compressionService;
+    private final KavachRriSerializer serializer;
+    private final InsertSpool spool;
 
     @Value("${clickhouse.username}")
     private String username;
@@ -110,17 +112,58 @@ public class NativeConcurrentInsertService {
     @Value("${concurrent.insert.count:6000}")
     private int insertCount;
 
-    // Optimized for ClickHouse 16GB server settings
+    // Optimized for ClickHouse 16GB server settings. Upper bound on records in progress; the
+    // number of HTTP calls actually in flight is set by the adaptive ClickHouseRequestLimiter.
     @Value("${concurrent.insert.max-concurrency:800}")
     private int maxConcurrency;
     
     @Value("${concurrent.insert.batch-size:120}")
     private int batchSize;
 
-    public NativeConcurrentInsertService(@Autowired WebClient optimizedClickHouseClient) {
+    // Client-side coalescing of individual records (flush on rows, bytes or linger, whichever first)
+    @Value("${coalescing.insert.max-rows:5000}")
+    private int coalescingMaxRows;
+
+    @Value("${coalescing.insert.max-bytes:4194304}")
+    private long coalescingMaxBytes;
+
+    @Value("${coalescing.insert.linger-ms:200}")
+    private long coalescingLingerMs;
+
+    @Value("${coalescing.insert.queue-capacity:50000}")
+    private int coalescingQueueCapacity;
+
+    @Value("${coalescing.insert.max-in-flight:4}")
+    private int coalescingMaxInFlight;
+
+    private volatile CoalescingInsertBuffer coalescingBuffer;
+
+    // Open-loop load generator defaults (overridable per request)
+    @Value("${loadgen.target-rate:6000}")
+    private double loadgenTargetRate;
+
+    @Value("${loadgen.start-rate:6000}")
+    private double loadgenStartRate;
+
+    @Value("${loadgen.ramp-seconds:0}")
+    private int loadgenRampSeconds;
+
+    @Value("${loadgen.duration-seconds:10}")
+    private int loadgenDurationSeconds;
+
+    @Value("${loadgen.max-outstanding:20000}")
+    private int loadgenMaxOutstanding;
+
+    public NativeConcurrentInsertService(@Autowired WebClient optimizedClickHouseClient,
+                                         InsertBodyWriter bodyWriter,
+                                         InsertCompressionService compressionService,
+                                         KavachRriSerializer serializer,
+                                         InsertSpool spool) {
         this.webClient = optimizedClickHouseClient;
-        this.objectMapper = new ObjectMapper();
-        this.objectMapper.configure(com.fasterxml.jackson.core.JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        this.bodyWriter = bodyWriter;
+        this.compressionService = compressionService;
+        this.serializer = serializer;
+        this.spool = spool;
     }
 
     /**
@@ -173,6 +216,9 @@ public class NativeConcurrentInsertService {
                 .flatMap(sequence -> {
                     return insertIndividualRecord(sequence, targetPath)
                             .retry(2) // Retry up to 2 times on failure
+                            // ClickHouse unavailable: keep the record in the local spool instead of dropping it
+                            .onErrorResume(e -> spool.isEnabled() && InsertSpool.isRetriable(e),
+                                    e -> spoolIndividualRecord(sequence, targetPath))
                             .doOnSuccess(count -> {
                                 successCount.addAndGet(1);
                                 int currentSuccess = successCount.get();
@@ -219,19 +265,148 @@ public class NativeConcurrentInsertService {
                 }));
     }
 
+    /**
+     * Same workload as {@link #insert6000IndividualConcurrent()}, but every record goes through the
+     * client-side coalescing buffer: callers still get a per-record completion, while ClickHouse
+     * only sees one INSERT per flushed batch instead of one HTTP request per packet.
+     */
+    public Mono<NativeConcurrentResult> insert6000Coalesced() {
+        AtomicInteger successCount = new AtomicInteger(0);
+        AtomicInteger errorCount = new AtomicInteger(0);
+        long startTime = System.currentTimeMillis();
+
+        return Flux.range(1, insertCount)
+                .flatMap(sequence -> submitRecord(sequence)
+                        .doOnSuccess(v -> successCount.incrementAndGet())
+                        .doOnError(err -> {
+                            errorCount.incrementAndGet();
+                            System.err.println("Coalesced insert " + sequence + " failed: " + err.getMessage());
+                        })
+                        .onErrorResume(e -> Mono.empty()), coalescingQueueCapacity)
+                .then(Mono.fromCallable(() -> new NativeConcurrentResult(
+                        insertCount,
+                        successCount.get(),
+                        errorCount.get(),
+                        System.currentTimeMillis() - startTime)));
+    }
+
+    /**
+     * Submit one record to the coalescing buffer. Completes once the batch holding it is inserted.
+     * Submission may block while the buffer is full, so it runs on the bounded-elastic scheduler.
+     */
+    public Mono<Void> submitRecord(int sequence) {
+        return Mono.fromCallable(() -> {
+                    KavachRriRecord record = KavachRriRecord.forSequence(sequence, KavachRriRecord.wallClockSecondsNow());
+                    return coalescingBuffer().submit(serializer.encode(table, record));
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(Mono::fromFuture);
+    }
+
+    public Map<String, Object> coalescingStats() {
+        CoalescingInsertBuffer buffer = coalescingBuffer;
+        return buffer == null ? Map.of() : buffer.stats();
+    }
+
+    private CoalescingInsertBuffer coalescingBuffer() {
+        CoalescingInsertBuffer buffer = coalescingBuffer;
+        if (buffer == null) {
+            synchronized (this) {
+                buffer = coalescingBuffer;
+                if (buffer == null) {
+                    CoalescingInsertBuffer.Policy policy = new CoalescingInsertBuffer.Policy(
+                            coalescingMaxRows,
+                            coalescingMaxBytes,
+                            Duration.ofMillis(coalescingLingerMs),
+                            coalescingQueueCapacity,
+                            coalescingMaxInFlight);
+                    // Rows are encoded in the table's configured format, so the INSERT must match it
+                    InsertFormat format = serializer.formatFor(table);
+                    String columns = format == InsertFormat.ROW_BINARY
+                            ? serializer.rowBinaryTemplate(table).columnList() + " "
+                            : "";
+                    String formatName = format == InsertFormat.ROW_BINARY
+                            ? serializer.rowBinaryTemplate(table).formatName()
+                            : format.clickHouseName;
+                    String targetPath = UriComponentsBuilder.fromPath("/")
+                            .queryParam("query", "INSERT INTO " + database + "." + table + " " + columns + "FORMAT " + formatName)
+                            .queryParam("async_insert", "0")
+                            .build(false)
+                            .toUriString();
+                    MediaType contentType = format == InsertFormat.ROW_BINARY
+                            ? MediaType.APPLICATION_OCTET_STREAM
+                            : MediaType.APPLICATION_JSON;
+                    buffer = new CoalescingInsertBuffer(table, policy, (rows, bytes) -> sendCoalesced(targetPath, contentType, rows));
+                    coalescingBuffer = buffer;
+                }
+            }
+        }
+        return buffer;
+    }
+
+    private Mono<Integer> spoolIndividualRecord(int sequence, String targetPath) {
+        KavachRriRecord record = KavachRriRecord.forSequence(sequence, KavachRriRecord.wallClockSecondsNow());
+        return Mono.fromCallable(() -> {
+                    spool.append(targetPath, MediaType.APPLICATION_JSON_VALUE, serializer.jsonLine(record));
+                    return 1;
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Mono<Void> sendCoalesced(String targetPath, MediaType contentType, List<byte[]> rows) {
+        return spool.sendOrSpool(targetPath, contentType, () -> InsertSpool.concat(rows),
+                () -> postCoalesced(targetPath, contentType, rows));
+    }
+
+    private Mono<Void> postCoalesced(String targetPath, MediaType contentType, List<byte[]> rows) {
+        // Rows are wrapped, not copied, into the request body
+        InsertCompressionService.CompressedBody body = compressionService.compress("coalesced", bodyWriter.encodedRows(rows));
+        return webClient.post()
+                .uri(targetPath)
+                .attribute(ClickHouseRequestLimiter.INSERT_PATH, "coalesced")
+                .headers(h -> {
+                    h.setBasicAuth(username, password);
+                    body.applyTo(h);
+                })
+                .contentType(contentType)
+                .body(BodyInserters.fromDataBuffers(body.body))
+                .retrieve()
+                .toBodilessEntity()
+                .then();
+    }
+
+    @PreDestroy
+    public void closeCoalescingBuffer() {
+        CoalescingInsertBuffer buffer = coalescingBuffer;
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
     /**
      * Insert a single individual record (simulating packet to different table scenario).
      */
     private Mono<Integer> insertIndividualRecord(int sequence, String targetPath) {
         try {
-            Map<String, Object> record = createRecordData(sequence);
-            String jsonData = objectMapper.writeValueAsString(record);
+            KavachRriRecord record = KavachRriRecord.forSequence(sequence, KavachRriRecord.wallClockSecondsNow());
+            // The line is rendered straight into a pooled buffer when the request body is subscribed
+            Flux<DataBuffer> line = Flux.defer(() -> {
+                        DataBuffer buffer = bodyWriter.bufferFactory().allocateBuffer(serializer.jsonSizeHint());
+                        serializer.writeJsonLine(record, buffer);
+                        return Flux.just(buffer);
+                    })
+                    .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+            InsertCompressionService.CompressedBody body = compressionService.compress("individual", line);
             
             return webClient.post()
                     .uri(targetPath)
-                    .headers(h -> h.setBasicAuth(username, password))
+                    .attribute(ClickHouseRequestLimiter.INSERT_PATH, "individual")
+                    .headers(h -> {
+                        h.setBasicAuth(username, password);
+                        body.applyTo(h);
+                    })
                     .contentType(MediaType.APPLICATION_JSON)
-                    .bodyValue(jsonData)
+                    .body(BodyInserters.fromDataBuffers(body.body))
                     .retrieve()
                     .toBodilessEntity()
                     .then(Mono.just(1)); // Return 1 for successful individual insert
@@ -242,110 +417,28 @@ public class NativeConcurrentInsertService {
     }
 
     /**
-     * Create optimized record data for a given sequence number.
-     * This method is optimized for performance with minimal object creation.
+     * Generic Map form of the record for a given sequence number, timestamped from now.
+     * Hot paths use {@link KavachRriSerializer} with a {@link KavachRriRecord} instead.
      */
     public Map<String, Object> createRecordData(int sequence) {
-        int kavachId = 50000 + (sequence % 1000);
-        String subPktType = String.format("%04d", sequence % 10000);
-        String timestamp = LocalDateTime.now()
-                .plusSeconds(sequence)
-                .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-
-        Map<String, Object> record = new LinkedHashMap<>(50);
-        record.put("message_length", 49);
-        record.put("message_sequence", sequence);
-        record.put("stationary_kavach_id", kavachId);
-        record.put("nms_system_id", 1);
-        record.put("system_version", 2);
-        record.put("message_date", "15/01/25");
-        record.put("message_time", "10:15:30");
-        record.put("crc", "AFCE0000");
-        record.put("specific_protocol", "F0");
-        record.put("packet_name", "0105");
-        record.put("sender_identifier", kavachId);
-        record.put("receiver_identifier", kavachId + 1);
-        record.put("packet_message_length", 28);
-        record.put("frame_number", 4444);
-        record.put("packet_message_sequence", 2689);
-        record.put("border_rfid_tag", 300);
-        record.put("ref_profile_id", 0);
-        record.put("onboard_kavach_identity", 20000);
-        record.put("sub_pkt_type", subPktType);
-        record.put("sub_pkt_len_ma", 125);
-        record.put("frame_offset", "0000");
-        record.put("dst_loco_sos", "01");
-        record.put("train_section_type", "00000");
-        record.put("line_number", "0000");
-        record.put("line_name", "100100");
-        record.put("type_of_signal", "0");
-        record.put("signal_ov", 0);
-        record.put("stop_signal", "011110");
-        record.put("current_sig_aspect", "010101");
-        record.put("next_sig_aspect", "250");
-        record.put("approaching_signal_distance", 1);
-        record.put("authority_type", "160");
-        record.put("authorized_speed", 120);
-        record.put("ma_wrt_sig", 0);
-        record.put("req_shorten_ma", "0");
-        record.put("new_ma", 0);
-        record.put("train_length_info_sts", "0");
-        record.put("trn_len_info_type", "0");
-        record.put("ref_frame_num_tlm", 0);
-        record.put("ref_offset_int_tlm", 0);
-        record.put("next_stn_comm", "0");
-        record.put("appr_stn_ilc_ibs_id", 0);
-        record.put("sub_pkt_type_ssp", "0001");
-        record.put("sub_pkt_len_ssp", 28);
-        record.put("ssp_count_info", 1);
-        record.put("classified_speed_info", "[{\"SpeedB\":0,\"SpeedA\":60}]");
-        record.put("sub_pkt_type_gp", "0010");
-        record.put("sub_pkt_len_gp", 28);
-        record.put("gp_count_info", 1);
-        record.put("gradient_info", "[{\"GradientDistance\":1017}]");
-        record.put("sub_pkt_type_lc", "0011");
-        record.put("sub_pkt_len_lc", 118);
-        record.put("lm_count_info", 1);
-        record.put("lc_info", "{}");
-        record.put("sub_pkt_type_tsp", "0100");
-        record.put("sub_pkt_len_tsp", 25);
-        record.put("to_count_info", 0);
-        record.put("speed_info", "[]");
-        record.put("sub_pkt_type_tag", "0101");
-        record.put("sub_pkt_len_tag", 25);
-        record.put("dist_dup_tag", 0);
-        record.put("route_rfid_cnt", 1);
-        record.put("rfid_info_list", "[{\"NxtRfidTagId\":303}]");
-        record.put("abs_loc_reset", "0");
-        record.put("start_dist_to_loc_reset", 0);
-        record.put("adj_loc_dir", "0");
-        record.put("abs_loc_correction", 0);
-        record.put("adj_line_cnt", 0);
-        record.put("self_tin", 0);
-        record.put("self_tin_list", "[{\"AdjTin\":341}]");
-        record.put("sub_pkt_type_tcp", "0110");
-        record.put("sub_pkt_len_tcp", 25);
-        record.put("track_cond_cnt", 0);
-        record.put("track_cond_info", "[]");
-        record.put("sub_packet_tsrp", "0111");
-        record.put("sub_packet_length_tsrp", 28);
-        record.put("tsr_status", "01");
-        record.put("tsr_count", 1);
-        record.put("tsr_info", "[{\"TSR_ID\":0}]");
-        record.put("mac_code", "8C950EFD");
-        record.put("created_at", timestamp);
-        record.put("message_datetime", timestamp);
-        
-        return record;
+        return KavachRriRecord.forSequence(sequence, KavachRriRecord.wallClockSecondsNow()).toMap();
     }
 
-
     public static class NativeConcurrentResult {
         public final int totalRequests;
         public final int successCount;
         public final int errorCount;
         public final long durationMs;
         public final double requestsPerSecond;
+        // Open-loop runs only; null for closed-loop endpoints
+        public final Double targetRate;
+        public final Double achievedRate;
+        public final Integer droppedCount;
+        public final Double p50Ms;
+        public final Double p99Ms;
+        public final Double p999Ms;
+        public final Double maxMs;
+        public final Double uncorrectedP99Ms;
 
         public NativeConcurrentResult(int totalRequests, int successCount, int errorCount, long durationMs) {
             this.totalRequests = totalRequests;
@@ -353,11 +446,36 @@ public class NativeConcurrentInsertService {
             this.errorCount = errorCount;
             this.durationMs = durationMs;
             this.requestsPerSecond = (double) successCount / (durationMs / 1000.0);
+            this.targetRate = null;
+            this.achievedRate = null;
+            this.droppedCount = null;
+            this.p50Ms = null;
+            this.p99Ms = null;
+            this.p999Ms = null;
+            this.maxMs = null;
+            this.uncorrectedP99Ms = null;
+        }
+
+        public NativeConcurrentResult(OpenLoopLoadGenerator.Report report, double targetRate) {
+            this.totalRequests = report.issued;
+            this.successCount = report.succeeded;
+            this.errorCount = report.failed;
+            this.durationMs = report.elapsedNanos / 1_000_000;
+            this.requestsPerSecond = report.succeeded / Math.max(1e-9, report.elapsedNanos / 1_000_000_000.0);
+            this.targetRate = targetRate;
+            this.achievedRate = report.achievedRate();
+            this.droppedCount = report.dropped;
+            // Histograms are in microseconds
+            this.p50Ms = report.latency.getValueAtPercentile(50.0) / 1000.0;
+            this.p99Ms = report.latency.getValueAtPercentile(99.0) / 1000.0;
+            this.p999Ms = report.latency.getValueAtPercentile(99.9) / 1000.0;
+            this.maxMs = report.latency.getMaxValue() / 1000.0;
+            this.uncorrectedP99Ms = report.serviceTime.getValueAtPercentile(99.0) / 1000.0;
         }
 
         @Override
         public String toString() {
-            return String.format(
+            String base = String.format(
                     "Native ClickHouse Individual Concurrent Results:%n" +
                             "  Total Individual Requests: %d%n" +
                             "  Successful: %d%n" +
@@ -366,7 +484,15 @@ public class NativeConcurrentInsertService {
                             "  Rate: %.2f individual requests/second",
                     totalRequests, successCount, errorCount, durationMs, requestsPerSecond
             );
+            if (targetRate == null) {
+                return base;
+            }
+            return base + String.format(
+                    "%n  Target/Achieved Rate: %.0f / %.2f requests/second%n" +
+                            "  Dropped (max outstanding): %d%n" +
+                            "  Latency p50/p99/p99.9/max: %.2f / %.2f / %.2f / %.2f ms (uncorrected p99 %.2f ms)",
+                    targetRate, achievedRate, droppedCount, p50Ms, p99Ms, p999Ms, maxMs, uncorrectedP99Ms
+            );
         }
     }
 }
-
@@ -0,0 +1,205 @@
+package com.example.service;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+/**
+ * Open-loop load generator: requests are issued on a fixed schedule whatever the response times,
+ * from a single timer thread.
+ *
+ * Each request has an intended send time derived from the rate profile. Latency is measured from
+ * that intended time, not from when the request actually left, so a stall in the client or the
+ * server shows up in the percentiles instead of silently lowering the offered load
+ * (coordinated omission). The uncorrected service time is recorded separately for comparison.
+ *
+ * If more than maxOutstanding requests are in flight the request is counted as dropped and the
+ * schedule moves on; the timer never waits for responses. A dropped request is still a request the
+ * schedule wanted served: it enters the corrected latency as the time from its intended send to
+ * the end of the run, a lower bound, so the slowest part of an overloaded run is not left out.
+ */
+public class OpenLoopLoadGenerator {
+
+    /**
+     * Rate ramps linearly from startRate to targetRate over ramp, then holds targetRate
+     * until duration has elapsed (the ramp is part of the duration).
+     */
+    public static class Profile {
+        public final double startRate;
+        public final double targetRate;
+        public final Duration ramp;
+        public final Duration duration;
+        public final int maxOutstanding;
+
+        public Profile(double startRate, double targetRate, Duration ramp, Duration duration, int maxOutstanding) {
+            if (targetRate <= 0 || startRate <= 0 || duration.isZero() || duration.isNegative() || maxOutstanding <= 0) {
+                throw new IllegalArgumentException("Load profile rates, duration and maxOutstanding must be positive");
+            }
+            this.startRate = startRate;
+            this.targetRate = targetRate;
+            this.ramp = ramp.compareTo(duration) > 0 ? duration : ramp;
+            this.duration = duration;
+            this.maxOutstanding = maxOutstanding;
+        }
+
+        double rateAt(long elapsedNanos) {
+            long rampNanos = ramp.toNanos();
+            if (rampNanos <= 0 || elapsedNanos >= rampNanos) {
+                return targetRate;
+            }
+            return startRate + (targetRate - startRate) * ((double) elapsedNanos / rampNanos);
+        }
+    }
+
+    public static class Report {
+        public final int issued;
+        public final int succeeded;
+        public final int failed;
+        public final int dropped;
+        public final long scheduleNanos;
+        public final long elapsedNanos;
+        /** Latency from intended send time (coordinated-omission corrected, dropped requests included), microseconds. */
+        public final Histogram latency;
+        /** Latency from actual send time, microseconds. */
+        public final Histogram serviceTime;
+
+        Report(int issued, int succeeded, int failed, int dropped, long scheduleNanos, long elapsedNanos,
+               Histogram latency, Histogram serviceTime) {
+            this.issued = issued;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.dropped = dropped;
+            this.scheduleNanos = scheduleNanos;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.serviceTime = serviceTime;
+        }
+
+        /** Requests actually sent (issued minus dropped) per second of schedule. */
+        public double achievedRate() {
+            return (issued - dropped) / Math.max(1e-9, scheduleNanos / 1_000_000_000.0);
+        }
+    }
+
+    // Spin instead of parking for the last stretch before a send; parkNanos overshoots by ~50-100us
+    private static final long SPIN_THRESHOLD_NANOS = 100_000L;
+
+    private final String name;
+
+    public OpenLoopLoadGenerator(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Run the profile, calling request.apply(sequence) (1-based) at each scheduled instant.
+     * The returned Mono completes after the schedule ends and outstanding requests have finished
+     * (or drainTimeout has passed).
+     */
+    public Mono<Report> run(Profile profile, IntFunction<Mono<?>> request, Duration drainTimeout) {
+        return Mono.fromFuture(() -> {
+            CompletableFuture<Report> result = new CompletableFuture<>();
+            Thread timer = new Thread(() -> {
+                try {
+                    result.complete(drive(profile, request, drainTimeout));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }, "open-loop-" + name);
+            timer.setDaemon(true);
+            timer.start();
+            return result;
+        });
+    }
+
+    private Report drive(Profile profile, IntFunction<Mono<?>> request, Duration drainTimeout) throws InterruptedException {
+        Recorder latency = new Recorder(3);
+        Recorder serviceTime = new Recorder(3);
+        AtomicInteger outstanding = new AtomicInteger();
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong lastCompletion = new AtomicLong(Long.MIN_VALUE);
+        int issued = 0;
+        int dropped = 0;
+        // Intended send times of dropped requests, recorded once the run's end is known
+        long[] droppedAt = new long[64];
+
+        long durationNanos = profile.duration.toNanos();
+        long start = System.nanoTime();
+        long offset = 0; // intended send time of the next request, relative to start
+
+        while (offset < durationNanos) {
+            long intended = start + offset;
+            long wait = intended - System.nanoTime();
+            if (wait > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(wait - SPIN_THRESHOLD_NANOS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Load generator " + name + " interrupted");
+                }
+                continue;
+            }
+            while (System.nanoTime() < intended) {
+                Thread.onSpinWait();
+            }
+
+            int sequence = ++issued;
+            if (outstanding.get() >= profile.maxOutstanding) {
+                if (dropped == droppedAt.length) {
+                    droppedAt = Arrays.copyOf(droppedAt, dropped * 2);
+                }
+                droppedAt[dropped++] = intended;
+            } else {
+                outstanding.incrementAndGet();
+                long sent = System.nanoTime();
+                Mono<?> call;
+                try {
+                    call = request.apply(sequence);
+                } catch (RuntimeException e) {
+                    call = Mono.error(e);
+                }
+                call.subscribe(
+                        ignored -> { },
+                        err -> {
+                            failed.incrementAndGet();
+                            complete(latency, serviceTime, intended, sent, outstanding, lastCompletion);
+                        },
+                        () -> {
+                            succeeded.incrementAndGet();
+                            complete(latency, serviceTime, intended, sent, outstanding, lastCompletion);
+                        });
+            }
+            // If we fell behind, the next intended times are already due and are issued back to back
+            offset += (long) (1_000_000_000.0 / profile.rateAt(offset));
+        }
+        long scheduleNanos = System.nanoTime() - start;
+
+        long drainDeadline = System.nanoTime() + drainTimeout.toNanos();
+        while (outstanding.get() > 0 && System.nanoTime() < drainDeadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        long end = outstanding.get() > 0 ? System.nanoTime() : Math.max(lastCompletion.get(), start + scheduleNanos);
+        for (int i = 0; i < dropped; i++) {
+            latency.recordValue(Math.max(0, (end - droppedAt[i]) / 1_000));
+        }
+
+        return new Report(issued, succeeded.get(), failed.get(), dropped, scheduleNanos, end - start,
+                latency.getIntervalHistogram(), serviceTime.getIntervalHistogram());
+    }
+
+    private static void complete(Recorder latency, Recorder serviceTime, long intended, long sent,
+                                 AtomicInteger outstanding, AtomicLong lastCompletion) {
+        long now = System.nanoTime();
+        latency.recordValue(Math.max(0, (now - intended) / 1_000));
+        serviceTime.recordValue(Math.max(0, (now - sent) / 1_000));
+        lastCompletion.accumulateAndGet(now, Math::max);
+        outstanding.decrementAndGet();
+    }
+}
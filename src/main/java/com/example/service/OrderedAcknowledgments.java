@@ -0,0 +1,113 @@
+package com.example.service;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Acknowledges Kafka batches in poll order once their inserts have completed.
+ *
+ * Used by consumers that let inserts finish after the listener has returned. A batch is acknowledged
+ * only after its own insert and those of all batches added before it have succeeded. After a failure nothing
+ * more is acknowledged; the listener thread must call {@link #rewind(Consumer, Duration)} on its
+ * next invocation, or from its container's idle event when no more records arrive, which waits for
+ * outstanding inserts and seeks the consumer back to the committed offsets so the failed batch is
+ * consumed again. The wait is bounded by the caller, below max.poll.interval.ms: inserts still
+ * outstanding then leave the chain failed, and the next call waits for them again.
+ *
+ * One instance per listener thread: add and rewind are called on that thread only.
+ */
+public class OrderedAcknowledgments {
+
+	private CompletableFuture<Void> acked = CompletableFuture.completedFuture(null);
+	private CompletableFuture<Void> settled = CompletableFuture.completedFuture(null);
+	private volatile Throwable failure;
+
+	public void add(CompletableFuture<?> inserted, Acknowledgment ack) {
+		CompletableFuture<?> tracked = inserted.whenComplete((v, e) -> {
+			if (e != null && failure == null) {
+				failure = e;
+			}
+		});
+		acked = acked.thenCompose(v -> tracked).thenRun(ack::acknowledge);
+		settled = CompletableFuture.allOf(settled, tracked.handle((v, e) -> null));
+	}
+
+	public boolean failed() {
+		return failure != null;
+	}
+
+	public Throwable failure() {
+		return failure;
+	}
+
+	/**
+	 * Wait for outstanding inserts, then seek every assigned partition back to its committed offset.
+	 * Returns false, still seeking back but staying failed, if they have not all finished within
+	 * settleTimeout.
+	 */
+	public boolean rewind(Consumer<?, ?> consumer, Duration settleTimeout) throws InterruptedException {
+		boolean done;
+		try {
+			settled.get(settleTimeout.toMillis(), TimeUnit.MILLISECONDS);
+			done = true;
+		} catch (TimeoutException e) {
+			done = false;
+		} catch (ExecutionException e) {
+			done = true; // settled never fails; kept for the checked signature
+		}
+		Set<TopicPartition> assignment = seekToCommitted(consumer);
+		if (!done) {
+			System.err.println("Inserts still outstanding after " + settleTimeout.toMillis() + " ms; rewound "
+				+ assignment.size() + " partitions and waiting again on the next poll");
+			return false;
+		}
+		System.err.println("Rewound " + assignment.size() + " partitions to committed offsets after insert failure: "
+			+ failure.getMessage());
+		acked = CompletableFuture.completedFuture(null);
+		settled = CompletableFuture.completedFuture(null);
+		failure = null;
+		return true;
+	}
+
+	/**
+	 * Seek every assigned partition back to its committed offset; returns the assignment.
+	 */
+	public static Set<TopicPartition> seekToCommitted(Consumer<?, ?> consumer) {
+		Set<TopicPartition> assignment = consumer.assignment();
+		Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(assignment);
+		for (TopicPartition tp : assignment) {
+			OffsetAndMetadata offset = committed.get(tp);
+			if (offset != null) {
+				consumer.seek(tp, offset.offset());
+			} else {
+				consumer.seekToBeginning(List.of(tp));
+			}
+		}
+		return assignment;
+	}
+
+	/**
+	 * Seek back to the first offset of each partition in the records, so a listener that could not
+	 * hand them over in time gets them again from its next poll.
+	 */
+	public static void redeliver(Consumer<?, ?> consumer, List<? extends ConsumerRecord<?, ?>> records) {
+		Map<TopicPartition, Long> first = new HashMap<>();
+		for (ConsumerRecord<?, ?> rec : records) {
+			first.merge(new TopicPartition(rec.topic(), rec.partition()), rec.offset(), Math::min);
+		}
+		first.forEach(consumer::seek);
+	}
+}
@@ -0,0 +1,107 @@
+package com.example.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Continuation token for keyset pagination of packet queries.
+ *
+ * Pages are ordered by (message_datetime, stationary_kavach_id, message_sequence) descending and
+ * the token holds that key of the last row returned. The next page starts strictly below it with a
+ * range predicate instead of OFFSET, so ClickHouse reads only from the cursor onwards and every
+ * page costs about the same. Rows that share all three key values with the last row of a page are
+ * not repeated on the next one.
+ *
+ * Key values are carried as ClickHouse formats them (toString) and compared as literals, which
+ * ClickHouse converts back to the column type, so the token does not depend on the column types.
+ * To clients the token is opaque.
+ */
+public final class PacketPageCursor {
+
+    /** Extra columns a page query selects to build the next cursor; removed from the rows returned. */
+    public static final String DATETIME_COLUMN = "_cursor_message_datetime";
+    public static final String KAVACH_ID_COLUMN = "_cursor_stationary_kavach_id";
+    public static final String SEQUENCE_COLUMN = "_cursor_message_sequence";
+
+    public static final String SELECT_COLUMNS = "toString(t.message_datetime) AS " + DATETIME_COLUMN
+            + ", toString(t.stationary_kavach_id) AS " + KAVACH_ID_COLUMN
+            + ", toString(t.message_sequence) AS " + SEQUENCE_COLUMN;
+
+    public static final String ORDER_BY = "t.message_datetime DESC, t.stationary_kavach_id DESC, t.message_sequence DESC";
+
+    private static final String VERSION = "1";
+    private static final char SEPARATOR = '\u0000';
+
+    public final String messageDatetime;
+    public final String stationaryKavachId;
+    public final String messageSequence;
+
+    public PacketPageCursor(String messageDatetime, String stationaryKavachId, String messageSequence) {
+        this.messageDatetime = messageDatetime;
+        this.stationaryKavachId = stationaryKavachId;
+        this.messageSequence = messageSequence;
+    }
+
+    /**
+     * One page of rows and the token for the next one (null on the last page).
+     */
+    public static class Page {
+        public final List<Map<String, Object>> rows;
+        public final String nextCursor;
+
+        public Page(List<Map<String, Object>> rows, String nextCursor) {
+            this.rows = rows;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    /**
+     * The cursor in a token, or null for a blank token (first page).
+     */
+    public static PacketPageCursor decode(String token) {
+        if (token == null || token.isBlank()) {
+            return null;
+        }
+        String raw;
+        try {
+            raw = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        String[] parts = raw.split(String.valueOf(SEPARATOR), -1);
+        if (parts.length != 4 || !VERSION.equals(parts[0]) || parts[1].isEmpty()) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        return new PacketPageCursor(parts[1], parts[2], parts[3]);
+    }
+
+    public String encode() {
+        String raw = VERSION + SEPARATOR + messageDatetime + SEPARATOR + stationaryKavachId + SEPARATOR + messageSequence;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Page of a query run with LIMIT limit + 1: the extra row only tells that another page exists.
+     * The cursor columns are removed from the rows.
+     */
+    public static Page page(List<Map<String, Object>> fetched, int limit) {
+        boolean more = fetched.size() > limit;
+        List<Map<String, Object>> rows = more ? new ArrayList<>(fetched.subList(0, limit)) : fetched;
+        String next = null;
+        if (more) {
+            Map<String, Object> last = rows.get(rows.size() - 1);
+            next = new PacketPageCursor(String.valueOf(last.get(DATETIME_COLUMN)),
+                    String.valueOf(last.get(KAVACH_ID_COLUMN)),
+                    String.valueOf(last.get(SEQUENCE_COLUMN))).encode();
+        }
+        for (Map<String, Object> row : rows) {
+            row.remove(DATETIME_COLUMN);
+            row.remove(KAVACH_ID_COLUMN);
+            row.remove(SEQUENCE_COLUMN);
+        }
+        return new Page(rows, next);
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.service;
+
+import com.example.service.ClickHouseTableSchemaService.Column;
+import com.example.service.ClickHouseTableSchemaService.TableSchema;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Client-side evaluation of a table's PARTITION BY expression (system.tables.partition_key),
+ * so buffered rows can be grouped by the partition ClickHouse will write them to.
+ *
+ * Supported: a bare column, toYYYYMM / toYYYYMMDD / toYear / toDate / toMonday / toStartOfDay /
+ * toStartOfHour / toStartOfMonth of a Date or DateTime column, intDiv(column, n) and tuples of
+ * these. Date functions are evaluated in the column's time zone (or the server's), as ClickHouse
+ * does. Any other expression leaves the extractor unpartitioned: every row gets the same key and
+ * batching behaves as before.
+ */
+public final class PartitionKeyExtractor {
+
+    private static final PartitionKeyExtractor UNPARTITIONED = new PartitionKeyExtractor("", null);
+
+    private final String expression;
+    private final Function<Map<String, Object>, Object> key;
+
+    private PartitionKeyExtractor(String expression, Function<Map<String, Object>, Object> key) {
+        this.expression = expression;
+        this.key = key;
+    }
+
+    public static PartitionKeyExtractor unpartitioned() {
+        return UNPARTITIONED;
+    }
+
+    public static PartitionKeyExtractor forSchema(TableSchema schema) {
+        String expression = schema.partitionKey == null ? "" : schema.partitionKey.trim();
+        if (expression.isEmpty() || "tuple()".equals(expression)) {
+            return UNPARTITIONED;
+        }
+        Map<String, Column> columns = new LinkedHashMap<>();
+        schema.columns.forEach(c -> columns.put(c.name, c));
+        try {
+            return new PartitionKeyExtractor(expression, compile(expression, columns, schema.serverTimeZone));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Partition key of " + schema.table + " is not evaluated client-side ("
+                    + e.getMessage() + "), rows are not grouped by partition");
+            return new PartitionKeyExtractor(expression, null);
+        }
+    }
+
+    /**
+     * True when rows can be told apart by partition.
+     */
+    public boolean partitioned() {
+        return key != null;
+    }
+
+    public String expression() {
+        return expression;
+    }
+
+    /**
+     * Partition of the row, or null when the table is unpartitioned or the value cannot be read.
+     */
+    public Object keyOf(Map<String, Object> row) {
+        if (key == null) {
+            return null;
+        }
+        try {
+            return key.apply(row);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The rows reordered so that each partition's rows are contiguous (partitions in order of
+     * first appearance, rows in their original order within a partition).
+     */
+    public List<Map<String, Object>> groupRows(List<Map<String, Object>> rows) {
+        if (key == null || rows.size() < 2) {
+            return rows;
+        }
+        Map<Object, List<Map<String, Object>>> groups = new LinkedHashMap<>();
+        for (Map<String, Object> row : rows) {
+            groups.computeIfAbsent(keyOf(row), k -> new ArrayList<>()).add(row);
+        }
+        if (groups.size() == 1) {
+            return rows;
+        }
+        List<Map<String, Object>> ordered = new ArrayList<>(rows.size());
+        groups.values().forEach(ordered::addAll);
+        return ordered;
+    }
+
+    /**
+     * Number of distinct partitions, i.e. parts, an insert of these rows creates; -1 if unknown.
+     */
+    public int partitionCount(List<Map<String, Object>> rows) {
+        if (key == null) {
+            return -1;
+        }
+        Object first = null;
+        List<Object> seen = null;
+        for (Map<String, Object> row : rows) {
+            Object k = keyOf(row);
+            if (first == null) {
+                first = k;
+            } else if (!first.equals(k)) {
+                if (seen == null) {
+                    seen = new ArrayList<>();
+                    seen.add(first);
+                }
+                if (!seen.contains(k)) {
+                    seen.add(k);
+                }
+            }
+        }
+        return first == null ? 0 : seen == null ? 1 : seen.size();
+    }
+
+    // ---------------------------------------------------------------- expression compilation
+
+    private static Function<Map<String, Object>, Object> compile(String expression, Map<String, Column> columns, ZoneId serverZone) {
+        String e = expression.trim();
+        if (e.startsWith("tuple(") && e.endsWith(")")) {
+            e = e.substring("tuple".length());
+        }
+        if (e.startsWith("(") && e.endsWith(")")) {
+            List<Function<Map<String, Object>, Object>> parts = new ArrayList<>();
+            for (String arg : splitArgs(e.substring(1, e.length() - 1))) {
+                parts.add(compile(arg, columns, serverZone));
+            }
+            return row -> {
+                List<Object> values = new ArrayList<>(parts.size());
+                for (Function<Map<String, Object>, Object> part : parts) values.add(part.apply(row));
+                return values;
+            };
+        }
+        int open = e.indexOf('(');
+        if (open < 0) {
+            String column = column(e, columns).name;
+            return row -> String.valueOf(row.get(column));
+        }
+        if (!e.endsWith(")")) {
+            throw new IllegalArgumentException("unsupported expression " + e);
+        }
+        String function = e.substring(0, open).trim();
+        List<String> args = splitArgs(e.substring(open + 1, e.length() - 1));
+        Column column = column(args.get(0), columns);
+        String name = column.name;
+        ZoneId zone = zoneOf(column.type, serverZone);
+        switch (function) {
+            case "toYYYYMM":
+                return row -> {
+                    LocalDate d = localDateTime(row.get(name), zone).toLocalDate();
+                    return d.getYear() * 100L + d.getMonthValue();
+                };
+            case "toYYYYMMDD":
+                return row -> {
+                    LocalDate d = localDateTime(row.get(name), zone).toLocalDate();
+                    return d.getYear() * 10000L + d.getMonthValue() * 100L + d.getDayOfMonth();
+                };
+            case "toYear":
+                return row -> (long) localDateTime(row.get(name), zone).getYear();
+            case "toDate":
+            case "toStartOfDay":
+                return row -> localDateTime(row.get(name), zone).toLocalDate();
+            case "toMonday":
+                return row -> localDateTime(row.get(name), zone).toLocalDate()
+                        .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            case "toStartOfMonth":
+                return row -> localDateTime(row.get(name), zone).toLocalDate().withDayOfMonth(1);
+            case "toStartOfHour":
+                return row -> localDateTime(row.get(name), zone).withMinute(0).withSecond(0).withNano(0);
+            case "intDiv": {
+                if (args.size() != 2) {
+                    throw new IllegalArgumentException("intDiv needs two arguments");
+                }
+                long divisor = Long.parseLong(args.get(1).trim());
+                // ClickHouse truncates toward zero: intDiv(-7, 2) = -3
+                return row -> toLong(row.get(name)) / divisor;
+            }
+            default:
+                throw new IllegalArgumentException("unsupported function " + function);
+        }
+    }
+
+    private static Column column(String name, Map<String, Column> columns) {
+        String n = name.trim();
+        if (n.startsWith("`") && n.endsWith("`")) {
+            n = n.substring(1, n.length() - 1);
+        }
+        Column c = columns.get(n);
+        if (c == null) {
+            throw new IllegalArgumentException("unknown column " + name);
+        }
+        return c;
+    }
+
+    private static ZoneId zoneOf(String type, ZoneId serverZone) {
+        String t = type.trim();
+        if (t.startsWith("Nullable(")) {
+            t = t.substring("Nullable(".length(), t.length() - 1);
+        }
+        int quote = t.indexOf('\'');
+        if ((t.startsWith("DateTime(") || t.startsWith("DateTime64(")) && quote >= 0) {
+            return ZoneId.of(t.substring(quote + 1, t.lastIndexOf('\'')));
+        }
+        return serverZone;
+    }
+
+    private static List<String> splitArgs(String args) {
+        List<String> out = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < args.length(); i++) {
+            char c = args.charAt(i);
+            if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (c == ',' && depth == 0) {
+                out.add(args.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        out.add(args.substring(start).trim());
+        return out;
+    }
+
+    private static long toLong(Object v) {
+        if (v instanceof Number n) return n.longValue();
+        return Long.parseLong(String.valueOf(v).trim());
+    }
+
+    // Same interpretation as the RowBinary encoder: epoch seconds, or text in the column's zone
+    private static LocalDateTime localDateTime(Object v, ZoneId zone) {
+        if (v instanceof LocalDateTime ldt) return ldt;
+        if (v instanceof LocalDate d) return d.atStartOfDay();
+        if (v instanceof Instant i) return LocalDateTime.ofInstant(i, zone);
+        if (v instanceof Number n) return LocalDateTime.ofInstant(Instant.ofEpochSecond(n.longValue()), zone);
+        String s = String.valueOf(v).trim();
+        if (s.length() == 10) {
+            return LocalDate.parse(s).atStartOfDay();
+        }
+        if (s.length() >= 19 && s.charAt(4) == '-' && s.charAt(10) == ' ') {
+            // "yyyy-MM-dd HH:mm:ss[.fff]": read the digits directly, this runs once per buffered row
+            return LocalDateTime.of(digits(s, 0, 4), digits(s, 5, 7), digits(s, 8, 10),
+                    digits(s, 11, 13), digits(s, 14, 16), digits(s, 17, 19));
+        }
+        return LocalDateTime.parse(s.replace(' ', 'T'));
+    }
+
+    private static int digits(String s, int from, int to) {
+        int v = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("not a date-time: " + s);
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+}
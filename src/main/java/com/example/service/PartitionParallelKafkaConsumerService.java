@@ -0,0 +1,257 @@
+package com.example.service;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Kafka consumer with one insert lane per assigned partition (kafka.consumer.mode=partition-parallel).
+ *
+ * Each poll is split by partition and every slice is queued on its partition's lane. A lane runs
+ * its slices one after another (decode, JSON or binary packets through {@link KavachPacketCodec},
+ * then insert), so rows of a partition reach ClickHouse in
+ * offset order, while different partitions insert in parallel on a shared pool of
+ * kafka.consumer.partition.threads threads. Throughput therefore follows the topic's partition
+ * count rather than the number of listener containers.
+ *
+ * Offsets are tracked per partition: a lane's watermark is the offset after its last inserted
+ * slice, and the listener commits watermarks directly on the consumer (also from container idle
+ * events, so a quiet topic still commits). A failed insert only stops its own lane; the partition
+ * is sought back to its watermark and the lane restarts from there. A listener waits before
+ * queueing more than kafka.consumer.partition.max-pending-batches slices on one lane, at most
+ * kafka.consumer.max-listener-wait-ms per poll; a slice whose lane is still full then is not
+ * queued and its partition is sought back to it.
+ *
+ * Lanes are kept per partition across rebalances, so a partition that moves to another listener
+ * thread of this application keeps its order. Delivery is at-least-once: slices whose watermark was
+ * not yet committed when a partition was revoked are inserted again by its next owner.
+ */
+@Service
+@ConditionalOnProperty(name = "kafka.consumer.mode", havingValue = "partition-parallel")
+public class PartitionParallelKafkaConsumerService implements KafkaInsertBacklog {
+
+	private final class Lane {
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicLong batches = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		volatile CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+		volatile long insertedOffset = -1;
+		volatile long committedOffset = -1;
+		volatile Throwable failure;
+
+		void enqueue(List<ConsumerRecord<String, byte[]>> slice) {
+			long nextOffset = slice.get(slice.size() - 1).offset() + 1;
+			pending.incrementAndGet();
+			tail = tail
+				.thenApplyAsync(v -> decode(slice), lanePool)
+				.thenCompose(decoded -> clickHouseBulkInsertService.insertAsync(decoded).toFuture()
+					.thenRun(() -> rows.addAndGet(decoded.size())))
+				.whenComplete((v, e) -> {
+					pending.decrementAndGet();
+					if (e != null) {
+						if (failure == null) {
+							failure = e;
+						}
+						return;
+					}
+					batches.incrementAndGet();
+					// A partition consumed again after a rebalance must not move its watermark back
+					insertedOffset = Math.max(insertedOffset, nextOffset);
+				});
+		}
+
+		Map<String, Object> stats() {
+			Map<String, Object> m = new LinkedHashMap<>();
+			m.put("pendingBatches", pending.get());
+			m.put("insertedBatches", batches.get());
+			m.put("insertedRows", rows.get());
+			m.put("insertedOffset", insertedOffset);
+			m.put("committedOffset", committedOffset);
+			m.put("failed", failure != null);
+			return m;
+		}
+	}
+
+	private final ClickHouseBulkInsertService clickHouseBulkInsertService;
+	private final KavachPacketCodec codec;
+	private final ExecutorService lanePool;
+	private final Map<TopicPartition, Lane> lanes = new ConcurrentHashMap<>();
+	private final AtomicLong rewinds = new AtomicLong();
+
+	@Value("${kafka.consumer.partition.max-pending-batches:4}")
+	private int maxPendingBatches;
+
+	// Keep below max.poll.interval.ms so the listener returns to poll (and a pause can apply)
+	@Value("${kafka.consumer.max-listener-wait-ms:60000}")
+	private long maxListenerWaitMs;
+
+	public PartitionParallelKafkaConsumerService(ClickHouseBulkInsertService clickHouseBulkInsertService,
+	                                             KavachPacketCodec codec,
+	                                             @Value("${kafka.consumer.partition.threads:8}") int threads) {
+		this.clickHouseBulkInsertService = clickHouseBulkInsertService;
+		this.codec = codec;
+		AtomicInteger threadIndex = new AtomicInteger();
+		this.lanePool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "kafka-lane-" + threadIndex.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@KafkaListener(topics = "${kafka.topic:clickhouse-input}", containerFactory = "bytesKafkaListenerContainerFactory")
+	public void onBatch(List<ConsumerRecord<String, byte[]>> records, Consumer<?, ?> consumer) throws InterruptedException {
+		Set<TopicPartition> rewound = recoverFailedLanes(consumer);
+
+		Map<TopicPartition, List<ConsumerRecord<String, byte[]>>> slices = new HashMap<>();
+		for (ConsumerRecord<String, byte[]> rec : records) {
+			slices.computeIfAbsent(new TopicPartition(rec.topic(), rec.partition()), tp -> new ArrayList<>()).add(rec);
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxListenerWaitMs);
+		for (Map.Entry<TopicPartition, List<ConsumerRecord<String, byte[]>>> slice : slices.entrySet()) {
+			if (rewound.contains(slice.getKey())) {
+				continue; // consumed again from the watermark after the seek
+			}
+			Lane lane = lanes.computeIfAbsent(slice.getKey(), tp -> new Lane());
+			boolean full = false;
+			while (lane.pending.get() >= maxPendingBatches && lane.failure == null) {
+				if (System.nanoTime() >= deadline) {
+					full = true;
+					break;
+				}
+				commitWatermarks(consumer);
+				Thread.sleep(5);
+			}
+			if (full) {
+				consumer.seek(slice.getKey(), slice.getValue().get(0).offset());
+				continue;
+			}
+			if (lane.failure == null) {
+				lane.enqueue(slice.getValue());
+			}
+		}
+		commitWatermarks(consumer);
+	}
+
+	// Published on the consumer thread when a container has had no records for the idle interval
+	@EventListener
+	public void onIdle(ListenerContainerIdleEvent event) {
+		Consumer<?, ?> consumer = event.getConsumer();
+		recoverFailedLanes(consumer);
+		commitWatermarks(consumer);
+	}
+
+	// The fullest lane decides: it is the one that makes the listener wait
+	@Override
+	public double insertQueueFill() {
+		int fullest = 0;
+		for (Lane lane : lanes.values()) {
+			fullest = Math.max(fullest, lane.pending.get());
+		}
+		return fullest / (double) maxPendingBatches;
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> m = new LinkedHashMap<>();
+		m.put("lanes", lanes.size());
+		m.put("rewinds", rewinds.get());
+		Map<String, Object> perPartition = new TreeMap<>();
+		lanes.forEach((tp, lane) -> perPartition.put(tp.toString(), lane.stats()));
+		m.put("partitions", perPartition);
+		return m;
+	}
+
+	@PreDestroy
+	public void close() {
+		lanePool.shutdown();
+	}
+
+	private List<Map<String, Object>> decode(List<ConsumerRecord<String, byte[]>> records) {
+		List<Map<String, Object>> batch = new ArrayList<>(records.size());
+		for (ConsumerRecord<String, byte[]> rec : records) {
+			try {
+				batch.add(codec.toMap(rec.value()));
+			} catch (Exception ignored) {
+			}
+		}
+		return batch;
+	}
+
+	private void commitWatermarks(Consumer<?, ?> consumer) {
+		Set<TopicPartition> assignment = consumer.assignment();
+		Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+		for (TopicPartition tp : assignment) {
+			Lane lane = lanes.get(tp);
+			if (lane != null && lane.insertedOffset > lane.committedOffset) {
+				long watermark = lane.insertedOffset;
+				offsets.put(tp, new OffsetAndMetadata(watermark));
+				lane.committedOffset = watermark;
+			}
+		}
+		if (!offsets.isEmpty()) {
+			consumer.commitAsync(offsets, (committed, error) -> {
+				if (error != null) {
+					System.err.println("Kafka offset commit failed, retried with the next watermark: " + error.getMessage());
+					committed.keySet().forEach(tp -> {
+						Lane lane = lanes.get(tp);
+						if (lane != null) {
+							lane.committedOffset = -1;
+						}
+					});
+				}
+			});
+		}
+	}
+
+	private Set<TopicPartition> recoverFailedLanes(Consumer<?, ?> consumer) {
+		Set<TopicPartition> rewound = new HashSet<>();
+		for (TopicPartition tp : consumer.assignment()) {
+			Lane lane = lanes.get(tp);
+			if (lane == null || lane.failure == null || lane.pending.get() > 0) {
+				continue;
+			}
+			long watermark = lane.insertedOffset;
+			if (watermark >= 0) {
+				consumer.seek(tp, watermark);
+			} else {
+				OffsetAndMetadata committed = consumer.committed(Set.of(tp)).get(tp);
+				if (committed != null) {
+					consumer.seek(tp, committed.offset());
+				} else {
+					consumer.seekToBeginning(List.of(tp));
+				}
+			}
+			System.err.println("Partition " + tp + " insert failed, rewinding lane: " + lane.failure.getMessage());
+			Lane fresh = new Lane();
+			fresh.insertedOffset = lane.insertedOffset;
+			fresh.committedOffset = lane.committedOffset;
+			lanes.put(tp, fresh);
+			rewinds.incrementAndGet();
+			rewound.add(tp);
+		}
+		return rewound;
+	}
+}
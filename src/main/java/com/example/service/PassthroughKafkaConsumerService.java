@@ -0,0 +1,101 @@
+package com.example.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kafka consumer for topics that already carry JSONEachRow rows (kafka.consumer.mode=passthrough).
+ *
+ * Record values are consumed as raw bytes and forwarded into the insert body as they are: no
+ * String decoding, no parsing into maps and no re-serialization. Each value is only checked to
+ * look like a single JSON object (first non-blank byte '{', last non-blank byte '}');
+ * values that fail the check are skipped, like unparseable records in the blocking consumer.
+ * Binary Kavach packets (kafka.producer.format=binary) are the exception: they are decoded with
+ * {@link KavachPacketCodec} and re-encoded as a JSON line, so a topic may carry either form.
+ * The rows always go to clickhouse.table as JSONEachRow; routing.insert rules are not applied.
+ */
+@Service
+@ConditionalOnProperty(name = "kafka.consumer.mode", havingValue = "passthrough")
+public class PassthroughKafkaConsumerService {
+
+	private static final byte[] NEWLINE = {'\n'};
+
+	private final ClickHouseBulkInsertService clickHouseBulkInsertService;
+	private final KavachPacketCodec codec;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	// Set to false only when the producer guarantees valid JSON objects
+	@Value("${kafka.consumer.passthrough.validate:true}")
+	private boolean validate;
+
+	public PassthroughKafkaConsumerService(ClickHouseBulkInsertService clickHouseBulkInsertService,
+	                                       KavachPacketCodec codec,
+	                                       @Value("${routing.insert.enabled:false}") boolean routingEnabled) {
+		this.clickHouseBulkInsertService = clickHouseBulkInsertService;
+		this.codec = codec;
+		if (routingEnabled) {
+			System.err.println("routing.insert.enabled is ignored in passthrough mode; inserting into clickhouse.table");
+		}
+	}
+
+	@KafkaListener(topics = "${kafka.topic:clickhouse-input}", containerFactory = "bytesKafkaListenerContainerFactory")
+	public void onBatch(List<ConsumerRecord<String, byte[]>> records, Acknowledgment ack) {
+		if (records == null || records.isEmpty()) {
+			ack.acknowledge();
+			return;
+		}
+
+		// Values and separators alternate; both are wrapped into the body without copying
+		List<byte[]> lines = new ArrayList<>(records.size() * 2);
+		int skipped = 0;
+		for (ConsumerRecord<String, byte[]> rec : records) {
+			byte[] value = rec.value();
+			if (KavachPacketCodec.isBinary(value)) {
+				try {
+					value = objectMapper.writeValueAsBytes(codec.toMap(value));
+				} catch (Exception e) {
+					skipped++;
+					continue;
+				}
+			}
+			if (value == null || value.length == 0 || (validate && !looksLikeJsonObject(value))) {
+				skipped++;
+				continue;
+			}
+			lines.add(value);
+			if (value[value.length - 1] != '\n') {
+				lines.add(NEWLINE);
+			}
+		}
+		if (skipped > 0) {
+			System.err.println("Pass-through consumer skipped " + skipped + " values that are not JSON objects or Kavach packets");
+		}
+
+		try {
+			clickHouseBulkInsertService.insertJsonLinesAsync(lines).block();
+			ack.acknowledge();
+		} catch (Exception e) {
+			throw new RuntimeException("Failed pass-through insert to ClickHouse", e);
+		}
+	}
+
+	static boolean looksLikeJsonObject(byte[] value) {
+		int start = 0;
+		int end = value.length - 1;
+		while (start <= end && isBlank(value[start])) start++;
+		while (end > start && isBlank(value[end])) end--;
+		return start < end && value[start] == '{' && value[end] == '}';
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+}
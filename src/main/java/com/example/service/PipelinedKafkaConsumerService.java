@@ -0,0 +1,147 @@
+package com.example.service;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Kafka consumer that overlaps poll, decode and insert (kafka.consumer.mode=pipelined).
+ *
+ * The listener thread only hands each polled batch to the decode pool and returns to poll; the
+ * decoded rows are inserted asynchronously, with at most kafka.consumer.pipeline.max-in-flight
+ * batches between poll and insert completion. Acknowledgments are chained in poll order, so a
+ * batch's offsets are committed only after it and every earlier batch of the same consumer have
+ * been inserted. If an insert fails, later batches are never acknowledged: the listener waits for
+ * the outstanding inserts to settle and seeks its partitions back to the committed offsets, so
+ * the failed batch and everything after it is consumed again (at-least-once). Values are read as
+ * bytes and decoded with {@link KavachPacketCodec}, so JSON and binary packets are both accepted. On a quiet topic the
+ * rewind runs from the container's idle event instead of the next batch.
+ *
+ * The listener waits for an in-flight slot, and a rewind for outstanding inserts, at most
+ * kafka.consumer.max-listener-wait-ms (below max.poll.interval.ms); if that is not enough it seeks
+ * back and returns, so the consumer keeps polling and a pause from the backpressure controller can
+ * take effect.
+ */
+@Service
+@ConditionalOnProperty(name = "kafka.consumer.mode", havingValue = "pipelined")
+public class PipelinedKafkaConsumerService implements KafkaInsertBacklog {
+
+	private final ClickHouseBulkInsertService clickHouseBulkInsertService;
+	private final TableRoutingInsertEngine routingEngine;
+	private final KavachPacketCodec codec;
+	private final ExecutorService decodePool;
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+	private final long maxListenerWaitMs;
+	// Per listener thread: acknowledgment chain of the batches it polled
+	private final ThreadLocal<OrderedAcknowledgments> acks = ThreadLocal.withInitial(OrderedAcknowledgments::new);
+
+	@Value("${routing.insert.enabled:false}")
+	private boolean routingEnabled;
+
+	public PipelinedKafkaConsumerService(ClickHouseBulkInsertService clickHouseBulkInsertService,
+	                                     TableRoutingInsertEngine routingEngine,
+	                                     KavachPacketCodec codec,
+	                                     @Value("${kafka.consumer.pipeline.decode-threads:4}") int decodeThreads,
+	                                     @Value("${kafka.consumer.pipeline.max-in-flight:4}") int maxInFlight,
+	                                     @Value("${kafka.consumer.max-listener-wait-ms:60000}") long maxListenerWaitMs) {
+		this.clickHouseBulkInsertService = clickHouseBulkInsertService;
+		this.routingEngine = routingEngine;
+		this.codec = codec;
+		AtomicInteger threadIndex = new AtomicInteger();
+		this.decodePool = Executors.newFixedThreadPool(decodeThreads, r -> {
+			Thread t = new Thread(r, "kafka-decode-" + threadIndex.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		this.inFlight = new Semaphore(maxInFlight);
+		this.maxInFlight = maxInFlight;
+		this.maxListenerWaitMs = maxListenerWaitMs;
+	}
+
+	@KafkaListener(topics = "${kafka.topic:clickhouse-input}", containerFactory = "bytesKafkaListenerContainerFactory")
+	public void onBatch(List<ConsumerRecord<String, byte[]>> records, Acknowledgment ack, Consumer<?, ?> consumer)
+			throws InterruptedException {
+		OrderedAcknowledgments pending = acks.get();
+		if (pending.failed()) {
+			// These records are re-polled after the seek, together with the failed batch
+			pending.rewind(consumer, Duration.ofMillis(maxListenerWaitMs));
+			return;
+		}
+		if (records == null || records.isEmpty()) {
+			return;
+		}
+
+		// Backpressure: the listener stops polling while max-in-flight batches are unfinished, for a bounded time
+		if (!inFlight.tryAcquire(maxListenerWaitMs, TimeUnit.MILLISECONDS)) {
+			System.err.println("No insert slot freed within " + maxListenerWaitMs + " ms; polling " + records.size()
+				+ " records again");
+			OrderedAcknowledgments.redeliver(consumer, records);
+			return;
+		}
+		CompletableFuture<Void> inserted = CompletableFuture.supplyAsync(() -> decode(records), decodePool)
+			.thenCompose(this::insert)
+			.whenComplete((v, e) -> inFlight.release());
+		pending.add(inserted, ack);
+	}
+
+	// Idle events run on the listener thread, so this is the chain of the consumer that went quiet
+	@EventListener
+	public void onIdle(ListenerContainerIdleEvent event) throws InterruptedException {
+		OrderedAcknowledgments pending = acks.get();
+		if (pending.failed()) {
+			pending.rewind(event.getConsumer(), Duration.ofMillis(maxListenerWaitMs));
+		}
+	}
+
+	@Override
+	public double insertQueueFill() {
+		return (maxInFlight - inFlight.availablePermits()) / (double) maxInFlight;
+	}
+
+	@PreDestroy
+	public void close() {
+		decodePool.shutdown();
+	}
+
+	private List<Map<String, Object>> decode(List<ConsumerRecord<String, byte[]>> records) {
+		List<Map<String, Object>> batch = new ArrayList<>(records.size());
+		for (ConsumerRecord<String, byte[]> rec : records) {
+			try {
+				batch.add(codec.toMap(rec.value()));
+			} catch (Exception ignored) {
+			}
+		}
+		return batch;
+	}
+
+	private CompletableFuture<Void> insert(List<Map<String, Object>> rows) {
+		if (!routingEnabled) {
+			return clickHouseBulkInsertService.insertAsync(rows).toFuture();
+		}
+		try {
+			return routingEngine.routeAll(rows);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+}
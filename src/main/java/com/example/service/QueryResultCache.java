@@ -0,0 +1,312 @@
+package com.example.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Result cache in front of {@link ClickHouseQueryService} for the dashboard queries
+ * (/packets, /packets/count, /packets/distinct).
+ *
+ * Entries are keyed on (query kind, time window, sub_pkt_type, projection), with the window cut
+ * to whole seconds as the SQL is. A window that ends before now - query.cache.seal-horizon-ms is
+ * sealed: its data is taken not to change any more, so the entry never expires and is only
+ * evicted. A window reaching past the horizon is cached for query.cache.tail-ttl-ms and then
+ * queried again.
+ *
+ * That assumption breaks whenever rows arrive later than the horizon: Kafka consumer lag and
+ * insert spool replay both write older rows, which a sealed entry never reflects. The cache is
+ * therefore off unless query.cache.enabled is set, and the horizon must exceed the worst ingest
+ * delay the deployment accepts.
+ *
+ * Windows are ClickHouse wall-clock times, so "now" is taken in the server time zone of
+ * clickhouse.table, not the JVM's. Until that zone has been loaded nothing is sealed.
+ *
+ * Counts are additionally split at query.cache.bucket-ms boundaries: each sealed bucket is cached
+ * on its own and summed, so a sliding "last N hours" request only queries the buckets it has not
+ * seen plus the open tail.
+ *
+ * Size is bounded by query.cache.max-bytes, weighed by an estimate of each result's heap size and
+ * evicted by Caffeine's W-TinyLFU policy. Concurrent requests for the same key share one query,
+ * which keeps running when one of them cancels; failed queries are not cached.
+ */
+@Service
+public class QueryResultCache {
+
+    private static final int COUNT_WEIGHT = 64;
+
+    private final boolean enabled;
+    private final long sealHorizonSeconds;
+    private final long tailTtlNanos;
+    private final long bucketSeconds;
+    private final int maxBuckets;
+    private final AsyncCache<QueryKey, Entry> cache;
+    private final AtomicLong sealedLoads = new AtomicLong();
+    private final AtomicLong tailLoads = new AtomicLong();
+    private final ClickHouseTableSchemaService schemaService;
+    private final String table;
+    // Server time zone of the table, null until loaded
+    private volatile ZoneId zone;
+    private volatile long zoneRetryAtMillis;
+
+    public QueryResultCache(ClickHouseTableSchemaService schemaService,
+                            @Value("${clickhouse.table}") String table,
+                            @Value("${query.cache.enabled:false}") boolean enabled,
+                            @Value("${query.cache.max-bytes:268435456}") long maxBytes,
+                            @Value("${query.cache.seal-horizon-ms:3600000}") long sealHorizonMs,
+                            @Value("${query.cache.tail-ttl-ms:5000}") long tailTtlMs,
+                            @Value("${query.cache.bucket-ms:3600000}") long bucketMs,
+                            @Value("${query.cache.max-buckets:48}") int maxBuckets) {
+        this.schemaService = schemaService;
+        this.table = table;
+        this.enabled = enabled;
+        this.sealHorizonSeconds = Math.max(0, sealHorizonMs / 1000);
+        this.tailTtlNanos = TimeUnit.MILLISECONDS.toNanos(tailTtlMs);
+        this.bucketSeconds = Math.max(1, bucketMs / 1000);
+        this.maxBuckets = maxBuckets;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((QueryKey key, Entry entry) -> entry.weight)
+                .expireAfter(new Expiry<QueryKey, Entry>() {
+                    @Override
+                    public long expireAfterCreate(QueryKey key, Entry entry, long currentTime) {
+                        return entry.sealed ? Long.MAX_VALUE : tailTtlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(QueryKey key, Entry entry, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, entry, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(QueryKey key, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .buildAsync();
+    }
+
+    @PostConstruct
+    public void loadZone() {
+        if (enabled) {
+            requestZone();
+        }
+    }
+
+    /**
+     * Result of a query over [from, to), cached as a whole.
+     *
+     * @param projection everything besides the window and type that shapes the result (limit, offset, columns)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> window(String kind, LocalDateTime from, LocalDateTime to, String subPktType,
+                              String projection, Supplier<Mono<T>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        QueryKey key = new QueryKey(kind, from, to, subPktType, projection);
+        boolean sealed = !to.isAfter(sealLine());
+        // suppressCancel: the future is shared, a subscriber that goes away must not cancel it for the others
+        return Mono.defer(() -> Mono.fromFuture(cache.get(key, (k, executor) -> load(loader.get(), sealed)
+                .toFuture()), true))
+                .map(entry -> (T) entry.value);
+    }
+
+    /**
+     * Row count over [from, to), summed from per-bucket counts. loader counts one sub-window.
+     */
+    public Mono<Long> count(LocalDateTime from, LocalDateTime to, String subPktType,
+                            BiFunction<LocalDateTime, LocalDateTime, Mono<Long>> loader) {
+        if (!enabled) {
+            return loader.apply(from, to);
+        }
+        LocalDateTime start = from.truncatedTo(ChronoUnit.SECONDS);
+        LocalDateTime end = to.truncatedTo(ChronoUnit.SECONDS);
+        return Flux.fromIterable(pieces(start, end))
+                .flatMap(piece -> window("count", piece[0], piece[1], subPktType, "",
+                        () -> loader.apply(piece[0], piece[1])), 4)
+                .reduce(0L, Long::sum);
+    }
+
+    public void invalidateAll() {
+        cache.synchronous().invalidateAll();
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats s = cache.synchronous().stats();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", enabled);
+        m.put("entries", cache.synchronous().estimatedSize());
+        cache.synchronous().policy().eviction().ifPresent(e -> {
+            m.put("weightedBytes", e.weightedSize().orElse(0));
+            m.put("maxBytes", e.getMaximum());
+        });
+        m.put("hits", s.hitCount());
+        m.put("misses", s.missCount());
+        m.put("hitRate", s.hitRate());
+        m.put("evictions", s.evictionCount());
+        m.put("sealedLoads", sealedLoads.get());
+        m.put("tailLoads", tailLoads.get());
+        ZoneId z = zone;
+        m.put("sealLine", z == null ? "(server time zone not loaded)" : sealLine() + " " + z);
+        return m;
+    }
+
+    // ---------------------------------------------------------------- internals
+
+    private <T> Mono<Entry> load(Mono<T> query, boolean sealed) {
+        (sealed ? sealedLoads : tailLoads).incrementAndGet();
+        return query.map(value -> new Entry(value, sealed, weigh(value)));
+    }
+
+    // Windows ending at or before this wall-clock time no longer change; none do while the zone is unknown
+    private LocalDateTime sealLine() {
+        ZoneId z = zone;
+        if (z == null) {
+            requestZone();
+            return LocalDateTime.MIN;
+        }
+        return LocalDateTime.now(z).truncatedTo(ChronoUnit.SECONDS).minusSeconds(sealHorizonSeconds);
+    }
+
+    // Never blocks: the schema is read in the background, at most every 30 s after a failure
+    private void requestZone() {
+        long now = System.currentTimeMillis();
+        if (now < zoneRetryAtMillis) {
+            return;
+        }
+        zoneRetryAtMillis = now + 30_000;
+        schemaService.schema(table).subscribe(
+                schema -> zone = schema.serverTimeZone,
+                e -> System.err.println("Query cache: server time zone of " + table + " not loaded: " + e.getMessage()));
+    }
+
+    // Sealed part at bucket boundaries (one piece when that would be too many), then the open tail
+    // from the last boundary before the seal line, so its key only changes once per bucket
+    private List<LocalDateTime[]> pieces(LocalDateTime from, LocalDateTime to) {
+        List<LocalDateTime[]> pieces = new ArrayList<>();
+        long start = from.toEpochSecond(ZoneOffset.UTC);
+        long end = to.toEpochSecond(ZoneOffset.UTC);
+        long sealed = Math.floorDiv(sealLine().toEpochSecond(ZoneOffset.UTC), bucketSeconds) * bucketSeconds;
+        long sealedEnd = Math.min(end, Math.max(start, sealed));
+        long firstBoundary = Math.floorDiv(start, bucketSeconds) * bucketSeconds + bucketSeconds;
+        if (sealedEnd > start) {
+            long buckets = sealedEnd <= firstBoundary ? 1 : 1 + (sealedEnd - firstBoundary + bucketSeconds - 1) / bucketSeconds;
+            if (buckets > maxBuckets) {
+                pieces.add(new LocalDateTime[]{at(start), at(sealedEnd)});
+            } else {
+                for (long s = start; s < sealedEnd; ) {
+                    long e = Math.min(sealedEnd, Math.floorDiv(s, bucketSeconds) * bucketSeconds + bucketSeconds);
+                    pieces.add(new LocalDateTime[]{at(s), at(e)});
+                    s = e;
+                }
+            }
+        }
+        if (end > sealedEnd) {
+            pieces.add(new LocalDateTime[]{at(sealedEnd), at(end)});
+        }
+        return pieces;
+    }
+
+    private static LocalDateTime at(long epochSecond) {
+        return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+    }
+
+    // Rough heap size of a result: object headers, map entries and string chars
+    private static int weigh(Object value) {
+        long bytes = COUNT_WEIGHT + estimate(value);
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static long estimate(Object v) {
+        if (v == null || v instanceof Number || v instanceof Boolean) {
+            return 16;
+        }
+        if (v instanceof CharSequence s) {
+            return 40 + 2L * s.length();
+        }
+        if (v instanceof ClickHouseQueryService.QueryResult r) {
+            return 32 + estimate(r.rows);
+        }
+        if (v instanceof Map<?, ?> m) {
+            long bytes = 64;
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                bytes += 32 + estimate(e.getKey()) + estimate(e.getValue());
+            }
+            return bytes;
+        }
+        if (v instanceof Collection<?> c) {
+            long bytes = 40;
+            for (Object e : c) {
+                bytes += 8 + estimate(e);
+            }
+            return bytes;
+        }
+        return 64;
+    }
+
+    private static final class Entry {
+        final Object value;
+        final boolean sealed;
+        final int weight;
+
+        Entry(Object value, boolean sealed, int weight) {
+            this.value = value;
+            this.sealed = sealed;
+            this.weight = weight;
+        }
+    }
+
+    private static final class QueryKey {
+        final String kind;
+        final LocalDateTime from;
+        final LocalDateTime to;
+        final String subPktType;
+        final String projection;
+        final int hash;
+
+        QueryKey(String kind, LocalDateTime from, LocalDateTime to, String subPktType, String projection) {
+            this.kind = kind;
+            this.from = from.truncatedTo(ChronoUnit.SECONDS);
+            this.to = to.truncatedTo(ChronoUnit.SECONDS);
+            this.subPktType = subPktType == null || subPktType.isBlank() ? null : subPktType.trim();
+            this.projection = projection == null ? "" : projection;
+            this.hash = Objects.hash(kind, this.from, this.to, this.subPktType, this.projection);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof QueryKey k)) return false;
+            return kind.equals(k.kind) && from.equals(k.from) && to.equals(k.to)
+                    && Objects.equals(subPktType, k.subPktType) && projection.equals(k.projection);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
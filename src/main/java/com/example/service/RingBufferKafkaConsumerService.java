@@ -0,0 +1,167 @@
+package com.example.service;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Kafka consumer that hands rows to the inserters through preallocated ring buffers
+ * (kafka.consumer.mode=ring).
+ *
+ * Each listener thread is the single writer of its own {@link InsertRingBuffer}: it decodes a
+ * record (JSON or binary Kavach packet) and encodes the row straight into the next ring slot, with
+ * no per-batch row lists in between. The ring's worker cuts insert blocks by rows, bytes and
+ * linger time into reusable arrays, so under sustained load the handoff allocates nothing that
+ * grows with the batch and the insert size stays steady. A full ring blocks the listener.
+ *
+ * A poll is acknowledged, in poll order, once its last row has been inserted; a failed insert
+ * rewinds to the committed offsets and the ring discards what was published before it accepts
+ * rows again. The recovery runs on the next batch or, on a quiet topic, on the idle event.
+ *
+ * Every wait of the listener (a full ring, a rewind, the ring draining after a failure) is bounded
+ * by kafka.consumer.max-listener-wait-ms per poll, below max.poll.interval.ms. When it runs out the
+ * listener seeks back what it has not handed over and returns, and tries again on the next poll.
+ */
+@Service
+@ConditionalOnProperty(name = "kafka.consumer.mode", havingValue = "ring")
+public class RingBufferKafkaConsumerService implements KafkaInsertBacklog {
+
+	private final ClickHouseBulkInsertService clickHouseBulkInsertService;
+	private final KavachPacketCodec codec;
+	private final InsertRingBuffer.Policy policy;
+	private final int slotBytes;
+	private final long maxListenerWaitMs;
+	// Keyed by listener thread name: a restarted container reuses its threads' names and rings
+	private final Map<String, InsertRingBuffer> rings = new ConcurrentHashMap<>();
+	private final ThreadLocal<OrderedAcknowledgments> acks = ThreadLocal.withInitial(OrderedAcknowledgments::new);
+
+	public RingBufferKafkaConsumerService(ClickHouseBulkInsertService clickHouseBulkInsertService,
+	                                      KavachPacketCodec codec,
+	                                      @Value("${kafka.consumer.ring.size:16384}") int ringSize,
+	                                      @Value("${kafka.consumer.ring.slot-bytes:512}") int slotBytes,
+	                                      @Value("${kafka.consumer.ring.max-rows:50000}") int maxRows,
+	                                      @Value("${kafka.consumer.ring.max-bytes:16777216}") long maxBytes,
+	                                      @Value("${kafka.consumer.ring.linger-ms:200}") long lingerMs,
+	                                      @Value("${kafka.consumer.ring.max-in-flight:2}") int maxInFlight,
+	                                      @Value("${kafka.consumer.max-listener-wait-ms:60000}") long maxListenerWaitMs) {
+		this.clickHouseBulkInsertService = clickHouseBulkInsertService;
+		this.codec = codec;
+		this.slotBytes = slotBytes;
+		this.maxListenerWaitMs = maxListenerWaitMs;
+		this.policy = new InsertRingBuffer.Policy(ringSize, maxRows, maxBytes, Duration.ofMillis(lingerMs), maxInFlight);
+	}
+
+	@KafkaListener(topics = "${kafka.topic:clickhouse-input}", containerFactory = "bytesKafkaListenerContainerFactory")
+	public void onBatch(List<ConsumerRecord<String, byte[]>> records, Acknowledgment ack, Consumer<?, ?> consumer)
+			throws InterruptedException {
+		InsertRingBuffer ring = rings.computeIfAbsent(Thread.currentThread().getName(), this::newRing);
+		if (recoverIfFailed(consumer, ring)) {
+			return;
+		}
+		if (records == null || records.isEmpty()) {
+			return;
+		}
+
+		String table = clickHouseBulkInsertService.table();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxListenerWaitMs);
+		for (int i = 0; i < records.size(); i++) {
+			ConsumerRecord<String, byte[]> rec = records.get(i);
+			try {
+				// Undecodable records are skipped; the slot is reused for the next one
+				ring.publish(slot -> clickHouseBulkInsertService.encodeRowTo(table, codec.toMap(rec.value()), slot),
+					Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+			} catch (TimeoutException e) {
+				System.err.println(e.getMessage() + "; polling " + (records.size() - i) + " records again");
+				// The published rows still count for the ordering of later acknowledgments
+				acks.get().add(ring.whenInserted(), () -> { });
+				OrderedAcknowledgments.redeliver(consumer, records.subList(i, records.size()));
+				return;
+			}
+		}
+		acks.get().add(ring.whenInserted(), ack);
+	}
+
+	// Idle events run on the listener thread: this thread's ring and acknowledgment chain
+	@EventListener
+	public void onIdle(ListenerContainerIdleEvent event) throws InterruptedException {
+		InsertRingBuffer ring = rings.get(Thread.currentThread().getName());
+		if (ring != null) {
+			recoverIfFailed(event.getConsumer(), ring);
+		}
+	}
+
+	// The fullest ring decides: it is the one whose listener is about to block
+	@Override
+	public double insertQueueFill() {
+		double fill = 0;
+		for (InsertRingBuffer ring : rings.values()) {
+			fill = Math.max(fill, ring.fill());
+		}
+		return fill;
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> m = new LinkedHashMap<>();
+		m.put("rings", rings.size());
+		Map<String, Object> perRing = new TreeMap<>();
+		rings.forEach((thread, ring) -> perRing.put(thread, ring.stats()));
+		m.put("perListener", perRing);
+		return m;
+	}
+
+	@PreDestroy
+	public void close() {
+		for (InsertRingBuffer ring : new ArrayList<>(rings.values())) {
+			ring.close();
+		}
+	}
+
+	// True while recovering: the listener must not publish, its records are polled again afterwards
+	private boolean recoverIfFailed(Consumer<?, ?> consumer, InsertRingBuffer ring) throws InterruptedException {
+		OrderedAcknowledgments pending = acks.get();
+		if (!pending.failed() && !ring.failed()) {
+			return false;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxListenerWaitMs);
+		// rewind() seeks back itself; a ring left failed by an earlier call needs the seek here
+		boolean rewound = false;
+		if (pending.failed()) {
+			if (!pending.rewind(consumer, Duration.ofMillis(maxListenerWaitMs))) {
+				return true;
+			}
+			rewound = true;
+		}
+		try {
+			ring.recover(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+		} catch (TimeoutException e) {
+			System.err.println(e.getMessage() + "; retrying on the next poll");
+		}
+		if (!rewound) {
+			OrderedAcknowledgments.seekToCommitted(consumer);
+		}
+		return true;
+	}
+
+	private InsertRingBuffer newRing(String threadName) {
+		InsertFormat format = clickHouseBulkInsertService.formatFor(clickHouseBulkInsertService.table());
+		return new InsertRingBuffer("kafka-" + rings.size(), policy, slotBytes,
+			(block, length, rows) -> clickHouseBulkInsertService.insertBlockAsync(format, block, length));
+	}
+}
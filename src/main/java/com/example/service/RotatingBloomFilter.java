@@ -0,0 +1,173 @@
+package com.example.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time-windowed Bloom filter over 64-bit key hashes.
+ *
+ * Two generations of equal size are kept: keys are added to the current one and looked up in
+ * both. The older generation is cleared and becomes the current one every window, or as soon as
+ * the current generation holds expectedKeys keys, so a key is remembered for at least one window
+ * (unless the key rate exceeds expectedKeys per window). Each generation is sized for half the
+ * configured false-positive rate, so a lookup in both stays within it. Memory is fixed at
+ * construction: 2 x -n ln(p/2) / (ln 2)^2 bits.
+ *
+ * Bits are set with CAS, so concurrent callers need no lock; a rotation racing with an add can
+ * lose that key, which only means a later duplicate is not recognised.
+ */
+public class RotatingBloomFilter {
+
+    private static final class Generation {
+        final AtomicLongArray words;
+        final AtomicLong keys = new AtomicLong();
+
+        Generation(int words) {
+            this.words = new AtomicLongArray(words);
+        }
+
+        boolean mightContain(long h1, long h2, long bits, int hashes) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bits);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(long h1, long h2, long bits, int hashes) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bits);
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word = words.get(index);
+                while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                    word = words.get(index);
+                }
+            }
+            keys.incrementAndGet();
+        }
+
+        void clear() {
+            for (int i = 0; i < words.length(); i++) {
+                words.set(i, 0);
+            }
+            keys.set(0);
+        }
+
+        double fill() {
+            long set = 0;
+            for (int i = 0; i < words.length(); i++) {
+                set += Long.bitCount(words.get(i));
+            }
+            return (double) set / (words.length() * 64L);
+        }
+    }
+
+    private final long expectedKeys;
+    private final double falsePositiveRate;
+    private final long windowNanos;
+    private final long bits;
+    private final int hashes;
+    private volatile Generation current;
+    private volatile Generation previous;
+    private volatile long rotatedAtNanos = System.nanoTime();
+    private final AtomicLong rotations = new AtomicLong();
+
+    public RotatingBloomFilter(long expectedKeys, double falsePositiveRate, long windowMillis) {
+        if (expectedKeys <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1 || windowMillis <= 0) {
+            throw new IllegalArgumentException("Bloom filter needs expectedKeys > 0, 0 < falsePositiveRate < 1, windowMillis > 0");
+        }
+        long wanted = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate / 2) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (wanted + 63) / 64);
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+        this.windowNanos = windowMillis * 1_000_000L;
+        this.bits = words * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedKeys * Math.log(2)));
+        this.current = new Generation(words);
+        this.previous = new Generation(words);
+    }
+
+    /**
+     * True if the key was probably added within the last one to two windows.
+     */
+    public boolean mightContain(long hash) {
+        maybeRotate();
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        return current.mightContain(hash, h2, bits, hashes) || previous.mightContain(hash, h2, bits, hashes);
+    }
+
+    public void add(long hash) {
+        maybeRotate();
+        current.add(hash, mix(hash ^ 0x9E3779B97F4A7C15L) | 1, bits, hashes);
+    }
+
+    public long memoryBytes() {
+        return 2 * bits / 8;
+    }
+
+    public int hashFunctions() {
+        return hashes;
+    }
+
+    public long rotations() {
+        return rotations.get();
+    }
+
+    public long currentKeys() {
+        return current.keys.get();
+    }
+
+    /**
+     * Expected false-positive rate of a lookup right now, from the bits set in both generations.
+     */
+    public double estimatedFalsePositiveRate() {
+        double missBoth = (1 - Math.pow(current.fill(), hashes)) * (1 - Math.pow(previous.fill(), hashes));
+        return 1 - missBoth;
+    }
+
+    public double configuredFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    private void maybeRotate() {
+        if (System.nanoTime() - rotatedAtNanos < windowNanos && current.keys.get() < expectedKeys) {
+            return;
+        }
+        synchronized (this) {
+            if (System.nanoTime() - rotatedAtNanos < windowNanos && current.keys.get() < expectedKeys) {
+                return;
+            }
+            Generation oldest = previous;
+            previous = current;
+            oldest.clear();
+            current = oldest;
+            rotatedAtNanos = System.nanoTime();
+            rotations.incrementAndGet();
+        }
+    }
+
+    /**
+     * 64-bit hash of a string, stable across JVMs (FNV-1a over the UTF-16 chars, then a finalizer).
+     */
+    public static long hash(long seed, CharSequence value) {
+        long h = seed ^ 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    // MurmurHash3 fmix64
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,641 @@
+package com.example.service;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Streaming reader for ClickHouse's RowBinaryWithNamesAndTypes output format, the read-side
+ * counterpart of {@link RowBinaryEncoder}.
+ *
+ * Rows are decoded straight into column batches backed by primitive arrays: integers, dates and
+ * DateTime into int[] or long[], floats into double[], and String, FixedString, UUID and Enum
+ * columns into int[] codes over a per-batch dictionary. A string is materialized once per distinct
+ * value in a batch, so low-cardinality columns allocate almost nothing per row, and no text is
+ * formatted by ClickHouse or parsed back here.
+ *
+ * Nullable and LowCardinality wrappers are supported on any of these types. Arrays, Maps, Tuples
+ * and wide (128/256-bit) numbers are not: select those columns in a text format instead.
+ */
+public final class RowBinaryColumnReader {
+
+    /**
+     * Columns of up to batchRows consecutive rows. Vector arrays may be longer than rowCount.
+     */
+    public static class Batch {
+        public final List<String> names;
+        public final List<ColumnVector> columns;
+        public final int rowCount;
+
+        public Batch(List<String> names, List<ColumnVector> columns, int rowCount) {
+            this.names = names;
+            this.columns = columns;
+            this.rowCount = rowCount;
+        }
+
+        public ColumnVector column(String name) {
+            int i = names.indexOf(name);
+            return i < 0 ? null : columns.get(i);
+        }
+    }
+
+    public abstract static class ColumnVector {
+        public final String name;
+        public final String type;
+        /** Null flags for Nullable columns, null otherwise. */
+        public final boolean[] nulls;
+
+        ColumnVector(String name, String type, boolean nullable, int capacity) {
+            this.name = name;
+            this.type = type;
+            this.nulls = nullable ? new boolean[capacity] : null;
+        }
+
+        public boolean isNull(int row) {
+            return nulls != null && nulls[row];
+        }
+
+        /**
+         * Boxed value, for callers that do not specialise on the vector type.
+         */
+        public abstract Object get(int row);
+
+        abstract void setDefault(int row);
+    }
+
+    /**
+     * Int8/16/32, UInt8/16, Bool, Date (days since epoch), Date32.
+     */
+    public static final class IntVector extends ColumnVector {
+        public final int[] values;
+
+        IntVector(String name, String type, boolean nullable, int capacity) {
+            super(name, type, nullable, capacity);
+            this.values = new int[capacity];
+        }
+
+        @Override
+        public Object get(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        void setDefault(int row) {
+            values[row] = 0;
+        }
+    }
+
+    /**
+     * Int64, UInt32, UInt64 (raw bits), DateTime (epoch seconds), DateTime64 (ticks) and
+     * Decimal up to 18 digits (unscaled).
+     */
+    public static final class LongVector extends ColumnVector {
+        public final long[] values;
+
+        LongVector(String name, String type, boolean nullable, int capacity) {
+            super(name, type, nullable, capacity);
+            this.values = new long[capacity];
+        }
+
+        @Override
+        public Object get(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        void setDefault(int row) {
+            values[row] = 0;
+        }
+    }
+
+    /**
+     * Float32 and Float64.
+     */
+    public static final class DoubleVector extends ColumnVector {
+        public final double[] values;
+
+        DoubleVector(String name, String type, boolean nullable, int capacity) {
+            super(name, type, nullable, capacity);
+            this.values = new double[capacity];
+        }
+
+        @Override
+        public Object get(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        void setDefault(int row) {
+            values[row] = 0;
+        }
+    }
+
+    /**
+     * String, FixedString, UUID and Enum as codes into a dictionary of this batch's distinct values
+     * (-1 for null).
+     */
+    public static final class DictionaryVector extends ColumnVector {
+        public final int[] codes;
+        public final List<String> dictionary;
+        private final ByteDictionary index;
+
+        DictionaryVector(String name, String type, boolean nullable, int capacity, Materializer materializer) {
+            super(name, type, nullable, capacity);
+            this.codes = new int[capacity];
+            this.index = new ByteDictionary(materializer);
+            this.dictionary = Collections.unmodifiableList(index.values);
+        }
+
+        public String getString(int row) {
+            return isNull(row) ? null : dictionary.get(codes[row]);
+        }
+
+        @Override
+        public Object get(int row) {
+            return getString(row);
+        }
+
+        @Override
+        void setDefault(int row) {
+            codes[row] = -1;
+        }
+    }
+
+    private RowBinaryColumnReader() {
+    }
+
+    /**
+     * Batches of a RowBinaryWithNamesAndTypes body. Buffers are released once copied; only the
+     * batch being filled and the bytes of a row split across buffers are held.
+     */
+    public static Flux<Batch> read(Flux<DataBuffer> body, int batchRows) {
+        if (batchRows <= 0) {
+            throw new IllegalArgumentException("batchRows must be positive");
+        }
+        return Flux.defer(() -> {
+            Decoder decoder = new Decoder(batchRows);
+            return body.concatMapIterable(decoder::feed)
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(decoder.finish())))
+                    .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+        });
+    }
+
+    // ---------------------------------------------------------------- decoding
+
+    // Thrown when a value runs past the bytes received so far; the row is retried on the next buffer
+    private static final class Underflow extends RuntimeException {
+        static final Underflow INSTANCE = new Underflow();
+
+        private Underflow() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Cursor {
+        byte[] data = new byte[64 * 1024];
+        int pos;
+        int limit;
+
+        void append(DataBuffer buffer) {
+            int n = buffer.readableByteCount();
+            if (limit + n > data.length) {
+                int live = limit - pos;
+                byte[] target = live + n > data.length ? new byte[Math.max(live + n, data.length * 2)] : data;
+                System.arraycopy(data, pos, target, 0, live);
+                data = target;
+                pos = 0;
+                limit = live;
+            }
+            buffer.read(data, limit, n);
+            limit += n;
+        }
+
+        void need(int n) {
+            if (limit - pos < n) {
+                throw Underflow.INSTANCE;
+            }
+        }
+
+        int u8() {
+            need(1);
+            return data[pos++] & 0xFF;
+        }
+
+        int le16() {
+            need(2);
+            int v = (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8;
+            pos += 2;
+            return v;
+        }
+
+        int le32() {
+            need(4);
+            int v = (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8
+                    | (data[pos + 2] & 0xFF) << 16 | (data[pos + 3] & 0xFF) << 24;
+            pos += 4;
+            return v;
+        }
+
+        long le64() {
+            need(8);
+            long v = 0;
+            for (int i = 7; i >= 0; i--) {
+                v = v << 8 | (data[pos + i] & 0xFF);
+            }
+            pos += 8;
+            return v;
+        }
+
+        int varUInt() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (v > Integer.MAX_VALUE) {
+                        throw new IllegalStateException("Length " + v + " too large");
+                    }
+                    return (int) v;
+                }
+            }
+            throw new IllegalStateException("Malformed VarUInt");
+        }
+
+        String string() {
+            int len = varUInt();
+            need(len);
+            String s = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Reader {
+        void read(Cursor in, ColumnVector vector, int row);
+    }
+
+    @FunctionalInterface
+    interface Materializer {
+        String materialize(byte[] bytes, int offset, int length);
+    }
+
+    private static final class ColumnSpec {
+        final String name;
+        final String type;
+        final char kind; // 'i' int, 'l' long, 'd' double, 's' dictionary
+        final boolean nullable;
+        final Reader reader;
+        final Materializer materializer;
+
+        ColumnSpec(String name, String type, char kind, boolean nullable, Reader reader, Materializer materializer) {
+            this.name = name;
+            this.type = type;
+            this.kind = kind;
+            this.nullable = nullable;
+            this.reader = reader;
+            this.materializer = materializer;
+        }
+
+        ColumnVector newVector(int capacity) {
+            switch (kind) {
+                case 'i': return new IntVector(name, type, nullable, capacity);
+                case 'l': return new LongVector(name, type, nullable, capacity);
+                case 'd': return new DoubleVector(name, type, nullable, capacity);
+                default: return new DictionaryVector(name, type, nullable, capacity, materializer);
+            }
+        }
+    }
+
+    // Decoding state of one subscription
+    private static final class Decoder {
+        private final int batchRows;
+        private final Cursor in = new Cursor();
+        private List<String> names;
+        private ColumnSpec[] specs;
+        private ColumnVector[] vectors;
+        private int rows;
+
+        Decoder(int batchRows) {
+            this.batchRows = batchRows;
+        }
+
+        List<Batch> feed(DataBuffer buffer) {
+            try {
+                in.append(buffer);
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+            List<Batch> out = null;
+            if (specs == null && !readHeader()) {
+                return Collections.emptyList();
+            }
+            while (in.pos < in.limit) {
+                int rowStart = in.pos;
+                try {
+                    for (int c = 0; c < specs.length; c++) {
+                        specs[c].reader.read(in, vectors[c], rows);
+                    }
+                } catch (Underflow u) {
+                    in.pos = rowStart;
+                    break;
+                }
+                if (++rows == batchRows) {
+                    if (out == null) {
+                        out = new ArrayList<>(2);
+                    }
+                    out.add(emit());
+                }
+            }
+            return out == null ? Collections.emptyList() : out;
+        }
+
+        List<Batch> finish() {
+            if (in.pos < in.limit || (specs == null && in.limit > 0)) {
+                throw new IllegalStateException("RowBinaryWithNamesAndTypes stream ended inside a row");
+            }
+            return rows == 0 ? Collections.emptyList() : List.of(emit());
+        }
+
+        private boolean readHeader() {
+            int start = in.pos;
+            try {
+                int count = in.varUInt();
+                String[] columnNames = new String[count];
+                for (int i = 0; i < count; i++) columnNames[i] = in.string();
+                String[] types = new String[count];
+                for (int i = 0; i < count; i++) types[i] = in.string();
+                ColumnSpec[] compiled = new ColumnSpec[count];
+                for (int i = 0; i < count; i++) {
+                    try {
+                        compiled[i] = compile(columnNames[i], types[i], types[i], false);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Column " + columnNames[i] + ": " + e.getMessage(), e);
+                    }
+                }
+                names = List.of(columnNames);
+                specs = compiled;
+                vectors = newVectors();
+                return true;
+            } catch (Underflow u) {
+                in.pos = start;
+                return false;
+            }
+        }
+
+        private ColumnVector[] newVectors() {
+            ColumnVector[] v = new ColumnVector[specs.length];
+            for (int c = 0; c < specs.length; c++) v[c] = specs[c].newVector(batchRows);
+            return v;
+        }
+
+        private Batch emit() {
+            Batch batch = new Batch(names, List.of(vectors), rows);
+            vectors = newVectors();
+            rows = 0;
+            return batch;
+        }
+    }
+
+    // ---------------------------------------------------------------- type compilation
+
+    private static ColumnSpec compile(String name, String declared, String rawType, boolean nullable) {
+        String type = rawType.trim();
+        if (type.startsWith("LowCardinality(")) {
+            // LowCardinality is transparent in RowBinary
+            return compile(name, declared, unwrap(type, "LowCardinality("), nullable);
+        }
+        if (type.startsWith("Nullable(")) {
+            ColumnSpec inner = compile(name, declared, unwrap(type, "Nullable("), true);
+            Reader value = inner.reader;
+            Reader reader = (in, v, row) -> {
+                if (in.u8() != 0) {
+                    v.nulls[row] = true;
+                    v.setDefault(row);
+                } else {
+                    v.nulls[row] = false;
+                    value.read(in, v, row);
+                }
+            };
+            return new ColumnSpec(name, declared, inner.kind, true, reader, inner.materializer);
+        }
+        if (type.startsWith("Enum8(") || type.startsWith("Enum16(")) {
+            boolean wide = type.startsWith("Enum16(");
+            Map<Integer, String> labels = parseEnum(unwrap(type, wide ? "Enum16(" : "Enum8("));
+            int width = wide ? 2 : 1;
+            Materializer m = (b, off, len) -> {
+                int code = wide ? (short) ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8) : b[off];
+                String label = labels.get(code);
+                return label != null ? label : String.valueOf(code);
+            };
+            return dictionary(name, declared, nullable, m, in -> width);
+        }
+        if (type.startsWith("FixedString(")) {
+            int n = Integer.parseInt(unwrap(type, "FixedString(").trim());
+            return dictionary(name, declared, nullable, RowBinaryColumnReader::utf8, in -> n);
+        }
+        if (type.startsWith("DateTime64(")) {
+            return new ColumnSpec(name, declared, 'l', nullable, (in, v, row) -> ((LongVector) v).values[row] = in.le64(), null);
+        }
+        if (type.startsWith("DateTime(")) {
+            return new ColumnSpec(name, declared, 'l', nullable, (in, v, row) -> ((LongVector) v).values[row] = in.le32() & 0xFFFFFFFFL, null);
+        }
+        if (type.startsWith("Decimal")) {
+            int width = decimalWidth(type);
+            Reader reader = width == 4
+                    ? (in, v, row) -> ((LongVector) v).values[row] = in.le32()
+                    : (in, v, row) -> ((LongVector) v).values[row] = in.le64();
+            return new ColumnSpec(name, declared, 'l', nullable, reader, null);
+        }
+        switch (type) {
+            case "Int8":
+                return new ColumnSpec(name, declared, 'i', nullable, (in, v, row) -> ((IntVector) v).values[row] = (byte) in.u8(), null);
+            case "UInt8":
+            case "Bool":
+                return new ColumnSpec(name, declared, 'i', nullable, (in, v, row) -> ((IntVector) v).values[row] = in.u8(), null);
+            case "Int16":
+                return new ColumnSpec(name, declared, 'i', nullable, (in, v, row) -> ((IntVector) v).values[row] = (short) in.le16(), null);
+            case "UInt16":
+            case "Date":
+                return new ColumnSpec(name, declared, 'i', nullable, (in, v, row) -> ((IntVector) v).values[row] = in.le16(), null);
+            case "Int32":
+            case "Date32":
+                return new ColumnSpec(name, declared, 'i', nullable, (in, v, row) -> ((IntVector) v).values[row] = in.le32(), null);
+            case "UInt32":
+            case "DateTime":
+                return new ColumnSpec(name, declared, 'l', nullable, (in, v, row) -> ((LongVector) v).values[row] = in.le32() & 0xFFFFFFFFL, null);
+            case "Int64":
+            case "UInt64":
+                return new ColumnSpec(name, declared, 'l', nullable, (in, v, row) -> ((LongVector) v).values[row] = in.le64(), null);
+            case "Float32":
+                return new ColumnSpec(name, declared, 'd', nullable, (in, v, row) -> ((DoubleVector) v).values[row] = Float.intBitsToFloat(in.le32()), null);
+            case "Float64":
+                return new ColumnSpec(name, declared, 'd', nullable, (in, v, row) -> ((DoubleVector) v).values[row] = Double.longBitsToDouble(in.le64()), null);
+            case "String":
+                return dictionary(name, declared, nullable, RowBinaryColumnReader::utf8, Cursor::varUInt);
+            case "UUID":
+                return dictionary(name, declared, nullable, RowBinaryColumnReader::uuid, in -> 16);
+            default:
+                throw new IllegalArgumentException("Unsupported ClickHouse type for RowBinary reads: " + type);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Length {
+        int of(Cursor in);
+    }
+
+    private static ColumnSpec dictionary(String name, String declared, boolean nullable, Materializer m, Length length) {
+        Reader reader = (in, v, row) -> {
+            int len = length.of(in);
+            in.need(len);
+            DictionaryVector d = (DictionaryVector) v;
+            d.codes[row] = d.index.intern(in.data, in.pos, len);
+            in.pos += len;
+        };
+        return new ColumnSpec(name, declared, 's', nullable, reader, m);
+    }
+
+    private static String utf8(byte[] b, int off, int len) {
+        return new String(b, off, len, StandardCharsets.UTF_8);
+    }
+
+    // RowBinary UUID: the high and the low 64 bits, each little-endian
+    private static String uuid(byte[] b, int off, int len) {
+        long high = 0;
+        long low = 0;
+        for (int i = 7; i >= 0; i--) {
+            high = high << 8 | (b[off + i] & 0xFF);
+            low = low << 8 | (b[off + 8 + i] & 0xFF);
+        }
+        return new UUID(high, low).toString();
+    }
+
+    private static int decimalWidth(String type) {
+        int precision;
+        if (type.startsWith("Decimal(")) {
+            precision = Integer.parseInt(unwrap(type, "Decimal(").split(",")[0].trim());
+        } else if (type.startsWith("Decimal32(")) {
+            precision = 9;
+        } else if (type.startsWith("Decimal64(")) {
+            precision = 18;
+        } else {
+            throw new IllegalArgumentException("Unsupported ClickHouse type for RowBinary reads: " + type);
+        }
+        if (precision > 18) {
+            throw new IllegalArgumentException("Unsupported ClickHouse type for RowBinary reads: " + type);
+        }
+        return precision <= 9 ? 4 : 8;
+    }
+
+    private static String unwrap(String type, String prefix) {
+        if (!type.endsWith(")")) {
+            throw new IllegalArgumentException("Malformed type: " + type);
+        }
+        return type.substring(prefix.length(), type.length() - 1);
+    }
+
+    private static Map<Integer, String> parseEnum(String body) {
+        // 'a' = 1, 'b' = 2
+        Map<Integer, String> out = new HashMap<>();
+        int i = 0;
+        while (i < body.length()) {
+            int open = body.indexOf('\'', i);
+            if (open < 0) break;
+            int close = body.indexOf('\'', open + 1);
+            int eq = body.indexOf('=', close);
+            int comma = body.indexOf(',', eq);
+            String label = body.substring(open + 1, close);
+            String num = body.substring(eq + 1, comma < 0 ? body.length() : comma).trim();
+            out.put(Integer.parseInt(num), label);
+            i = comma < 0 ? body.length() : comma + 1;
+        }
+        if (out.isEmpty()) {
+            throw new IllegalArgumentException("Malformed enum: " + body);
+        }
+        return out;
+    }
+
+    // ---------------------------------------------------------------- dictionary
+
+    /**
+     * Open-addressing map from raw value bytes to dictionary code; the value is materialized
+     * (decoded to a String) only the first time its bytes are seen.
+     */
+    private static final class ByteDictionary {
+        final List<String> values = new ArrayList<>();
+        private final Materializer materializer;
+        private byte[] arena = new byte[4096];
+        private int arenaUsed;
+        private int[] offsets = new int[64];
+        private int[] lengths = new int[64];
+        private int[] hashes = new int[64];
+        private int[] slots = new int[128]; // code + 1, 0 = empty
+
+        ByteDictionary(Materializer materializer) {
+            this.materializer = materializer;
+        }
+
+        int intern(byte[] b, int off, int len) {
+            int h = 0x811C9DC5;
+            for (int i = off; i < off + len; i++) {
+                h = (h ^ b[i]) * 0x01000193;
+            }
+            int mask = slots.length - 1;
+            for (int s = h & mask; ; s = (s + 1) & mask) {
+                int code = slots[s] - 1;
+                if (code < 0) {
+                    code = add(b, off, len, h);
+                    slots[s] = code + 1;
+                    if (values.size() * 2 > slots.length) {
+                        rehash();
+                    }
+                    return code;
+                }
+                if (hashes[code] == h && lengths[code] == len
+                        && Arrays.equals(arena, offsets[code], offsets[code] + len, b, off, off + len)) {
+                    return code;
+                }
+            }
+        }
+
+        private int add(byte[] b, int off, int len, int h) {
+            int code = values.size();
+            if (code == offsets.length) {
+                offsets = Arrays.copyOf(offsets, code * 2);
+                lengths = Arrays.copyOf(lengths, code * 2);
+                hashes = Arrays.copyOf(hashes, code * 2);
+            }
+            if (arenaUsed + len > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaUsed + len));
+            }
+            System.arraycopy(b, off, arena, arenaUsed, len);
+            offsets[code] = arenaUsed;
+            lengths[code] = len;
+            hashes[code] = h;
+            arenaUsed += len;
+            values.add(materializer.materialize(b, off, len));
+            return code;
+        }
+
+        private void rehash() {
+            int[] next = new int[slots.length * 2];
+            int mask = next.length - 1;
+            for (int code = 0; code < values.size(); code++) {
+                int s = hashes[code] & mask;
+                while (next[s] != 0) s = (s + 1) & mask;
+                next[s] = code + 1;
+            }
+            slots = next;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.example.service;
+
+import com.example.service.ClickHouseTableSchemaService.Column;
+import com.example.service.ClickHouseTableSchemaService.TableSchema;
+import org.springframework.core.io.buffer.DataBuffer;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Schema-driven encoder for the ClickHouse RowBinary input format.
+ * Column writers are compiled once from the table's DESCRIBE output; rows are written
+ * as little-endian typed values straight into a {@link DataBuffer}, so ClickHouse does
+ * not have to parse any text on insert.
+ *
+ * A missing key, or null for a column that is not Nullable, gets the column default as it
+ * would in JSONEachRow. When the table has DEFAULT expressions (now(), ...) rows are written
+ * as RowBinaryWithDefaults, where a marker byte before each value lets ClickHouse evaluate the
+ * expression; otherwise the column default is the type default (0, empty string, epoch, first
+ * enum value) and plain RowBinary carries it directly.
+ */
+public final class RowBinaryEncoder {
+
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    @FunctionalInterface
+    public interface ColumnWriter {
+        void write(Object value, DataBuffer out);
+    }
+
+    private final String table;
+    private final String[] columnNames;
+    private final ColumnWriter[] writers;
+    private final boolean[] nullable;
+    private final boolean withDefaults;
+    private final String columnList;
+
+    private RowBinaryEncoder(String table, String[] columnNames, ColumnWriter[] writers,
+                             boolean[] nullable, boolean withDefaults) {
+        this.table = table;
+        this.columnNames = columnNames;
+        this.writers = writers;
+        this.nullable = nullable;
+        this.withDefaults = withDefaults;
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < columnNames.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append('`').append(columnNames[i]).append('`');
+        }
+        this.columnList = sb.append(')').toString();
+    }
+
+    public static RowBinaryEncoder forSchema(TableSchema schema) {
+        List<Column> columns = schema.columns;
+        String[] names = new String[columns.size()];
+        ColumnWriter[] writers = new ColumnWriter[columns.size()];
+        boolean[] nullable = new boolean[columns.size()];
+        boolean withDefaults = false;
+        for (int i = 0; i < columns.size(); i++) {
+            Column c = columns.get(i);
+            names[i] = c.name;
+            nullable[i] = isNullable(c.type);
+            withDefaults |= c.hasDefaultExpression();
+            try {
+                writers[i] = compile(c.type, schema.serverTimeZone);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Column " + schema.table + "." + c.name + ": " + e.getMessage(), e);
+            }
+        }
+        return new RowBinaryEncoder(schema.table, names, writers, nullable, withDefaults);
+    }
+
+    public String table() {
+        return table;
+    }
+
+    public int columnCount() {
+        return columnNames.length;
+    }
+
+    public String columnName(int index) {
+        return columnNames[index];
+    }
+
+    /**
+     * Explicit column list for "INSERT INTO t (...) FORMAT RowBinary" so the row layout
+     * does not depend on MATERIALIZED/ALIAS columns in the table definition.
+     */
+    public String columnList() {
+        return columnList;
+    }
+
+    /**
+     * FORMAT name for the INSERT: RowBinaryWithDefaults when any column has a DEFAULT expression.
+     */
+    public String formatName() {
+        return withDefaults ? "RowBinaryWithDefaults" : InsertFormat.ROW_BINARY.clickHouseName;
+    }
+
+    /**
+     * Whether every value is preceded by a RowBinaryWithDefaults marker byte.
+     */
+    public boolean withDefaults() {
+        return withDefaults;
+    }
+
+    public void encode(Map<String, Object> row, DataBuffer out) {
+        for (int i = 0; i < writers.length; i++) {
+            Object value = row.get(columnNames[i]);
+            if (withDefaults) {
+                writeColumn(i, value, value == null && !row.containsKey(columnNames[i]), out);
+            } else {
+                writers[i].write(value, out);
+            }
+        }
+    }
+
+    /**
+     * Values only, with type defaults for missing keys and no default markers: the row layout
+     * of RowBinary and RowBinaryWithNamesAndTypes output.
+     */
+    public void encodeValues(Map<String, Object> row, DataBuffer out) {
+        for (int i = 0; i < writers.length; i++) {
+            writers[i].write(row.get(columnNames[i]), out);
+        }
+    }
+
+    /**
+     * Encode a single column value, with its default marker when the format has one; used by
+     * serializers that precompute constant columns. A null value counts as a missing key.
+     */
+    public void encodeColumn(int index, Object value, DataBuffer out) {
+        if (withDefaults) {
+            writeColumn(index, value, value == null, out);
+        } else {
+            writers[index].write(value, out);
+        }
+    }
+
+    // Null on a non-Nullable column takes the default too, as input_format_null_as_default does for JSON
+    private void writeColumn(int index, Object value, boolean missing, DataBuffer out) {
+        if (missing || (value == null && !nullable[index])) {
+            out.write((byte) 1);
+        } else {
+            out.write((byte) 0);
+            writers[index].write(value, out);
+        }
+    }
+
+    private static boolean isNullable(String type) {
+        String t = type.trim();
+        if (t.startsWith("LowCardinality(")) {
+            t = t.substring("LowCardinality(".length()).trim();
+        }
+        return t.startsWith("Nullable(");
+    }
+
+    // ---------------------------------------------------------------- type compilation
+
+    static ColumnWriter compile(String rawType, ZoneId serverZone) {
+        String type = rawType.trim();
+        if (type.startsWith("Nullable(")) {
+            ColumnWriter inner = compile(unwrap(type, "Nullable("), serverZone);
+            return (v, out) -> {
+                if (v == null) {
+                    out.write((byte) 1);
+                } else {
+                    out.write((byte) 0);
+                    inner.write(v, out);
+                }
+            };
+        }
+        if (type.startsWith("LowCardinality(")) {
+            // LowCardinality is transparent in RowBinary
+            return compile(unwrap(type, "LowCardinality("), serverZone);
+        }
+        if (type.startsWith("Array(")) {
+            ColumnWriter inner = compile(unwrap(type, "Array("), serverZone);
+            return (v, out) -> {
+                if (v == null) {
+                    writeVarUInt(out, 0);
+                } else if (v instanceof Collection<?> c) {
+                    writeVarUInt(out, c.size());
+                    for (Object e : c) inner.write(e, out);
+                } else if (v instanceof Object[] arr) {
+                    writeVarUInt(out, arr.length);
+                    for (Object e : arr) inner.write(e, out);
+                } else {
+                    throw new IllegalArgumentException("Expected a collection for Array column, got " + v.getClass().getSimpleName());
+                }
+            };
+        }
+        if (type.startsWith("Enum8(") || type.startsWith("Enum16(")) {
+            boolean wide = type.startsWith("Enum16(");
+            Map<String, Integer> values = parseEnum(unwrap(type, wide ? "Enum16(" : "Enum8("));
+            return (v, out) -> {
+                int code;
+                if (v == null) {
+                    code = values.values().iterator().next();
+                } else if (v instanceof Number n) {
+                    code = n.intValue();
+                } else {
+                    Integer c = values.get(v.toString());
+                    if (c == null) throw new IllegalArgumentException("Unknown enum value '" + v + "' for " + type);
+                    code = c;
+                }
+                writeLE(out, code, wide ? 2 : 1);
+            };
+        }
+        if (type.startsWith("FixedString(")) {
+            int n = Integer.parseInt(unwrap(type, "FixedString(").trim());
+            return (v, out) -> {
+                byte[] b = v == null ? new byte[0] : v.toString().getBytes(StandardCharsets.UTF_8);
+                int len = Math.min(b.length, n);
+                out.write(b, 0, len);
+                for (int i = len; i < n; i++) out.write((byte) 0);
+            };
+        }
+        if (type.startsWith("DateTime64(")) {
+            String[] args = splitArgs(unwrap(type, "DateTime64("));
+            int precision = Integer.parseInt(args[0]);
+            ZoneId zone = args.length > 1 ? ZoneId.of(stripQuotes(args[1])) : serverZone;
+            long scale = pow10(precision);
+            return (v, out) -> {
+                Instant instant = toInstant(v, zone);
+                long ticks = instant.getEpochSecond() * scale + instant.getNano() / pow10(9 - precision);
+                writeLE(out, ticks, 8);
+            };
+        }
+        if (type.startsWith("DateTime(")) {
+            ZoneId zone = ZoneId.of(stripQuotes(unwrap(type, "DateTime(")));
+            return (v, out) -> writeLE(out, toInstant(v, zone).getEpochSecond(), 4);
+        }
+        if (type.startsWith("Decimal")) {
+            return compileDecimal(type);
+        }
+        switch (type) {
+            case "Int8":
+            case "UInt8":
+            case "Bool":
+                return (v, out) -> writeLE(out, toLong(v), 1);
+            case "Int16":
+            case "UInt16":
+                return (v, out) -> writeLE(out, toLong(v), 2);
+            case "Int32":
+            case "UInt32":
+                return (v, out) -> writeLE(out, toLong(v), 4);
+            case "Int64":
+            case "UInt64":
+                return (v, out) -> writeLE(out, toLong(v), 8);
+            case "Float32":
+                return (v, out) -> writeLE(out, Float.floatToIntBits((float) toDouble(v)), 4);
+            case "Float64":
+                return (v, out) -> writeLE(out, Double.doubleToLongBits(toDouble(v)), 8);
+            case "String":
+                return (v, out) -> writeString(out, v == null ? "" : v.toString());
+            case "Date":
+                return (v, out) -> writeLE(out, toLocalDate(v, serverZone).toEpochDay(), 2);
+            case "Date32":
+                return (v, out) -> writeLE(out, toLocalDate(v, serverZone).toEpochDay(), 4);
+            case "DateTime":
+                return (v, out) -> writeLE(out, toInstant(v, serverZone).getEpochSecond(), 4);
+            case "UUID":
+                return (v, out) -> {
+                    UUID u = v == null ? new UUID(0, 0) : (v instanceof UUID id ? id : UUID.fromString(v.toString()));
+                    writeLE(out, u.getMostSignificantBits(), 8);
+                    writeLE(out, u.getLeastSignificantBits(), 8);
+                };
+            default:
+                throw new IllegalArgumentException("Unsupported ClickHouse type for RowBinary: " + type
+                        + " (use JSONEachRow for this table)");
+        }
+    }
+
+    private static ColumnWriter compileDecimal(String type) {
+        int precision;
+        int scale;
+        if (type.startsWith("Decimal(")) {
+            String[] args = splitArgs(unwrap(type, "Decimal("));
+            precision = Integer.parseInt(args[0]);
+            scale = Integer.parseInt(args[1]);
+        } else if (type.startsWith("Decimal32(")) {
+            precision = 9;
+            scale = Integer.parseInt(unwrap(type, "Decimal32(").trim());
+        } else if (type.startsWith("Decimal64(")) {
+            precision = 18;
+            scale = Integer.parseInt(unwrap(type, "Decimal64(").trim());
+        } else {
+            throw new IllegalArgumentException("Unsupported ClickHouse type for RowBinary: " + type);
+        }
+        if (precision > 18) {
+            throw new IllegalArgumentException("Unsupported ClickHouse type for RowBinary: " + type);
+        }
+        int width = precision <= 9 ? 4 : 8;
+        return (v, out) -> {
+            BigDecimal d = v == null ? BigDecimal.ZERO : new BigDecimal(v.toString());
+            writeLE(out, d.movePointRight(scale).longValue(), width);
+        };
+    }
+
+    // ---------------------------------------------------------------- primitives
+
+    static void writeLE(DataBuffer out, long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            out.write((byte) (value >>> (8 * i)));
+        }
+    }
+
+    static void writeVarUInt(DataBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((byte) value);
+    }
+
+    static void writeString(DataBuffer out, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarUInt(out, b.length);
+        out.write(b);
+    }
+
+    private static long toLong(Object v) {
+        if (v == null) return 0L;
+        if (v instanceof Number n) return n.longValue();
+        if (v instanceof Boolean b) return b ? 1L : 0L;
+        String s = v.toString().trim();
+        if (s.isEmpty()) return 0L;
+        return Long.parseLong(s);
+    }
+
+    private static double toDouble(Object v) {
+        if (v == null) return 0d;
+        if (v instanceof Number n) return n.doubleValue();
+        String s = v.toString().trim();
+        return s.isEmpty() ? 0d : Double.parseDouble(s);
+    }
+
+    private static Instant toInstant(Object v, ZoneId zone) {
+        if (v == null) return Instant.EPOCH;
+        if (v instanceof Instant i) return i;
+        if (v instanceof LocalDateTime ldt) return ldt.atZone(zone).toInstant();
+        if (v instanceof Number n) return Instant.ofEpochSecond(n.longValue());
+        String s = v.toString().trim();
+        try {
+            return LocalDateTime.parse(s, DATE_TIME).atZone(zone).toInstant();
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.parse(s.replace(' ', 'T')).atZone(zone).toInstant();
+        }
+    }
+
+    private static LocalDate toLocalDate(Object v, ZoneId zone) {
+        if (v == null) return LocalDate.EPOCH;
+        if (v instanceof LocalDate d) return d;
+        if (v instanceof Number n) return LocalDate.ofEpochDay(n.longValue());
+        String s = v.toString().trim();
+        if (s.length() > 10) return toInstant(s, zone).atZone(zone).toLocalDate();
+        return LocalDate.parse(s);
+    }
+
+    // ---------------------------------------------------------------- type string helpers
+
+    private static String unwrap(String type, String prefix) {
+        if (!type.endsWith(")")) {
+            throw new IllegalArgumentException("Malformed type: " + type);
+        }
+        return type.substring(prefix.length(), type.length() - 1);
+    }
+
+    private static String[] splitArgs(String args) {
+        String[] parts = args.split(",");
+        for (int i = 0; i < parts.length; i++) parts[i] = parts[i].trim();
+        return parts;
+    }
+
+    private static String stripQuotes(String s) {
+        String t = s.trim();
+        if (t.length() >= 2 && t.startsWith("'") && t.endsWith("'")) {
+            return t.substring(1, t.length() - 1);
+        }
+        return t;
+    }
+
+    private static Map<String, Integer> parseEnum(String body) {
+        // 'a' = 1, 'b' = 2
+        Map<String, Integer> out = new LinkedHashMap<>(); // first declared value is the column default
+        int i = 0;
+        while (i < body.length()) {
+            int open = body.indexOf('\'', i);
+            if (open < 0) break;
+            int close = body.indexOf('\'', open + 1);
+            int eq = body.indexOf('=', close);
+            int comma = body.indexOf(',', eq);
+            String name = body.substring(open + 1, close);
+            String num = body.substring(eq + 1, comma < 0 ? body.length() : comma).trim();
+            out.put(name, Integer.parseInt(num));
+            i = comma < 0 ? body.length() : comma + 1;
+        }
+        if (out.isEmpty()) {
+            throw new IllegalArgumentException("Malformed enum: " + body);
+        }
+        return out;
+    }
+
+    private static long pow10(int n) {
+        long r = 1;
+        for (int i = 0; i < n; i++) r *= 10;
+        return r;
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes individual records to destination tables and batches each table independently.
+ *
+ * Rules come from routing.insert.rules as a comma separated list of field=value:table entries,
+ * evaluated in order (value * matches any non-null value); records matching no rule go to
+ * routing.insert.default-table. Every destination table gets its own {@link CoalescingInsertBuffer},
+ * so a slow or busy table only backs up its own queue. Flush policy and concurrency limit are
+ * read from routing.insert.table.&lt;table&gt;.* with routing.insert.* as the fallback, and rows are
+ * encoded in the table's configured insert format.
+ */
+@Service
+public class TableRoutingInsertEngine {
+
+    public static class Rule {
+        public final String field;
+        public final String value;
+        public final String table;
+
+        public Rule(String field, String value, String table) {
+            this.field = field;
+            this.value = value;
+            this.table = table;
+        }
+
+        boolean matches(Map<String, Object> record) {
+            Object v = record.get(field);
+            return v != null && ("*".equals(value) || value.equals(String.valueOf(v)));
+        }
+
+        @Override
+        public String toString() {
+            return field + "=" + value + ":" + table;
+        }
+    }
+
+    private final WebClient webClient;
+    private final ClickHouseBulkInsertService bulkInsertService;
+    private final InsertBodyWriter bodyWriter;
+    private final InsertCompressionService compressionService;
+    private final Environment environment;
+    private final InsertSpool spool;
+    private final Map<String, CoalescingInsertBuffer> buffers = new ConcurrentHashMap<>();
+    private final List<Rule> rules;
+
+    @Value("${clickhouse.username}")
+    private String username;
+
+    @Value("${clickhouse.password}")
+    private String password;
+
+    @Value("${clickhouse.database}")
+    private String database;
+
+    @Value("${routing.insert.default-table:${clickhouse.table}}")
+    private String defaultTable;
+
+    public TableRoutingInsertEngine(WebClient optimizedClickHouseClient,
+                                    ClickHouseBulkInsertService bulkInsertService,
+                                    InsertBodyWriter bodyWriter,
+                                    InsertCompressionService compressionService,
+                                    Environment environment,
+                                    InsertSpool spool) {
+        this.webClient = optimizedClickHouseClient;
+        this.bulkInsertService = bulkInsertService;
+        this.bodyWriter = bodyWriter;
+        this.compressionService = compressionService;
+        this.environment = environment;
+        this.spool = spool;
+        this.rules = parseRules(environment.getProperty("routing.insert.rules", ""));
+    }
+
+    static List<Rule> parseRules(String spec) {
+        List<Rule> parsed = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String e = entry.trim();
+            if (e.isEmpty()) continue;
+            int eq = e.indexOf('=');
+            int colon = e.lastIndexOf(':');
+            if (eq <= 0 || colon <= eq + 1 || colon == e.length() - 1) {
+                throw new IllegalArgumentException("Invalid routing rule '" + e + "', expected field=value:table");
+            }
+            parsed.add(new Rule(e.substring(0, eq).trim(), e.substring(eq + 1, colon).trim(), e.substring(colon + 1).trim()));
+        }
+        return List.copyOf(parsed);
+    }
+
+    public List<Rule> rules() {
+        return rules;
+    }
+
+    public String tableFor(Map<String, Object> record) {
+        for (Rule rule : rules) {
+            if (rule.matches(record)) {
+                return rule.table;
+            }
+        }
+        return defaultTable;
+    }
+
+    /**
+     * Route one record. The future completes when the batch holding it has been inserted.
+     * Blocks while the destination table's queue is full.
+     */
+    public CompletableFuture<Void> route(Map<String, Object> record) throws InterruptedException {
+        String table = tableFor(record);
+        return buffer(table).submit(bulkInsertService.encodeRow(table, record),
+                bulkInsertService.partitionKeyFor(table).keyOf(record));
+    }
+
+    /**
+     * Route a batch of records; completes when every destination table has inserted its share.
+     */
+    public CompletableFuture<Void> routeAll(List<Map<String, Object>> records) throws InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(records.size());
+        for (Map<String, Object> record : records) {
+            futures.add(route(record));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("defaultTable", defaultTable);
+        m.put("rules", rules.stream().map(Rule::toString).toList());
+        Map<String, Object> tables = new LinkedHashMap<>();
+        buffers.forEach((table, buffer) -> tables.put(table, buffer.stats()));
+        m.put("tables", tables);
+        return m;
+    }
+
+    // A table's buffer is created by the first record routed to it; load RowBinary encoders up front
+    // so that does not wait for the schema
+    @PostConstruct
+    public void loadEncoders() {
+        List<String> tables = new ArrayList<>();
+        tables.add(defaultTable);
+        rules.forEach(rule -> tables.add(rule.table));
+        for (String table : tables.stream().distinct().toList()) {
+            if (bulkInsertService.formatFor(table) == InsertFormat.ROW_BINARY) {
+                bulkInsertService.encoder(table).subscribe(
+                        encoder -> { },
+                        e -> System.err.println("RowBinary encoder of " + table + " not loaded yet: " + e.getMessage()));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        buffers.values().forEach(CoalescingInsertBuffer::close);
+    }
+
+    private CoalescingInsertBuffer buffer(String table) {
+        CoalescingInsertBuffer buffer = buffers.get(table);
+        if (buffer != null) {
+            return buffer;
+        }
+        return buffers.computeIfAbsent(table, this::createBuffer);
+    }
+
+    private CoalescingInsertBuffer createBuffer(String table) {
+        CoalescingInsertBuffer.Policy policy = new CoalescingInsertBuffer.Policy(
+                tableProperty(table, "max-rows", Integer.class, 50000),
+                tableProperty(table, "max-bytes", Long.class, 16L * 1024 * 1024),
+                Duration.ofMillis(tableProperty(table, "linger-ms", Long.class, 500L)),
+                tableProperty(table, "queue-capacity", Integer.class, 100000),
+                tableProperty(table, "max-in-flight", Integer.class, 2));
+
+        // Called from listener threads, which may block if the encoder is not loaded yet
+        InsertFormat format = bulkInsertService.formatFor(table);
+        RowBinaryEncoder encoder = format == InsertFormat.ROW_BINARY ? bulkInsertService.encoderFor(table) : null;
+        String columns = encoder != null ? encoder.columnList() + " " : "";
+        String formatName = encoder != null ? encoder.formatName() : format.clickHouseName;
+        String targetPath = UriComponentsBuilder.fromPath("/")
+                .queryParam("query", "INSERT INTO " + database + "." + table + " " + columns + "FORMAT " + formatName)
+                .queryParam("async_insert", "0")
+                .build(false)
+                .toUriString();
+        MediaType contentType = format == InsertFormat.ROW_BINARY ? MediaType.APPLICATION_OCTET_STREAM : MediaType.APPLICATION_JSON;
+
+        return new CoalescingInsertBuffer(table, policy, (rows, bytes) -> send(targetPath, contentType, rows));
+    }
+
+    private <T> T tableProperty(String table, String key, Class<T> type, T defaultValue) {
+        T fallback = environment.getProperty("routing.insert." + key, type, defaultValue);
+        return environment.getProperty("routing.insert.table." + table + "." + key, type, fallback);
+    }
+
+    private Mono<Void> send(String targetPath, MediaType contentType, List<byte[]> rows) {
+        return spool.sendOrSpool(targetPath, contentType, () -> InsertSpool.concat(rows),
+                () -> post(targetPath, contentType, rows));
+    }
+
+    private Mono<Void> post(String targetPath, MediaType contentType, List<byte[]> rows) {
+        InsertCompressionService.CompressedBody body = compressionService.compress("routing", bodyWriter.encodedRows(rows));
+        return webClient.post()
+                .uri(targetPath)
+                .attribute(ClickHouseRequestLimiter.INSERT_PATH, "routing")
+                .headers(h -> {
+                    h.setBasicAuth(username, password);
+                    body.applyTo(h);
+                })
+                .contentType(contentType)
+                .body(BodyInserters.fromDataBuffers(body.body))
+                .retrieve()
+                .toBodilessEntity()
+                .then();
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InsertRingBufferTest {
+
+	private static final Duration WAIT = Duration.ofSeconds(5);
+
+	@Test
+	void rowsWrapAroundTheRingInOrder() throws Exception {
+		FakeSink sink = new FakeSink(false);
+		StringBuilder expected = new StringBuilder();
+		try (InsertRingBuffer ring = new InsertRingBuffer("wrap", new InsertRingBuffer.Policy(4, 3, 1 << 20, Duration.ofMillis(1), 2), 16, sink)) {
+			for (int i = 0; i < 100; i++) {
+				String row = "r" + i + ";";
+				assertTrue(ring.publish(row(row), WAIT));
+				expected.append(row);
+			}
+			ring.whenInserted().get(5, TimeUnit.SECONDS);
+
+			assertEquals(expected.toString(), String.join("", sink.blocks));
+			assertTrue(sink.rows.stream().allMatch(n -> n <= 3), sink.rows.toString());
+			assertEquals(100L, ring.stats().get("insertedRows"));
+			assertEquals(0.0, ring.fill());
+		}
+	}
+
+	@Test
+	void blockIsCutAtMaxRows() throws Exception {
+		FakeSink sink = new FakeSink(false);
+		try (InsertRingBuffer ring = new InsertRingBuffer("rows", new InsertRingBuffer.Policy(16, 4, 1 << 20, Duration.ofSeconds(30), 2), 16, sink)) {
+			for (int i = 0; i < 8; i++) {
+				ring.publish(row("r" + i + ";"), WAIT);
+			}
+			ring.whenInserted().get(5, TimeUnit.SECONDS);
+
+			assertEquals(List.of("r0;r1;r2;r3;", "r4;r5;r6;r7;"), sink.blocks);
+			assertEquals(2L, ring.stats().get("flushedOnRows"));
+		}
+	}
+
+	@Test
+	void blockIsCutAtMaxBytes() throws Exception {
+		FakeSink sink = new FakeSink(false);
+		try (InsertRingBuffer ring = new InsertRingBuffer("bytes", new InsertRingBuffer.Policy(16, 100, 10, Duration.ofSeconds(30), 2), 16, sink)) {
+			for (int i = 0; i < 6; i++) {
+				ring.publish(row("ab" + i + ";"), WAIT);
+			}
+			ring.whenInserted().get(5, TimeUnit.SECONDS);
+
+			assertEquals(List.of("ab0;ab1;ab2;", "ab3;ab4;ab5;"), sink.blocks);
+			assertEquals(List.of(3, 3), sink.rows);
+			assertEquals(2L, ring.stats().get("flushedOnBytes"));
+		}
+	}
+
+	@Test
+	void partialBlockIsSentAfterTheLinger() throws Exception {
+		FakeSink sink = new FakeSink(false);
+		try (InsertRingBuffer ring = new InsertRingBuffer("linger", new InsertRingBuffer.Policy(16, 100, 1 << 20, Duration.ofMillis(50), 2), 16, sink)) {
+			ring.publish(row("a;"), WAIT);
+			ring.publish(row("b;"), WAIT);
+			ring.whenInserted().get(5, TimeUnit.SECONDS);
+
+			assertEquals("a;b;", String.join("", sink.blocks));
+			assertEquals(0L, ring.stats().get("flushedOnRows"));
+			assertEquals(0L, ring.stats().get("flushedOnBytes"));
+		}
+	}
+
+	@Test
+	void publishTimesOutWhileTheRingIsFull() throws Exception {
+		FakeSink sink = new FakeSink(true);
+		try (InsertRingBuffer ring = new InsertRingBuffer("full", new InsertRingBuffer.Policy(2, 1, 1 << 20, Duration.ofMillis(1), 1), 16, sink)) {
+			ring.publish(row("a;"), WAIT);
+			Sinks.Empty<Void> first = sink.next();
+			// The only block is in flight, so the worker stops copying and two more rows fill the ring
+			ring.publish(row("b;"), WAIT);
+			ring.publish(row("c;"), WAIT);
+
+			assertThrows(TimeoutException.class, () -> ring.publish(row("d;"), Duration.ofMillis(50)));
+			assertTrue((Long) ring.stats().get("writerWaits") > 0);
+
+			first.tryEmitEmpty();
+			assertTrue(ring.publish(row("d;"), WAIT));
+			for (int i = 0; i < 3; i++) {
+				sink.next().tryEmitEmpty();
+			}
+			ring.whenInserted().get(5, TimeUnit.SECONDS);
+			assertEquals(List.of("a;", "b;", "c;", "d;"), sink.blocks);
+		}
+	}
+
+	@Test
+	void rowWriterFailureIsNotPublished() throws Exception {
+		FakeSink sink = new FakeSink(false);
+		try (InsertRingBuffer ring = new InsertRingBuffer("writer", new InsertRingBuffer.Policy(4, 1, 1 << 20, Duration.ofMillis(1), 1), 16, sink)) {
+			assertFalse(ring.publish(slot -> {
+				throw new IllegalStateException("bad row");
+			}, WAIT));
+			assertTrue(ring.publish(row("ok;"), WAIT));
+			ring.whenInserted().get(5, TimeUnit.SECONDS);
+
+			assertEquals(List.of("ok;"), sink.blocks);
+			assertEquals(1L, ring.stats().get("publishedRows"));
+		}
+	}
+
+	@Test
+	void failedInsertDiscardsRowsUntilRecovered() throws Exception {
+		FakeSink sink = new FakeSink(true);
+		try (InsertRingBuffer ring = new InsertRingBuffer("failure", new InsertRingBuffer.Policy(8, 1, 1 << 20, Duration.ofMillis(1), 2), 16, sink)) {
+			ring.publish(row("a;"), WAIT);
+			CompletableFuture<Void> pending = ring.whenInserted();
+			IllegalStateException cause = new IllegalStateException("insert failed");
+			sink.next().tryEmitError(cause);
+
+			ExecutionException e = assertThrows(ExecutionException.class, () -> pending.get(5, TimeUnit.SECONDS));
+			assertSame(cause, e.getCause());
+			assertTrue(ring.failed());
+			assertTrue(ring.whenInserted().isCompletedExceptionally());
+
+			// Published while failed: dropped by the worker, the writer redelivers it after recover
+			ring.publish(row("b;"), WAIT);
+			ring.recover(WAIT);
+
+			assertFalse(ring.failed());
+			assertEquals(1L, ring.stats().get("discardedRows"));
+			assertTrue(ring.whenInserted().isDone());
+			assertFalse(ring.whenInserted().isCompletedExceptionally());
+
+			ring.publish(row("b;"), WAIT);
+			CompletableFuture<Void> retried = ring.whenInserted();
+			sink.next().tryEmitEmpty();
+			retried.get(5, TimeUnit.SECONDS);
+			assertEquals(List.of("a;", "b;"), sink.blocks);
+			assertEquals(1L, ring.stats().get("insertedRows"));
+		}
+	}
+
+	@Test
+	void recoverWaitsForInFlightBlocks() throws Exception {
+		FakeSink sink = new FakeSink(true);
+		try (InsertRingBuffer ring = new InsertRingBuffer("settle", new InsertRingBuffer.Policy(8, 1, 1 << 20, Duration.ofMillis(1), 2), 16, sink)) {
+			ring.publish(row("a;"), WAIT);
+			ring.publish(row("b;"), WAIT);
+			Sinks.Empty<Void> first = sink.next();
+			Sinks.Empty<Void> second = sink.next();
+			first.tryEmitError(new IllegalStateException("insert failed"));
+
+			assertThrows(TimeoutException.class, () -> ring.recover(Duration.ofMillis(50)));
+			assertTrue(ring.failed());
+
+			second.tryEmitEmpty();
+			ring.recover(WAIT);
+			assertFalse(ring.failed());
+			assertNull(sink.calls.poll());
+		}
+	}
+
+	private static InsertRingBuffer.RowWriter row(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		return slot -> slot.write(bytes);
+	}
+
+	// Records every block; with manual completion each insert waits for the test to emit its result
+	private static final class FakeSink implements InsertRingBuffer.BlockSink {
+		final List<String> blocks = new ArrayList<>();
+		final List<Integer> rows = new ArrayList<>();
+		final BlockingQueue<Sinks.Empty<Void>> calls = new LinkedBlockingQueue<>();
+		private final boolean manual;
+
+		FakeSink(boolean manual) {
+			this.manual = manual;
+		}
+
+		@Override
+		public synchronized Mono<Void> insert(byte[] block, int length, int rowCount) {
+			blocks.add(new String(block, 0, length, StandardCharsets.UTF_8));
+			rows.add(rowCount);
+			if (!manual) {
+				return Mono.empty();
+			}
+			Sinks.Empty<Void> result = Sinks.empty();
+			calls.add(result);
+			return result.asMono();
+		}
+
+		Sinks.Empty<Void> next() throws InterruptedException {
+			Sinks.Empty<Void> call = calls.poll(5, TimeUnit.SECONDS);
+			assertNotNull(call, "no insert was sent");
+			return call;
+		}
+	}
+}
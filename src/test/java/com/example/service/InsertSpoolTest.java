@@ -0,0 +1,129 @@
+package com.example.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InsertSpoolTest {
+
+	private static final String PATH = "/?query=INSERT%20INTO%20kavach.t%20FORMAT%20JSONEachRow";
+	private static final String TYPE = "application/json";
+
+	@TempDir
+	Path dir;
+
+	private final List<InsertSpool> spools = new ArrayList<>();
+
+	@AfterEach
+	void stopSpools() {
+		spools.forEach(InsertSpool::stop);
+	}
+
+	@Test
+	void recoveryStopsAtTornEntryAndAppendsAfterTheLastValidOne() throws Exception {
+		InsertSpool spool = open(0);
+		spool.append(PATH, TYPE, body("first-batch"));
+		spool.append(PATH, TYPE, body("second-batch"));
+		spool.append(PATH, TYPE, body("third-batch"));
+		assertEquals(3L, spool.stats().get("pendingBatches"));
+		spool.stop();
+
+		// Flip one byte of the last entry, as a write cut short by a crash would leave it
+		Path segment = onlySegment();
+		byte[] bytes = Files.readAllBytes(segment);
+		int at = indexOf(bytes, body("third-batch"));
+		assertTrue(at > 0);
+		try (RandomAccessFile raf = new RandomAccessFile(segment.toFile(), "rw")) {
+			raf.seek(at);
+			raf.write(bytes[at] ^ 0x7f);
+		}
+
+		InsertSpool recovered = open(0);
+		assertEquals(2L, recovered.stats().get("pendingBatches"));
+		String writePosition = (String) recovered.stats().get("writePosition");
+		int secondEnd = at - entryOverhead();
+		assertEquals("0:" + secondEnd, writePosition);
+
+		recovered.append(PATH, TYPE, body("fourth-batch"));
+		recovered.stop();
+		InsertSpool reopened = open(0);
+		assertEquals(3L, reopened.stats().get("pendingBatches"));
+		byte[] after = Files.readAllBytes(onlySegment());
+		assertEquals(secondEnd + entryOverhead(), indexOf(after, body("fourth-batch")));
+	}
+
+	@Test
+	void appendFailsOnceMaxBytesArePending() throws Exception {
+		int entry = entryOverhead() + 100;
+		InsertSpool spool = open(2L * entry);
+		spool.append(PATH, TYPE, new byte[100]);
+		spool.append(PATH, TYPE, new byte[100]);
+		assertThrows(InsertSpool.SpoolFullException.class, () -> spool.append(PATH, TYPE, new byte[100]));
+		assertEquals(2L, spool.stats().get("pendingBatches"));
+		assertEquals(1L, spool.stats().get("rejectedBatches"));
+	}
+
+	// Spool over the temp dir whose replay never succeeds (nothing listens on port 1)
+	private InsertSpool open(long maxBytes) throws Exception {
+		InsertCompressionService compression = new InsertCompressionService(new MockEnvironment(), DefaultDataBufferFactory.sharedInstance);
+		ReflectionTestUtils.setField(compression, "defaultCompression", "false");
+		InsertSpool spool = new InsertSpool(WebClient.create("http://127.0.0.1:1"),
+				new InsertBodyWriter(DefaultDataBufferFactory.sharedInstance), compression);
+		ReflectionTestUtils.setField(spool, "enabled", true);
+		ReflectionTestUtils.setField(spool, "dir", dir.toString());
+		ReflectionTestUtils.setField(spool, "segmentBytes", 64 * 1024);
+		ReflectionTestUtils.setField(spool, "maxBytes", maxBytes);
+		ReflectionTestUtils.setField(spool, "retryInitialMs", 60_000L);
+		ReflectionTestUtils.setField(spool, "retryMaxMs", 60_000L);
+		ReflectionTestUtils.setField(spool, "replayTimeoutSeconds", 5L);
+		spool.start();
+		spools.add(spool);
+		return spool;
+	}
+
+	private Path onlySegment() throws Exception {
+		try (Stream<Path> files = Files.list(dir)) {
+			List<Path> segments = files.filter(f -> f.getFileName().toString().endsWith(".seg")).toList();
+			assertEquals(1, segments.size());
+			return segments.get(0);
+		}
+	}
+
+	// Entry bytes before the body: length, crc, then the length-prefixed path and content type
+	private static int entryOverhead() {
+		return 8 + 2 + PATH.length() + 2 + TYPE.length();
+	}
+
+	private static byte[] body(String text) {
+		return (text + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int indexOf(byte[] data, byte[] needle) {
+		outer:
+		for (int i = 0; i + needle.length <= data.length; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (data[i + j] != needle[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,130 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JsonRowDecoderTest {
+
+	private static final String EACH_ROW =
+		"{\"id\":1,\"name\":\"alpha \\\"quoted\\\" ωmega\",\"score\":1.25,\"ok\":true,\"gone\":null}\n"
+		+ "{\"id\":18446744073709551615,\"name\":\"\",\"score\":-3e-2,\"ok\":false,\"gone\":\"2024-03-01 12:00:00\"}\n"
+		+ "{\"id\":-9223372036854775808,\"name\":\"beta\",\"score\":0.0,\"ok\":true,\"gone\":\"123456789012345678901\"}\n";
+
+	@Test
+	void valuesSplitAcrossBuffersDecodeTheSameAtEveryChunkSize() {
+		byte[] body = EACH_ROW.getBytes(StandardCharsets.UTF_8);
+		for (int chunk : new int[] { 1, 2, 3, 5, 17, body.length }) {
+			List<Map<String, Object>> rows = JsonRowDecoder.eachRow(buffers(body, chunk)).collectList().block();
+
+			assertEquals(3, rows.size(), "chunk " + chunk);
+			assertEquals(row("id", 1L, "name", "alpha \"quoted\" ωmega", "score", 1.25, "ok", true, "gone", null), rows.get(0), "chunk " + chunk);
+			assertEquals(new BigInteger("18446744073709551615"), rows.get(1).get("id"), "chunk " + chunk);
+			assertEquals("", rows.get(1).get("name"), "chunk " + chunk);
+			assertEquals(-0.03, rows.get(1).get("score"), "chunk " + chunk);
+			assertEquals(false, rows.get(1).get("ok"), "chunk " + chunk);
+			assertEquals(Long.MIN_VALUE, rows.get(2).get("id"), "chunk " + chunk);
+			assertEquals("123456789012345678901", rows.get(2).get("gone"), "chunk " + chunk);
+		}
+	}
+
+	@Test
+	void rowsKeepColumnOrder() {
+		Map<String, Object> row = JsonRowDecoder.eachRow(buffers(EACH_ROW.getBytes(StandardCharsets.UTF_8), 4)).blockFirst();
+
+		assertEquals(List.of("id", "name", "score", "ok", "gone"), new ArrayList<>(row.keySet()));
+	}
+
+	@Test
+	void nestedArraysAndObjectsBecomeListsAndMaps() {
+		byte[] body = ("{\"id\":1,\"tags\":[\"a\",[\"b\",[]],{}],\"attrs\":{\"k\":{\"n\":[1,2.5,null]},\"e\":[]},\"after\":7}\n"
+			+ "{\"id\":2,\"tags\":[],\"attrs\":{},\"after\":8}\n").getBytes(StandardCharsets.UTF_8);
+		for (int chunk : new int[] { 1, 3, body.length }) {
+			List<Map<String, Object>> rows = JsonRowDecoder.eachRow(buffers(body, chunk)).collectList().block();
+
+			assertEquals(List.of("a", List.of("b", List.of()), Map.of()), rows.get(0).get("tags"), "chunk " + chunk);
+			assertEquals(row("k", row("n", Arrays.asList(1L, 2.5, null)), "e", List.of()), rows.get(0).get("attrs"), "chunk " + chunk);
+			assertEquals(7L, rows.get(0).get("after"), "chunk " + chunk);
+			assertEquals(row("id", 2L, "tags", List.of(), "attrs", Map.of(), "after", 8L), rows.get(1), "chunk " + chunk);
+		}
+	}
+
+	@Test
+	void compactRowsRegroupByColumn() {
+		byte[] body = "[1,\"a\",0.5]\n[2,\"b\",null]\n[3,\"a\",2]\n".getBytes(StandardCharsets.UTF_8);
+
+		List<JsonRowDecoder.ColumnBatch> batches = JsonRowDecoder
+			.compactEachRowColumns(buffers(body, 2), List.of("id", "name", "score"), 2).collectList().block();
+
+		assertEquals(List.of(2, 1), batches.stream().map(b -> b.rowCount).toList());
+		assertEquals(List.of(1L, 2L), batches.get(0).column("id"));
+		assertEquals(Arrays.asList(0.5, null), batches.get(0).column("score"));
+		assertEquals(List.of("a"), batches.get(1).column("name"));
+		assertEquals(List.of(2L), batches.get(1).column("score"));
+	}
+
+	@Test
+	void eachRowColumnsTakeNamesFromTheFirstRow() {
+		List<JsonRowDecoder.ColumnBatch> batches = JsonRowDecoder
+			.eachRowColumns(buffers(EACH_ROW.getBytes(StandardCharsets.UTF_8), 8), null, 10).collectList().block();
+
+		assertEquals(List.of("id", "name", "score", "ok", "gone"), batches.get(0).names);
+		assertEquals(Arrays.asList(true, false, true), batches.get(0).column("ok"));
+	}
+
+	@Test
+	void streamEndingInsideARowFails() {
+		byte[] betweenTokens = "{\"id\":1}\n{\"id\":2,\"tags\":[1]".getBytes(StandardCharsets.UTF_8);
+		byte[] insideString = "{\"id\":1}\n{\"name\":\"unterminat".getBytes(StandardCharsets.UTF_8);
+
+		assertThrows(UncheckedIOException.class, () -> JsonRowDecoder.eachRow(buffers(betweenTokens, 3)).collectList().block());
+		assertThrows(UncheckedIOException.class, () -> JsonRowDecoder.eachRow(buffers(insideString, 3)).collectList().block());
+	}
+
+	@Test
+	void rowsBeforeATruncationAreStillEmitted() {
+		byte[] body = "{\"id\":1}\n{\"id\":2}\n{\"id\":".getBytes(StandardCharsets.UTF_8);
+		List<Object> seen = new ArrayList<>();
+
+		assertThrows(UncheckedIOException.class, () -> JsonRowDecoder.eachRow(buffers(body, 4)).doOnNext(r -> seen.add(r.get("id"))).blockLast());
+		assertEquals(List.of(1L, 2L), seen);
+	}
+
+	@Test
+	void nonObjectRowIsRejected() {
+		byte[] body = "{\"id\":1}\n[1,2]\n".getBytes(StandardCharsets.UTF_8);
+
+		assertThrows(IllegalStateException.class, () -> JsonRowDecoder.eachRow(buffers(body, 5)).collectList().block());
+	}
+
+	private static Flux<DataBuffer> buffers(byte[] body, int chunk) {
+		return Flux.defer(() -> {
+			List<DataBuffer> buffers = new ArrayList<>();
+			for (int i = 0; i < body.length; i += chunk) {
+				buffers.add(DefaultDataBufferFactory.sharedInstance.wrap(Arrays.copyOfRange(body, i, Math.min(body.length, i + chunk))));
+			}
+			return Flux.fromIterable(buffers);
+		});
+	}
+
+	private static Map<String, Object> row(Object... keyValues) {
+		Map<String, Object> row = new LinkedHashMap<>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			row.put((String) keyValues[i], keyValues[i + 1]);
+		}
+		return row;
+	}
+}
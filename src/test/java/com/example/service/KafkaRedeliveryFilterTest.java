@@ -0,0 +1,30 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class KafkaRedeliveryFilterTest {
+
+	@Test
+	void unkeyedRecordsAreCountedOnceAndAlwaysPass() {
+		KafkaRedeliveryFilter filter = new KafkaRedeliveryFilter(true, 1000, 0.001, 600_000);
+		List<Map<String, Object>> rows = List.of(
+			Map.of("stationary_kavach_id", 7, "message_sequence", 1, "message_datetime", "2024-01-01 00:00:00"),
+			Map.of("other", 1));
+
+		assertEquals(2, filter.unseen(rows).size());
+		filter.inserted(rows);
+		List<Map<String, Object>> redelivered = filter.unseen(rows);
+
+		assertEquals(List.of(rows.get(1)), redelivered);
+		Map<String, Object> stats = filter.stats();
+		assertEquals(4L, stats.get("checkedRecords"));
+		assertEquals(1L, stats.get("suppressedRecords"));
+		assertEquals(1L, stats.get("recordedKeys"));
+		assertEquals(2L, stats.get("unkeyedRecords"));
+	}
+}
@@ -0,0 +1,90 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KavachPacketCodecTest {
+
+	private static final int DICT = 1;
+
+	private final KavachPacketCodec codec = new KavachPacketCodec();
+
+	@Test
+	void typedEncodeRoundTripsToTheRecordMap() throws Exception {
+		KavachRriRecord record = KavachRriRecord.forSequence(42, 1_736_935_200L);
+		byte[] packet = codec.encode(record);
+
+		assertTrue(KavachPacketCodec.isBinary(packet));
+		assertEquals(record.toMap(), codec.toMap(packet));
+		assertEquals("0042", codec.toMap(packet).get(KavachRriRecord.SUB_PKT_TYPE));
+	}
+
+	@Test
+	void genericEncodeMatchesTypedEncode() throws Exception {
+		KavachRriRecord record = KavachRriRecord.forSequence(7, 1_736_935_200L);
+
+		assertEquals(codec.toMap(codec.encode(record)), codec.toMap(codec.encode(record.toMap())));
+	}
+
+	@Test
+	void namedFieldsRoundTripWithTheirTypes() throws Exception {
+		Map<String, Object> row = new LinkedHashMap<>();
+		row.put("message_sequence", 5);
+		row.put("unregistered_count", -12);
+		row.put("unregistered_wide", 1L << 40);
+		row.put("unregistered_ratio", 0.25);
+		row.put("unregistered_flag", true);
+		row.put("unregistered_text", "sector 4");
+		row.put("unregistered_time", "2025-01-15 10:15:30");
+		row.put("unregistered_list", List.of(Map.of("a", 1)));
+
+		assertEquals(row, codec.toMap(codec.encode(row)));
+	}
+
+	@Test
+	void digitsKeepLeadingZeros() throws Exception {
+		Map<String, Object> row = new LinkedHashMap<>();
+		row.put("sub_pkt_type", "0007");
+		row.put("unregistered_code", "000");
+		row.put("frame_number", "0123456789");
+
+		assertEquals(row, codec.toMap(codec.encode(row)));
+	}
+
+	@Test
+	void unknownDictionaryCodeOfAKnownFieldIsRejected() {
+		int crc = KavachPacketCodec.FIELDS.indexOf("crc") + 1;
+		byte[] packet = {KavachPacketCodec.MAGIC, KavachPacketCodec.SCHEMA_VERSION, (byte) (crc << 3 | DICT), 99};
+
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> codec.toMap(packet));
+		assertTrue(e.getMessage().contains("newer schema"));
+	}
+
+	@Test
+	void fieldsOfANewerSchemaAreSkipped() throws Exception {
+		int unknown = KavachPacketCodec.FIELDS.size() + 5;
+		int sequence = KavachPacketCodec.FIELDS.indexOf("message_sequence") + 1;
+		byte[] packet = {KavachPacketCodec.MAGIC, KavachPacketCodec.SCHEMA_VERSION,
+				(byte) (unknown << 3 | DICT | 0x80), (byte) (unknown >>> 4), 3,
+				(byte) (sequence << 3), 6};
+
+		assertEquals(Map.of("message_sequence", 3), codec.toMap(packet));
+	}
+
+	@Test
+	void jsonValuesAreDecodedAsJson() throws Exception {
+		byte[] json = "{\"message_sequence\":9,\"crc\":\"AFCE0000\"}".getBytes(StandardCharsets.UTF_8);
+
+		assertFalse(KavachPacketCodec.isBinary(json));
+		assertEquals(Map.of("message_sequence", 9, "crc", "AFCE0000"), codec.toMap(json));
+	}
+}
@@ -0,0 +1,90 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PacketPageCursorTest {
+
+	@Test
+	void tokenRoundTrips() {
+		PacketPageCursor cursor = new PacketPageCursor("2024-03-01 12:00:05.250", "4021", "17");
+
+		PacketPageCursor decoded = PacketPageCursor.decode(cursor.encode());
+
+		assertEquals("2024-03-01 12:00:05.250", decoded.messageDatetime);
+		assertEquals("4021", decoded.stationaryKavachId);
+		assertEquals("17", decoded.messageSequence);
+	}
+
+	@Test
+	void blankTokenIsFirstPage() {
+		assertNull(PacketPageCursor.decode(null));
+		assertNull(PacketPageCursor.decode(""));
+		assertNull(PacketPageCursor.decode("  "));
+	}
+
+	@Test
+	void malformedTokensAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> PacketPageCursor.decode("not base64!"));
+		assertThrows(IllegalArgumentException.class, () -> PacketPageCursor.decode(token("1\u00002024-03-01 12:00:05\u00004021")));
+		assertThrows(IllegalArgumentException.class, () -> PacketPageCursor.decode(token("1\u0000\u00004021\u000017")));
+		assertThrows(IllegalArgumentException.class, () -> PacketPageCursor.decode(token("2\u00002024-03-01 12:00:05\u00004021\u000017")));
+	}
+
+	@Test
+	void pageTrimsToLimitAndPointsAtLastRow() {
+		List<Map<String, Object>> fetched = rows(4);
+
+		PacketPageCursor.Page page = PacketPageCursor.page(fetched, 3);
+
+		assertEquals(3, page.rows.size());
+		assertEquals(List.of(0, 1, 2), page.rows.stream().map(r -> r.get("id")).toList());
+		PacketPageCursor next = PacketPageCursor.decode(page.nextCursor);
+		assertEquals("2024-03-01 12:00:02", next.messageDatetime);
+		assertEquals("100", next.stationaryKavachId);
+		assertEquals("2", next.messageSequence);
+		for (Map<String, Object> row : page.rows) {
+			assertEquals(List.of("id"), new ArrayList<>(row.keySet()));
+		}
+	}
+
+	@Test
+	void lastPageHasNoCursor() {
+		PacketPageCursor.Page exact = PacketPageCursor.page(rows(3), 3);
+		PacketPageCursor.Page partial = PacketPageCursor.page(rows(1), 3);
+
+		assertEquals(3, exact.rows.size());
+		assertNull(exact.nextCursor);
+		assertEquals(1, partial.rows.size());
+		assertNull(partial.nextCursor);
+		assertFalse(partial.rows.get(0).containsKey(PacketPageCursor.DATETIME_COLUMN));
+	}
+
+	private static List<Map<String, Object>> rows(int n) {
+		List<Map<String, Object>> rows = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			Map<String, Object> row = new LinkedHashMap<>();
+			row.put("id", i);
+			row.put(PacketPageCursor.DATETIME_COLUMN, "2024-03-01 12:00:0" + i);
+			row.put(PacketPageCursor.KAVACH_ID_COLUMN, "100");
+			row.put(PacketPageCursor.SEQUENCE_COLUMN, String.valueOf(i));
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private static String token(String raw) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,123 @@
+package com.example.service;
+
+import com.example.service.ClickHouseTableSchemaService.Column;
+import com.example.service.ClickHouseTableSchemaService.TableSchema;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartitionKeyExtractorTest {
+
+	private static final ZoneId KOLKATA = ZoneId.of("Asia/Kolkata");
+
+	// 2024-01-31 20:00:00 UTC is already 2024-02-01 01:30 in Kolkata
+	private static final long LATE_JANUARY_UTC = Instant.parse("2024-01-31T20:00:00Z").getEpochSecond();
+
+	@Test
+	void dateFunctionsUseTheServerZone() {
+		PartitionKeyExtractor month = extractor("toYYYYMM(ts)", "DateTime");
+		PartitionKeyExtractor day = extractor("toYYYYMMDD(ts)", "DateTime");
+
+		assertTrue(month.partitioned());
+		assertEquals(202402L, month.keyOf(Map.of("ts", LATE_JANUARY_UTC)));
+		assertEquals(20240201L, day.keyOf(Map.of("ts", LATE_JANUARY_UTC)));
+		assertEquals(20240201L, day.keyOf(Map.of("ts", Instant.ofEpochSecond(LATE_JANUARY_UTC))));
+	}
+
+	@Test
+	void columnZoneOverridesTheServerZone() {
+		PartitionKeyExtractor month = extractor("toYYYYMM(ts)", "DateTime('UTC')");
+		PartitionKeyExtractor day = extractor("toYYYYMMDD(ts)", "Nullable(DateTime64(3, 'UTC'))");
+
+		assertEquals(202401L, month.keyOf(Map.of("ts", LATE_JANUARY_UTC)));
+		assertEquals(20240131L, day.keyOf(Map.of("ts", LATE_JANUARY_UTC)));
+	}
+
+	@Test
+	void textAndLocalValuesAreAlreadyInTheColumnZone() {
+		PartitionKeyExtractor day = extractor("toYYYYMMDD(ts)", "DateTime");
+
+		assertEquals(20240131L, day.keyOf(Map.of("ts", "2024-01-31 23:59:59")));
+		assertEquals(20240131L, day.keyOf(Map.of("ts", "2024-01-31 23:59:59.875")));
+		assertEquals(20240131L, day.keyOf(Map.of("ts", "2024-01-31")));
+		assertEquals(20240131L, day.keyOf(Map.of("ts", LocalDateTime.of(2024, 1, 31, 23, 0))));
+		assertEquals(20240131L, day.keyOf(Map.of("ts", LocalDate.of(2024, 1, 31))));
+	}
+
+	@Test
+	void otherDateFunctions() {
+		Map<String, Object> row = Map.of("ts", "2024-03-07 13:45:10");
+
+		assertEquals(2024L, extractor("toYear(ts)", "DateTime").keyOf(row));
+		assertEquals(LocalDate.of(2024, 3, 7), extractor("toDate(ts)", "DateTime").keyOf(row));
+		assertEquals(LocalDate.of(2024, 3, 4), extractor("toMonday(ts)", "DateTime").keyOf(row));
+		assertEquals(LocalDate.of(2024, 3, 1), extractor("toStartOfMonth(ts)", "DateTime").keyOf(row));
+		assertEquals(LocalDateTime.of(2024, 3, 7, 13, 0), extractor("toStartOfHour(ts)", "DateTime").keyOf(row));
+	}
+
+	@Test
+	void intDivTruncatesTowardZero() {
+		PartitionKeyExtractor bucket = extractor("intDiv(id, 2)", "Int64");
+
+		assertEquals(3L, bucket.keyOf(Map.of("id", 7)));
+		assertEquals(-3L, bucket.keyOf(Map.of("id", -7)));
+		assertEquals(0L, bucket.keyOf(Map.of("id", -1)));
+		assertEquals(-4L, bucket.keyOf(Map.of("id", " -8 ")));
+	}
+
+	@Test
+	void tuplesCombineTheirParts() {
+		PartitionKeyExtractor parens = extractor("(toYYYYMM(ts), intDiv(id, 100), `region`)", "DateTime");
+		PartitionKeyExtractor tuple = extractor("tuple(toYYYYMM(ts), intDiv(id, 100), region)", "DateTime");
+		Map<String, Object> row = Map.of("ts", LATE_JANUARY_UTC, "id", 1234, "region", "south");
+
+		assertEquals(List.of(202402L, 12L, "south"), parens.keyOf(row));
+		assertEquals(parens.keyOf(row), tuple.keyOf(row));
+	}
+
+	@Test
+	void unsupportedExpressionsFallBackToUnpartitioned() {
+		for (String expression : new String[] { "cityHash64(id) % 8", "toRelativeWeekNum(ts)", "toYYYYMM(missing)", "intDiv(id)" }) {
+			PartitionKeyExtractor extractor = extractor(expression, "DateTime");
+
+			assertFalse(extractor.partitioned(), expression);
+			assertEquals(expression, extractor.expression());
+			assertNull(extractor.keyOf(Map.of("id", 1, "ts", LATE_JANUARY_UTC)));
+			assertEquals(-1, extractor.partitionCount(List.of(Map.of("id", 1))));
+		}
+		assertSame(PartitionKeyExtractor.unpartitioned(), extractor("", "DateTime"));
+		assertSame(PartitionKeyExtractor.unpartitioned(), extractor("tuple()", "DateTime"));
+	}
+
+	@Test
+	void unreadableValueHasNoKey() {
+		assertNull(extractor("toYYYYMM(ts)", "DateTime").keyOf(Map.of("ts", "yesterday-ish")));
+		assertNull(extractor("intDiv(id, 10)", "Int64").keyOf(Map.of("id", "n/a")));
+	}
+
+	@Test
+	void rowsAreGroupedAndCountedByPartition() {
+		PartitionKeyExtractor bucket = extractor("intDiv(id, 10)", "Int64");
+		List<Map<String, Object>> rows = List.of(Map.of("id", 1), Map.of("id", 25), Map.of("id", 3), Map.of("id", 21), Map.of("id", 14));
+
+		assertEquals(3, bucket.partitionCount(rows));
+		assertEquals(List.of(1, 3, 25, 21, 14), bucket.groupRows(rows).stream().map(r -> r.get("id")).toList());
+		assertEquals(0, bucket.partitionCount(List.of()));
+	}
+
+	private static PartitionKeyExtractor extractor(String partitionKey, String tsType) {
+		List<Column> columns = List.of(new Column("id", "Int64"), new Column("ts", tsType), new Column("region", "String"));
+		return PartitionKeyExtractor.forSchema(new TableSchema("events", columns, KOLKATA, partitionKey));
+	}
+}
@@ -0,0 +1,68 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RotatingBloomFilterTest {
+
+	private static final long KEYS = 10_000;
+	private static final double RATE = 0.01;
+
+	@Test
+	void falsePositiveRateStaysWithinConfiguredAfterRotation() {
+		RotatingBloomFilter filter = new RotatingBloomFilter(KEYS, RATE, 3_600_000);
+		// 3.5 windows' worth: both generations are full when probed
+		int added = (int) (KEYS * 7 / 2);
+		for (int i = 0; i < added; i++) {
+			filter.add(key("added-" + i));
+		}
+		assertEquals(3, filter.rotations());
+
+		int probes = 200_000;
+		int falsePositives = 0;
+		for (int i = 0; i < probes; i++) {
+			if (filter.mightContain(key("absent-" + i))) {
+				falsePositives++;
+			}
+		}
+		double observed = (double) falsePositives / probes;
+		assertTrue(observed <= RATE * 1.2, "false-positive rate " + observed + " above " + RATE);
+		assertTrue(filter.estimatedFalsePositiveRate() <= RATE * 1.2,
+			"estimated rate " + filter.estimatedFalsePositiveRate() + " above " + RATE);
+	}
+
+	@Test
+	void keysOfThePreviousGenerationAreStillFound() {
+		RotatingBloomFilter filter = new RotatingBloomFilter(KEYS, RATE, 3_600_000);
+		int added = (int) (KEYS * 3 / 2);
+		for (int i = 0; i < added; i++) {
+			filter.add(key("added-" + i));
+		}
+		assertEquals(1, filter.rotations());
+		for (int i = 0; i < added; i++) {
+			assertTrue(filter.mightContain(key("added-" + i)), "lost added-" + i);
+		}
+	}
+
+	@Test
+	void oldestGenerationIsForgottenAfterTwoRotations() {
+		RotatingBloomFilter filter = new RotatingBloomFilter(KEYS, RATE, 3_600_000);
+		for (int i = 0; i < KEYS * 3; i++) {
+			filter.add(key("added-" + i));
+		}
+		assertEquals(2, filter.rotations());
+		int remembered = 0;
+		for (int i = 0; i < KEYS; i++) {
+			if (filter.mightContain(key("added-" + i))) {
+				remembered++;
+			}
+		}
+		assertTrue(remembered <= KEYS * RATE * 1.2, remembered + " keys of the cleared generation still found");
+	}
+
+	private static long key(String value) {
+		return RotatingBloomFilter.hash(0, value);
+	}
+}
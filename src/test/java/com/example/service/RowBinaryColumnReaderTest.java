@@ -0,0 +1,184 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowBinaryColumnReaderTest {
+
+	private static final String[] NAMES = { "id", "name", "score", "state", "delta", "code" };
+	private static final String[] TYPES = { "UInt32", "LowCardinality(String)", "Nullable(Float64)",
+		"Enum8('ok' = 1, 'bad' = -1)", "Nullable(Int16)", "FixedString(3)" };
+
+	// id, name, score, state, delta, code
+	private static final Object[][] ROWS = {
+		{ 1L, "alpha", 1.5, "ok", 7, "abc" },
+		{ 2L, "beta", null, "bad", null, "xyz" },
+		{ 3L, "alpha", 2.25, "ok", -3, "abc" },
+		{ 4294967295L, "ωmega", 0.0, "bad", 0, "abc" },
+		{ 5L, "beta", null, "ok", 12, "xyz" },
+	};
+
+	@Test
+	void rowsSplitAcrossBuffersDecodeTheSameAtEveryChunkSize() {
+		byte[] body = body(ROWS);
+		for (int chunk : new int[] { 1, 2, 3, 7, 64, body.length }) {
+			List<RowBinaryColumnReader.Batch> batches = read(body, chunk, 2);
+
+			assertEquals(List.of(2, 2, 1), batches.stream().map(b -> b.rowCount).toList(), "chunk " + chunk);
+			assertEquals(expectedRows(), rows(batches), "chunk " + chunk);
+		}
+	}
+
+	@Test
+	void nullableColumnsFlagNullsAndZeroTheValue() {
+		RowBinaryColumnReader.Batch batch = read(body(ROWS), 5, 10).get(0);
+
+		RowBinaryColumnReader.DoubleVector score = (RowBinaryColumnReader.DoubleVector) batch.column("score");
+		RowBinaryColumnReader.IntVector delta = (RowBinaryColumnReader.IntVector) batch.column("delta");
+		assertArrayEquals(new boolean[] { false, true, false, false, true }, Arrays.copyOf(score.nulls, 5));
+		assertNull(score.get(1));
+		assertEquals(0.0, score.values[1]);
+		assertNull(delta.get(1));
+		assertEquals(0, delta.values[1]);
+		assertEquals(12, delta.values[4]);
+		assertEquals(-3, delta.values[2]);
+		assertNull(batch.column("id").nulls);
+		assertFalse(batch.column("id").isNull(1));
+	}
+
+	@Test
+	void dictionaryColumnsInternEachDistinctValueOncePerBatch() {
+		List<RowBinaryColumnReader.Batch> batches = read(body(ROWS), 4, 3);
+
+		RowBinaryColumnReader.DictionaryVector first = (RowBinaryColumnReader.DictionaryVector) batches.get(0).column("name");
+		assertEquals(List.of("alpha", "beta"), first.dictionary);
+		assertArrayEquals(new int[] { 0, 1, 0 }, Arrays.copyOf(first.codes, 3));
+
+		RowBinaryColumnReader.DictionaryVector second = (RowBinaryColumnReader.DictionaryVector) batches.get(1).column("name");
+		assertEquals(List.of("ωmega", "beta"), second.dictionary);
+		assertEquals("beta", second.getString(1));
+
+		RowBinaryColumnReader.DictionaryVector state = (RowBinaryColumnReader.DictionaryVector) batches.get(0).column("state");
+		assertEquals(List.of("ok", "bad"), state.dictionary);
+		assertArrayEquals(new int[] { 0, 1, 0 }, Arrays.copyOf(state.codes, 3));
+	}
+
+	@Test
+	void unknownEnumCodeDecodesAsItsNumber() {
+		ByteArrayOutputStream out = header(new String[] { "state" }, new String[] { "Enum8('ok' = 1, 'bad' = -1)" });
+		out.write(5);
+
+		RowBinaryColumnReader.Batch batch = read(out.toByteArray(), 1, 10).get(0);
+
+		assertEquals("5", batch.column("state").get(0));
+	}
+
+	@Test
+	void streamEndingInsideARowFails() {
+		byte[] body = body(ROWS);
+		byte[] truncated = Arrays.copyOf(body, body.length - 1);
+
+		assertThrows(IllegalStateException.class, () -> read(truncated, 3, 2));
+		assertThrows(IllegalStateException.class, () -> read(Arrays.copyOf(body, 5), 3, 2));
+	}
+
+	@Test
+	void unsupportedColumnTypeNamesTheColumn() {
+		byte[] body = header(new String[] { "tags" }, new String[] { "Array(String)" }).toByteArray();
+
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> read(body, body.length, 10));
+		assertTrue(e.getMessage().startsWith("Column tags:"), e.getMessage());
+	}
+
+	private static List<RowBinaryColumnReader.Batch> read(byte[] body, int chunk, int batchRows) {
+		List<DataBuffer> buffers = new ArrayList<>();
+		for (int i = 0; i < body.length; i += chunk) {
+			buffers.add(DefaultDataBufferFactory.sharedInstance.wrap(Arrays.copyOfRange(body, i, Math.min(body.length, i + chunk))));
+		}
+		return RowBinaryColumnReader.read(Flux.fromIterable(buffers), batchRows).collectList().block();
+	}
+
+	private static List<List<Object>> rows(List<RowBinaryColumnReader.Batch> batches) {
+		List<List<Object>> rows = new ArrayList<>();
+		for (RowBinaryColumnReader.Batch batch : batches) {
+			for (int r = 0; r < batch.rowCount; r++) {
+				List<Object> row = new ArrayList<>();
+				for (RowBinaryColumnReader.ColumnVector column : batch.columns) row.add(column.get(r));
+				rows.add(row);
+			}
+		}
+		return rows;
+	}
+
+	private static List<List<Object>> expectedRows() {
+		List<List<Object>> rows = new ArrayList<>();
+		for (Object[] row : ROWS) rows.add(Arrays.asList(row));
+		return rows;
+	}
+
+	private static byte[] body(Object[][] rows) {
+		ByteArrayOutputStream out = header(NAMES, TYPES);
+		for (Object[] row : rows) {
+			le(out, (Long) row[0], 4);
+			string(out, (String) row[1]);
+			if (row[2] == null) {
+				out.write(1);
+			} else {
+				out.write(0);
+				le(out, Double.doubleToLongBits((Double) row[2]), 8);
+			}
+			out.write("ok".equals(row[3]) ? 1 : -1);
+			if (row[4] == null) {
+				out.write(1);
+			} else {
+				out.write(0);
+				le(out, (Integer) row[4], 2);
+			}
+			out.writeBytes(((String) row[5]).getBytes(StandardCharsets.UTF_8));
+		}
+		return out.toByteArray();
+	}
+
+	private static ByteArrayOutputStream header(String[] names, String[] types) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		varUInt(out, names.length);
+		for (String name : names) string(out, name);
+		for (String type : types) string(out, type);
+		return out;
+	}
+
+	private static void string(ByteArrayOutputStream out, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		varUInt(out, bytes.length);
+		out.writeBytes(bytes);
+	}
+
+	private static void varUInt(ByteArrayOutputStream out, int v) {
+		while ((v & ~0x7F) != 0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static void le(ByteArrayOutputStream out, long v, int width) {
+		for (int i = 0; i < width; i++) {
+			out.write((int) (v >>> (8 * i)) & 0xFF);
+		}
+	}
+}